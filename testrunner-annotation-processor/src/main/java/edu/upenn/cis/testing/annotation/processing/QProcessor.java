@@ -1,21 +1,33 @@
 package edu.upenn.cis.testing.annotation.processing;
 
 import edu.upenn.cis.testing.annotation.Q;
+import edu.upenn.cis.testing.annotation.QIndex;
 import org.junit.Test;
 
 import javax.annotation.processing.*;
 import javax.lang.model.SourceVersion;
 import javax.lang.model.element.Element;
+import javax.lang.model.element.ElementKind;
 import javax.lang.model.element.TypeElement;
 import javax.lang.model.type.TypeMirror;
 import javax.tools.Diagnostic;
+import javax.tools.FileObject;
+import javax.tools.StandardLocation;
+import java.io.IOException;
+import java.io.Writer;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
 import java.util.Set;
 
 /**
- * This processor performs compile-time checking of {@link Q} annotations.
+ * This processor performs compile-time checking of {@link Q} annotations, and writes a
+ * {@link QIndex} for every class with test methods, so that the runner does not need reflection
+ * to find them.
  * <p>
  * <pre>
  * <code>
@@ -41,10 +53,12 @@ public class QProcessor extends AbstractProcessor {
     private final Map<String, Element> descriptionsToElement;
     private final Map<TypeMirror, Map<Q.Type, Double>>
             totalPointsByTypePerClass;
+    private final Map<TypeElement, TestMethods> testMethodsPerClass;
 
     public QProcessor() {
         descriptionsToElement = new HashMap<>();
         totalPointsByTypePerClass = new HashMap<>();
+        testMethodsPerClass = new LinkedHashMap<>();
     }
 
     private static String truncate(String desc) {
@@ -57,10 +71,45 @@ public class QProcessor extends AbstractProcessor {
         processQAnnotations(roundEnv, messager);
         if (roundEnv.processingOver()) {
             printSummary(messager);
+            writeIndexes(messager);
         }
         return false;
     }
 
+    private void writeIndexes(Messager messager) {
+        testMethodsPerClass.forEach((typeElement, testMethods) -> {
+            String binaryName = processingEnv.getElementUtils().getBinaryName(typeElement)
+                    .toString();
+            int lastDot = binaryName.lastIndexOf('.');
+            String pkg = lastDot < 0 ? "" : binaryName.substring(0, lastDot);
+            String relativeName = QIndex.resourceName(binaryName).substring(lastDot + 1);
+            try {
+                FileObject resource = processingEnv.getFiler().createResource(
+                        StandardLocation.CLASS_OUTPUT, pkg, relativeName, typeElement);
+                try (Writer writer = resource.openWriter()) {
+                    new QIndex(testMethods.names, testMethods.qs).write(writer);
+                }
+            } catch (IOException e) {
+                messager.printMessage(Diagnostic.Kind.ERROR,
+                        "Cannot write the Q index of this class: " + e, typeElement);
+            }
+        });
+    }
+
+    private void addTestMethod(Element e) {
+        if (e.getKind() != ElementKind.METHOD || !e.getEnclosingElement().getKind().isClass()) {
+            return;
+        }
+        TestMethods testMethods = testMethodsPerClass.computeIfAbsent(
+                (TypeElement) e.getEnclosingElement(), c -> new TestMethods());
+        String name = e.getSimpleName().toString();
+        testMethods.names.add(name);
+        Q q = e.getAnnotation(Q.class);
+        if (q != null) {
+            testMethods.qs.put(name, q);
+        }
+    }
+
     private void printSummary(Messager messager) {
         totalPointsByTypePerClass.forEach((typeMirror, pointsByType) -> {
             StringBuilder sb = new StringBuilder();
@@ -77,6 +126,7 @@ public class QProcessor extends AbstractProcessor {
         // getElementsAnnotatedWith gives a lint warning, because the compiler cannot prove that
         // the wildcard types are the same. Thus, we'll just do a for-loop.
         for (Element e : roundEnv.getElementsAnnotatedWith(Test.class)) {
+            addTestMethod(e);
             Q q = e.getAnnotation(Q.class);
             if (q == null) {
                 // TODO: maybe we need an annotation on the class to suppress this warning?
@@ -85,6 +135,8 @@ public class QProcessor extends AbstractProcessor {
             }
         }
 
+        // the Qs of a class are all in the same round
+        Map<TypeMirror, Map<String, Element>> qsPerClass = new LinkedHashMap<>();
         for (Element e : roundEnv.getElementsAnnotatedWith(Q.class)) {
             Q q = e.getAnnotation(Q.class);
             Test test = e.getAnnotation(Test.class);
@@ -101,6 +153,10 @@ public class QProcessor extends AbstractProcessor {
                 messager.printMessage(Diagnostic.Kind.MANDATORY_WARNING,
                         "Encountered a @Q with a positive value for 'incorrect'.", e);
             }
+            if (q.timeoutMillis() < 0) {
+                messager.printMessage(Diagnostic.Kind.ERROR,
+                        "Encountered a @Q with a negative value for 'timeoutMillis'.", e);
+            }
 
             String desc = q.desc();
             boolean currentTruncated;
@@ -137,6 +193,9 @@ public class QProcessor extends AbstractProcessor {
                         "Previous duplicate description was here.", existing);
             }
 
+            qsPerClass.computeIfAbsent(findEnclosingClass(e), c -> new LinkedHashMap<>())
+                    .putIfAbsent(q.desc(), e);
+
             totalPointsByTypePerClass.compute(findEnclosingClass(e), (typeMirror, pointsByType) -> {
                 if (pointsByType == null) {
                     pointsByType = new HashMap<>(Q.Type.values().length);
@@ -145,6 +204,57 @@ public class QProcessor extends AbstractProcessor {
                 return pointsByType;
             });
         }
+        checkPrerequisites(qsPerClass, messager);
+    }
+
+    /**
+     * Checks that every prerequisite of a {@code Q} is a {@code Q} of the same class, and that
+     * no {@code Q} is its own prerequisite, directly or through others.
+     */
+    private static void checkPrerequisites(Map<TypeMirror, Map<String, Element>> qsPerClass,
+                                           Messager messager) {
+        qsPerClass.values().forEach(qs -> {
+            Set<String> checked = new HashSet<>();
+            qs.forEach((desc, e) -> {
+                for (String prerequisite : e.getAnnotation(Q.class).requires()) {
+                    if (!qs.containsKey(prerequisite)) {
+                        messager.printMessage(Diagnostic.Kind.ERROR, "Encountered a prerequisite "
+                                + "that is not the description of a @Q in the same class: "
+                                + prerequisite, e);
+                    }
+                }
+                checkCycles(desc, qs, new ArrayList<>(), checked, messager);
+            });
+        });
+    }
+
+    /**
+     * Searches the prerequisites of a {@code Q} depth first, and reports every cycle it finds
+     * once, on the {@code Q} that closes it.
+     *
+     * @param path    the descriptions of the {@code Q}s that require {@code desc}, in order
+     * @param checked the descriptions of the {@code Q}s that have been searched
+     */
+    private static void checkCycles(String desc, Map<String, Element> qs, List<String> path,
+                                    Set<String> checked, Messager messager) {
+        Element e = qs.get(desc);
+        if (e == null || checked.contains(desc)) {
+            return;
+        }
+        int i = path.indexOf(desc);
+        if (i >= 0) {
+            List<String> cycle = new ArrayList<>(path.subList(i, path.size()));
+            cycle.add(desc);
+            messager.printMessage(Diagnostic.Kind.ERROR, "Encountered a cycle of prerequisites: "
+                    + String.join(" -> ", cycle), qs.get(path.get(path.size() - 1)));
+            return;
+        }
+        path.add(desc);
+        for (String prerequisite : e.getAnnotation(Q.class).requires()) {
+            checkCycles(prerequisite, qs, path, checked, messager);
+        }
+        path.remove(path.size() - 1);
+        checked.add(desc);
     }
 
     private TypeMirror findEnclosingClass(Element e) {
@@ -157,4 +267,9 @@ public class QProcessor extends AbstractProcessor {
         }
         return enc.asType();
     }
-}
\ No newline at end of file
+
+    private static class TestMethods {
+        final Set<String> names = new HashSet<>();
+        final Map<String, Q> qs = new HashMap<>();
+    }
+}
@@ -1,11 +1,14 @@
 package edu.upenn.cis.testing.annotation.processing;
 
+import com.google.common.io.ByteSource;
 import com.google.testing.compile.JavaFileObjects;
 import org.junit.After;
 import org.junit.Before;
 import org.junit.Test;
 
 import javax.tools.JavaFileObject;
+import javax.tools.StandardLocation;
+import java.nio.charset.StandardCharsets;
 
 import static com.google.common.truth.Truth.assert_;
 import static com.google.testing.compile.JavaSourceSubjectFactory.javaSource;
@@ -160,4 +163,77 @@ public class QProcessorTest {
                 .in(source).onLine(11).atColumn(15);
     }
 
-}
\ No newline at end of file
+    @Test
+    public void testUnknownPrerequisiteError() throws Exception {
+        JavaFileObject source = JavaFileObjects.forSourceLines("QTest",
+                "import org.junit.Test;",
+                "import edu.upenn.cis.testing.annotation.Q;",
+                "",
+                "class QTest {",
+                "  @Test",
+                "  @Q(desc = \"seventeen\", points = 17, requires = \"sixteen\")",
+                "  public void test1() {}",
+                "}");
+        assert_().about(javaSource()).that(source)
+                .processedWith(new QProcessor())
+                .failsToCompile()
+                .withErrorContaining("prerequisite").in(source).onLine(7).atColumn(15);
+    }
+
+    @Test
+    public void testPrerequisiteCycleError() throws Exception {
+        JavaFileObject source = JavaFileObjects.forSourceLines("QTest",
+                "import org.junit.Test;",
+                "import edu.upenn.cis.testing.annotation.Q;",
+                "",
+                "class QTest {",
+                "  @Test",
+                "  @Q(desc = \"seventeen\", points = 17, requires = \"eighteen\")",
+                "  public void test1() {}",
+                "",
+                "  @Test",
+                "  @Q(desc = \"eighteen\", points = 18, requires = \"seventeen\")",
+                "  public void test2() {}",
+                "}");
+        assert_().about(javaSource()).that(source)
+                .processedWith(new QProcessor())
+                .failsToCompile()
+                .withErrorContaining("seventeen -> eighteen -> seventeen")
+                .in(source).onLine(11).atColumn(15);
+    }
+
+    @Test
+    public void testIndex() throws Exception {
+        JavaFileObject source = JavaFileObjects.forSourceLines("test.QTest",
+                "package test;",
+                "",
+                "import org.junit.Test;",
+                "import edu.upenn.cis.testing.annotation.Q;",
+                "",
+                "public class QTest {",
+                "  @Test",
+                "  @Q(desc = \"seventeen\", points = 17)",
+                "  public void test1() {}",
+                "",
+                "  @Test",
+                "  @Q(desc = \"bonus\\tpoint\", points = 1, incorrect = -1, "
+                        + "type = Q.Type.EXTRA_CREDIT, requires = \"seventeen\")",
+                "  public void test2() {}",
+                "",
+                "  @Test",
+                "  @Q(desc = \"eighteen\", points = 18, timeoutMillis = 500)",
+                "  public void test3() {}",
+                "}");
+        String index = "q\ttest1\tREGULAR\t17.0\t0.0\tseventeen\n"
+                + "q\ttest2\tEXTRA_CREDIT\t1.0\t-1.0\tbonus\\tpoint\t0\tseventeen\n"
+                + "q\ttest3\tREGULAR\t18.0\t0.0\teighteen\t500\n"
+                + "total\tREGULAR\t35.0\n"
+                + "total\tEXTRA_CREDIT\t1.0\n";
+        assert_().about(javaSource()).that(source)
+                .processedWith(new QProcessor())
+                .compilesWithoutError()
+                .and()
+                .generatesFileNamed(StandardLocation.CLASS_OUTPUT, "test", "QTest.qindex")
+                .withContents(ByteSource.wrap(index.getBytes(StandardCharsets.UTF_8)));
+    }
+}
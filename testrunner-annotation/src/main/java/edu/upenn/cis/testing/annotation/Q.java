@@ -41,6 +41,24 @@ public @interface Q {
      */
     double incorrect() default 0;
 
+    /**
+     * The time the test may take, in milliseconds, after which it is stopped and scored as
+     * incorrect, so that a single slow question does not use up the time of all others. Zero,
+     * the default, means that only the time limits of the test class and the whole run apply.
+     *
+     * @return the time limit of the test, or 0 for none
+     */
+    long timeoutMillis() default 0;
+
+    /**
+     * The descriptions of the questions of the same test class that this question builds on.
+     * The test runs after those of its prerequisites, and if any of them fails, the test is
+     * skipped and scored as {@link #incorrect()} without running.
+     *
+     * @return the descriptions of the prerequisite questions
+     */
+    String[] requires() default {};
+
     enum Type {
         /**
          * Defines a regular-credit question.
@@ -0,0 +1,353 @@
+package edu.upenn.cis.testing.annotation;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.PrintWriter;
+import java.io.Reader;
+import java.io.Writer;
+import java.lang.annotation.Annotation;
+import java.lang.reflect.Method;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.EnumMap;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.TreeSet;
+
+/**
+ * A {@code QIndex} lists the test methods of a test class with their {@link Q} annotations and
+ * the total points of the class by {@link Q.Type}. The annotation processor writes one index per
+ * test class at compile time, as the resource {@link #resourceName(String)} next to the class
+ * file, so that the runner can look up {@code Q}s without reflection. This class is immutable.
+ * <p>
+ * The index is a UTF-8 text file with one tab-separated record per line:
+ * <pre>
+ * <code>
+ * test  &lt;method&gt;                                           a test method without a Q
+ * q     &lt;method&gt; &lt;type&gt; &lt;points&gt; &lt;incorrect&gt; &lt;desc&gt;  a test method with a Q
+ *       [&lt;timeoutMillis&gt; [&lt;requires&gt;...]]        if not 0 or none
+ * total &lt;type&gt; &lt;points&gt;                                  the points of a type
+ * </code>
+ * </pre>
+ * where every prerequisite in {@link Q#requires()} is a field of its own. Backslashes, tabs and
+ * line breaks in descriptions are escaped as in Java string literals.
+ *
+ * @author davix
+ */
+public final class QIndex {
+    public static final String SUFFIX = ".qindex";
+
+    private static final String TEST = "test";
+    private static final String Q_RECORD = "q";
+    private static final String TOTAL = "total";
+
+    private final Set<String> testMethods;
+    private final Map<String, Q> qs;
+    private final Map<Q.Type, Double> totalPointsByType;
+
+    private QIndex(Set<String> testMethods, Map<String, Q> qs,
+                   Map<Q.Type, Double> totalPointsByType) {
+        this.testMethods = Collections.unmodifiableSet(testMethods);
+        this.qs = Collections.unmodifiableMap(qs);
+        this.totalPointsByType = Collections.unmodifiableMap(totalPointsByType);
+    }
+
+    /**
+     * @param testMethods the names of the test methods
+     * @param qs          the {@code Q}s of those test methods that have one, by method name
+     */
+    public QIndex(Set<String> testMethods, Map<String, ? extends Q> qs) {
+        this(new TreeSet<>(testMethods), new HashMap<>(qs), totalPoints(qs));
+    }
+
+    /**
+     * @param binaryName the binary name of a test class
+     * @return the name of the index resource of the class, relative to the class path root
+     */
+    public static String resourceName(String binaryName) {
+        return binaryName.replace('.', '/') + SUFFIX;
+    }
+
+    /**
+     * Reads the index of a test class and the indexes of its superclasses, which hold the test
+     * methods it inherits. A method of the class shadows an inherited one of the same name.
+     *
+     * @param testClass the test class
+     * @param resources the class loader that the indexes are read from
+     * @return the combined index, or {@code null} if neither the class nor any of its
+     * superclasses has an index, e.g. because they were compiled without the annotation
+     * processor
+     * @throws IOException if an index cannot be read
+     */
+    public static QIndex load(Class<?> testClass, ClassLoader resources) throws IOException {
+        Deque<QIndex> indexes = new ArrayDeque<>();
+        for (Class<?> c = testClass; c != null && c != Object.class; c = c.getSuperclass()) {
+            URL url = resources.getResource(resourceName(c.getName()));
+            if (url != null) {
+                try (InputStream in = url.openStream()) {
+                    indexes.push(read(new InputStreamReader(in, StandardCharsets.UTF_8)));
+                }
+            }
+        }
+        if (indexes.size() <= 1) {
+            return indexes.peek();
+        }
+        // from the topmost superclass down, so that subclasses shadow
+        Set<String> testMethods = new TreeSet<>();
+        Map<String, Q> qs = new HashMap<>();
+        for (QIndex index : indexes) {
+            testMethods.addAll(index.testMethods);
+            index.testMethods.forEach(qs::remove);
+            qs.putAll(index.qs);
+        }
+        return new QIndex(testMethods, qs);
+    }
+
+    /**
+     * Builds the index of a test class by reflection, for classes compiled without the
+     * annotation processor.
+     *
+     * @param testClass      the test class
+     * @param testAnnotation the annotation that marks test methods
+     */
+    public static QIndex reflect(Class<?> testClass, Class<? extends Annotation> testAnnotation) {
+        Set<String> testMethods = new TreeSet<>();
+        Map<String, Q> qs = new HashMap<>();
+        for (Method method : testClass.getMethods()) {
+            Q q = method.getAnnotation(Q.class);
+            if (method.isAnnotationPresent(testAnnotation)) {
+                testMethods.add(method.getName());
+            }
+            if (q != null) {
+                qs.put(method.getName(), q);
+            }
+        }
+        return new QIndex(testMethods, qs);
+    }
+
+    /**
+     * @return the names of the test methods, sorted
+     */
+    public Set<String> getTestMethods() {
+        return testMethods;
+    }
+
+    /**
+     * @return the {@code Q} of a method, or {@code null} if the method is not annotated with one
+     */
+    public Q getQ(String methodName) {
+        return qs.get(methodName);
+    }
+
+    /**
+     * @return the total points of all {@code Q}s by type
+     */
+    public Map<Q.Type, Double> getTotalPointsByType() {
+        return totalPointsByType;
+    }
+
+    public void write(Writer writer) {
+        PrintWriter out = new PrintWriter(writer);
+        for (String method : testMethods) {
+            Q q = qs.get(method);
+            if (q == null) {
+                out.printf("%s\t%s\n", TEST, method);
+            } else {
+                out.printf("%s\t%s\t%s\t%s\t%s\t%s", Q_RECORD, method, q.type(),
+                        Double.toString(q.points()), Double.toString(q.incorrect()),
+                        escape(q.desc()));
+                if (q.timeoutMillis() != 0 || q.requires().length > 0) {
+                    out.printf("\t%d", q.timeoutMillis());
+                }
+                for (String prerequisite : q.requires()) {
+                    out.printf("\t%s", escape(prerequisite));
+                }
+                out.print('\n');
+            }
+        }
+        new TreeMap<>(totalPointsByType).forEach((type, points) ->
+                out.printf("%s\t%s\t%s\n", TOTAL, type, Double.toString(points)));
+        out.flush();
+    }
+
+    /**
+     * @throws IOException if the index cannot be read or is malformed
+     */
+    public static QIndex read(Reader reader) throws IOException {
+        Set<String> testMethods = new TreeSet<>();
+        Map<String, Q> qs = new HashMap<>();
+        Map<Q.Type, Double> totalPointsByType = new EnumMap<>(Q.Type.class);
+        BufferedReader in = new BufferedReader(reader);
+        String line;
+        while ((line = in.readLine()) != null) {
+            if (line.isEmpty()) {
+                continue;
+            }
+            String[] fields = line.split("\t", -1);
+            try {
+                switch (fields[0]) {
+                    case TEST:
+                        testMethods.add(fields[1]);
+                        break;
+                    case Q_RECORD:
+                        testMethods.add(fields[1]);
+                        String[] requires = new String[Math.max(0, fields.length - 7)];
+                        for (int i = 0; i < requires.length; i++) {
+                            requires[i] = unescape(fields[7 + i]);
+                        }
+                        qs.put(fields[1], new IndexedQ(unescape(fields[5]),
+                                Double.parseDouble(fields[3]), Q.Type.valueOf(fields[2]),
+                                Double.parseDouble(fields[4]),
+                                fields.length > 6 ? Long.parseLong(fields[6]) : 0, requires));
+                        break;
+                    case TOTAL:
+                        totalPointsByType.put(Q.Type.valueOf(fields[1]),
+                                Double.parseDouble(fields[2]));
+                        break;
+                    default:
+                        throw new IOException("Unknown Q index record: " + line);
+                }
+            } catch (ArrayIndexOutOfBoundsException | IllegalArgumentException e) {
+                throw new IOException("Malformed Q index record: " + line, e);
+            }
+        }
+        return new QIndex(testMethods, qs, totalPointsByType);
+    }
+
+    private static Map<Q.Type, Double> totalPoints(Map<String, ? extends Q> qs) {
+        Map<Q.Type, Double> totalPointsByType = new EnumMap<>(Q.Type.class);
+        qs.values().forEach(q -> totalPointsByType.merge(q.type(), q.points(), Double::sum));
+        return totalPointsByType;
+    }
+
+    private static String escape(String s) {
+        return s.replace("\\", "\\\\").replace("\t", "\\t").replace("\n", "\\n")
+                .replace("\r", "\\r");
+    }
+
+    private static String unescape(String s) {
+        StringBuilder sb = new StringBuilder(s.length());
+        for (int i = 0; i < s.length(); i++) {
+            char c = s.charAt(i);
+            if (c == '\\' && i + 1 < s.length()) {
+                c = s.charAt(++i);
+                switch (c) {
+                    case 't':
+                        c = '\t';
+                        break;
+                    case 'n':
+                        c = '\n';
+                        break;
+                    case 'r':
+                        c = '\r';
+                        break;
+                    default:
+                        break;
+                }
+            }
+            sb.append(c);
+        }
+        return sb.toString();
+    }
+
+    /**
+     * A {@code Q} read from an index, which behaves like the annotation it was written from.
+     */
+    @SuppressWarnings("ClassExplicitlyAnnotation")
+    private static final class IndexedQ implements Q {
+        private final String desc;
+        private final double points;
+        private final Type type;
+        private final double incorrect;
+        private final long timeoutMillis;
+        private final String[] requires;
+
+        IndexedQ(String desc, double points, Type type, double incorrect, long timeoutMillis,
+                 String[] requires) {
+            this.desc = desc;
+            this.points = points;
+            this.type = type;
+            this.incorrect = incorrect;
+            this.timeoutMillis = timeoutMillis;
+            this.requires = requires;
+        }
+
+        @Override
+        public String desc() {
+            return desc;
+        }
+
+        @Override
+        public double points() {
+            return points;
+        }
+
+        @Override
+        public Type type() {
+            return type;
+        }
+
+        @Override
+        public double incorrect() {
+            return incorrect;
+        }
+
+        @Override
+        public long timeoutMillis() {
+            return timeoutMillis;
+        }
+
+        @Override
+        public String[] requires() {
+            return requires.clone();
+        }
+
+        @Override
+        public Class<? extends Annotation> annotationType() {
+            return Q.class;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) {
+                return true;
+            }
+            if (!(o instanceof Q)) {
+                return false;
+            }
+            Q that = (Q) o;
+            return desc.equals(that.desc())
+                    && Double.valueOf(points).equals(that.points())
+                    && type == that.type()
+                    && Double.valueOf(incorrect).equals(that.incorrect())
+                    && timeoutMillis == that.timeoutMillis()
+                    && Arrays.equals(requires, that.requires());
+        }
+
+        @Override
+        public int hashCode() {
+            // as specified by Annotation#hashCode
+            return (127 * "desc".hashCode() ^ desc.hashCode())
+                    + (127 * "points".hashCode() ^ Double.valueOf(points).hashCode())
+                    + (127 * "type".hashCode() ^ type.hashCode())
+                    + (127 * "incorrect".hashCode() ^ Double.valueOf(incorrect).hashCode())
+                    + (127 * "timeoutMillis".hashCode() ^ Long.valueOf(timeoutMillis).hashCode())
+                    + (127 * "requires".hashCode() ^ Arrays.hashCode(requires));
+        }
+
+        @Override
+        public String toString() {
+            return "@" + Q.class.getName() + "(type=" + type + ", incorrect=" + incorrect
+                    + ", desc=\"" + desc + "\", points=" + points + ", timeoutMillis="
+                    + timeoutMillis + ", requires=" + Arrays.toString(requires) + ")";
+        }
+    }
+}
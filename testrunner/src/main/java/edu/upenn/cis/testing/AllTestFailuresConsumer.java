@@ -6,14 +6,42 @@ import org.junit.runner.notification.Failure;
 import java.io.PrintWriter;
 
 /**
- * Outputs all test failures.
+ * Outputs all test failures. Traces are rendered by a {@link FailureRenderer}, so failures that
+ * are the same as an earlier one only refer to it, and the tests that failed the same way are
+ * counted in the summary.
  *
  * @author davix
  */
 public class AllTestFailuresConsumer implements TestFailureConsumer {
+    private final FailureRenderer renderer;
+
+    public AllTestFailuresConsumer() {
+        this(new FailureRenderer());
+    }
+
+    public AllTestFailuresConsumer(FailureRenderer renderer) {
+        this.renderer = renderer;
+    }
+
     @Override
     public void accept(Q q, Failure failure, PrintWriter out) {
-        out.printf("Failure (correct = %f points, incorrect = %f points): %s%n%s%n%s",
-                q.points(), q.incorrect(), q.desc(), failure, failure.getTrace());
+        accept(q, failure, "", out);
+    }
+
+    @Override
+    public void accept(Q q, Failure failure, String testOutput, PrintWriter out) {
+        out.printf("Failure (correct = %f points, incorrect = %f points): %s%n%s%n%s%s",
+                q.points(), q.incorrect(), q.desc(), failure, renderer.render(q, failure),
+                FailureRenderer.renderOutput(testOutput));
+    }
+
+    @Override
+    public String trace(Failure failure) {
+        return renderer.collapse(failure.getTrace());
+    }
+
+    @Override
+    public void printSummary(PrintWriter out) {
+        renderer.printRepeated(out);
     }
 }
@@ -0,0 +1,171 @@
+package edu.upenn.cis.testing;
+
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.net.URISyntaxException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.security.CodeSource;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import static edu.upenn.cis.testing.QRunner.log;
+import static edu.upenn.cis.testing.QRunner.logWarning;
+
+/**
+ * {@code ClassDataSharing} creates and finds the application class data sharing (AppCDS)
+ * archive of the runner jar. The archive holds the parsed and verified JUnit, commons-cli, Guice
+ * and runner classes that a grading job loads, so that JVMs started with it, such as the workers
+ * of a {@link WorkerPool}, skip loading them from the jar. Requires Java 11 or later; on older
+ * JVMs, no archive is created or used.
+ * <p>
+ * The archive is created for the runner jar alone, since it cannot contain classes from
+ * directories, such as test classes that are not in a jar. It is valid for any class path that
+ * starts with the runner jar; a JVM started with a mismatching archive ignores it and loads all
+ * classes from the class path.
+ *
+ * @author davix
+ */
+class ClassDataSharing {
+    private static final String ARCHIVE_OPTION = "-XX:SharedArchiveFile=";
+    private static final String ARCHIVE_SUFFIX = ".jsa";
+    private static final String CLASS_LIST_SUFFIX = ".classlist";
+
+    private ClassDataSharing() {
+    }
+
+    /**
+     * Creates an archive by running a representative grading job twice, first to record the
+     * classes it loads and then with the archive made from them, and logs how long the job took
+     * each time.
+     *
+     * @param archive     where the archive is written
+     * @param qRunnerArgs the {@link QRunner} arguments of the grading job
+     * @throws IllegalStateException if this JVM does not support AppCDS
+     * @throws IOException           if a JVM cannot be started or fails
+     * @throws InterruptedException  if interrupted while waiting for a JVM
+     */
+    static void train(Path archive, List<String> qRunnerArgs)
+            throws IOException, InterruptedException {
+        if (!isSupported()) {
+            throw new IllegalStateException("Class data sharing archives require Java 11 or "
+                    + "later, this is " + System.getProperty("java.specification.version"));
+        }
+        Path runnerJar = runnerJar();
+        if (runnerJar == null) {
+            throw new IllegalStateException("Class data sharing archives can only be created "
+                    + "when running from the runner jar");
+        }
+        Path classList = Paths.get(archive + CLASS_LIST_SUFFIX);
+        Files.deleteIfExists(archive);
+
+        log("Training run: recording loaded classes in %s", classList);
+        Duration without = run(qRunner(Arrays.asList("-Xshare:off",
+                "-XX:DumpLoadedClassList=" + classList), qRunnerArgs));
+
+        log("Dumping class data sharing archive %s", archive);
+        // classes in the list that are not in the runner jar are skipped with a warning
+        run(Arrays.asList(javaExecutable(), "-Xshare:dump",
+                "-XX:SharedClassListFile=" + classList, ARCHIVE_OPTION + archive,
+                "-cp", runnerJar.toString()));
+        if (!Files.isRegularFile(archive)) {
+            throw new IOException("No archive was written to " + archive);
+        }
+
+        log("Training run: with archive %s", archive);
+        Duration with = run(qRunner(Collections.singletonList(ARCHIVE_OPTION + archive),
+                qRunnerArgs));
+        log("Grading job took %d ms without and %d ms with the archive (%d KiB)",
+                without.toMillis(), with.toMillis(), Files.size(archive) / 1024);
+    }
+
+    /**
+     * @return the JVM options that make a JVM started with this JVM's class path use the
+     * archive, i.e. the archive this JVM uses, or else {@code <jar>.jsa} next to the runner jar.
+     * Empty if there is no archive.
+     */
+    static List<String> jvmOptions() {
+        if (!isSupported()) {
+            return Collections.emptyList();
+        }
+        for (String arg : ManagementFactory.getRuntimeMXBean().getInputArguments()) {
+            if (arg.startsWith(ARCHIVE_OPTION)) {
+                return Collections.singletonList(arg);
+            }
+        }
+        Path archive = defaultArchive();
+        if (archive != null && Files.isRegularFile(archive)) {
+            return Collections.singletonList(ARCHIVE_OPTION + archive);
+        }
+        return Collections.emptyList();
+    }
+
+    /**
+     * @return {@code <jar>.jsa} next to the runner jar, or {@code null} if the runner is not
+     * run from a jar
+     */
+    static Path defaultArchive() {
+        Path runnerJar = runnerJar();
+        return runnerJar == null ? null : Paths.get(runnerJar + ARCHIVE_SUFFIX);
+    }
+
+    private static Path runnerJar() {
+        CodeSource codeSource = QRunner.class.getProtectionDomain().getCodeSource();
+        if (codeSource == null || !"file".equals(codeSource.getLocation().getProtocol())) {
+            return null;
+        }
+        try {
+            Path location = Paths.get(codeSource.getLocation().toURI());
+            return Files.isRegularFile(location) ? location : null;
+        } catch (URISyntaxException e) {
+            return null;
+        }
+    }
+
+    /**
+     * @param jvmOptions options to start the JVM with
+     * @return the command that starts a JVM like this one, with the same class path
+     */
+    static List<String> java(List<String> jvmOptions) {
+        List<String> command = new ArrayList<>();
+        command.add(javaExecutable());
+        command.addAll(jvmOptions);
+        command.add("-cp");
+        command.add(System.getProperty("java.class.path"));
+        return command;
+    }
+
+    private static String javaExecutable() {
+        return Paths.get(System.getProperty("java.home"), "bin", "java").toString();
+    }
+
+    private static List<String> qRunner(List<String> jvmOptions, List<String> qRunnerArgs) {
+        List<String> command = java(jvmOptions);
+        command.add(QRunner.class.getName());
+        command.addAll(qRunnerArgs);
+        return command;
+    }
+
+    private static Duration run(List<String> command) throws IOException, InterruptedException {
+        Instant start = Instant.now();
+        Process process = new ProcessBuilder(command).inheritIO().start();
+        int exitCode = process.waitFor();
+        Duration elapsed = Duration.between(start, Instant.now());
+        if (exitCode != 0) {
+            // e.g. a submission with a missing @Q, which still exercises the runner
+            logWarning("%s exited with %d", String.join(" ", command), exitCode);
+        }
+        return elapsed;
+    }
+
+    private static boolean isSupported() {
+        String version = System.getProperty("java.specification.version");
+        // "1.8" before Java 9, "9", "10", ... after
+        return !version.startsWith("1.") && Integer.parseInt(version) >= 11;
+    }
+}
@@ -0,0 +1,321 @@
+package edu.upenn.cis.testing;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+
+import static edu.upenn.cis.testing.QRunner.logWarning;
+
+/**
+ * A {@code ClassPathRoot} is the directory, jar or zip file that a submission's classes are
+ * read from by {@link QClassLoader}s. A jar or zip file is read into memory in one piece once,
+ * when the root is opened, and its central directory is indexed; class files stored
+ * uncompressed are then returned as slices of it, without any copying. Compressed entries are
+ * inflated into a buffer of exactly the right size. Class files in a directory are read into a
+ * buffer of exactly the right size. This class is thread-safe.
+ * <p>
+ * The archive is read into the heap rather than memory-mapped, because a mapping cannot be
+ * released safely while slices of it may still be in use, and would otherwise keep the file
+ * mapped until the buffer happens to be collected. Closing the root lets go of the archive;
+ * looking up classes after that fails.
+ *
+ * @author davix
+ */
+abstract class ClassPathRoot implements Closeable {
+
+    /**
+     * Opens a directory, jar or zip file. A root that does not exist is treated as empty, like
+     * {@link java.net.URLClassLoader} does. An archive that cannot be indexed, e.g. because it
+     * uses ZIP64 extensions, is logged and treated as empty, so that its classes are loaded
+     * through the parent class loader instead.
+     *
+     * @throws IOException if the root cannot be read
+     */
+    static ClassPathRoot open(Path root) throws IOException {
+        if (Files.isDirectory(root)) {
+            return new Directory(root);
+        }
+        if (!Files.exists(root)) {
+            return new Archive(Collections.emptyMap(), null);
+        }
+        try {
+            return new Archive(root);
+        } catch (ZipFormatException e) {
+            logWarning("Cannot index %s, loading its classes through the class path: %s", root,
+                    e.getMessage());
+            return new Archive(Collections.emptyMap(), null);
+        }
+    }
+
+    /**
+     * @param className the binary name of a class
+     * @return the bytes of the class file, positioned at its start, or {@code null} if this
+     * root does not contain the class
+     * @throws IOException if the class file cannot be read
+     */
+    abstract ByteBuffer findClass(String className) throws IOException;
+
+    /**
+     * @return the binary names of all classes in this root
+     * @throws IOException if the root cannot be listed
+     */
+    abstract List<String> listClasses() throws IOException;
+
+    @Override
+    public void close() throws IOException {
+    }
+
+    static String classFileName(String className) {
+        return className.replace('.', '/').concat(".class");
+    }
+
+    static String className(String classFileName) {
+        return classFileName.substring(0, classFileName.length() - ".class".length())
+                .replace('/', '.');
+    }
+
+    private static class Directory extends ClassPathRoot {
+        private final Path root;
+
+        Directory(Path root) {
+            this.root = root;
+        }
+
+        @Override
+        ByteBuffer findClass(String className) throws IOException {
+            Path classFile = root.resolve(classFileName(className));
+            if (!Files.isRegularFile(classFile)) {
+                // most lookups are for classes that are elsewhere; avoid throwing for them
+                return null;
+            }
+            try (FileChannel channel = FileChannel.open(classFile, StandardOpenOption.READ)) {
+                long size = channel.size();
+                if (size > Integer.MAX_VALUE) {
+                    throw new IOException("Class file too large: " + className);
+                }
+                ByteBuffer bytes = ByteBuffer.allocate((int) size);
+                while (bytes.hasRemaining() && channel.read(bytes) != -1) {
+                    // keep reading
+                }
+                bytes.flip();
+                return bytes;
+            } catch (NoSuchFileException e) {
+                return null;
+            }
+        }
+
+        @Override
+        List<String> listClasses() throws IOException {
+            try (Stream<Path> files = Files.walk(root)) {
+                return files
+                        .filter(f -> f.toString().endsWith(".class") && Files.isRegularFile(f))
+                        .map(f -> className(root.relativize(f).toString().replace('\\', '/')))
+                        .sorted()
+                        .collect(Collectors.toList());
+            }
+        }
+    }
+
+    private static class Archive extends ClassPathRoot {
+        private static final int END_SIGNATURE = 0x06054b50;
+        private static final int END_SIZE = 22;
+        private static final int CENTRAL_SIGNATURE = 0x02014b50;
+        private static final int CENTRAL_SIZE = 46;
+        private static final int LOCAL_SIGNATURE = 0x04034b50;
+        private static final int LOCAL_SIZE = 30;
+        private static final int STORED = 0;
+        private static final int DEFLATED = 8;
+
+        private final Map<String, Entry> entries;
+        // null once closed
+        private volatile ByteBuffer contents;
+
+        Archive(Path file) throws IOException {
+            ByteBuffer contents;
+            try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+                if (channel.size() > Integer.MAX_VALUE) {
+                    throw new ZipFormatException("larger than 2 GB");
+                }
+                contents = ByteBuffer.allocate((int) channel.size());
+                while (contents.hasRemaining() && channel.read(contents) != -1) {
+                    // keep reading
+                }
+                contents.flip();
+            }
+            this.entries = index(littleEndian(contents));
+            this.contents = contents;
+        }
+
+        Archive(Map<String, Entry> entries, ByteBuffer contents) {
+            this.entries = entries;
+            this.contents = contents;
+        }
+
+        private static Map<String, Entry> index(ByteBuffer zip) throws ZipFormatException {
+            int end = zip.limit() - END_SIZE;
+            // the end record is followed by a comment of at most 64 KiB
+            int minEnd = Math.max(0, end - 0xffff);
+            while (end >= minEnd && zip.getInt(end) != END_SIGNATURE) {
+                end--;
+            }
+            if (end < minEnd) {
+                throw new ZipFormatException("no end of central directory record");
+            }
+            int numEntries = Short.toUnsignedInt(zip.getShort(end + 10));
+            long centralOffset = Integer.toUnsignedLong(zip.getInt(end + 16));
+            if (numEntries == 0xffff || centralOffset == 0xffffffffL) {
+                throw new ZipFormatException("ZIP64 archives are not supported");
+            }
+
+            Map<String, Entry> entries = new HashMap<>(numEntries * 2);
+            int pos = (int) centralOffset;
+            for (int i = 0; i < numEntries; i++) {
+                if (pos + CENTRAL_SIZE > zip.limit() || zip.getInt(pos) != CENTRAL_SIGNATURE) {
+                    throw new ZipFormatException("corrupt central directory");
+                }
+                int method = Short.toUnsignedInt(zip.getShort(pos + 10));
+                long compressedSize = Integer.toUnsignedLong(zip.getInt(pos + 20));
+                long size = Integer.toUnsignedLong(zip.getInt(pos + 24));
+                int nameLength = Short.toUnsignedInt(zip.getShort(pos + 28));
+                int extraLength = Short.toUnsignedInt(zip.getShort(pos + 30));
+                int commentLength = Short.toUnsignedInt(zip.getShort(pos + 32));
+                long localOffset = Integer.toUnsignedLong(zip.getInt(pos + 42));
+                if (compressedSize == 0xffffffffL || size == 0xffffffffL
+                        || localOffset == 0xffffffffL) {
+                    throw new ZipFormatException("ZIP64 archives are not supported");
+                }
+
+                if (pos + CENTRAL_SIZE + nameLength > zip.limit()) {
+                    throw new ZipFormatException("corrupt central directory");
+                }
+                byte[] name = new byte[nameLength];
+                ByteBuffer nameBuffer = zip.duplicate();
+                nameBuffer.position(pos + CENTRAL_SIZE);
+                nameBuffer.get(name);
+                String entryName = new String(name, StandardCharsets.UTF_8);
+                if (entryName.endsWith(".class")) {
+                    entries.put(entryName, new Entry(method, (int) localOffset,
+                            (int) compressedSize, (int) size));
+                }
+                pos += CENTRAL_SIZE + nameLength + extraLength + commentLength;
+            }
+            return entries;
+        }
+
+        @Override
+        ByteBuffer findClass(String className) throws IOException {
+            Entry entry = entries.get(classFileName(className));
+            if (entry == null) {
+                return null;
+            }
+            ByteBuffer contents = this.contents;
+            if (contents == null) {
+                throw new IOException("Closed class path root; cannot read " + className);
+            }
+            ByteBuffer zip = littleEndian(contents);
+            int local = entry.localOffset;
+            if (zip.getInt(local) != LOCAL_SIGNATURE) {
+                throw new IOException("Corrupt local header for " + className);
+            }
+            // the local extra field may differ from the one in the central directory
+            int data = local + LOCAL_SIZE + Short.toUnsignedInt(zip.getShort(local + 26))
+                    + Short.toUnsignedInt(zip.getShort(local + 28));
+            if (data + entry.compressedSize > zip.limit()) {
+                throw new IOException("Truncated entry for " + className);
+            }
+            zip.position(data);
+            zip.limit(data + entry.compressedSize);
+            ByteBuffer compressed = zip.slice();
+
+            switch (entry.method) {
+                case STORED:
+                    return compressed;
+                case DEFLATED:
+                    return inflate(compressed, entry.size, className);
+                default:
+                    throw new IOException("Unsupported compression method " + entry.method
+                            + " for " + className);
+            }
+        }
+
+        @Override
+        public void close() {
+            contents = null;
+        }
+
+        @Override
+        List<String> listClasses() {
+            return entries.keySet().stream().map(ClassPathRoot::className).sorted()
+                    .collect(Collectors.toList());
+        }
+
+        private static ByteBuffer inflate(ByteBuffer compressed, int size, String className)
+                throws IOException {
+            // Inflater only takes arrays before Java 11, so the compressed bytes are copied once
+            byte[] input = new byte[compressed.remaining()];
+            compressed.get(input);
+            byte[] output = new byte[size];
+            Inflater inflater = new Inflater(true);
+            try {
+                inflater.setInput(input);
+                int n = 0;
+                while (n < size && !inflater.finished()) {
+                    int inflated = inflater.inflate(output, n, size - n);
+                    if (inflated == 0 && (inflater.needsInput() || inflater.needsDictionary())) {
+                        break;
+                    }
+                    n += inflated;
+                }
+                if (n != size) {
+                    throw new IOException("Truncated entry for " + className);
+                }
+            } catch (DataFormatException e) {
+                throw new IOException("Corrupt entry for " + className, e);
+            } finally {
+                inflater.end();
+            }
+            return ByteBuffer.wrap(output);
+        }
+
+        private static ByteBuffer littleEndian(ByteBuffer buffer) {
+            return buffer.duplicate().order(ByteOrder.LITTLE_ENDIAN);
+        }
+    }
+
+    private static class Entry {
+        final int method;
+        final int localOffset;
+        final int compressedSize;
+        final int size;
+
+        Entry(int method, int localOffset, int compressedSize, int size) {
+            this.method = method;
+            this.localOffset = localOffset;
+            this.compressedSize = compressedSize;
+            this.size = size;
+        }
+    }
+
+    private static class ZipFormatException extends IOException {
+        private static final long serialVersionUID = 1L;
+
+        ZipFormatException(String message) {
+            super(message);
+        }
+    }
+}
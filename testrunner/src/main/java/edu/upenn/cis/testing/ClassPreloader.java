@@ -0,0 +1,63 @@
+package edu.upenn.cis.testing;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.ForkJoinPool;
+
+/**
+ * A {@code ClassPreloader} loads and links all classes of a submission in parallel, before the
+ * tests start, so that the time spent loading and verifying them does not count towards the
+ * timeout of the tests, and so that classes that fail to load or verify are reported up front
+ * instead of as failures of whichever tests happen to touch them first. This class is
+ * thread-safe.
+ *
+ * @author davix
+ */
+public class ClassPreloader {
+    private final ForkJoinPool pool;
+
+    /**
+     * @param parallelism the number of classes loaded at the same time
+     */
+    public ClassPreloader(int parallelism) {
+        this.pool = new ForkJoinPool(parallelism);
+    }
+
+    /**
+     * Loads and links every class in every class loader, without initializing them.
+     *
+     * @param classLoaders the class loaders, e.g. one {@link QClassLoader} per test class
+     * @param classNames   the binary names of the classes to load
+     * @return the classes that failed to load or link, each followed by the error, sorted by
+     * class name. A class that fails in several loaders is reported once.
+     */
+    public List<String> preload(Collection<? extends ClassLoader> classLoaders,
+                                Collection<String> classNames) {
+        Map<String, String> errors = new ConcurrentSkipListMap<>();
+        List<Callable<Void>> tasks = new ArrayList<>();
+        for (ClassLoader classLoader : classLoaders) {
+            for (String className : classNames) {
+                tasks.add(() -> {
+                    try {
+                        Class<?> c = Class.forName(className, false, classLoader);
+                        // reflecting on the members links, and thereby verifies, the class
+                        c.getDeclaredMethods();
+                    } catch (ClassNotFoundException | LinkageError | LoadClassError e) {
+                        errors.putIfAbsent(className, e.toString());
+                    }
+                    return null;
+                });
+            }
+        }
+        // waits for all tasks to complete
+        pool.invokeAll(tasks);
+
+        List<String> result = new ArrayList<>();
+        errors.forEach((className, error) -> result.add(className + ": " + error));
+        return result;
+    }
+}
@@ -0,0 +1,304 @@
+package edu.upenn.cis.testing;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.file.Files;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import static edu.upenn.cis.testing.QRunner.log;
+import static edu.upenn.cis.testing.QRunner.logError;
+
+/**
+ * A {@code Coordinator} owns a queue of work items, one per (submission, test class) pair, and
+ * hands them out to {@link DistributedWorker}s that connect over TCP. Each worker is given a
+ * chunk of consecutive items to work through; a worker that runs out of work steals the newer
+ * half of the largest remaining chunk from another worker. Items held by a worker that
+ * disconnects go back to the shared queue. A submission's scores file is written by the
+ * coordinator once all of its items have been graded.
+ * <p>
+ * Protocol (strings are {@link DataOutputStream#writeUTF(String) modified UTF-8}):
+ * <pre>
+ * worker -&gt; coordinator: "NEXT"
+ * coordinator -&gt; worker: "WORK" itemId classpathRoot testClass | "WAIT" | "DONE"
+ * worker -&gt; coordinator: "ROW" itemId row                     (one per finished Q)
+ * worker -&gt; coordinator: "RESULT" itemId {@link GradeResult}    (after the rows of an item)
+ * </pre>
+ *
+ * @author davix
+ */
+public class Coordinator {
+    static final String NEXT = "NEXT";
+    static final String WORK = "WORK";
+    static final String WAIT = "WAIT";
+    static final String DONE = "DONE";
+    static final String ROW = "ROW";
+    static final String RESULT = "RESULT";
+
+    private final List<Submission> submissions;
+    private final int chunkSize;
+    private final long budgetMillis;
+
+    // internal state, guarded by this
+    private final Deque<WorkItem> unassigned;
+    private final Map<Connection, Deque<WorkItem>> assigned;
+    private final Map<Submission, SubmissionState> states;
+    private int numRemainingItems;
+
+    /**
+     * @param submissions    the submissions to grade
+     * @param testClassNames the tests to run against every submission
+     * @param budgetMillis   how long a worker may go without sending anything while it grades
+     *                       an item before it is considered gone
+     */
+    public Coordinator(List<Submission> submissions, List<String> testClassNames,
+                       long budgetMillis) {
+        this.submissions = new ArrayList<>(submissions);
+        this.chunkSize = Math.max(1, testClassNames.size());
+        this.budgetMillis = budgetMillis;
+        this.unassigned = new ArrayDeque<>();
+        this.assigned = new LinkedHashMap<>();
+        this.states = new HashMap<>();
+
+        int nextId = 0;
+        for (Submission submission : submissions) {
+            states.put(submission, new SubmissionState(testClassNames.size()));
+            for (String testClassName : testClassNames) {
+                unassigned.add(new WorkItem(nextId++, submission, testClassName));
+            }
+        }
+        numRemainingItems = unassigned.size();
+    }
+
+    /**
+     * Accepts workers on the given socket until every item has been graded.
+     *
+     * @return the results, in the same order as the submissions
+     */
+    public List<GradeResult> run(ServerSocket serverSocket) throws IOException,
+            InterruptedException {
+        log("Coordinator listening on port %d with %d work item(s)",
+                serverSocket.getLocalPort(), numRemainingItems);
+        Thread acceptor = new Thread(() -> {
+            while (true) {
+                Socket socket;
+                try {
+                    socket = serverSocket.accept();
+                } catch (IOException e) {
+                    return;
+                }
+                Thread handler = new Thread(() -> serve(socket),
+                        "coordinator-" + socket.getRemoteSocketAddress());
+                handler.setDaemon(true);
+                handler.start();
+            }
+        }, "coordinator-acceptor");
+        acceptor.setDaemon(true);
+        acceptor.start();
+
+        synchronized (this) {
+            while (numRemainingItems > 0) {
+                wait();
+            }
+        }
+        serverSocket.close();
+
+        List<GradeResult> results = new ArrayList<>(submissions.size());
+        for (Submission submission : submissions) {
+            SubmissionState state = states.get(submission);
+            Files.write(submission.getScoresFile(), state.rows);
+            results.add(GradeResult.combine(submission, state.results));
+        }
+        return results;
+    }
+
+    private void serve(Socket socket) {
+        Connection connection;
+        try {
+            connection = new Connection(socket);
+        } catch (IOException e) {
+            logError("Cannot talk to worker %s: %s", socket.getRemoteSocketAddress(), e);
+            return;
+        }
+        log("Worker %s connected", connection);
+        synchronized (this) {
+            assigned.put(connection, new ArrayDeque<>());
+        }
+
+        try {
+            while (true) {
+                String request = connection.in.readUTF();
+                if (ROW.equals(request)) {
+                    // a late row from an item that has already been completed
+                    connection.in.readInt();
+                    connection.in.readUTF();
+                    continue;
+                } else if (!NEXT.equals(request)) {
+                    throw new IOException("Unexpected request: " + request);
+                }
+                WorkItem item = nextItem(connection);
+                if (item == null) {
+                    boolean done = numRemainingItems() == 0;
+                    connection.out.writeUTF(done ? DONE : WAIT);
+                    connection.out.flush();
+                    if (done) {
+                        return;
+                    }
+                    continue;
+                }
+
+                connection.out.writeUTF(WORK);
+                connection.out.writeInt(item.id);
+                connection.out.writeUTF(
+                        item.submission.getClasspathRoot().toAbsolutePath().toString());
+                connection.out.writeUTF(item.testClassName);
+                connection.out.flush();
+                socket.setSoTimeout((int) budgetMillis);
+                receiveResult(connection, item);
+                socket.setSoTimeout(0);
+            }
+        } catch (IOException e) {
+            if (numRemainingItems() > 0) {
+                logError("Lost worker %s: %s", connection, e);
+            }
+        } finally {
+            release(connection);
+            try {
+                socket.close();
+            } catch (IOException ignored) {
+            }
+        }
+    }
+
+    private void receiveResult(Connection connection, WorkItem item) throws IOException {
+        List<String> rows = new ArrayList<>();
+        while (true) {
+            String message = connection.in.readUTF();
+            int id = connection.in.readInt();
+            if (ROW.equals(message)) {
+                String row = connection.in.readUTF();
+                // rows from an earlier item's abandoned test threads may arrive late
+                if (id == item.id) {
+                    rows.add(row);
+                }
+            } else if (RESULT.equals(message) && id == item.id) {
+                GradeResult result = GradeResult.readFrom(connection.in, item.submission);
+                complete(connection, item, rows, result);
+                return;
+            } else {
+                throw new IOException("Unexpected message " + message + " for item " + id);
+            }
+        }
+    }
+
+    private synchronized WorkItem nextItem(Connection connection) {
+        Deque<WorkItem> own = assigned.get(connection);
+        if (own.isEmpty()) {
+            for (int i = 0; i < chunkSize && !unassigned.isEmpty(); i++) {
+                own.add(unassigned.poll());
+            }
+        }
+        if (own.isEmpty()) {
+            steal(own);
+        }
+        WorkItem item = own.poll();
+        connection.inFlight = item;
+        return item;
+    }
+
+    private void steal(Deque<WorkItem> thief) {
+        Deque<WorkItem> victim = null;
+        for (Deque<WorkItem> candidate : assigned.values()) {
+            if (candidate != thief && (victim == null || candidate.size() > victim.size())) {
+                victim = candidate;
+            }
+        }
+        if (victim == null) {
+            return;
+        }
+        for (int n = victim.size() / 2 + victim.size() % 2; n > 0; n--) {
+            thief.addFirst(victim.pollLast());
+        }
+    }
+
+    private synchronized void complete(Connection connection, WorkItem item, List<String> rows,
+                                       GradeResult result) {
+        connection.inFlight = null;
+        SubmissionState state = states.get(item.submission);
+        state.rows.addAll(rows);
+        state.results.add(result);
+        numRemainingItems--;
+        log("Worker %s finished %s (%d item(s) remaining)", connection, item,
+                numRemainingItems);
+        notifyAll();
+    }
+
+    private synchronized void release(Connection connection) {
+        Deque<WorkItem> own = assigned.remove(connection);
+        if (connection.inFlight != null) {
+            unassigned.addFirst(connection.inFlight);
+            connection.inFlight = null;
+        }
+        while (own != null && !own.isEmpty()) {
+            unassigned.addFirst(own.pollLast());
+        }
+    }
+
+    private synchronized int numRemainingItems() {
+        return numRemainingItems;
+    }
+
+    private static class WorkItem {
+        final int id;
+        final Submission submission;
+        final String testClassName;
+
+        WorkItem(int id, Submission submission, String testClassName) {
+            this.id = id;
+            this.submission = submission;
+            this.testClassName = testClassName;
+        }
+
+        @Override
+        public String toString() {
+            return submission + " " + testClassName;
+        }
+    }
+
+    private static class SubmissionState {
+        final List<String> rows = new ArrayList<>();
+        final List<GradeResult> results;
+
+        SubmissionState(int numItems) {
+            results = new ArrayList<>(numItems);
+        }
+    }
+
+    private static class Connection {
+        final Socket socket;
+        final DataInputStream in;
+        final DataOutputStream out;
+        WorkItem inFlight;
+
+        Connection(Socket socket) throws IOException {
+            this.socket = socket;
+            this.in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+            this.out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+        }
+
+        @Override
+        public String toString() {
+            return socket.getRemoteSocketAddress().toString();
+        }
+    }
+}
@@ -0,0 +1,191 @@
+package edu.upenn.cis.testing;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * {@code CpuClock} measures the CPU time that tests use, so that time budgets can be charged in
+ * CPU time rather than wall-clock time, which grows with the load of the host. A test is charged
+ * for the CPU time of its thread and of the threads it starts, and budgets are scaled by the
+ * speed of the host relative to a reference machine, as measured by {@link #calibrate()}.
+ * <p>
+ * The threads a test starts are recognized by their context class loader: while a test runs,
+ * its thread's context class loader is a marker that delegates everything to the original one,
+ * and threads inherit the context class loader of the thread that starts them. Threads are only
+ * seen when the account is sampled, so threads that live shorter than the sampling interval are
+ * not charged.
+ *
+ * @author davix
+ */
+class CpuClock {
+    /**
+     * The CPU time of one run of the benchmark on the reference machine, which declared budgets
+     * are meant for.
+     */
+    private static final long REFERENCE_NANOS = 50_000_000;
+    private static final int BENCHMARK_SIZE = 1 << 16;
+    private static final int BENCHMARK_ROUNDS = 8;
+    private static final int WARM_UP_RUNS = 3;
+    private static final int MEASURED_RUNS = 5;
+
+    private static final ThreadMXBean THREADS = ManagementFactory.getThreadMXBean();
+
+    // keeps the benchmark from being optimized away
+    private static volatile long sink;
+
+    private CpuClock() {
+    }
+
+    /**
+     * @return whether the CPU time of any thread can be measured, enabling the measurement if
+     * needed
+     */
+    static boolean isSupported() {
+        if (!THREADS.isThreadCpuTimeSupported()) {
+            return false;
+        }
+        if (!THREADS.isThreadCpuTimeEnabled()) {
+            THREADS.setThreadCpuTimeEnabled(true);
+        }
+        return true;
+    }
+
+    /**
+     * Runs a short benchmark of integer arithmetic, memory access and sorting, and compares its
+     * CPU time with that on the reference machine.
+     *
+     * @return the factor by which budgets are multiplied on this host, greater than 1 if it is
+     * slower than the reference machine
+     */
+    static double calibrate() {
+        long best = Long.MAX_VALUE;
+        long checksum = 0;
+        for (int run = 0; run < WARM_UP_RUNS + MEASURED_RUNS; run++) {
+            long start = THREADS.getCurrentThreadCpuTime();
+            checksum += benchmark(run);
+            long elapsed = THREADS.getCurrentThreadCpuTime() - start;
+            if (run >= WARM_UP_RUNS) {
+                best = Math.min(best, elapsed);
+            }
+        }
+        sink = checksum;
+        return (double) best / REFERENCE_NANOS;
+    }
+
+    private static long benchmark(long seed) {
+        int[] a = new int[BENCHMARK_SIZE];
+        long x = seed;
+        long checksum = 0;
+        for (int round = 0; round < BENCHMARK_ROUNDS; round++) {
+            for (int i = 0; i < a.length; i++) {
+                x = x * 6364136223846793005L + 1442695040888963407L;
+                a[i] = (int) (x >>> 32);
+            }
+            Arrays.sort(a);
+            checksum += a[a.length / 2];
+        }
+        return checksum;
+    }
+
+    /**
+     * Starts charging the current thread, and the threads it starts from now on, to a new
+     * account.
+     */
+    static Account start() {
+        return new Account();
+    }
+
+    /**
+     * The CPU time that a test has used since it started. Sampling is thread-safe.
+     */
+    static class Account {
+        private final Thread thread;
+        private final long startNanos;
+        private final ClassLoader previousContextClassLoader;
+        private final ClassLoader marker;
+        // the last CPU time seen of each thread the test started, by thread ID
+        private final Map<Long, Long> startedThreads;
+        private volatile long finalNanos;
+
+        private Account() {
+            this.thread = Thread.currentThread();
+            this.startNanos = THREADS.getCurrentThreadCpuTime();
+            this.previousContextClassLoader = thread.getContextClassLoader();
+            this.marker = new Marker(previousContextClassLoader);
+            this.startedThreads = new ConcurrentHashMap<>();
+            this.finalNanos = -1;
+            thread.setContextClassLoader(marker);
+        }
+
+        /**
+         * @return the CPU time used so far by the test's thread and the threads it started
+         */
+        long cpuNanos() {
+            long nanos = finalNanos;
+            if (nanos >= 0) {
+                return nanos;
+            }
+            long own = THREADS.getThreadCpuTime(thread.getId());
+            return Math.max(0, own - startNanos) + sampleStartedThreads();
+        }
+
+        /**
+         * @return the number of threads the account was charged for at the last sample
+         */
+        int numThreads() {
+            return 1 + startedThreads.size();
+        }
+
+        private long sampleStartedThreads() {
+            ThreadGroup root = thread.getThreadGroup();
+            if (root != null) {
+                while (root.getParent() != null) {
+                    root = root.getParent();
+                }
+                Thread[] threads = new Thread[root.activeCount() * 2 + 16];
+                int n = root.enumerate(threads, true);
+                for (int i = 0; i < n; i++) {
+                    Thread t = threads[i];
+                    if (t != thread && t.getContextClassLoader() == marker) {
+                        long nanos = THREADS.getThreadCpuTime(t.getId());
+                        if (nanos > 0) {
+                            // a thread that has died keeps its last sample
+                            startedThreads.merge(t.getId(), nanos, Math::max);
+                        }
+                    }
+                }
+            }
+            long sum = 0;
+            for (long nanos : startedThreads.values()) {
+                sum += nanos;
+            }
+            return sum;
+        }
+
+        /**
+         * Stops charging the test's thread, which must be the current thread, and restores its
+         * context class loader. Threads the test started are no longer sampled.
+         *
+         * @return the CPU time the test used
+         */
+        long stop() {
+            long nanos = cpuNanos();
+            finalNanos = nanos;
+            thread.setContextClassLoader(previousContextClassLoader);
+            return nanos;
+        }
+    }
+
+    /**
+     * A class loader that only marks the threads that have it as their context class loader,
+     * and delegates everything to its parent.
+     */
+    private static class Marker extends ClassLoader {
+        Marker(ClassLoader parent) {
+            super(parent);
+        }
+    }
+}
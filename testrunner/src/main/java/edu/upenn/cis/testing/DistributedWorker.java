@@ -0,0 +1,131 @@
+package edu.upenn.cis.testing;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.io.Writer;
+import java.net.Socket;
+import java.nio.file.Paths;
+import java.util.Collections;
+
+import static edu.upenn.cis.testing.QRunner.log;
+
+/**
+ * A {@code DistributedWorker} connects to a {@link Coordinator}, pulls one work item at a time,
+ * runs its test class against its submission and streams each score row back as soon as the
+ * {@link QRunListener} writes it.
+ *
+ * @author davix
+ */
+class DistributedWorker {
+    private static final long WAIT_MILLIS = 1000;
+
+    private final SubmissionGrader grader;
+
+    /**
+     * @param grader the grader to run work items with; its own list of test classes is ignored
+     */
+    DistributedWorker(SubmissionGrader grader) {
+        this.grader = grader;
+    }
+
+    /**
+     * Pulls and grades work items until the coordinator has no more work.
+     */
+    void run(String host, int port) throws IOException, InterruptedException {
+        try (Socket socket = new Socket(host, port);
+             DataInputStream in = new DataInputStream(
+                     new BufferedInputStream(socket.getInputStream()));
+             DataOutputStream out = new DataOutputStream(
+                     new BufferedOutputStream(socket.getOutputStream()))) {
+            log("Connected to coordinator %s:%d", host, port);
+            while (true) {
+                synchronized (out) {
+                    out.writeUTF(Coordinator.NEXT);
+                    out.flush();
+                }
+                String response = in.readUTF();
+                if (Coordinator.DONE.equals(response)) {
+                    log("Coordinator has no more work");
+                    return;
+                } else if (Coordinator.WAIT.equals(response)) {
+                    Thread.sleep(WAIT_MILLIS);
+                    continue;
+                } else if (!Coordinator.WORK.equals(response)) {
+                    throw new IOException("Unexpected response: " + response);
+                }
+
+                int id = in.readInt();
+                String classpathRoot = in.readUTF();
+                String testClassName = in.readUTF();
+                Submission submission = new Submission(classpathRoot, Paths.get(classpathRoot),
+                        null);
+                log("Grading %s against %s", testClassName, submission);
+
+                PrintWriter output = new PrintWriter(System.out);
+                GradeResult result = grader.grade(submission,
+                        Collections.singletonList(testClassName),
+                        new PrintWriter(new RowWriter(out, id)), output);
+                output.flush();
+                synchronized (out) {
+                    out.writeUTF(Coordinator.RESULT);
+                    out.writeInt(id);
+                    result.writeTo(out);
+                    out.flush();
+                }
+            }
+        }
+    }
+
+    /**
+     * Sends every complete line written to it to the coordinator as a row of one work item.
+     */
+    private static class RowWriter extends Writer {
+        private final DataOutputStream out;
+        private final int id;
+        private final StringBuilder line;
+
+        RowWriter(DataOutputStream out, int id) {
+            this.out = out;
+            this.id = id;
+            this.line = new StringBuilder();
+        }
+
+        @Override
+        public synchronized void write(char[] cbuf, int off, int len) throws IOException {
+            for (int i = off; i < off + len; i++) {
+                char c = cbuf[i];
+                if (c == '\n') {
+                    int end = line.length();
+                    if (end > 0 && line.charAt(end - 1) == '\r') {
+                        line.setLength(end - 1);
+                    }
+                    synchronized (out) {
+                        out.writeUTF(Coordinator.ROW);
+                        out.writeInt(id);
+                        out.writeUTF(line.toString());
+                        out.flush();
+                    }
+                    line.setLength(0);
+                } else {
+                    line.append(c);
+                }
+            }
+        }
+
+        @Override
+        public void flush() throws IOException {
+            synchronized (out) {
+                out.flush();
+            }
+        }
+
+        @Override
+        public void close() throws IOException {
+            flush();
+        }
+    }
+}
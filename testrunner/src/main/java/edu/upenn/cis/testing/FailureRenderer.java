@@ -0,0 +1,231 @@
+package edu.upenn.cis.testing;
+
+import edu.upenn.cis.testing.annotation.Q;
+import org.junit.runner.notification.Failure;
+
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A {@code FailureRenderer} renders the stack traces of the test failures of one submission so
+ * that they stay readable and bounded. Within a trace, a cycle of frames that repeats, such as
+ * that of an unbounded recursion ending in a {@link StackOverflowError}, is printed once with a
+ * count of its repetitions, and each exception and cause prints at most a given number of
+ * frames. A failure that is the same as an earlier one, with the same exception, message and
+ * first frame outside of JUnit, prints a reference to the earlier one instead of its trace.
+ * Once the traces of a submission reach a given number of characters, later traces are
+ * omitted. This class is thread-safe.
+ * <p>
+ * Traces are rendered from their printed form, so that failures replayed from a cache or a
+ * journal render the same as those of tests that ran.
+ *
+ * @author davix
+ */
+public class FailureRenderer {
+    public static final int DEFAULT_MAX_FRAMES = 64;
+    public static final long DEFAULT_MAX_CHARS = 1 << 20;
+    // the longest cycle of frames that is collapsed
+    private static final int MAX_CYCLE = 32;
+    private static final String FRAME = "at ";
+
+    private final int maxFrames;
+    private final long maxChars;
+    private final AtomicLong numChars;
+    private final AtomicBoolean exceeded;
+    private final ConcurrentMap<String, Repeated> failures;
+
+    public FailureRenderer() {
+        this(DEFAULT_MAX_FRAMES, DEFAULT_MAX_CHARS);
+    }
+
+    /**
+     * @param maxFrames the number of frames printed per exception and cause
+     * @param maxChars  the number of characters of traces printed per submission
+     */
+    public FailureRenderer(int maxFrames, long maxChars) {
+        this.maxFrames = maxFrames;
+        this.maxChars = maxChars;
+        this.numChars = new AtomicLong();
+        this.exceeded = new AtomicBoolean();
+        this.failures = new ConcurrentHashMap<>();
+    }
+
+    /**
+     * @return the trace to print for the failure of a question: the collapsed trace if this is
+     * the first failure like it, a reference to the first one otherwise, or a note that traces
+     * are omitted once the submission has printed too much
+     */
+    public String render(Q q, Failure failure) {
+        String trace = failure.getTrace();
+        Repeated repeated = new Repeated(q.desc());
+        Repeated first = failures.putIfAbsent(key(failure, trace), repeated);
+        if (first != null) {
+            first.count.incrementAndGet();
+            return String.format("Same failure as \"%s\"; trace omitted%n", first.desc);
+        }
+        String collapsed = collapse(trace);
+        if (numChars.addAndGet(collapsed.length()) > maxChars) {
+            return exceeded.compareAndSet(false, true)
+                    ? String.format("Traces of more than %d characters; later traces are "
+                    + "omitted%n", maxChars)
+                    : "";
+        }
+        return collapsed;
+    }
+
+    /**
+     * @return what a failed test printed, to print after its trace, or an empty string if it
+     * printed nothing
+     */
+    static String renderOutput(String testOutput) {
+        if (testOutput.isEmpty()) {
+            return "";
+        }
+        String separator = System.lineSeparator();
+        return "Output:" + separator + testOutput
+                + (testOutput.endsWith(separator) ? "" : separator);
+    }
+
+    /**
+     * Prints how many tests failed the same way, for every failure that more than one did.
+     */
+    public void printRepeated(PrintWriter out) {
+        boolean printedHeader = false;
+        for (Map.Entry<String, Repeated> failure : new TreeMap<>(failures).entrySet()) {
+            int count = failure.getValue().count.get();
+            if (count > 1) {
+                if (!printedHeader) {
+                    out.println("Repeated failures:");
+                    printedHeader = true;
+                }
+                out.printf("  %s: %d tests%n", failure.getKey(), count);
+            }
+        }
+    }
+
+    /**
+     * @return what failures are the same by: the first line of the trace, which has the
+     * exception and its message, and the first frame outside of JUnit
+     */
+    private static String key(Failure failure, String trace) {
+        String[] lines = trace.split("\\R");
+        for (String line : lines) {
+            String stripped = line.trim();
+            if (stripped.startsWith(FRAME) && !stripped.startsWith(FRAME + "org.junit.")
+                    && !stripped.startsWith(FRAME + "junit.")) {
+                return lines[0] + " " + stripped;
+            }
+        }
+        return lines.length > 0 ? lines[0] : String.valueOf(failure.getException());
+    }
+
+    /**
+     * Collapses the repeated cycles of frames of a printed trace, and keeps at most the
+     * maximum number of frames of each exception and cause.
+     */
+    String collapse(String trace) {
+        String[] lines = trace.split("\\R");
+        StringBuilder sb = new StringBuilder(Math.min(trace.length(), 1 << 16));
+        List<String> frames = new ArrayList<>();
+        for (String line : lines) {
+            if (line.trim().startsWith(FRAME)) {
+                frames.add(line);
+                continue;
+            }
+            collapseFrames(frames, sb);
+            frames.clear();
+            sb.append(line).append(System.lineSeparator());
+        }
+        collapseFrames(frames, sb);
+        return sb.toString();
+    }
+
+    private void collapseFrames(List<String> frames, StringBuilder sb) {
+        if (frames.isEmpty()) {
+            return;
+        }
+        // compare frames by number
+        int n = frames.size();
+        int[] ids = new int[n];
+        Map<String, Integer> idsByFrame = new HashMap<>();
+        for (int i = 0; i < n; i++) {
+            ids[i] = idsByFrame.computeIfAbsent(frames.get(i), f -> idsByFrame.size());
+        }
+        String indent = frames.get(0).substring(0, frames.get(0).indexOf(FRAME));
+        int printed = 0;
+        int i = 0;
+        while (i < n) {
+            if (printed >= maxFrames) {
+                sb.append(indent).append("... ").append(n - i).append(" more frame(s)")
+                        .append(System.lineSeparator());
+                return;
+            }
+            int cycle = 0;
+            int repetitions = 0;
+            for (int length = 1; length <= MAX_CYCLE && i + 2 * length <= n; length++) {
+                int r = repetitions(ids, i, length);
+                // only if it saves lines, unlike a single frame that occurs twice
+                if ((r - 1) * length > 1) {
+                    cycle = length;
+                    repetitions = r;
+                    break;
+                }
+            }
+            if (cycle == 0) {
+                sb.append(frames.get(i)).append(System.lineSeparator());
+                printed++;
+                i++;
+                continue;
+            }
+            for (int j = i; j < i + cycle && printed < maxFrames; j++) {
+                sb.append(frames.get(j)).append(System.lineSeparator());
+                printed++;
+            }
+            sb.append(indent).append("... ").append(repetitions - 1)
+                    .append(" more repetition(s) of the ").append(cycle)
+                    .append(" frame(s) above").append(System.lineSeparator());
+            i += cycle * repetitions;
+        }
+    }
+
+    /**
+     * @return how many times in a row the frames from {@code start} of the given length occur
+     */
+    private static int repetitions(int[] ids, int start, int length) {
+        int repetitions = 1;
+        int next = start + length;
+        while (next + length <= ids.length && regionMatches(ids, start, next, length)) {
+            repetitions++;
+            next += length;
+        }
+        return repetitions;
+    }
+
+    private static boolean regionMatches(int[] ids, int a, int b, int length) {
+        for (int k = 0; k < length; k++) {
+            if (ids[a + k] != ids[b + k]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static final class Repeated {
+        final String desc;
+        final AtomicInteger count;
+
+        Repeated(String desc) {
+            this.desc = desc;
+            this.count = new AtomicInteger(1);
+        }
+    }
+}
@@ -0,0 +1,233 @@
+package edu.upenn.cis.testing;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * A {@code FairShareScheduler} limits how many test methods, across all submissions graded in
+ * this JVM, run at the same time. A test thread takes one of a fixed number of slots before
+ * each test method and gives it back afterwards, so scheduling decisions happen at test method
+ * boundaries. When a slot frees up, it goes to a waiting thread of the highest
+ * {@link Priority}; among those, to the submission that has so far held slots for the least
+ * total time, so that submissions of the same priority share the CPU fairly. This class is
+ * thread-safe.
+ *
+ * @author davix
+ */
+public class FairShareScheduler {
+    private final ReentrantLock lock;
+    private final Condition slotReleased;
+    private final List<Waiter> waiters;
+    private int freeSlots;
+    private long nextSeq;
+
+    /**
+     * @param slots the number of test methods that may run at the same time, usually the number
+     *              of available processors
+     */
+    public FairShareScheduler(int slots) {
+        if (slots < 1) {
+            throw new IllegalArgumentException("slots must be positive: " + slots);
+        }
+        this.lock = new ReentrantLock();
+        this.slotReleased = lock.newCondition();
+        this.waiters = new ArrayList<>();
+        this.freeSlots = slots;
+    }
+
+    /**
+     * Registers a submission with the scheduler. The returned ticket is used by all test
+     * threads of the submission.
+     */
+    public Ticket register(String name, Priority priority) {
+        return new Ticket(name, priority);
+    }
+
+    /**
+     * @return whether {@code waiter} is the waiter that the next free slot should go to
+     */
+    private boolean isNext(Waiter waiter) {
+        for (Waiter other : waiters) {
+            if (other != waiter && other.compareTo(waiter) < 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    public enum Priority {
+        /**
+         * Checks that a student is waiting on, e.g. pre-submission checks.
+         */
+        INTERACTIVE,
+
+        /**
+         * Work that nobody is waiting on interactively, e.g. regrades.
+         */
+        BULK
+    }
+
+    /**
+     * The scheduling state of one submission.
+     */
+    public class Ticket {
+        private final String name;
+        private final Priority priority;
+
+        // guarded by lock
+        private int running;
+        private int waiting;
+        private long usageNanos;
+        private long starvedNanos;
+        private long starvedSince;
+        private boolean closed;
+
+        private Ticket(String name, Priority priority) {
+            this.name = name;
+            this.priority = priority;
+        }
+
+        /**
+         * Blocks until this submission may run one test method.
+         *
+         * @throws InterruptedException if interrupted while waiting, or if the ticket is closed
+         */
+        public void acquire() throws InterruptedException {
+            lock.lock();
+            try {
+                if (closed) {
+                    throw new InterruptedException(this + " is closed");
+                }
+                Waiter waiter = new Waiter(this, nextSeq++);
+                waiters.add(waiter);
+                try {
+                    if (freeSlots == 0 || !isNext(waiter)) {
+                        if (waiting++ == 0 && running == 0) {
+                            starvedSince = System.nanoTime();
+                        }
+                        try {
+                            do {
+                                slotReleased.await();
+                            } while (!closed && (freeSlots == 0 || !isNext(waiter)));
+                        } finally {
+                            if (--waiting == 0 && running == 0) {
+                                starvedNanos += System.nanoTime() - starvedSince;
+                            }
+                        }
+                    }
+                } finally {
+                    waiters.remove(waiter);
+                }
+                if (closed) {
+                    throw new InterruptedException(this + " is closed");
+                }
+                freeSlots--;
+                if (running++ == 0 && waiting > 0) {
+                    starvedNanos += System.nanoTime() - starvedSince;
+                }
+                // charge the slot from now until release
+                usageNanos -= System.nanoTime();
+                // another waiter may be next now that this one is gone
+                slotReleased.signalAll();
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        /**
+         * Gives back the slot taken by {@link #acquire()}.
+         */
+        public void release() {
+            lock.lock();
+            try {
+                if (closed) {
+                    return;
+                }
+                usageNanos += System.nanoTime();
+                freeSlots++;
+                if (--running == 0 && waiting > 0) {
+                    starvedSince = System.nanoTime();
+                }
+                slotReleased.signalAll();
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        /**
+         * Gives back all slots still taken by this submission, e.g. by test threads that did not
+         * stop when the submission timed out, and fails all further calls to
+         * {@link #acquire()}.
+         */
+        public void close() {
+            lock.lock();
+            try {
+                if (closed) {
+                    return;
+                }
+                closed = true;
+                usageNanos = usageNanos(System.nanoTime());
+                freeSlots += running;
+                running = 0;
+                slotReleased.signalAll();
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        /**
+         * @return the total time during which this submission had test methods waiting for a
+         * slot but none running, i.e. could not make any progress because of the scheduler
+         */
+        public long getStarvedNanos() {
+            lock.lock();
+            try {
+                long starved = starvedNanos;
+                if (waiting > 0 && running == 0) {
+                    starved += System.nanoTime() - starvedSince;
+                }
+                return starved;
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        private long usageNanos(long now) {
+            // usageNanos holds -start for every running slot
+            return usageNanos + running * now;
+        }
+
+        @Override
+        public String toString() {
+            return name + " (" + priority + ")";
+        }
+    }
+
+    private class Waiter implements Comparable<Waiter> {
+        final Ticket ticket;
+        final long seq;
+
+        Waiter(Ticket ticket, long seq) {
+            this.ticket = ticket;
+            this.seq = seq;
+        }
+
+        @Override
+        public int compareTo(Waiter o) {
+            int c = ticket.priority.compareTo(o.ticket.priority);
+            if (c != 0) {
+                return c;
+            }
+            if (ticket != o.ticket) {
+                long now = System.nanoTime();
+                c = Long.compare(ticket.usageNanos(now), o.ticket.usageNanos(now));
+                if (c != 0) {
+                    return c;
+                }
+            }
+            return Long.compare(seq, o.seq);
+        }
+    }
+}
@@ -6,21 +6,41 @@ import org.junit.runner.notification.Failure;
 import java.io.PrintWriter;
 
 /**
- * Outputs only the first failure.
+ * Outputs only the first failure, with its trace rendered by a {@link FailureRenderer}.
  *
  * @author davix
  */
 public class FirstTestFailureConsumer implements TestFailureConsumer {
+    private final FailureRenderer renderer;
 
     boolean showedFailure;
 
+    public FirstTestFailureConsumer() {
+        this(new FailureRenderer());
+    }
+
+    public FirstTestFailureConsumer(FailureRenderer renderer) {
+        this.renderer = renderer;
+    }
+
+    @Override
+    public void accept(Q q, Failure failure, PrintWriter out) {
+        accept(q, failure, "", out);
+    }
+
     @Override
-    public synchronized void accept(Q q, Failure failure, PrintWriter out) {
+    public synchronized void accept(Q q, Failure failure, String testOutput, PrintWriter out) {
         if (showedFailure) {
             return;
         }
-        out.printf("First failure (correct = %f points, incorrect = %f points): %s%n%s%n%s",
-                q.points(), q.incorrect(), q.desc(), failure, failure.getTrace());
+        out.printf("First failure (correct = %f points, incorrect = %f points): %s%n%s%n%s%s",
+                q.points(), q.incorrect(), q.desc(), failure, renderer.render(q, failure),
+                FailureRenderer.renderOutput(testOutput));
         showedFailure = true;
     }
+
+    @Override
+    public String trace(Failure failure) {
+        return renderer.collapse(failure.getTrace());
+    }
 }
@@ -1,75 +1,237 @@
 package edu.upenn.cis.testing;
 
+import edu.upenn.cis.testing.annotation.Q;
+import edu.upenn.cis.testing.annotation.QIndex;
+import org.junit.Test;
 import org.junit.runner.Computer;
+import org.junit.runner.Description;
 import org.junit.runner.Runner;
+import org.junit.runner.notification.Failure;
+import org.junit.runner.notification.RunListener;
+import org.junit.runner.notification.RunNotifier;
+import org.junit.runners.BlockJUnit4ClassRunner;
+import org.junit.runners.JUnit4;
 import org.junit.runners.ParentRunner;
+import org.junit.runners.model.FrameworkMethod;
 import org.junit.runners.model.InitializationError;
 import org.junit.runners.model.RunnerBuilder;
 import org.junit.runners.model.RunnerScheduler;
+import org.junit.runners.model.Statement;
+import org.junit.runners.model.TestTimedOutException;
 
-import java.time.Instant;
-import java.time.temporal.ChronoUnit;
-import java.util.Collection;
-import java.util.LinkedList;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Queue;
+import java.util.Set;
 import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static edu.upenn.cis.testing.QRunner.logWarning;
 
 /**
+ * Runs test classes, test methods, or both in parallel on a bounded {@link ForkJoinPool}, or on
+ * any other executor such as one that starts a virtual thread per task, and stops them all when a
+ * global timeout expires. On a {@code ForkJoinPool}, a test class whose methods run in parallel
+ * forks them as tasks of the pool and joins them, so a pool thread that waits for the methods of
+ * its class helps running queued tests, by work stealing, instead of blocking; nested class and
+ * method tasks therefore cannot deadlock the pool however small it is. Other executors must not
+ * be bounded, since their threads block while joining. On timeout, tasks that have not started
+ * are cancelled and the threads running tests are interrupted.
+ * <p>
+ * Besides the global timeout, each test class may have a time budget, and each test method a
+ * time limit, given by {@link Q#timeoutMillis()} or {@link Test#timeout()}. A test that exceeds
+ * its limit is interrupted and fails, and so scores as incorrect; when a class exceeds its
+ * budget, its running tests are interrupted and fail, and its remaining tests fail without
+ * running. All limits are enforced by one {@link TimerWheel}. A test that is subject to a limit
+ * runs on a thread of its own, taken from a pool, while the thread of its class waits for it,
+ * so that the test fails as soon as its limit expires even if it ignores the interrupt; such a
+ * test is abandoned on its thread, as JUnit's {@code FailOnTimeout} does, and the rest of its
+ * class runs on. Time during which a {@link FairShareScheduler} kept the submission from
+ * running at all does not count towards the global timeout or the class budgets.
+ * <p>
+ * Test and class budgets may be charged in CPU time, as measured by {@link CpuClock}, instead of
+ * wall-clock time, so that tests do not time out because the host is loaded. The global timeout
+ * always is in wall-clock time, since it must also stop tests that are blocked.
+ * <p>
+ * A test method whose prerequisite questions, given by {@link Q#requires()}, have failed is
+ * skipped without running.
+ *
  * @author davix
  */
 public class GlobalTimeoutParallelComputer extends Computer {
     private final boolean parallelizeMethods;
     private final boolean parallelizeClasses;
 
-    private final ExecutorService executorService;
-    private long timeoutNanos;
-    private int numTotalClasses;
-    private int numCompletedClasses;
-    private boolean timedOut;
+    private static final long TICK_MILLIS = 10;
+    private static final TimerWheel WATCHDOG =
+            new TimerWheel(TICK_MILLIS, TimeUnit.MILLISECONDS, 512);
+    // how long a test whose limit expired may take to stop before it is abandoned
+    private static final long GRACE_MILLIS = 100;
+    // runs the tests that are subject to a limit, unless the executor starts a thread per task
+    private static final ExecutorService WATCHED = Executors.newCachedThreadPool(task -> {
+        Thread t = new Thread(task, "watched-test");
+        t.setDaemon(true);
+        // not the class loader of whatever submission is graded when the thread starts
+        t.setContextClassLoader(GlobalTimeoutParallelComputer.class.getClassLoader());
+        return t;
+    });
+
+    private final ExecutorService executor;
+    private final FairShareScheduler.Ticket ticket;
+    private final long timeoutNanos;
+    private final long classTimeoutNanos;
+    private final double cpuScale;
+    private final RegradeCache cache;
+    private final Map<String, RegradeCache.Outcome> journaled;
+    private final AtomicBoolean started;
+    private volatile Budget budget;
+    private final AtomicInteger numTotalClasses;
+    private final AtomicInteger numCompletedClasses;
+    private final AtomicInteger numCachedTests;
+    private final AtomicInteger numResumedTests;
+    private volatile boolean timedOut;
+
+    private final Queue<Future<?>> tasks;
+    // the outcomes of the test classes that have finished, cached once all have
+    private final Queue<Runnable> pendingStores;
+    private final Set<Thread> runningThreads;
+    private final ThreadLocal<Boolean> runningTask;
 
     public GlobalTimeoutParallelComputer(boolean parallelizeClasses, boolean parallelizeMethods,
-                                         ExecutorService executorService, long timeout,
+                                         ExecutorService executor, long timeout,
                                          TimeUnit timeUnit) {
-        this.parallelizeClasses = parallelizeClasses;
-        this.parallelizeMethods = parallelizeMethods;
-        this.executorService = executorService;
-        this.timeoutNanos = timeUnit.toNanos(timeout);
+        this(new Builder(parallelizeClasses, parallelizeMethods, executor, timeout, timeUnit));
     }
 
-    public static GlobalTimeoutParallelComputer classes(ExecutorService executorService,
-                                                        long timeout, TimeUnit timeUnit) {
-        return new GlobalTimeoutParallelComputer(true, false, executorService, timeout, timeUnit);
+    private GlobalTimeoutParallelComputer(Builder builder) {
+        this.parallelizeClasses = builder.parallelizeClasses;
+        this.parallelizeMethods = builder.parallelizeMethods;
+        this.executor = builder.executor;
+        this.timeoutNanos = builder.timeUnit.toNanos(builder.timeout);
+        this.classTimeoutNanos = builder.timeUnit.toNanos(builder.classTimeout);
+        this.cpuScale = builder.cpuScale;
+        this.cache = builder.cache;
+        this.journaled = builder.journaled;
+        this.started = new AtomicBoolean();
+        this.ticket = builder.ticket;
+        this.numTotalClasses = new AtomicInteger();
+        this.numCompletedClasses = new AtomicInteger();
+        this.numCachedTests = new AtomicInteger();
+        this.numResumedTests = new AtomicInteger();
+        this.tasks = new ConcurrentLinkedQueue<>();
+        this.pendingStores = new ConcurrentLinkedQueue<>();
+        this.runningThreads = ConcurrentHashMap.newKeySet();
+        this.runningTask = ThreadLocal.withInitial(() -> false);
     }
 
-    private Runner wrap(Runner runner) {
-        if (runner instanceof ParentRunner) {
-            ((ParentRunner<?>) runner).setScheduler(new RunnerScheduler() {
-                private final Collection<Callable<Void>> jobs = new LinkedList<>();
+    public static GlobalTimeoutParallelComputer classes(ExecutorService executor, long timeout,
+                                                        TimeUnit timeUnit) {
+        return builder(Mode.CLASSES, executor, timeout, timeUnit).build();
+    }
 
-                public void schedule(Runnable childStatement) {
-                    jobs.add(() -> {
-                        childStatement.run();
-                        return null;
-                    });
-                }
+    /**
+     * @return a builder of a computer that runs tests in the given mode, with nothing but the
+     * global timeout unless set otherwise
+     */
+    public static Builder builder(Mode mode, ExecutorService executor, long timeout,
+                                  TimeUnit timeUnit) {
+        return new Builder(mode != Mode.METHODS, mode != Mode.CLASSES, executor, timeout,
+                timeUnit);
+    }
 
-                public void finished() {
-                    Instant before = Instant.now();
-                    try {
-                        List<Future<Void>> futures = executorService.invokeAll(jobs,
-                                timeoutNanos, TimeUnit.NANOSECONDS);
-                        numTotalClasses = futures.size();
-                        int numIncompleteClasses = (int) futures.stream()
-                                .filter(Future::isCancelled).count();
-                        numCompletedClasses = numTotalClasses - numIncompleteClasses;
-                        timedOut = numCompletedClasses != numTotalClasses;
-                    } catch (InterruptedException e) {
-                        e.printStackTrace();
-                    }
-                    long delta = before.until(Instant.now(), ChronoUnit.NANOS);
-                    timeoutNanos -= delta;
-                }
-            });
+    /**
+     * Builds a {@link GlobalTimeoutParallelComputer}. Every setting other than those of
+     * {@link #builder(Mode, ExecutorService, long, TimeUnit)} is optional.
+     */
+    public static final class Builder {
+        private final boolean parallelizeClasses;
+        private final boolean parallelizeMethods;
+        private final ExecutorService executor;
+        private final long timeout;
+        private final TimeUnit timeUnit;
+        private long classTimeout;
+        private FairShareScheduler.Ticket ticket;
+        private double cpuScale;
+        private RegradeCache cache;
+        private Map<String, RegradeCache.Outcome> journaled;
+
+        private Builder(boolean parallelizeClasses, boolean parallelizeMethods,
+                        ExecutorService executor, long timeout, TimeUnit timeUnit) {
+            this.parallelizeClasses = parallelizeClasses;
+            this.parallelizeMethods = parallelizeMethods;
+            this.executor = executor;
+            this.timeout = timeout;
+            this.timeUnit = timeUnit;
+            this.journaled = Collections.emptyMap();
+        }
+
+        /**
+         * @param classTimeout the time budget of each test class, in the unit of the timeout,
+         *                     or 0 for none
+         */
+        public Builder classTimeout(long classTimeout) {
+            this.classTimeout = classTimeout;
+            return this;
+        }
+
+        /**
+         * @param ticket the submission's ticket with a {@link FairShareScheduler}, taken around
+         *               every test method, or {@code null} to run test methods unscheduled. Time
+         *               during which the scheduler kept the submission from running at all does
+         *               not count towards the timeout.
+         */
+        public Builder ticket(FairShareScheduler.Ticket ticket) {
+            this.ticket = ticket;
+            return this;
+        }
+
+        /**
+         * @param cpuScale the factor by which the CPU time budgets of test classes and methods
+         *                 are multiplied for this host, see {@link CpuClock#calibrate()}, or 0 to
+         *                 budget them in wall-clock time
+         */
+        public Builder cpuScale(double cpuScale) {
+            this.cpuScale = cpuScale;
+            return this;
+        }
+
+        /**
+         * @param cache where the outcomes of test methods are cached for the submission, or
+         *              {@code null}. Only test classes loaded by a {@link QClassLoader} that
+         *              tracks its dependencies are cached.
+         */
+        Builder cache(RegradeCache cache) {
+            this.cache = cache;
+            return this;
+        }
+
+        /**
+         * @param journaled the outcomes of test methods that an interrupted run already
+         *                  journaled, by {@code class#method}, which are replayed instead of run
+         * @see ScoresJournal
+         */
+        Builder journaled(Map<String, RegradeCache.Outcome> journaled) {
+            this.journaled = journaled;
+            return this;
+        }
+
+        public GlobalTimeoutParallelComputer build() {
+            return new GlobalTimeoutParallelComputer(this);
+        }
+    }
+
+    private Runner wrap(Runner runner, boolean isSuite) {
+        if (runner instanceof BudgetedRunner) {
+            ((BudgetedRunner) runner).setScheduler(new Scheduler(false));
+        } else if (runner instanceof ParentRunner) {
+            ((ParentRunner<?>) runner).setScheduler(new Scheduler(isSuite));
         } else {
             System.err.printf("%s: WARNING: Cannot configure runner: %s%n",
                     GlobalTimeoutParallelComputer.class.getCanonicalName(), runner);
@@ -77,27 +239,899 @@ public class GlobalTimeoutParallelComputer extends Computer {
         return runner;
     }
 
+    /**
+     * Schedules the children of one runner: the test classes of the suite, or the test methods
+     * of a class. The calls to {@link #schedule(Runnable)} and {@link #finished()} come from the
+     * same thread.
+     */
+    private class Scheduler implements RunnerScheduler {
+        private final boolean isSuite;
+        private final boolean parallel;
+        private final List<Future<?>> children;
+
+        Scheduler(boolean isSuite) {
+            this.isSuite = isSuite;
+            this.parallel = isSuite ? parallelizeClasses : parallelizeMethods;
+            this.children = new ArrayList<>();
+        }
+
+        @Override
+        public void schedule(Runnable childStatement) {
+            if (isSuite) {
+                numTotalClasses.incrementAndGet();
+            }
+            if (started.compareAndSet(false, true)) {
+                budget = new Budget(timeoutNanos, null,
+                        GlobalTimeoutParallelComputer.this::timeOut);
+            }
+            if (timedOut) {
+                return;
+            }
+            Runnable child = isSuite || ticket == null ? childStatement
+                    : () -> runScheduled(childStatement);
+            if (!parallel) {
+                child.run();
+                return;
+            }
+            Future<?> task;
+            if (executor instanceof ForkJoinPool) {
+                ForkJoinTask<?> forkJoinTask = ForkJoinTask.adapt(() -> runTracked(child));
+                if (ForkJoinTask.getPool() == executor) {
+                    // on a pool thread, so the joining thread may run it itself
+                    forkJoinTask.fork();
+                } else {
+                    ((ForkJoinPool) executor).execute(forkJoinTask);
+                }
+                task = forkJoinTask;
+            } else {
+                task = executor.submit(() -> runTracked(child));
+            }
+            children.add(task);
+            tasks.add(task);
+        }
+
+        @Override
+        public void finished() {
+            awaitChildren();
+            if (isSuite && budget != null) {
+                budget.cancel();
+            }
+            if (isSuite) {
+                Runnable store;
+                while ((store = pendingStores.poll()) != null) {
+                    store.run();
+                }
+            }
+            if (!isSuite && !timedOut) {
+                numCompletedClasses.incrementAndGet();
+            }
+        }
+
+        /**
+         * Waits until the children scheduled so far are done.
+         */
+        void awaitChildren() {
+            if (runningTask.get()) {
+                // a joining thread runs no test itself, so a timeout does not interrupt it
+                Thread current = Thread.currentThread();
+                boolean wasRunning = runningThreads.remove(current);
+                join(children);
+                if (wasRunning) {
+                    runningThreads.add(current);
+                }
+            } else {
+                await(children);
+            }
+            children.clear();
+        }
+    }
+
+    /**
+     * Waits, on a task thread, until tasks are done. The timeout is left to the thread that
+     * waits for the suite.
+     */
+    private static void join(List<Future<?>> children) {
+        for (Future<?> child : children) {
+            if (child instanceof ForkJoinTask) {
+                // helps running other tasks while waiting, rather than blocking a pool thread
+                ((ForkJoinTask<?>) child).quietlyJoin();
+                continue;
+            }
+            try {
+                child.get();
+            } catch (ExecutionException | CancellationException e) {
+                // done
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            }
+        }
+    }
+
+    /**
+     * Waits, on a thread that runs no task, until tasks are done, or until the global budget
+     * expires and cancels them.
+     */
+    private void await(List<Future<?>> children) {
+        for (Future<?> child : children) {
+            try {
+                child.get();
+            } catch (ExecutionException | CancellationException e) {
+                // done
+            } catch (InterruptedException e) {
+                e.printStackTrace();
+                timeOut();
+                return;
+            }
+        }
+    }
+
+    private void timeOut() {
+        timedOut = true;
+        // cancelling does not interrupt forked tasks, so running tests are interrupted directly
+        tasks.forEach(task -> task.cancel(false));
+        runningThreads.forEach(Thread::interrupt);
+    }
+
+    private void runTracked(Runnable child) {
+        if (timedOut) {
+            return;
+        }
+        Thread current = Thread.currentThread();
+        // false for a method task that its class task's thread runs while joining
+        boolean outermost = runningThreads.add(current);
+        boolean wasRunningTask = runningTask.get();
+        runningTask.set(true);
+        try {
+            child.run();
+        } finally {
+            runningTask.set(wasRunningTask);
+            if (outermost) {
+                runningThreads.remove(current);
+                // the next task of this thread must not see an interrupt meant for this one
+                Thread.interrupted();
+            }
+        }
+    }
+
+    private void runScheduled(Runnable childStatement) {
+        try {
+            ticket.acquire();
+        } catch (InterruptedException e) {
+            // timed out while waiting for the scheduler; the test never starts
+            Thread.currentThread().interrupt();
+            return;
+        }
+        try {
+            childStatement.run();
+        } finally {
+            ticket.release();
+        }
+    }
+
+    private long getStarvedNanos() {
+        return ticket == null ? 0 : ticket.getStarvedNanos();
+    }
+
     @Override
     public Runner getSuite(RunnerBuilder builder, Class<?>[] classes) throws InitializationError {
-        Runner runner = super.getSuite(builder, classes);
-        return parallelizeClasses ? wrap(runner) : runner;
+        return wrap(super.getSuite(builder, classes), true);
     }
 
     @Override
     protected Runner getRunner(RunnerBuilder builder, Class<?> testClass) throws Throwable {
         Runner runner = super.getRunner(builder, testClass);
-        return parallelizeMethods ? wrap(runner) : runner;
+        Class<?> runnerClass = runner.getClass();
+        if (runnerClass == JUnit4.class || runnerClass == BlockJUnit4ClassRunner.class) {
+            // classes with a runner of their own only get the global timeout
+            runner = new BudgetedRunner(testClass);
+        }
+        return wrap(runner, false);
+    }
+
+    /**
+     * A time budget, in wall-clock time that is extended by the time during which the scheduler
+     * kept the submission from running at all, or in CPU time.
+     */
+    private class Budget {
+        private final long nanos;
+        private final CpuTime cpuTime;
+        private final Runnable onExpiry;
+        private final long starvedAtStart;
+        private volatile TimerWheel.Timer timer;
+        private volatile boolean cancelled;
+        // only accessed by the timer thread
+        private long extendedNanos;
+
+        /**
+         * @param cpuTime the CPU time charged to the budget, or {@code null} to budget
+         *                wall-clock time
+         */
+        Budget(long nanos, CpuTime cpuTime, Runnable onExpiry) {
+            this.nanos = nanos;
+            this.cpuTime = cpuTime;
+            this.onExpiry = onExpiry;
+            this.starvedAtStart = getStarvedNanos();
+            this.timer = WATCHDOG.schedule(this::expire, nanos, TimeUnit.NANOSECONDS);
+        }
+
+        private void expire() {
+            if (cancelled) {
+                return;
+            }
+            long delay;
+            if (cpuTime == null) {
+                long starvedNanos = getStarvedNanos() - starvedAtStart;
+                delay = starvedNanos - extendedNanos;
+                extendedNanos = starvedNanos;
+            } else {
+                // CPU time is charged at most this many times as fast as wall-clock time
+                long remaining = nanos - cpuTime.nanos();
+                delay = remaining <= 0 ? 0 : Math.max(remaining / Math.max(1,
+                        cpuTime.numThreads()), TimeUnit.MILLISECONDS.toNanos(TICK_MILLIS));
+            }
+            if (delay > 0) {
+                timer = WATCHDOG.schedule(this::expire, delay, TimeUnit.NANOSECONDS);
+                return;
+            }
+            onExpiry.run();
+        }
+
+        void cancel() {
+            cancelled = true;
+            timer.cancel();
+        }
+    }
+
+    /**
+     * The CPU time charged to a budget.
+     */
+    private interface CpuTime {
+        long nanos();
+
+        /**
+         * @return the number of threads that may currently be charged
+         */
+        int numThreads();
+    }
+
+    /**
+     * Runs the test methods of a class within their time limits and the budget of the class.
+     * <p>
+     * A test method whose {@link Q#requires()} names prerequisite questions runs after them, and
+     * is skipped if any of them has failed or has been skipped. The methods run in rounds: a
+     * method runs in the round after the last of its prerequisites, and a round starts when the
+     * previous one has finished, so methods that run in parallel never wait for one another.
+     * <p>
+     * With a {@link RegradeCache}, a test method whose cached outcome is current is replayed
+     * instead of run, and the outcomes of the methods that do run are cached once all test
+     * classes have finished, all depending on the same classes, see
+     * {@link QClassLoader#getDependencies()}. A test method whose outcome was journaled by an interrupted run is always
+     * replayed.
+     */
+    private class BudgetedRunner extends BlockJUnit4ClassRunner {
+        private final QIndex index;
+        // the running tests that are subject to a limit
+        private final Set<WatchedTest> running;
+        private boolean expired;  // guarded by running
+        private long spentCpuNanos;  // guarded by running
+        // the prerequisite methods of the methods that have any
+        private final Map<String, List<String>> prerequisites;
+        // the failures of the methods that have failed or have been skipped
+        private final Map<String, Throwable> failed;
+        private Scheduler scheduler;
+        // the class loader whose dependencies are cached, or null if outcomes are not cached
+        private final QClassLoader classLoader;
+        private volatile Map<String, RegradeCache.Outcome> cached;
+        // the outcomes replayed from the cache, and those of the methods that ran, whose
+        // dependencies are only known once all test classes have finished
+        private final Map<String, RegradeCache.Outcome> outcomes;
+        private final Map<String, RegradeCache.Outcome> ranOutcomes;
+
+        BudgetedRunner(Class<?> testClass) throws InitializationError {
+            super(testClass);
+            this.index = QRunListener.index(testClass);
+            this.running = new HashSet<>();
+            this.prerequisites = prerequisites(index);
+            this.failed = new ConcurrentHashMap<>();
+            this.classLoader = cache != null && testClass.getClassLoader() instanceof QClassLoader
+                    ? (QClassLoader) testClass.getClassLoader() : null;
+            this.cached = Collections.emptyMap();
+            this.outcomes = new ConcurrentHashMap<>();
+            this.ranOutcomes = new ConcurrentHashMap<>();
+        }
+
+        void setScheduler(Scheduler scheduler) {
+            super.setScheduler(scheduler);
+            this.scheduler = scheduler;
+        }
+
+        @Override
+        protected Statement classBlock(RunNotifier notifier) {
+            Statement statement = withOutcomesCached(
+                    withFailuresRecorded(super.classBlock(notifier), notifier));
+            if (classTimeoutNanos <= 0) {
+                return statement;
+            }
+            return new Statement() {
+                @Override
+                public void evaluate() throws Throwable {
+                    Budget classBudget = new Budget(scale(classTimeoutNanos),
+                            cpuScale > 0 ? new ClassCpuTime() : null,
+                            BudgetedRunner.this::expire);
+                    try {
+                        statement.evaluate();
+                    } finally {
+                        classBudget.cancel();
+                    }
+                }
+            };
+        }
+
+        private Statement withFailuresRecorded(Statement next, RunNotifier notifier) {
+            if (prerequisites.isEmpty() && classLoader == null) {
+                return next;
+            }
+            return new Statement() {
+                @Override
+                public void evaluate() throws Throwable {
+                    RunListener recorder = new FailureRecorder();
+                    notifier.addListener(recorder);
+                    try {
+                        next.evaluate();
+                    } finally {
+                        notifier.removeListener(recorder);
+                    }
+                }
+            };
+        }
+
+        private Statement withOutcomesCached(Statement next) {
+            if (classLoader == null) {
+                return next;
+            }
+            String testClassName = getTestClass().getName();
+            return new Statement() {
+                @Override
+                public void evaluate() throws Throwable {
+                    try {
+                        cached = cache.load(testClassName);
+                    } catch (IOException e) {
+                        logWarning("Cannot read cached outcomes of %s: %s", testClassName, e);
+                    }
+                    try {
+                        next.evaluate();
+                    } finally {
+                        if (!outcomes.isEmpty() || !ranOutcomes.isEmpty()) {
+                            pendingStores.add(() -> store(testClassName));
+                        }
+                    }
+                }
+            };
+        }
+
+        private void store(String testClassName) {
+            Map<String, String> dependencies = classLoader.getDependencies();
+            Map<String, RegradeCache.Outcome> stored = new HashMap<>(outcomes);
+            ranOutcomes.forEach((name, outcome) ->
+                    stored.put(name, outcome.withDependencies(dependencies)));
+            try {
+                cache.store(testClassName, stored);
+            } catch (IOException e) {
+                logWarning("Cannot cache outcomes of %s: %s", testClassName, e);
+            }
+        }
+
+        @Override
+        protected Statement childrenInvoker(RunNotifier notifier) {
+            if (prerequisites.isEmpty() || scheduler == null) {
+                return super.childrenInvoker(notifier);
+            }
+            return new Statement() {
+                @Override
+                public void evaluate() {
+                    runInRounds(notifier);
+                }
+            };
+        }
+
+        private void runInRounds(RunNotifier notifier) {
+            Map<Description, FrameworkMethod> methods = new HashMap<>();
+            for (FrameworkMethod method : getChildren()) {
+                methods.put(describeChild(method), method);
+            }
+            List<List<FrameworkMethod>> rounds = new ArrayList<>();
+            // the methods that are left after filtering, in sorted order
+            for (Description child : getDescription().getChildren()) {
+                FrameworkMethod method = methods.get(child);
+                if (method != null) {
+                    int round = round(method.getName(), new HashSet<>());
+                    while (rounds.size() <= round) {
+                        rounds.add(new ArrayList<>());
+                    }
+                    rounds.get(round).add(method);
+                }
+            }
+            try {
+                for (List<FrameworkMethod> round : rounds) {
+                    for (FrameworkMethod method : round) {
+                        scheduler.schedule(() -> runChild(method, notifier));
+                    }
+                    scheduler.awaitChildren();
+                }
+            } finally {
+                scheduler.finished();
+            }
+        }
+
+        /**
+         * @param visiting the methods whose round is being computed, to break cycles in classes
+         *                 that the annotation processor has not checked
+         * @return the number of prerequisites that a method transitively waits for in a row
+         */
+        private int round(String method, Set<String> visiting) {
+            List<String> required = prerequisites.get(method);
+            if (required == null || !visiting.add(method)) {
+                return 0;
+            }
+            int round = 0;
+            for (String prerequisite : required) {
+                round = Math.max(round, round(prerequisite, visiting) + 1);
+            }
+            visiting.remove(method);
+            return round;
+        }
+
+        @Override
+        protected void runChild(FrameworkMethod method, RunNotifier notifier) {
+            List<String> failedPrerequisites = new ArrayList<>();
+            for (String prerequisite : prerequisites.getOrDefault(method.getName(),
+                    Collections.emptyList())) {
+                if (failed.containsKey(prerequisite)) {
+                    failedPrerequisites.add(index.getQ(prerequisite).desc());
+                }
+            }
+            RegradeCache.Outcome resumed = journaled.get(TestDurations.id(describeChild(method)));
+            if (isIgnored(method)) {
+                super.runChild(method, notifier);
+            } else if (!failedPrerequisites.isEmpty()) {
+                PrerequisiteFailedException skipped =
+                        new PrerequisiteFailedException(failedPrerequisites);
+                failed.put(method.getName(), skipped);
+                Description d = describeChild(method);
+                notifier.fireTestStarted(d);
+                notifier.fireTestAssumptionFailed(new Failure(d, skipped));
+                notifier.fireTestFinished(d);
+            } else if (resumed != null) {
+                replay(method, notifier, resumed);
+                numResumedTests.incrementAndGet();
+            } else if (classLoader != null) {
+                runCached(method, notifier);
+            } else {
+                super.runChild(method, notifier);
+            }
+        }
+
+        /**
+         * Replays the cached outcome of a test method if it is current, and otherwise runs the
+         * method and caches its outcome, unless the test was cut short by a time limit.
+         */
+        private void runCached(FrameworkMethod method, RunNotifier notifier) {
+            String name = method.getName();
+            RegradeCache.Outcome outcome = cached.get(name);
+            if (outcome != null && isCurrent(outcome)) {
+                replay(method, notifier, outcome);
+                outcomes.put(name, outcome);
+                numCachedTests.incrementAndGet();
+                return;
+            }
+            super.runChild(method, notifier);
+            Throwable failure = failed.get(name);
+            boolean classExpired;
+            synchronized (running) {
+                classExpired = expired;
+            }
+            if (!timedOut && !classExpired && !(failure instanceof TestTimedOutException)
+                    && !(failure instanceof ClassBudgetExceededException)) {
+                ranOutcomes.put(name, new RegradeCache.Outcome(Collections.emptyMap(), failure));
+            }
+        }
+
+        private void replay(FrameworkMethod method, RunNotifier notifier,
+                            RegradeCache.Outcome outcome) {
+            Description d = describeChild(method);
+            notifier.fireTestStarted(d);
+            Throwable failure = outcome.getFailure();
+            if (failure != null) {
+                notifier.fireTestFailure(new Failure(d, failure));
+            }
+            notifier.fireTestFinished(d);
+        }
+
+        private boolean isCurrent(RegradeCache.Outcome outcome) {
+            try {
+                return outcome.isCurrent(classLoader);
+            } catch (IOException e) {
+                return false;
+            }
+        }
+
+        /**
+         * Records the test methods of this class that fail.
+         */
+        @RunListener.ThreadSafe
+        private class FailureRecorder extends RunListener {
+            @Override
+            public void testFailure(Failure f) {
+                Description d = f.getDescription();
+                if (d.getMethodName() != null
+                        && getTestClass().getName().equals(d.getClassName())) {
+                    failed.put(d.getMethodName(), f.getException());
+                }
+            }
+        }
+
+        private void expire() {
+            synchronized (running) {
+                expired = true;
+                running.forEach(WatchedTest::release);
+            }
+        }
+
+        @Override
+        @SuppressWarnings("deprecation")
+        protected Statement withPotentialTimeout(FrameworkMethod method, Object test,
+                                                 Statement next) {
+            Q q = index.getQ(method.getName());
+            long qTimeout = q == null ? 0 : q.timeoutMillis();
+            Test annotation = method.getAnnotation(Test.class);
+            long testTimeout = annotation == null ? 0 : annotation.timeout();
+            long timeoutMillis = qTimeout <= 0 ? testTimeout
+                    : testTimeout <= 0 ? qTimeout : Math.min(qTimeout, testTimeout);
+            return new Statement() {
+                @Override
+                public void evaluate() throws Throwable {
+                    evaluateWithin(next, timeoutMillis);
+                }
+            };
+        }
+
+        /**
+         * @param timeoutMillis the time limit of the test, or 0 for none
+         */
+        private void evaluateWithin(Statement next, long timeoutMillis) throws Throwable {
+            if (timeoutMillis <= 0 && classTimeoutNanos <= 0) {
+                next.evaluate();
+                return;
+            }
+            WatchedTest test = new WatchedTest(next);
+            synchronized (running) {
+                if (expired) {
+                    throw classBudgetExceeded(null);
+                }
+                running.add(test);
+            }
+            TestLimit limit = timeoutMillis > 0 ? new TestLimit(test,
+                    scale(TimeUnit.MILLISECONDS.toNanos(timeoutMillis))) : null;
+            boolean classExpired;
+            StackTraceElement[] stuckAt;
+            try {
+                // a bounded ForkJoinPool may have no thread left for it; other executors are not
+                (executor instanceof ForkJoinPool ? WATCHED : executor)
+                        .execute(OutputCapture.bind(test));
+                test.await();
+            } catch (InterruptedException e) {
+                // the global timeout expired
+                test.release();
+                throw e;
+            } finally {
+                stuckAt = limit == null ? null : limit.finish();
+                synchronized (running) {
+                    running.remove(test);
+                    spentCpuNanos += test.cpuNanos();
+                    classExpired = expired;
+                }
+            }
+            if (stuckAt != null) {
+                TestTimedOutException e =
+                        new TestTimedOutException(timeoutMillis, TimeUnit.MILLISECONDS);
+                e.setStackTrace(stuckAt);
+                throw e;
+            }
+            if (classExpired) {
+                throw classBudgetExceeded(test.getThrown());
+            }
+            if (test.getThrown() != null) {
+                throw test.getThrown();
+            }
+        }
+
+        private ClassBudgetExceededException classBudgetExceeded(Throwable cause) {
+            return new ClassBudgetExceededException(String.format(
+                    "Test class exceeded its time budget of %d ms%s",
+                    TimeUnit.NANOSECONDS.toMillis(classTimeoutNanos),
+                    cpuScale > 0 ? " of CPU time" : ""), cause);
+        }
+
+        /**
+         * The CPU time of the tests of the class that have finished and that are running.
+         */
+        private class ClassCpuTime implements CpuTime {
+            @Override
+            public long nanos() {
+                synchronized (running) {
+                    long nanos = spentCpuNanos;
+                    for (WatchedTest test : running) {
+                        nanos += test.cpuNanos();
+                    }
+                    return nanos;
+                }
+            }
+
+            @Override
+            public int numThreads() {
+                synchronized (running) {
+                    int numThreads = 0;
+                    for (WatchedTest test : running) {
+                        numThreads += test.numThreads();
+                    }
+                    return numThreads;
+                }
+            }
+        }
+    }
+
+    /**
+     * @return the methods of the prerequisite questions of every test method that has any, by
+     * method name. Prerequisites that are not questions of the class are ignored.
+     */
+    private static Map<String, List<String>> prerequisites(QIndex index) {
+        Map<String, String> methodsByDesc = new HashMap<>();
+        for (String method : index.getTestMethods()) {
+            Q q = index.getQ(method);
+            if (q != null) {
+                methodsByDesc.put(q.desc(), method);
+            }
+        }
+        Map<String, List<String>> prerequisites = new HashMap<>();
+        for (String method : index.getTestMethods()) {
+            Q q = index.getQ(method);
+            if (q == null || q.requires().length == 0) {
+                continue;
+            }
+            List<String> required = new ArrayList<>();
+            for (String desc : q.requires()) {
+                String prerequisite = methodsByDesc.get(desc);
+                if (prerequisite != null) {
+                    required.add(prerequisite);
+                }
+            }
+            if (!required.isEmpty()) {
+                prerequisites.put(method, required);
+            }
+        }
+        return prerequisites;
+    }
+
+    /**
+     * @return a test or class budget, scaled to this host if it is in CPU time
+     */
+    private long scale(long nanos) {
+        return cpuScale > 0 ? (long) (nanos * cpuScale) : nanos;
+    }
+
+    /**
+     * A test that runs on a thread of its own, while the thread that runs it waits for it to
+     * finish or to be released because a limit expired. A released test is interrupted, and
+     * abandoned if it does not stop within {@value #GRACE_MILLIS} ms.
+     */
+    private class WatchedTest implements Runnable {
+        private final Statement next;
+        private final ClassLoader contextClassLoader;
+        private final CountDownLatch finished;
+        // counted down when the test finishes or is released
+        private final CountDownLatch settled;
+        private Thread thread;  // guarded by this
+        private boolean isReleased;  // guarded by this
+        private volatile CpuClock.Account account;
+        private volatile Throwable thrown;
+
+        WatchedTest(Statement next) {
+            this.next = next;
+            this.contextClassLoader = Thread.currentThread().getContextClassLoader();
+            this.finished = new CountDownLatch(1);
+            this.settled = new CountDownLatch(1);
+        }
+
+        @Override
+        public void run() {
+            Thread current = Thread.currentThread();
+            synchronized (this) {
+                if (isReleased) {
+                    return;
+                }
+                thread = current;
+            }
+            ClassLoader previousContextClassLoader = current.getContextClassLoader();
+            current.setContextClassLoader(contextClassLoader);
+            try {
+                CpuClock.Account a = cpuScale > 0 ? CpuClock.start() : null;
+                account = a;
+                try {
+                    next.evaluate();
+                } catch (Throwable t) {
+                    thrown = t;
+                } finally {
+                    if (a != null) {
+                        a.stop();
+                    }
+                }
+            } finally {
+                synchronized (this) {
+                    thread = null;
+                }
+                current.setContextClassLoader(previousContextClassLoader);
+                // the next test on this thread must not see an interrupt meant for this one
+                Thread.interrupted();
+                finished.countDown();
+                settled.countDown();
+            }
+        }
+
+        /**
+         * Waits until the test finishes, or until it is released and has had its grace period
+         * to stop.
+         */
+        void await() throws InterruptedException {
+            settled.await();
+            finished.await(GRACE_MILLIS, TimeUnit.MILLISECONDS);
+        }
+
+        /**
+         * Interrupts the test, and lets the thread that waits for it go on.
+         */
+        synchronized void release() {
+            isReleased = true;
+            if (thread != null) {
+                thread.interrupt();
+            }
+            settled.countDown();
+        }
+
+        /**
+         * @return where the test is, or an empty stack trace if it is not running
+         */
+        synchronized StackTraceElement[] getStackTrace() {
+            return thread == null ? new StackTraceElement[0] : thread.getStackTrace();
+        }
+
+        /**
+         * @return what the test threw, or {@code null} if it passed or has not finished
+         */
+        Throwable getThrown() {
+            return finished.getCount() == 0 ? thrown : null;
+        }
+
+        long cpuNanos() {
+            CpuClock.Account a = account;
+            return a == null ? 0 : a.cpuNanos();
+        }
+
+        int numThreads() {
+            CpuClock.Account a = account;
+            return a == null ? 0 : a.numThreads();
+        }
+    }
+
+    /**
+     * The time limit of a running test, which releases the test when it expires.
+     */
+    private class TestLimit {
+        private final WatchedTest test;
+        private final Budget budget;
+        private boolean finished;  // guarded by this
+        private StackTraceElement[] stuckAt;  // guarded by this
+
+        /**
+         * @param nanos the limit, in CPU time if budgets are
+         */
+        TestLimit(WatchedTest test, long nanos) {
+            this.test = test;
+            this.budget = new Budget(nanos, cpuScale <= 0 ? null : new CpuTime() {
+                @Override
+                public long nanos() {
+                    return test.cpuNanos();
+                }
+
+                @Override
+                public int numThreads() {
+                    return test.numThreads();
+                }
+            }, this::expire);
+        }
+
+        private synchronized void expire() {
+            if (!finished) {
+                stuckAt = test.getStackTrace();
+                test.release();
+            }
+        }
+
+        /**
+         * @return where the test was when its limit expired, or {@code null} if it finished in
+         * time
+         */
+        synchronized StackTraceElement[] finish() {
+            finished = true;
+            budget.cancel();
+            return stuckAt;
+        }
     }
 
     public int getNumCompletedClasses() {
-        return numCompletedClasses;
+        return numCompletedClasses.get();
     }
 
     public int getNumTotalClasses() {
-        return numTotalClasses;
+        return numTotalClasses.get();
+    }
+
+    /**
+     * @return the number of test methods whose outcome was replayed from the cache
+     */
+    public int getNumCachedTests() {
+        return numCachedTests.get();
+    }
+
+    /**
+     * @return the number of test methods whose outcome was replayed from the journal of an
+     * interrupted run
+     */
+    public int getNumResumedTests() {
+        return numResumedTests.get();
     }
 
     public boolean hasTimedOut() {
         return timedOut;
     }
+
+    /**
+     * What runs in parallel.
+     */
+    public enum Mode {
+        /**
+         * Test classes run in parallel, and the methods of each class one after another.
+         */
+        CLASSES,
+
+        /**
+         * Test classes run one after another, and the methods of each class in parallel.
+         */
+        METHODS,
+
+        /**
+         * Test classes and their methods all run in parallel.
+         */
+        BOTH;
+
+        /**
+         * Parses a mode case-insensitively, as given on the command line.
+         */
+        public static Mode parse(String mode) {
+            return valueOf(mode.toUpperCase(Locale.ROOT));
+        }
+    }
+
+    /**
+     * Thrown for a test method that ran, or would have run, after its class exceeded its time
+     * budget. Like a {@link TestTimedOutException}, it fails the test without saying anything
+     * about the submission, so its outcome is neither cached nor journaled.
+     */
+    static class ClassBudgetExceededException extends Exception {
+        private static final long serialVersionUID = 1L;
+
+        ClassBudgetExceededException(String message, Throwable cause) {
+            super(message, cause);
+        }
+    }
 }
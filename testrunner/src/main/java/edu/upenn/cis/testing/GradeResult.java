@@ -0,0 +1,251 @@
+package edu.upenn.cis.testing;
+
+import edu.upenn.cis.testing.annotation.Q;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The outcome of grading a single {@link Submission}.
+ *
+ * @author davix
+ */
+public class GradeResult {
+    private final Submission submission;
+    private final Status status;
+    private final List<String> notFound;
+    private final List<String> missingQs;
+    private final List<String> loadErrors;
+    private final int numCompletedClasses;
+    private final int numTotalClasses;
+    private final Map<Q.Type, Double> pointsEarnedByType;
+    private final Duration elapsed;
+    private final Duration preloadElapsed;
+
+    GradeResult(Submission submission, Status status, List<String> notFound,
+                List<String> missingQs, List<String> loadErrors, int numCompletedClasses,
+                int numTotalClasses, Map<Q.Type, Double> pointsEarnedByType, Duration elapsed,
+                Duration preloadElapsed) {
+        this.submission = submission;
+        this.status = status;
+        this.notFound = Collections.unmodifiableList(notFound);
+        this.missingQs = Collections.unmodifiableList(missingQs);
+        this.loadErrors = Collections.unmodifiableList(loadErrors);
+        this.numCompletedClasses = numCompletedClasses;
+        this.numTotalClasses = numTotalClasses;
+        this.pointsEarnedByType = Collections.unmodifiableMap(pointsEarnedByType);
+        this.elapsed = elapsed;
+        this.preloadElapsed = preloadElapsed;
+    }
+
+    static GradeResult failed(Submission submission, Status status, Duration elapsed) {
+        return new GradeResult(submission, status, Collections.emptyList(),
+                Collections.emptyList(), Collections.emptyList(), 0, 0, Collections.emptyMap(),
+                elapsed, Duration.ZERO);
+    }
+
+    /**
+     * Combines the results of grading parts of one submission, e.g. one test class at a time,
+     * into the result of grading the whole submission. The combined status is the most severe
+     * status of the parts, in the order in which {@link Status} declares them.
+     */
+    static GradeResult combine(Submission submission, List<GradeResult> parts) {
+        Status status = Status.COMPLETED;
+        List<String> notFound = new ArrayList<>();
+        List<String> missingQs = new ArrayList<>();
+        List<String> loadErrors = new ArrayList<>();
+        int numCompletedClasses = 0;
+        int numTotalClasses = 0;
+        Map<Q.Type, Double> pointsEarnedByType = new EnumMap<>(Q.Type.class);
+        Duration elapsed = Duration.ZERO;
+        Duration preloadElapsed = Duration.ZERO;
+        for (GradeResult part : parts) {
+            if (part.status.compareTo(status) > 0) {
+                status = part.status;
+            }
+            notFound.addAll(part.notFound);
+            missingQs.addAll(part.missingQs);
+            part.loadErrors.stream().filter(e -> !loadErrors.contains(e))
+                    .forEach(loadErrors::add);
+            numCompletedClasses += part.numCompletedClasses;
+            numTotalClasses += part.numTotalClasses;
+            part.pointsEarnedByType.forEach((type, points) ->
+                    pointsEarnedByType.merge(type, points, Double::sum));
+            elapsed = elapsed.plus(part.elapsed);
+            preloadElapsed = preloadElapsed.plus(part.preloadElapsed);
+        }
+        return new GradeResult(submission, status, notFound, missingQs, loadErrors,
+                numCompletedClasses, numTotalClasses, pointsEarnedByType, elapsed,
+                preloadElapsed);
+    }
+
+    /**
+     * Reads a result written by {@link #writeTo(DataOutput)}.
+     */
+    static GradeResult readFrom(DataInput in, Submission submission) throws IOException {
+        Status status = Status.valueOf(in.readUTF());
+        List<String> notFound = readStrings(in);
+        List<String> missingQs = readStrings(in);
+        List<String> loadErrors = readStrings(in);
+        int numCompletedClasses = in.readInt();
+        int numTotalClasses = in.readInt();
+        int numTypes = in.readInt();
+        Map<Q.Type, Double> pointsEarnedByType = new EnumMap<>(Q.Type.class);
+        for (int i = 0; i < numTypes; i++) {
+            pointsEarnedByType.put(Q.Type.valueOf(in.readUTF()), in.readDouble());
+        }
+        Duration elapsed = Duration.ofNanos(in.readLong());
+        Duration preloadElapsed = Duration.ofNanos(in.readLong());
+        return new GradeResult(submission, status, notFound, missingQs, loadErrors,
+                numCompletedClasses, numTotalClasses, pointsEarnedByType, elapsed,
+                preloadElapsed);
+    }
+
+    /**
+     * Writes everything but the submission, for sending a result to another process.
+     */
+    void writeTo(DataOutput out) throws IOException {
+        out.writeUTF(status.name());
+        writeStrings(out, notFound);
+        writeStrings(out, missingQs);
+        writeStrings(out, loadErrors);
+        out.writeInt(numCompletedClasses);
+        out.writeInt(numTotalClasses);
+        out.writeInt(pointsEarnedByType.size());
+        for (Map.Entry<Q.Type, Double> entry : pointsEarnedByType.entrySet()) {
+            out.writeUTF(entry.getKey().name());
+            out.writeDouble(entry.getValue());
+        }
+        out.writeLong(elapsed.toNanos());
+        out.writeLong(preloadElapsed.toNanos());
+    }
+
+    private static List<String> readStrings(DataInput in) throws IOException {
+        int size = in.readInt();
+        List<String> strings = new ArrayList<>(size);
+        for (int i = 0; i < size; i++) {
+            strings.add(in.readUTF());
+        }
+        return strings;
+    }
+
+    private static void writeStrings(DataOutput out, List<String> strings) throws IOException {
+        out.writeInt(strings.size());
+        for (String s : strings) {
+            out.writeUTF(s);
+        }
+    }
+
+    public Submission getSubmission() {
+        return submission;
+    }
+
+    public Status getStatus() {
+        return status;
+    }
+
+    /**
+     * @return the names of the test classes that could not be loaded
+     */
+    public List<String> getNotFound() {
+        return notFound;
+    }
+
+    /**
+     * @return the test methods, formatted as {@code class#method}, that were missing a {@link Q}
+     */
+    public List<String> getMissingQs() {
+        return missingQs;
+    }
+
+    /**
+     * @return the classes of the submission that failed to load or verify before the tests
+     * started, with the error
+     */
+    public List<String> getLoadErrors() {
+        return loadErrors;
+    }
+
+    public int getNumCompletedClasses() {
+        return numCompletedClasses;
+    }
+
+    public int getNumTotalClasses() {
+        return numTotalClasses;
+    }
+
+    public Map<Q.Type, Double> getPointsEarnedByType() {
+        return pointsEarnedByType;
+    }
+
+    public Duration getElapsed() {
+        return elapsed;
+    }
+
+    /**
+     * @return the part of {@link #getElapsed()} spent loading and verifying the submission's
+     * classes before the tests started, which does not count towards the timeout
+     */
+    public Duration getPreloadElapsed() {
+        return preloadElapsed;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("%s: %s in %d ms (%s%d of %d test classes, points %s)",
+                submission, status, elapsed.toMillis(), preloadElapsed.isZero() ? ""
+                        : String.format("preload %d ms, ", preloadElapsed.toMillis()),
+                numCompletedClasses, numTotalClasses, pointsEarnedByType);
+    }
+
+    /**
+     * The possible outcomes, from least to most severe.
+     */
+    public enum Status {
+        /**
+         * All tests ran to completion.
+         */
+        COMPLETED,
+
+        /**
+         * The global timeout expired before all tests ran.
+         */
+        TIMED_OUT,
+
+        /**
+         * The submission's sources did not compile. The tests still ran against whatever
+         * classes did compile, so the questions that depend on the rest are scored incorrect.
+         */
+        COMPILE_ERROR,
+
+        /**
+         * Some of the submission's classes failed to load or verify when they were preloaded
+         * before the tests started.
+         */
+        LOAD_ERROR,
+
+        /**
+         * At least one test method was not annotated with {@link Q}, so the scores are
+         * incomplete.
+         */
+        MISSING_Q,
+
+        /**
+         * The submission overran its budget in a worker JVM, so the worker was killed.
+         */
+        KILLED,
+
+        /**
+         * The submission could not be graded at all, e.g. because its scores file could not
+         * be written.
+         */
+        ERROR
+    }
+}
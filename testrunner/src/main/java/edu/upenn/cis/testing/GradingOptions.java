@@ -0,0 +1,347 @@
+package edu.upenn.cis.testing;
+
+import java.nio.file.Path;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Supplier;
+
+/**
+ * The settings that a {@link SubmissionGrader} grades every submission with. Only the timeout
+ * and how test failures are reported are required; every other setting is off unless set on the
+ * {@link Builder}. Instances are immutable; {@link #toBuilder()} derives variants of them.
+ *
+ * @author davix
+ */
+public final class GradingOptions {
+    private final long timeout;
+    private final TimeUnit timeUnit;
+    private final Supplier<TestFailureConsumer> testFailureConsumerFactory;
+    private final Shard shard;
+    private final TestDurations durations;
+    private final FairShareScheduler scheduler;
+    private final SubmissionCompiler compiler;
+    private final StarterCode starterCode;
+    private final ClassPreloader preloader;
+    private final GlobalTimeoutParallelComputer.Mode parallelMode;
+    private final boolean virtualThreads;
+    private final long classTimeout;
+    private final double cpuScale;
+    private final Path cacheDirectory;
+    private final boolean resume;
+    private final OutputPipeline outputPipeline;
+    private final OutputCapture.Policy testOutputPolicy;
+    private final int maxTestOutput;
+
+    private GradingOptions(Builder builder) {
+        this.timeout = builder.timeout;
+        this.timeUnit = builder.timeUnit;
+        this.testFailureConsumerFactory = builder.testFailureConsumerFactory;
+        this.shard = builder.shard;
+        this.durations = builder.durations;
+        this.scheduler = builder.scheduler;
+        this.compiler = builder.compiler;
+        this.starterCode = builder.starterCode;
+        this.preloader = builder.preloader;
+        this.parallelMode = builder.parallelMode;
+        this.virtualThreads = builder.virtualThreads;
+        this.classTimeout = builder.classTimeout;
+        this.cpuScale = builder.cpuScale;
+        this.cacheDirectory = builder.cacheDirectory;
+        this.resume = builder.resume;
+        this.outputPipeline = builder.outputPipeline;
+        this.testOutputPolicy = builder.testOutputPolicy;
+        this.maxTestOutput = builder.maxTestOutput;
+    }
+
+    /**
+     * @param timeout                    the time that all tests of a submission may take
+     * @param timeUnit                   the unit of the timeout and of the class time budget
+     * @param testFailureConsumerFactory makes the consumer of the test failures of each
+     *                                   submission
+     */
+    public static Builder builder(long timeout, TimeUnit timeUnit,
+                                  Supplier<TestFailureConsumer> testFailureConsumerFactory) {
+        return new Builder(timeout, timeUnit, testFailureConsumerFactory);
+    }
+
+    /**
+     * @return a builder with all settings of these options
+     */
+    public Builder toBuilder() {
+        Builder builder = new Builder(timeout, timeUnit, testFailureConsumerFactory);
+        builder.shard = shard;
+        builder.durations = durations;
+        builder.scheduler = scheduler;
+        builder.compiler = compiler;
+        builder.starterCode = starterCode;
+        builder.preloader = preloader;
+        builder.parallelMode = parallelMode;
+        builder.virtualThreads = virtualThreads;
+        builder.classTimeout = classTimeout;
+        builder.cpuScale = cpuScale;
+        builder.cacheDirectory = cacheDirectory;
+        builder.resume = resume;
+        builder.outputPipeline = outputPipeline;
+        builder.testOutputPolicy = testOutputPolicy;
+        builder.maxTestOutput = maxTestOutput;
+        return builder;
+    }
+
+    long getTimeout() {
+        return timeout;
+    }
+
+    TimeUnit getTimeUnit() {
+        return timeUnit;
+    }
+
+    Supplier<TestFailureConsumer> getTestFailureConsumerFactory() {
+        return testFailureConsumerFactory;
+    }
+
+    Shard getShard() {
+        return shard;
+    }
+
+    TestDurations getDurations() {
+        return durations;
+    }
+
+    FairShareScheduler getScheduler() {
+        return scheduler;
+    }
+
+    SubmissionCompiler getCompiler() {
+        return compiler;
+    }
+
+    StarterCode getStarterCode() {
+        return starterCode;
+    }
+
+    ClassPreloader getPreloader() {
+        return preloader;
+    }
+
+    GlobalTimeoutParallelComputer.Mode getParallelMode() {
+        return parallelMode;
+    }
+
+    boolean isVirtualThreads() {
+        return virtualThreads;
+    }
+
+    long getClassTimeout() {
+        return classTimeout;
+    }
+
+    double getCpuScale() {
+        return cpuScale;
+    }
+
+    Path getCacheDirectory() {
+        return cacheDirectory;
+    }
+
+    boolean isResume() {
+        return resume;
+    }
+
+    OutputPipeline getOutputPipeline() {
+        return outputPipeline;
+    }
+
+    OutputCapture.Policy getTestOutputPolicy() {
+        return testOutputPolicy;
+    }
+
+    int getMaxTestOutput() {
+        return maxTestOutput;
+    }
+
+    /**
+     * Builds {@link GradingOptions}. This class is not thread-safe.
+     */
+    public static final class Builder {
+        private final long timeout;
+        private final TimeUnit timeUnit;
+        private final Supplier<TestFailureConsumer> testFailureConsumerFactory;
+        private Shard shard;
+        private TestDurations durations;
+        private FairShareScheduler scheduler;
+        private SubmissionCompiler compiler;
+        private StarterCode starterCode;
+        private ClassPreloader preloader;
+        private GlobalTimeoutParallelComputer.Mode parallelMode;
+        private boolean virtualThreads;
+        private long classTimeout;
+        private double cpuScale;
+        private Path cacheDirectory;
+        private boolean resume;
+        private OutputPipeline outputPipeline;
+        private OutputCapture.Policy testOutputPolicy;
+        private int maxTestOutput;
+
+        private Builder(long timeout, TimeUnit timeUnit,
+                        Supplier<TestFailureConsumer> testFailureConsumerFactory) {
+            this.timeout = timeout;
+            this.timeUnit = timeUnit;
+            this.testFailureConsumerFactory = testFailureConsumerFactory;
+            this.parallelMode = GlobalTimeoutParallelComputer.Mode.CLASSES;
+            this.testOutputPolicy = OutputCapture.Policy.INHERIT;
+            this.maxTestOutput = OutputCapture.DEFAULT_MAX_BYTES;
+        }
+
+        /**
+         * @param shard the shard of test methods to run, or {@code null} to run all of them. When
+         *              a shard is given, the per-class points summary is also written next to the
+         *              scores file, for merging with the other shards.
+         */
+        public Builder shard(Shard shard) {
+            this.shard = shard;
+            return this;
+        }
+
+        /**
+         * @param durations where the durations of the test methods are recorded, or
+         *                  {@code null}. Tests run longest first by the durations already
+         *                  recorded.
+         */
+        public Builder durations(TestDurations durations) {
+            this.durations = durations;
+            return this;
+        }
+
+        /**
+         * @param scheduler the scheduler that test methods of concurrently graded submissions
+         *                  take turns with, according to {@link Submission#getPriority()}, or
+         *                  {@code null} to let them all run at once
+         */
+        public Builder scheduler(FairShareScheduler scheduler) {
+            this.scheduler = scheduler;
+            return this;
+        }
+
+        /**
+         * @param compiler the compiler that submissions are compiled with before grading, in
+         *                 which case their classpath roots contain Java sources, or {@code null}
+         *                 if the submissions are already compiled
+         */
+        public Builder compiler(SubmissionCompiler compiler) {
+            this.compiler = compiler;
+            return this;
+        }
+
+        /**
+         * @param starterCode the starter code whose classes are shared by all submissions that
+         *                    contain them unchanged, or {@code null}
+         */
+        public Builder starterCode(StarterCode starterCode) {
+            this.starterCode = starterCode;
+            return this;
+        }
+
+        /**
+         * @param preloader the preloader that loads and verifies all classes of a submission
+         *                  before its tests start, so that this does not count towards the
+         *                  timeout, or {@code null} to load classes lazily as the tests use them
+         */
+        public Builder preloader(ClassPreloader preloader) {
+            this.preloader = preloader;
+            return this;
+        }
+
+        /**
+         * @param parallelMode whether test classes, the test methods of each class, or both run
+         *                     in parallel. Test classes do by default.
+         */
+        public Builder parallelMode(GlobalTimeoutParallelComputer.Mode parallelMode) {
+            this.parallelMode = parallelMode;
+            return this;
+        }
+
+        /**
+         * @param virtualThreads whether every test class or method that runs in parallel runs
+         *                       on a virtual thread of its own, instead of on a pool of one
+         *                       platform thread per processor. Requires
+         *                       {@link VirtualThreads#isSupported()}.
+         */
+        public Builder virtualThreads(boolean virtualThreads) {
+            this.virtualThreads = virtualThreads;
+            return this;
+        }
+
+        /**
+         * @param classTimeout the time budget of each test class, in the unit of the timeout,
+         *                     or 0 for none
+         */
+        public Builder classTimeout(long classTimeout) {
+            this.classTimeout = classTimeout;
+            return this;
+        }
+
+        /**
+         * @param cpuScale the factor by which the CPU time budgets of test classes and methods
+         *                 are scaled for this host, or 0 to budget them in wall-clock time
+         */
+        public Builder cpuScale(double cpuScale) {
+            this.cpuScale = cpuScale;
+            return this;
+        }
+
+        /**
+         * @param cacheDirectory where the outcomes of test methods are cached between runs, or
+         *                       {@code null}. A test whose classes are unchanged since it last
+         *                       ran against a submission is not run again; its outcome is
+         *                       replayed.
+         * @see RegradeCache
+         */
+        public Builder cacheDirectory(Path cacheDirectory) {
+            this.cacheDirectory = cacheDirectory;
+            return this;
+        }
+
+        /**
+         * @param resume whether the tests that the journal of a submission's scores file
+         *               already has outcomes for are replayed instead of run, to resume a run
+         *               that was interrupted. The journal is written either way.
+         * @see ScoresJournal
+         */
+        public Builder resume(boolean resume) {
+            this.resume = resume;
+            return this;
+        }
+
+        /**
+         * @param outputPipeline the pipeline that the scores and failures printed while tests
+         *                       run go through, so that test threads do not wait for the output,
+         *                       or {@code null} to print them on the test threads. Scores are
+         *                       never dropped, whatever the pipeline's overflow policy.
+         */
+        Builder outputPipeline(OutputPipeline outputPipeline) {
+            this.outputPipeline = outputPipeline;
+            return this;
+        }
+
+        /**
+         * @param testOutputPolicy what becomes of what tests print to the standard streams. It
+         *                         is inherited by default.
+         * @see OutputCapture
+         */
+        Builder testOutputPolicy(OutputCapture.Policy testOutputPolicy) {
+            this.testOutputPolicy = testOutputPolicy;
+            return this;
+        }
+
+        /**
+         * @param maxTestOutput the number of bytes of output kept per test, if it is captured
+         */
+        Builder maxTestOutput(int maxTestOutput) {
+            this.maxTestOutput = maxTestOutput;
+            return this;
+        }
+
+        public GradingOptions build() {
+            return new GradingOptions(this);
+        }
+    }
+}
@@ -0,0 +1,115 @@
+package edu.upenn.cis.testing;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.nio.file.Paths;
+import java.time.Duration;
+
+import static edu.upenn.cis.testing.QRunner.log;
+import static edu.upenn.cis.testing.QRunner.logError;
+
+/**
+ * The worker side of a {@link WorkerPool}. A worker connects back to its supervisor over the
+ * loopback interface, identifies itself, warms up, and then grades one submission at a time
+ * until the supervisor closes the connection.
+ * <p>
+ * Protocol (all strings are {@link DataOutputStream#writeUTF(String) modified UTF-8}):
+ * <pre>
+ * worker -&gt; supervisor: id
+ * worker -&gt; supervisor: "READY"
+ * supervisor -&gt; worker: classpathRoot scoresFile   (repeated)
+ * worker -&gt; supervisor: a {@link GradeResult}       (one per submission)
+ * </pre>
+ *
+ * @author davix
+ */
+class GradingWorker {
+    static final String READY = "READY";
+
+    /**
+     * Classes that every grading run needs. Loading them before the first submission arrives
+     * moves their loading and static initialization out of the first submission's time budget.
+     */
+    private static final String[] WARM_UP_CLASSES = {
+            "org.junit.runner.JUnitCore",
+            "org.junit.runner.Request",
+            "org.junit.runner.notification.RunNotifier",
+            "org.junit.runners.BlockJUnit4ClassRunner",
+            "org.junit.runners.Suite",
+            "org.junit.internal.builders.AllDefaultPossibilitiesBuilder",
+            "org.junit.internal.runners.statements.InvokeMethod",
+            "org.junit.Assert",
+            "edu.upenn.cis.testing.QRunListener",
+            "edu.upenn.cis.testing.SqlFormatter",
+            "edu.upenn.cis.testing.GlobalTimeoutParallelComputer",
+            "edu.upenn.cis.testing.QClassLoader",
+    };
+
+    private GradingWorker() {
+    }
+
+    /**
+     * Runs the worker loop. Returns when the supervisor closes the connection.
+     *
+     * @param port   the supervisor's port on the loopback interface
+     * @param id     the id the supervisor assigned to this worker
+     * @param grader the grader to grade submissions with
+     */
+    static void run(int port, String id, SubmissionGrader grader) throws IOException {
+        try (Socket socket = new Socket(InetAddress.getLoopbackAddress(), port);
+             DataInputStream in = new DataInputStream(
+                     new BufferedInputStream(socket.getInputStream()));
+             DataOutputStream out = new DataOutputStream(
+                     new BufferedOutputStream(socket.getOutputStream()))) {
+            out.writeUTF(id);
+            out.flush();
+
+            warmUp();
+            out.writeUTF(READY);
+            out.flush();
+
+            while (true) {
+                String classpathRoot;
+                try {
+                    classpathRoot = in.readUTF();
+                } catch (EOFException e) {
+                    return;
+                }
+                String scoresFile = in.readUTF();
+                Submission submission = new Submission(classpathRoot, Paths.get(classpathRoot),
+                        Paths.get(scoresFile));
+                log("Worker %s grading submission %s", id, submission);
+                PrintWriter output = new PrintWriter(System.out);
+                GradeResult result;
+                try {
+                    result = grader.grade(submission, output);
+                } catch (IOException e) {
+                    logError("Cannot grade submission %s: %s", submission, e);
+                    result = GradeResult.failed(submission, GradeResult.Status.ERROR,
+                            Duration.ZERO);
+                }
+                output.flush();
+                result.writeTo(out);
+                out.flush();
+            }
+        }
+    }
+
+    private static void warmUp() {
+        ClassLoader classLoader = GradingWorker.class.getClassLoader();
+        for (String className : WARM_UP_CLASSES) {
+            try {
+                Class.forName(className, true, classLoader);
+            } catch (ClassNotFoundException e) {
+                logError("Cannot warm up %s: %s", className, e);
+            }
+        }
+    }
+}
@@ -0,0 +1,271 @@
+package edu.upenn.cis.testing;
+
+import org.junit.runner.Description;
+import org.junit.runner.notification.RunListener;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.nio.charset.Charset;
+import java.util.Arrays;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * An {@code OutputCapture} keeps what the tests of one submission print to {@link System#out}
+ * and {@link System#err} apart from the grader's own output. While it is installed, the
+ * standard streams are replaced by streams that route every write by the test that the writing
+ * thread belongs to: the thread a test runs on, and every thread started from it while the test
+ * runs, belongs to the test. What a test prints goes to a buffer of its own that keeps at most a
+ * given number of bytes, followed by a note of how many bytes were truncated, so that a test
+ * that prints in a tight loop neither waits for the terminal nor floods it, and the output of
+ * tests that run at once does not interleave. The output of a failed test is printed with its
+ * failure; the output of a test that passed is discarded. Threads that belong to no test, such
+ * as those of the grader, print to the original streams, as do threads of a test after it
+ * finished, such as pooled threads that a test started and that inherited its buffer.
+ * <p>
+ * Tests are bound to their threads as they start and finish, so this listener must be added to
+ * the {@link org.junit.runner.JUnitCore JUnitCore} that runs them. This class is thread-safe.
+ *
+ * @author davix
+ */
+@RunListener.ThreadSafe
+class OutputCapture extends RunListener {
+    static final int DEFAULT_MAX_BYTES = 16 << 10;
+
+    /**
+     * What becomes of the output of tests.
+     */
+    enum Policy {
+        /**
+         * Output is captured and printed with the failures of the tests that printed it.
+         */
+        FAILURES,
+        /**
+         * Output is captured and discarded.
+         */
+        DISCARD,
+        /**
+         * Output is not captured; tests print to the standard streams directly.
+         */
+        INHERIT
+    }
+
+    // the buffer of the test that the current thread belongs to
+    private static final InheritableThreadLocal<Buffer> current = new InheritableThreadLocal<>();
+    private static final Object installLock = new Object();
+    private static int numInstalled;  // guarded by installLock
+    private static PrintStream originalOut;  // guarded by installLock
+    private static PrintStream originalErr;  // guarded by installLock
+
+    private final Policy policy;
+    private final int maxBytes;
+    private final ConcurrentMap<Description, Buffer> buffers;
+
+    /**
+     * @param policy   what becomes of the output of tests, other than {@link Policy#INHERIT}
+     * @param maxBytes the number of bytes of output kept per test
+     */
+    OutputCapture(Policy policy, int maxBytes) {
+        if (policy == Policy.INHERIT) {
+            throw new IllegalArgumentException("not captured: " + policy);
+        }
+        this.policy = policy;
+        this.maxBytes = policy == Policy.DISCARD ? 0 : maxBytes;
+        this.buffers = new ConcurrentHashMap<>();
+    }
+
+    /**
+     * Replaces the standard streams with the routing streams, unless another capture already
+     * did. Every call must be followed by a call of {@link #uninstall()}.
+     */
+    static void install() {
+        synchronized (installLock) {
+            if (numInstalled++ == 0) {
+                originalOut = System.out;
+                originalErr = System.err;
+                System.setOut(new PrintStream(new RoutingStream(originalOut), true));
+                System.setErr(new PrintStream(new RoutingStream(originalErr), true));
+            }
+        }
+    }
+
+    /**
+     * Restores the standard streams once every capture that installed them has uninstalled.
+     */
+    static void uninstall() {
+        synchronized (installLock) {
+            if (--numInstalled == 0) {
+                System.setOut(originalOut);
+                System.setErr(originalErr);
+                originalOut = null;
+                originalErr = null;
+            }
+        }
+    }
+
+    /**
+     * @return the original standard output while the routing streams are installed, or the
+     * standard output otherwise
+     */
+    static PrintStream out() {
+        synchronized (installLock) {
+            return originalOut != null ? originalOut : System.out;
+        }
+    }
+
+    /**
+     * @return the original standard error while the routing streams are installed, or the
+     * standard error otherwise
+     */
+    static PrintStream err() {
+        synchronized (installLock) {
+            return originalErr != null ? originalErr : System.err;
+        }
+    }
+
+    /**
+     * Makes the current thread belong to no test, for threads of the grader that may have been
+     * started by a thread of a test.
+     */
+    static void detach() {
+        current.remove();
+    }
+
+    /**
+     * @return a task that belongs to the test that the current thread belongs to, if any, on
+     * whatever thread it runs. The thread belongs to no test after the task.
+     */
+    static Runnable bind(Runnable task) {
+        Buffer buffer = current.get();
+        return () -> {
+            if (buffer == null) {
+                current.remove();
+            } else {
+                current.set(buffer);
+            }
+            try {
+                task.run();
+            } finally {
+                current.remove();
+            }
+        };
+    }
+
+    @Override
+    public void testStarted(Description d) {
+        Buffer buffer = new Buffer(maxBytes);
+        buffers.put(d, buffer);
+        current.set(buffer);
+    }
+
+    @Override
+    public void testFinished(Description d) {
+        Buffer buffer = buffers.remove(d);
+        if (buffer != null) {
+            buffer.close();
+            if (current.get() == buffer) {
+                current.remove();
+            }
+        }
+    }
+
+    /**
+     * @return what a test that has not finished yet printed so far, or an empty string if it
+     * printed nothing or its output is discarded
+     */
+    String getOutput(Description d) {
+        Buffer buffer = buffers.get(d);
+        return buffer == null || policy == Policy.DISCARD ? "" : buffer.toString();
+    }
+
+    private static final class RoutingStream extends OutputStream {
+        private final PrintStream original;
+
+        RoutingStream(PrintStream original) {
+            this.original = original;
+        }
+
+        @Override
+        public void write(int b) {
+            Buffer buffer = current.get();
+            if (buffer == null || !buffer.write(new byte[]{(byte) b}, 0, 1)) {
+                original.write(b);
+            }
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) {
+            Buffer buffer = current.get();
+            if (buffer == null || !buffer.write(b, off, len)) {
+                original.write(b, off, len);
+            }
+        }
+
+        @Override
+        public void flush() throws IOException {
+            Buffer buffer = current.get();
+            if (buffer == null || buffer.isClosed()) {
+                original.flush();
+            }
+        }
+    }
+
+    /**
+     * The output of one test, of which only the first bytes are kept.
+     */
+    private static final class Buffer {
+        private final int maxBytes;
+        private byte[] bytes;  // guarded by this
+        private int size;  // guarded by this
+        private long numTruncated;  // guarded by this
+        private boolean closed;  // guarded by this
+
+        Buffer(int maxBytes) {
+            this.maxBytes = maxBytes;
+            this.bytes = new byte[Math.min(maxBytes, 256)];
+        }
+
+        /**
+         * @return whether the bytes were written; {@code false} if the test has finished
+         */
+        synchronized boolean write(byte[] b, int off, int len) {
+            if (closed) {
+                return false;
+            }
+            int kept = Math.min(len, maxBytes - size);
+            if (kept > 0) {
+                if (size + kept > bytes.length) {
+                    bytes = Arrays.copyOf(bytes, Math.min(maxBytes,
+                            Math.max(size + kept, 2 * bytes.length)));
+                }
+                System.arraycopy(b, off, bytes, size, kept);
+                size += kept;
+            }
+            numTruncated += len - Math.max(kept, 0);
+            return true;
+        }
+
+        synchronized void close() {
+            closed = true;
+            bytes = null;
+        }
+
+        synchronized boolean isClosed() {
+            return closed;
+        }
+
+        @Override
+        public synchronized String toString() {
+            if (closed || size == 0 && numTruncated == 0) {
+                return "";
+            }
+            String output = new String(bytes, 0, size, Charset.defaultCharset());
+            if (numTruncated > 0) {
+                output += String.format("%n[%d more byte(s) of output truncated]%n",
+                        numTruncated);
+            }
+            return output;
+        }
+    }
+}
@@ -0,0 +1,372 @@
+package edu.upenn.cis.testing;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.util.IdentityHashMap;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.locks.LockSupport;
+
+import static edu.upenn.cis.testing.QRunner.logWarning;
+
+/**
+ * An {@code OutputPipeline} moves writes off the threads that make them: the writers it hands
+ * out only append what is written to a bounded ring buffer, and a single daemon thread drains
+ * the buffer into the underlying writers, coalescing consecutive writes to the same writer into
+ * one, and flushing the writers whenever the buffer runs empty. Test threads that print scores
+ * and failures therefore never wait for a slow terminal or pipe, or for each other, unless the
+ * buffer is full.
+ * <p>
+ * The ring buffer takes the sequence-numbered slots of Vyukov's bounded queue, so appending
+ * takes no lock. What happens to a write when the buffer is full is up to the
+ * {@link Overflow} policy of the writer. Flushing a writer waits until everything written to
+ * it so far has reached the underlying writer, which has been flushed, so output is ordered
+ * with whatever is written after a flush. Once the pipeline is closed, writes go straight to the
+ * underlying writers. This class is thread-safe.
+ *
+ * @author davix
+ */
+class OutputPipeline implements AutoCloseable {
+    private static final int BATCH_CHARS = 8192;
+    private static final long IDLE_PARK_NANOS = TimeUnit.MILLISECONDS.toNanos(10);
+    private static final long FULL_PARK_NANOS = TimeUnit.MICROSECONDS.toNanos(50);
+
+    /**
+     * What a writer does with a write while the buffer is full.
+     */
+    enum Overflow {
+        /**
+         * Waits until the writer thread has made room, so that nothing is lost.
+         */
+        BLOCK,
+        /**
+         * Drops the write and counts the dropped characters, which are reported in the output
+         * once there is room again.
+         */
+        DROP
+    }
+
+    private final Overflow overflow;
+    private final AtomicReferenceArray<Chunk> slots;
+    private final AtomicLongArray sequences;
+    private final int mask;
+    private final AtomicLong tail;
+    private long head;  // only accessed by the writer thread
+    private final AtomicBoolean started;
+    private volatile Thread thread;
+    private volatile boolean idle;
+    private volatile boolean closed;
+
+    /**
+     * @param capacity the number of writes the buffer holds, rounded up to a power of 2
+     * @param overflow what the writers of this pipeline do with a write while the buffer is
+     *                 full, unless given otherwise
+     */
+    OutputPipeline(int capacity, Overflow overflow) {
+        this.overflow = overflow;
+        int size = Integer.highestOneBit(Math.max(1, capacity - 1)) << 1;
+        this.slots = new AtomicReferenceArray<>(size);
+        this.sequences = new AtomicLongArray(size);
+        for (int i = 0; i < size; i++) {
+            sequences.set(i, i);
+        }
+        this.mask = size - 1;
+        this.tail = new AtomicLong();
+        this.started = new AtomicBoolean();
+    }
+
+    /**
+     * @param out the writer that the writes are drained into. It is only written and flushed
+     *            by the writer thread while the pipeline is open.
+     * @return a writer that appends to this pipeline
+     */
+    Writer writer(Writer out) {
+        return writer(out, overflow);
+    }
+
+    /**
+     * @param overflow what happens to a write while the buffer is full
+     * @see #writer(Writer)
+     */
+    Writer writer(Writer out, Overflow overflow) {
+        return new PipedWriter(out, overflow);
+    }
+
+    private boolean offer(Chunk chunk) {
+        long t = tail.get();
+        while (true) {
+            int i = (int) (t & mask);
+            long diff = sequences.get(i) - t;
+            if (diff == 0) {
+                if (tail.compareAndSet(t, t + 1)) {
+                    slots.set(i, chunk);
+                    // publishes the chunk to the writer thread
+                    sequences.set(i, t + 1);
+                    return true;
+                }
+                t = tail.get();
+            } else if (diff < 0) {
+                // the writer thread has not taken the chunk a whole round ago yet
+                return false;
+            } else {
+                // another thread took the slot
+                t = tail.get();
+            }
+        }
+    }
+
+    private Chunk poll() {
+        int i = (int) (head & mask);
+        if (sequences.get(i) != head + 1) {
+            return null;
+        }
+        Chunk chunk = slots.get(i);
+        slots.set(i, null);
+        // frees the slot for the next round
+        sequences.set(i, head + slots.length());
+        head++;
+        return chunk;
+    }
+
+    /**
+     * @return whether the chunk was appended; {@code false} if it was dropped or the pipeline
+     * is closed
+     */
+    private boolean put(Chunk chunk, Overflow overflow) {
+        start();
+        while (!offer(chunk)) {
+            if (closed || overflow == Overflow.DROP) {
+                return false;
+            }
+            LockSupport.unpark(thread);
+            LockSupport.parkNanos(this, FULL_PARK_NANOS);
+        }
+        if (idle) {
+            LockSupport.unpark(thread);
+        }
+        return true;
+    }
+
+    private void start() {
+        if (started.compareAndSet(false, true)) {
+            Thread t = new Thread(this::run, "output-pipeline");
+            t.setDaemon(true);
+            thread = t;
+            t.start();
+        }
+        while (thread == null) {
+            Thread.yield();
+        }
+    }
+
+    private void run() {
+        // this thread may have been started by a test, whose output the writes are not
+        OutputCapture.detach();
+        // the writers written to since they were last flushed, and what is pending for each
+        Map<PipedWriter, StringBuilder> batches = new IdentityHashMap<>();
+        while (true) {
+            Chunk chunk = poll();
+            if (chunk != null) {
+                take(chunk, batches);
+            } else {
+                drainAll(batches);
+                if (closed && sequences.get((int) (head & mask)) != head + 1) {
+                    return;
+                }
+                idle = true;
+                // a chunk appended before idle was set did not unpark this thread
+                if (sequences.get((int) (head & mask)) != head + 1) {
+                    LockSupport.parkNanos(this, IDLE_PARK_NANOS);
+                }
+                idle = false;
+            }
+        }
+    }
+
+    private static void take(Chunk chunk, Map<PipedWriter, StringBuilder> batches) {
+        StringBuilder batch = batches.computeIfAbsent(chunk.writer, w -> new StringBuilder());
+        if (chunk.text != null) {
+            batch.append(chunk.text);
+            if (batch.length() >= BATCH_CHARS) {
+                chunk.writer.drain(batch);
+            }
+        } else {
+            chunk.writer.drain(batch);
+            chunk.writer.flushOut();
+            batches.remove(chunk.writer);
+            chunk.flushed.countDown();
+        }
+    }
+
+    private static void drainAll(Map<PipedWriter, StringBuilder> batches) {
+        batches.forEach((writer, batch) -> {
+            writer.drain(batch);
+            writer.flushOut();
+        });
+        batches.clear();
+    }
+
+    /**
+     * Drains the buffer into the underlying writers, flushes them, and stops the writer thread.
+     * Writes made after this go straight to the underlying writers.
+     */
+    @Override
+    public void close() {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        Thread t = thread;
+        if (t != null) {
+            LockSupport.unpark(t);
+            boolean interrupted = false;
+            while (t.isAlive()) {
+                try {
+                    t.join();
+                } catch (InterruptedException e) {
+                    interrupted = true;
+                }
+            }
+            if (interrupted) {
+                Thread.currentThread().interrupt();
+            }
+            // whatever was appended while the writer thread was stopping
+            Map<PipedWriter, StringBuilder> batches = new IdentityHashMap<>();
+            Chunk chunk;
+            while ((chunk = poll()) != null) {
+                take(chunk, batches);
+            }
+            drainAll(batches);
+        }
+    }
+
+    /**
+     * A write, or a request to flush if it has no text.
+     */
+    private static final class Chunk {
+        final PipedWriter writer;
+        final String text;
+        final CountDownLatch flushed;
+
+        Chunk(PipedWriter writer, String text) {
+            this.writer = writer;
+            this.text = text;
+            this.flushed = text == null ? new CountDownLatch(1) : null;
+        }
+    }
+
+    private final class PipedWriter extends Writer {
+        private final Writer out;
+        private final Overflow overflow;
+        private final AtomicLong dropped;
+        private boolean failed;  // only accessed by the writer thread
+
+        PipedWriter(Writer out, Overflow overflow) {
+            this.out = out;
+            this.overflow = overflow;
+            this.dropped = new AtomicLong();
+        }
+
+        @Override
+        public void write(char[] cbuf, int off, int len) throws IOException {
+            enqueue(new String(cbuf, off, len));
+        }
+
+        @Override
+        public void write(String str, int off, int len) throws IOException {
+            enqueue(str.substring(off, off + len));
+        }
+
+        private void enqueue(String text) throws IOException {
+            if (text.isEmpty()) {
+                return;
+            }
+            if (!closed && put(new Chunk(this, text), overflow)) {
+                return;
+            }
+            if (closed) {
+                synchronized (out) {
+                    out.write(text);
+                }
+            } else {
+                dropped.addAndGet(text.length());
+            }
+        }
+
+        /**
+         * Waits until everything written so far has been written to the underlying writer, and
+         * flushes it.
+         */
+        @Override
+        public void flush() throws IOException {
+            Chunk chunk = new Chunk(this, null);
+            if (!closed && put(chunk, Overflow.BLOCK)) {
+                boolean interrupted = false;
+                // the writer thread may stop before taking the chunk if the pipeline is closed
+                while (chunk.flushed.getCount() > 0 && thread.isAlive()) {
+                    try {
+                        chunk.flushed.await(IDLE_PARK_NANOS, TimeUnit.NANOSECONDS);
+                    } catch (InterruptedException e) {
+                        interrupted = true;
+                    }
+                }
+                if (interrupted) {
+                    Thread.currentThread().interrupt();
+                }
+                if (chunk.flushed.getCount() == 0) {
+                    return;
+                }
+            }
+            synchronized (out) {
+                out.flush();
+            }
+        }
+
+        @Override
+        public void close() throws IOException {
+            flush();
+        }
+
+        // the rest is only called on the writer thread
+
+        void drain(StringBuilder batch) {
+            long numDropped = dropped.getAndSet(0);
+            if (numDropped > 0) {
+                batch.append(String.format("%n[%d character(s) of output dropped]%n",
+                        numDropped));
+            }
+            if (batch.length() == 0 || failed) {
+                batch.setLength(0);
+                return;
+            }
+            try {
+                out.write(batch.toString());
+            } catch (IOException e) {
+                fail(e);
+            }
+            batch.setLength(0);
+        }
+
+        void flushOut() {
+            if (failed) {
+                return;
+            }
+            try {
+                out.flush();
+            } catch (IOException e) {
+                fail(e);
+            }
+        }
+
+        private void fail(IOException e) {
+            // later output to this writer is discarded, as a PrintWriter would after an error
+            logWarning("Cannot write output: %s", e);
+            failed = true;
+        }
+    }
+}
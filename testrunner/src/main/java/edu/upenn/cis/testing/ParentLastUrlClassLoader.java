@@ -2,18 +2,29 @@ package edu.upenn.cis.testing;
 
 import java.net.URL;
 import java.net.URLClassLoader;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
 
 /**
  * A parent-last classloader that will try the child classloader first and then the parent.
  * This takes a fair bit of doing because java really prefers parent-first.
  * <p>
  * For those not familiar with class loading trickery, be wary
+ * <p>
+ * The loader is parallel capable: classes of different names are loaded concurrently. Names that
+ * are not in the child's URLs are remembered, so that loading a class from the parent, which is
+ * what happens for most classes, does not search the URLs again or throw and catch an exception.
  *
  * @author davix
  * @see <a href="http://stackoverflow.com/questions/5445511/how-do-i-create-a-parent-last-child-first-classloader-in-java-or-how-to-overr">http://stackoverflow.com/questions/5445511/how-do-i-create-a-parent-last-child-first-classloader-in-java-or-how-to-overr</a>
  */
 public class ParentLastUrlClassLoader extends ClassLoader {
-    private ChildURLClassLoader childClassLoader;
+    static {
+        registerAsParallelCapable();
+    }
+
+    private final ChildURLClassLoader childClassLoader;
+    private final Set<String> absentFromChild;
 
     public ParentLastUrlClassLoader(ClassLoader classLoader) {
         this(new URL[0], classLoader);
@@ -27,25 +38,29 @@ public class ParentLastUrlClassLoader extends ClassLoader {
         super(classLoader);
 
         childClassLoader = new ChildURLClassLoader(urls, new FindClassClassLoader(getParent()));
+        absentFromChild = ConcurrentHashMap.newKeySet();
     }
 
     @Override
-    protected synchronized Class<?> loadClass(String name, boolean resolve) throws
-            ClassNotFoundException {
-        Class<?> loaded = findLoadedClass(name);
-        if (loaded == null) {
-            try {
+    protected Class<?> loadClass(String name, boolean resolve) throws ClassNotFoundException {
+        synchronized (getClassLoadingLock(name)) {
+            Class<?> loaded = findLoadedClass(name);
+            if (loaded == null && !absentFromChild.contains(name)) {
                 // first we try to find a class inside the child classloader
-                return childClassLoader.findClass(name);
-            } catch (ClassNotFoundException e) {
+                loaded = childClassLoader.findLocalClass(name);
+                if (loaded == null) {
+                    absentFromChild.add(name);
+                }
+            }
+            if (loaded == null) {
                 // didn't find it, try the parent
                 return super.loadClass(name, resolve);
             }
+            if (resolve) {
+                resolveClass(loaded);
+            }
+            return loaded;
         }
-        if (resolve) {
-            resolveClass(loaded);
-        }
-        return loaded;
     }
 
     /**
@@ -68,6 +83,10 @@ public class ParentLastUrlClassLoader extends ClassLoader {
      * We need this because findClass is protected in URLClassLoader
      */
     private static class ChildURLClassLoader extends URLClassLoader {
+        static {
+            registerAsParallelCapable();
+        }
+
         private FindClassClassLoader realParent;
 
         public ChildURLClassLoader(URL[] urls, FindClassClassLoader realParent) {
@@ -86,5 +105,25 @@ public class ParentLastUrlClassLoader extends ClassLoader {
             }
         }
 
+        /**
+         * @return the class if it is in the URLs, or {@code null}, without throwing
+         */
+        Class<?> findLocalClass(String name) {
+            synchronized (getClassLoadingLock(name)) {
+                Class<?> c = findLoadedClass(name);
+                if (c != null) {
+                    return c;
+                }
+                if (findResource(name.replace('.', '/').concat(".class")) == null) {
+                    return null;
+                }
+                try {
+                    return super.findClass(name);
+                } catch (ClassNotFoundException e) {
+                    return null;
+                }
+            }
+        }
+
     }
 }
\ No newline at end of file
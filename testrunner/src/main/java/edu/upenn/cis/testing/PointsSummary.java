@@ -0,0 +1,136 @@
+package edu.upenn.cis.testing;
+
+import edu.upenn.cis.testing.annotation.Q;
+
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * The points earned and available per test class and {@link Q.Type}, as printed at the end of
+ * a run. Classes are keyed by the string form of the test class, so summaries from different
+ * runs, e.g. of different shards, can be merged and printed exactly as a single run would
+ * print them.
+ *
+ * @author davix
+ */
+class PointsSummary {
+    private static final String SEPARATOR = "\t";
+
+    private final Map<String, Map<Q.Type, Double>> pointsEarnedByTypePerClass;
+    private final Map<String, Map<Q.Type, Double>> pointsAvailableByTypePerClass;
+
+    PointsSummary() {
+        pointsEarnedByTypePerClass = new TreeMap<>();
+        pointsAvailableByTypePerClass = new TreeMap<>();
+    }
+
+    /**
+     * @return the file that the summary belonging to a scores file is written to
+     */
+    static Path summaryFile(Path scoresFile) {
+        return scoresFile.resolveSibling(scoresFile.getFileName() + ".summary");
+    }
+
+    /**
+     * Records the points of one test class. A class that has no earned points for a type yet
+     * should still be added, with an empty earned map, once any of its tests has started.
+     */
+    void addClass(String clazz, Map<Q.Type, Double> earned, Map<Q.Type, Double> available) {
+        Map<Q.Type, Double> earnedByType = pointsEarnedByTypePerClass.computeIfAbsent(clazz,
+                c -> new EnumMap<>(Q.Type.class));
+        earned.forEach((type, points) -> earnedByType.merge(type, points, Double::sum));
+        // every run that touches a class sees all of its questions, so this is not summed
+        Map<Q.Type, Double> availableByType = pointsAvailableByTypePerClass.computeIfAbsent(
+                clazz, c -> new EnumMap<>(Q.Type.class));
+        available.forEach(availableByType::putIfAbsent);
+    }
+
+    /**
+     * Adds the points of another summary to this one.
+     */
+    void merge(PointsSummary other) {
+        other.pointsEarnedByTypePerClass.forEach((clazz, earned) ->
+                addClass(clazz, earned, other.pointsAvailableByTypePerClass.get(clazz)));
+    }
+
+    Map<Q.Type, Double> getTotalPointsEarnedByType() {
+        return sum(pointsEarnedByTypePerClass);
+    }
+
+    void print(PrintWriter output) {
+        Map<Q.Type, Double> totalAvailablePointsByType = sum(pointsAvailableByTypePerClass);
+        getTotalPointsEarnedByType().forEach((type, pointsEarned) ->
+                output.printf("Total points (%s): %.1f out of %.1f.%n", type, pointsEarned,
+                        totalAvailablePointsByType.get(type)));
+
+        output.println("Points breakdown:");
+        pointsEarnedByTypePerClass.forEach((clazz, pointsEarnedByType) ->
+                pointsEarnedByType.forEach((type, points) ->
+                        output.printf("  %s (%s): %.1f out of %.1f.%n", clazz, type, points,
+                                pointsAvailableByTypePerClass.get(clazz).get(type))));
+    }
+
+    /**
+     * Writes this summary in the format read by {@link #read(Path)}: one line per class and
+     * type, holding the class, the type, and the earned and available points, where a missing
+     * value is written as an empty field.
+     */
+    void write(Path path) throws IOException {
+        List<String> lines = new ArrayList<>();
+        pointsAvailableByTypePerClass.forEach((clazz, available) -> {
+            Map<Q.Type, Double> earned = pointsEarnedByTypePerClass.get(clazz);
+            for (Q.Type type : Q.Type.values()) {
+                Double e = earned.get(type);
+                Double a = available.get(type);
+                if (e != null || a != null) {
+                    lines.add(clazz + SEPARATOR + type + SEPARATOR + format(e) + SEPARATOR
+                            + format(a));
+                }
+            }
+            if (earned.isEmpty() && available.isEmpty()) {
+                lines.add(clazz);
+            }
+        });
+        Files.write(path, lines);
+    }
+
+    static PointsSummary read(Path path) throws IOException {
+        PointsSummary summary = new PointsSummary();
+        for (String line : Files.readAllLines(path)) {
+            String[] fields = line.split(SEPARATOR, -1);
+            Map<Q.Type, Double> earned = new EnumMap<>(Q.Type.class);
+            Map<Q.Type, Double> available = new EnumMap<>(Q.Type.class);
+            if (fields.length == 4) {
+                Q.Type type = Q.Type.valueOf(fields[1]);
+                if (!fields[2].isEmpty()) {
+                    earned.put(type, Double.valueOf(fields[2]));
+                }
+                if (!fields[3].isEmpty()) {
+                    available.put(type, Double.valueOf(fields[3]));
+                }
+            } else if (fields.length != 1) {
+                throw new IOException(path + ": malformed summary line: " + line);
+            }
+            summary.addClass(fields[0], earned, available);
+        }
+        return summary;
+    }
+
+    private static String format(Double d) {
+        return d == null ? "" : Double.toString(d);
+    }
+
+    private static Map<Q.Type, Double> sum(Map<String, Map<Q.Type, Double>> pointsPerClass) {
+        Map<Q.Type, Double> total = new EnumMap<>(Q.Type.class);
+        pointsPerClass.values().forEach(pointsByType ->
+                pointsByType.forEach((type, points) -> total.merge(type, points, Double::sum)));
+        return total;
+    }
+}
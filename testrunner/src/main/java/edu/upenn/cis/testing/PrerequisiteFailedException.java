@@ -0,0 +1,25 @@
+package edu.upenn.cis.testing;
+
+import edu.upenn.cis.testing.annotation.Q;
+import org.junit.AssumptionViolatedException;
+
+import java.util.List;
+
+/**
+ * Thrown in place of running a test whose prerequisite questions, given by
+ * {@link Q#requires()}, have failed or have been skipped themselves. The test is scored as
+ * {@link Q#incorrect()} and marked as skipped.
+ *
+ * @author davix
+ */
+class PrerequisiteFailedException extends AssumptionViolatedException {
+    private static final long serialVersionUID = 1L;
+
+    /**
+     * @param prerequisites the descriptions of the prerequisites that failed
+     */
+    PrerequisiteFailedException(List<String> prerequisites) {
+        super("Skipped because prerequisite question(s) failed: "
+                + String.join(", ", prerequisites));
+    }
+}
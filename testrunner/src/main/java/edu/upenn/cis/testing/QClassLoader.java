@@ -1,52 +1,249 @@
 package edu.upenn.cis.testing;
 
-import java.io.BufferedInputStream;
 import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
 
 /**
- * A {@code QClassLoader} attempts to load all class in the {@code edu.upenn.cis121.hw*} package first, and delegates all other classes to the parent classloader.
- * to the parent classloader, but attempts to load all other classes by looking for the class
- * file using {@link Class#getResourceAsStream(String)}.
+ * A {@code QClassLoader} loads all classes in the {@code edu.upenn.cis121.hw*} packages itself,
+ * so that every {@code QClassLoader} has its own copy of them, and delegates all other classes
+ * to the parent classloader. The class files are looked up parent-first, like
+ * {@link Class#getResourceAsStream(String)} does: a class of the grader, such as a test class,
+ * always comes from the grader's class path, even if the submission contains a class of the
+ * same name. Only the classes that the grader does not have are read from the submission's
+ * {@link ClassPathRoot} or compiled classes, if given. Starter classes that are identical to the
+ * registered {@link StarterCode} resolve to its shared definitions instead.
+ * <p>
+ * The loader is parallel capable, so the test threads of a run load classes of different names
+ * concurrently, and it remembers the names that it could not find, which it then fails fast
+ * without looking them up again.
+ * <p>
+ * The loader may also track its dependencies: the content hash of every class it has resolved
+ * itself, and the names it could not find, for the {@link RegradeCache}. Classes that the parent
+ * defines from the submission's class path are tracked as well, since they are loaded without
+ * going through this loader.
  *
  * @author davix
  */
 public class QClassLoader extends ClassLoader {
+    /**
+     * The prefix of the names of the classes that a {@code QClassLoader} loads itself.
+     */
+    static final String PREFIX = "edu.upenn.cis121.hw";
+
+    static {
+        registerAsParallelCapable();
+    }
+
+    private final Map<String, byte[]> compiledClasses;
+    private final ClassPathRoot root;
+    private final StarterCode.SubmissionMatcher starterCode;
+    private final Set<String> notFound;
+    // the content hashes of the classes resolved so far, or null if not tracked
+    private final Map<String, String> dependencies;
+    // the content hashes of classes as they would be resolved, computed on demand
+    private final Map<String, String> contentHashes;
 
     public QClassLoader(ClassLoader parent) {
+        this(parent, Collections.emptyMap());
+    }
+
+    /**
+     * @param compiledClasses the bytes of classes compiled in memory, by binary name, which are
+     *                        defined by this class loader unless the parent has a class of the
+     *                        same name. Only classes in the {@code edu.upenn.cis121.hw*}
+     *                        packages are used.
+     */
+    public QClassLoader(ClassLoader parent, Map<String, byte[]> compiledClasses) {
+        this(parent, compiledClasses, null);
+    }
+
+    /**
+     * @param root the submission's classes, which are read directly from the (already opened)
+     *             root rather than through the parent's resources, or {@code null}
+     */
+    QClassLoader(ClassLoader parent, Map<String, byte[]> compiledClasses, ClassPathRoot root) {
+        this(parent, compiledClasses, root, null);
+    }
+
+    /**
+     * @param starterCode decides which of the submission's classes resolve to shared starter
+     *                    code, or {@code null}
+     */
+    QClassLoader(ClassLoader parent, Map<String, byte[]> compiledClasses, ClassPathRoot root,
+                 StarterCode.SubmissionMatcher starterCode) {
+        this(parent, compiledClasses, root, starterCode, false);
+    }
+
+    /**
+     * @param trackDependencies whether to record the content hash of every class the loader
+     *                          resolves itself, see {@link #getDependencies()}
+     */
+    QClassLoader(ClassLoader parent, Map<String, byte[]> compiledClasses, ClassPathRoot root,
+                 StarterCode.SubmissionMatcher starterCode, boolean trackDependencies) {
         super(parent);
+        this.compiledClasses = compiledClasses;
+        this.root = root;
+        this.starterCode = starterCode;
+        this.notFound = ConcurrentHashMap.newKeySet();
+        this.dependencies = trackDependencies ? new ConcurrentHashMap<>() : null;
+        this.contentHashes = new ConcurrentHashMap<>();
     }
 
     @Override
     protected Class<?> loadClass(String name, boolean resolve) throws ClassNotFoundException {
-        if (!name.startsWith("edu.upenn.cis121.hw")) {
+        if (starterCode != null) {
+            Class<?> shared;
+            try {
+                shared = starterCode.sharedClass(name);
+            } catch (IOException e) {
+                throw new LoadClassError(name, e);
+            }
+            if (shared != null) {
+                track(name);
+                return shared;
+            }
+        }
+        if (!name.startsWith(PREFIX)) {
             return super.loadClass(name, resolve);
         }
+        if (notFound.contains(name)) {
+            throw new KnownNotFoundException(name);
+        }
 
+        track(name);
         synchronized (getClassLoadingLock(name)) {
             Class<?> c = findLoadedClass(name);
             if (c != null) {
                 return c;
             }
 
-            InputStream r = getResourceAsStream(name.replace('.', '/').concat(".class"));
-            if (r == null) {
+            ByteBuffer data;
+            try {
+                data = findClassBytes(name, compiledClasses, root, getParent());
+            } catch (IOException e) {
+                throw new LoadClassError(name, e);
+            }
+            if (data == null) {
+                notFound.add(name);
                 throw new ClassNotFoundException(name);
             }
-            ByteArrayOutputStream baos = new ByteArrayOutputStream();
-            try (BufferedInputStream in = r instanceof BufferedInputStream ?
-                                          (BufferedInputStream) r : new BufferedInputStream(r)) {
-                int b;
-                while ((b = in.read()) != -1) {
-                    baos.write(b);
-                }
+            return defineClass(name, data, null);
+        }
+    }
+
+    private void track(String name) {
+        if (dependencies != null && !dependencies.containsKey(name)) {
+            try {
+                dependencies.put(name, contentHash(name));
             } catch (IOException e) {
                 throw new LoadClassError(name, e);
             }
+        }
+    }
+
+    /**
+     * Since a class is only loaded once, by the first test that uses it, these are not the
+     * dependencies of any one test but of all tests that ran with this loader, and with the
+     * other loaders of the parent. Taken once all of those tests have run, they do not depend on
+     * the order that the tests ran in.
+     *
+     * @return the content hashes of the classes this loader has resolved itself so far, or
+     * {@link RegradeCache#ABSENT} for those it could not find, and of all classes that the
+     * parent has defined from the submission's class path so far, if it is a
+     * {@link SubmissionClassLoader}, by name; empty if dependencies are not tracked
+     */
+    Map<String, String> getDependencies() {
+        if (dependencies == null) {
+            return Collections.emptyMap();
+        }
+        if (getParent() instanceof SubmissionClassLoader) {
+            // they link against each other without going through this loader
+            for (String name : ((SubmissionClassLoader) getParent()).getDefinedClasses()) {
+                track(name);
+            }
+        }
+        return new HashMap<>(dependencies);
+    }
+
+    /**
+     * @return the content hash of a class as this loader resolves it, or
+     * {@link RegradeCache#ABSENT} if it does not exist, without defining the class
+     * @throws IOException if the class file cannot be read
+     */
+    String contentHash(String name) throws IOException {
+        String hash = contentHashes.get(name);
+        if (hash == null) {
+            ByteBuffer data = findClassBytes(name, compiledClasses, root, getParent());
+            hash = data == null ? RegradeCache.ABSENT : RegradeCache.hash(data);
+            contentHashes.put(name, hash);
+        }
+        return hash;
+    }
+
+    /**
+     * Looks up a class file the way a {@code QClassLoader} does: among the resources of the
+     * grader's class loader first, then among the compiled classes and in the class path root,
+     * and then among the resources of the submission's class loader. If the parent is a
+     * {@link SubmissionClassLoader}, the grader's class loader is its parent; otherwise it is
+     * the parent itself.
+     *
+     * @param compiledClasses the classes compiled in memory, of which only those in the
+     *                        {@code edu.upenn.cis121.hw*} packages are used
+     * @return the class file, or {@code null} if not found
+     */
+    static ByteBuffer findClassBytes(String name, Map<String, byte[]> compiledClasses,
+                                     ClassPathRoot root, ClassLoader parent) throws IOException {
+        ClassLoader grader = parent instanceof SubmissionClassLoader ? parent.getParent() : parent;
+        ByteBuffer data = grader == null ? null : readResource(name, grader);
+        if (data != null) {
+            return data;
+        }
+        byte[] compiled = name.startsWith(PREFIX) ? compiledClasses.get(name) : null;
+        if (compiled != null) {
+            return ByteBuffer.wrap(compiled);
+        }
+        data = root == null ? null : root.findClass(name);
+        return data != null || grader == parent ? data : readResource(name, parent);
+    }
+
+    private static ByteBuffer readResource(String name, ClassLoader resources)
+            throws IOException {
+        InputStream r = resources.getResourceAsStream(ClassPathRoot.classFileName(name));
+        if (r == null) {
+            return null;
+        }
+        ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        try (InputStream in = r) {
+            byte[] buffer = new byte[8192];
+            int n;
+            while ((n = in.read(buffer)) != -1) {
+                baos.write(buffer, 0, n);
+            }
+        }
+        return ByteBuffer.wrap(baos.toByteArray());
+    }
+
+    /**
+     * Thrown for a name that is already known not to exist. Its stack trace is not filled in,
+     * which is the expensive part of throwing.
+     */
+    private static class KnownNotFoundException extends ClassNotFoundException {
+        private static final long serialVersionUID = 1L;
+
+        KnownNotFoundException(String name) {
+            super(name);
+        }
 
-            byte[] data = baos.toByteArray();
-            return defineClass(name, data, 0, data.length);
+        @Override
+        public synchronized Throwable fillInStackTrace() {
+            return this;
         }
     }
 }
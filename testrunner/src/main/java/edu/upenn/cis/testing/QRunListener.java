@@ -1,139 +1,253 @@
 package edu.upenn.cis.testing;
 
 import edu.upenn.cis.testing.annotation.Q;
+import edu.upenn.cis.testing.annotation.QIndex;
+import org.junit.Test;
 import org.junit.runner.Description;
 import org.junit.runner.Result;
 import org.junit.runner.notification.Failure;
 import org.junit.runner.notification.RunListener;
 
+import java.io.IOException;
 import java.io.PrintWriter;
-import java.lang.reflect.Method;
 import java.util.*;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ConcurrentLinkedQueue;
 import java.util.concurrent.ConcurrentMap;
-import java.util.stream.Collectors;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.atomic.LongAdder;
+
+import static edu.upenn.cis.testing.QRunner.logWarning;
 
 /**
  * A {@code QRunListener} aggregates statistics about test methods annotated with the
  * {@link edu.upenn.cis.testing.annotation.Q Q} class. This class is thread-safe.
+ * <p>
+ * Test events are handled without locks or allocation: every test method of a class gets an
+ * integer id from the class's {@link QIndex}, its state is kept in atomic arrays indexed by that
+ * id, and points are summed in fixed point, in millionths of a point, in one {@link LongAdder}
+ * per {@link Q.Type}, so that scores are exact regardless of the order tests finish in.
  */
 @RunListener.ThreadSafe
 public class QRunListener extends RunListener {
+    private static final long UNITS_PER_POINT = 1_000_000;
+    // the values of ClassScores#failed
+    private static final int FAILED = 1;
+    private static final int SKIPPED = 2;
+
     private final PrintWriter output;
+    private final PrintWriter summary;
     private final PrintWriter sql;
     private final QLogFormatter logFormatter;
     private final MissingQHandler missingQHandler;
     private final TestFailureConsumer testFailureConsumer;
+    private final OutputCapture outputCapture;
 
     // internal state
-    private final Object updatePointsLock = new Object();
-
-    private final ConcurrentMap<Class<?>, Map<Q.Type, Double>> pointsAvailableByTypePerClass;
-    private final ConcurrentMap<Class<?>, ConcurrentMap<Q.Type, Double>> pointsEarnedByTypePerClass;
+    private final ConcurrentMap<Class<?>, ClassScores> scoresPerClass;
 
-    // TODO: Doesn't work in obscure usage cases. For example, if there are overloaded test methods,
-    // like if we used @Theory, or if there are multiple runs of the same test cases.
-    private final ConcurrentMap<TestMethodId, QState> runningTests;
-
-    private final ConcurrentLinkedQueue<Failure> otherFailures;
+    // rendered when they occur, so that the exceptions need not be kept
+    private final ConcurrentLinkedQueue<String> otherFailures;
 
     public QRunListener(PrintWriter output, PrintWriter sql,
                         QLogFormatter logFormatter,
                         MissingQHandler missingQHandler,
                         TestFailureConsumer testFailureConsumer) {
+        this(output, sql, logFormatter, missingQHandler, testFailureConsumer, null);
+    }
+
+    /**
+     * @param outputCapture the capture of what tests print, whose output of a failed test is
+     *                      printed with its failure, or {@code null}
+     */
+    QRunListener(PrintWriter output, PrintWriter sql,
+                 QLogFormatter logFormatter,
+                 MissingQHandler missingQHandler,
+                 TestFailureConsumer testFailureConsumer,
+                 OutputCapture outputCapture) {
+        this(output, output, sql, logFormatter, missingQHandler, testFailureConsumer,
+                outputCapture);
+    }
+
+    /**
+     * @param summary where the summary is printed once the tests have run, after the output
+     *                has been flushed, if it must not share the output, whose writes may be
+     *                dropped
+     */
+    QRunListener(PrintWriter output, PrintWriter summary, PrintWriter sql,
+                 QLogFormatter logFormatter,
+                 MissingQHandler missingQHandler,
+                 TestFailureConsumer testFailureConsumer,
+                 OutputCapture outputCapture) {
         this.output = output;
+        this.summary = summary;
         this.sql = sql;
         this.logFormatter = logFormatter;
         this.missingQHandler = missingQHandler;
         this.testFailureConsumer = testFailureConsumer;
+        this.outputCapture = outputCapture;
         this.otherFailures = new ConcurrentLinkedQueue<>();
 
-        pointsAvailableByTypePerClass = new ConcurrentHashMap<>();
-        pointsEarnedByTypePerClass = new ConcurrentHashMap<>();
-        runningTests = new ConcurrentHashMap<>();
+        scoresPerClass = new ConcurrentHashMap<>();
     }
 
-    private static <T, K> Map<K, Double> aggregateNestedMapOfDoubles(
-            Map<T, ? extends Map<K, Double>> mapOfDoublesByType) {
-        return mapOfDoublesByType.entrySet().stream()
-                .map(Map.Entry::getValue).map(Map::entrySet).flatMap(Collection::stream)
-                .collect(Collectors.toMap(Map.Entry::getKey, Map.Entry::getValue, Double::sum));
-    }
-
-    private void updatePoints(Description description) {
-        Class<?> testClass = description.getTestClass();
-        pointsEarnedByTypePerClass.computeIfAbsent(testClass, c ->
-                new ConcurrentHashMap<>(Q.Type.values().length));
-
-        Map<Q.Type, Double> pointsByType = new HashMap<>(Q.Type.values().length);
-        for (Method method : testClass.getMethods()) {
-            Q q = method.getAnnotation(Q.class);
-            if (q == null) {
-                continue;
+    /**
+     * Reads the {@link QIndex} of a test class that the annotation processor generated, or
+     * builds it by reflection if the class was compiled without the processor. Indexes are only
+     * read through the runner's class loader, never a submission's, which could contain a
+     * forged one.
+     */
+    static QIndex index(Class<?> testClass) {
+        try {
+            QIndex index = QIndex.load(testClass, QRunListener.class.getClassLoader());
+            if (index != null) {
+                return index;
             }
-            pointsByType.merge(q.type(), q.points(), Double::sum);
+        } catch (IOException e) {
+            logWarning("Cannot read Q index of %s: %s", testClass.getName(), e);
         }
-        pointsAvailableByTypePerClass.computeIfAbsent(testClass, (c) -> pointsByType);
+        return QIndex.reflect(testClass, Test.class);
+    }
+
+    private ClassScores scores(Class<?> testClass) {
+        // get first: computeIfAbsent locks the bin even when the class is present
+        ClassScores scores = scoresPerClass.get(testClass);
+        return scores != null ? scores
+                : scoresPerClass.computeIfAbsent(testClass, c -> new ClassScores(c, index(c)));
     }
 
     @Override
-    public void testStarted(Description d) throws NoSuchMethodException {
+    public void testStarted(Description d) {
+        Class<?> c = d.getTestClass();
+        if (c == null) {
+            return;
+        }
+        ClassScores scores = scores(c);
+        if (!d.isTest()) {
+            return;
+        }
+
+        Integer id = scores.ids.get(d.getDisplayName());
+        String methodName = id == null ? d.getMethodName() : null;
         // TODO: JUnit seems to be breaking spec and calling this method multiple times.
-        synchronized (updatePointsLock) {
-            if (runningTests.containsKey(TestMethodId.create(d))) {
-                return;
-            }
-            updatePoints(d);
-            if (!d.isTest()) {
-                return;
+        if (id != null ? scores.running.get(id) != null
+                : methodName == null || scores.otherTests.containsKey(methodName)) {
+            return;
+        }
+        Q q = id != null ? scores.qs[id] : null;
+        if (q == null) {
+            if (missingQHandler != null) {
+                q = missingQHandler.annotationMissing(d);
             }
-
-            Class<?> c = d.getTestClass();
-            Method m = c.getMethod(d.getMethodName());
-
-            Q q = m.getAnnotation(Q.class);
             if (q == null) {
-                if (missingQHandler != null) {
-                    q = missingQHandler.annotationMissing(d);
-                }
+                // nothing to score; failures of this test are reported with the other failures
+                return;
             }
-            QState state = new QState(q);
-            runningTests.put(TestMethodId.create(d), state);
+        }
+        if (id != null) {
+            scores.running.compareAndSet(id, null, q);
+        } else {
+            scores.otherTests.putIfAbsent(methodName, new QState(q));
         }
     }
 
     @Override
     public void testFailure(Failure f) {
         // this method is called before testFinished
-        QState qState = runningTests.computeIfPresent(TestMethodId.create(f), (id, qState1) -> {
-            qState1.failed = true;
-            return qState1;
-        });
-        if (qState == null) {
+        Description d = f.getDescription();
+        ClassScores scores = d.getTestClass() == null ? null
+                : scoresPerClass.get(d.getTestClass());
+        Q q = null;
+        if (scores != null) {
+            Integer id = scores.ids.get(d.getDisplayName());
+            if (id != null) {
+                q = scores.running.get(id);
+                if (q != null) {
+                    scores.failed.set(id, FAILED);
+                }
+            } else if (d.getMethodName() != null) {
+                QState qState = scores.otherTests.get(d.getMethodName());
+                if (qState != null) {
+                    qState.failed = FAILED;
+                    q = qState.q;
+                }
+            }
+        }
+        if (q == null) {
             // this must be a failure that is NOT related to a test method
-            otherFailures.add(f);
+            otherFailures.add(String.format("%s%n%s", f, testFailureConsumer.trace(f)));
         } else {
-            testFailureConsumer.accept(qState.q, f, output);
+            testFailureConsumer.accept(q, f,
+                    outputCapture == null ? "" : outputCapture.getOutput(d), output);
+        }
+    }
+
+    @Override
+    public void testAssumptionFailure(Failure f) {
+        if (!(f.getException() instanceof PrerequisiteFailedException)) {
+            return;
+        }
+        Description d = f.getDescription();
+        ClassScores scores = d.getTestClass() == null ? null
+                : scoresPerClass.get(d.getTestClass());
+        if (scores == null) {
+            return;
+        }
+        Integer id = scores.ids.get(d.getDisplayName());
+        Q q = null;
+        if (id != null) {
+            q = scores.running.get(id);
+            if (q != null) {
+                scores.failed.set(id, SKIPPED);
+            }
+        } else if (d.getMethodName() != null) {
+            QState qState = scores.otherTests.get(d.getMethodName());
+            if (qState != null) {
+                qState.failed = SKIPPED;
+                q = qState.q;
+            }
+        }
+        if (q != null) {
+            output.printf("Skipped (incorrect = %f points): %s%n%s%n", q.incorrect(), q.desc(),
+                    f.getMessage());
         }
     }
 
     @Override
     public void testFinished(Description d) throws IllegalStateException {
-        QState qState = runningTests.remove(TestMethodId.create(d));
-        if (qState == null) {
+        ClassScores scores = d.getTestClass() == null ? null
+                : scoresPerClass.get(d.getTestClass());
+        if (scores == null) {
+            return;
+        }
+        Integer id = scores.ids.get(d.getDisplayName());
+        Q q;
+        int failed;
+        if (id != null) {
+            q = scores.running.getAndSet(id, null);
+            failed = q == null ? 0 : scores.failed.getAndSet(id, 0);
+        } else if (d.getMethodName() == null) {
+            return;
+        } else {
+            QState qState = scores.otherTests.remove(d.getMethodName());
+            q = qState == null ? null : qState.q;
+            failed = qState == null ? 0 : qState.failed;
+        }
+        if (q == null) {
             return;
             // TODO: JUnit seems to be breaking spec and calling this method multiple times.
 //            throw new IllegalStateException("not a running test: " + d);
         }
-        Q q = qState.q;
         TestStatus status;
-        if (qState.failed) {
+        if (failed == SKIPPED) {
+            status = TestStatus.SKIP;
+        } else if (failed == FAILED) {
             status = TestStatus.FAIL;
         } else {
             status = TestStatus.PASS;
         }
-        sql.printf(logFormatter.format(q, status));
+        sql.print(logFormatter.format(q, status));
 
         double delta;
         switch (status) {
@@ -141,65 +255,77 @@ public class QRunListener extends RunListener {
                 delta = q.points();
                 break;
             case FAIL:
+            case SKIP:
                 delta = q.incorrect();
                 break;
             default:
                 throw new IllegalStateException("unhandled enum case");
         }
-        ConcurrentMap<Q.Type, Double> earned = pointsEarnedByTypePerClass.get(d.getTestClass());
-        earned.merge(q.type(), delta, java.lang.Double::sum);
+        scores.add(q.type(), delta);
     }
 
     @Override
     public void testRunFinished(Result r) {
+        // the summary comes after whatever the tests printed
+        output.flush();
         if (!otherFailures.isEmpty()) {
-            output.println("Other failures:");
-            otherFailures.forEach(f -> output.printf("%s%n%s", f, f.getTrace()));
+            summary.println("Other failures:");
+            otherFailures.forEach(summary::print);
         }
+        testFailureConsumer.printSummary(summary);
 
         if (r.wasSuccessful()) {
-            output.println("All tests ran successfully!");
+            summary.println("All tests ran successfully!");
         } else {
             int total = r.getRunCount();
             // TODO: what do we do about ignored tests
-            output.printf("Ran %d total test(s) with %d failure(s).%n", total, r.getFailureCount());
+            summary.printf("Ran %d total test(s) with %d failure(s).%n", total,
+                    r.getFailureCount());
         }
 
-        printSummary(output);
-        output.flush();
+        printSummary(summary);
+        summary.flush();
     }
 
     // TODO: Refactor all printing to happen on listeners
     public void printSummary(PrintWriter output) {
-        Map<Q.Type, Double> totalEarnedPointsByType = computeTotalPointsEarnedByType();
-        Map<Q.Type, Double> totalAvailablePointsByType = computeTotalPointsAvailableByType();
-
-        totalEarnedPointsByType.forEach((type, pointsEarned) ->
-                output.printf("Total points (%s): %.1f out of %.1f.%n", type, pointsEarned,
-                        totalAvailablePointsByType.get(type)));
-
-        output.println("Points breakdown:");
-        pointsEarnedByTypePerClass.forEach((clazz, pointsEarnedByType) ->
-                pointsEarnedByType.forEach((type, points) ->
-                        output.printf("  %s (%s): %.1f out of %.1f.%n", clazz, type, points,
-                                pointsAvailableByTypePerClass.get(clazz).get(type))));
+        getPointsSummary().print(output);
     }
 
-    private Map<Q.Type, Double> computeTotalPointsAvailableByType() {
-        return aggregateNestedMapOfDoubles(pointsAvailableByTypePerClass);
+    /**
+     * @return the points earned so far, summed over all test classes
+     */
+    public Map<Q.Type, Double> getTotalPointsEarnedByType() {
+        return getPointsSummary().getTotalPointsEarnedByType();
     }
 
-    private Map<Q.Type, Double> computeTotalPointsEarnedByType() {
-        return aggregateNestedMapOfDoubles(pointsEarnedByTypePerClass);
+    PointsSummary getPointsSummary() {
+        PointsSummary summary = new PointsSummary();
+        scoresPerClass.forEach((clazz, scores) -> summary.addClass(clazz.toString(),
+                scores.getPointsEarnedByType(), scores.index.getTotalPointsByType()));
+        return summary;
     }
 
     public Set<Q> getCurrentQs() {
-        return Collections.unmodifiableSet(runningTests.values().stream().map(qState ->
-                qState.q).collect(Collectors.<Q>toSet()));
+        Set<Q> qs = new HashSet<>();
+        scoresPerClass.values().forEach(scores -> {
+            for (int id = 0; id < scores.running.length(); id++) {
+                Q q = scores.running.get(id);
+                if (q != null) {
+                    qs.add(q);
+                }
+            }
+            scores.otherTests.values().forEach(qState -> qs.add(qState.q));
+        });
+        return Collections.unmodifiableSet(qs);
     }
 
     public enum TestStatus {
-        PASS, FAIL
+        PASS, FAIL,
+        /**
+         * Scored as incorrect without running, because a prerequisite question failed.
+         */
+        SKIP
     }
 
     @FunctionalInterface
@@ -209,57 +335,92 @@ public class QRunListener extends RunListener {
          * test method.
          *
          * @param d the description of the test method being run
-         * @return a substitute value for {@link Q}
+         * @return a substitute value for {@link Q}, or {@code null} if the test method should
+         * not be scored
          */
         Q annotationMissing(Description d);
     }
 
-    private final static class TestMethodId {
-        final Class<?> clazz;
-        final String methodName;
-
-        TestMethodId(Class<?> clazz, String methodName) {
-            this.clazz = clazz;
-            this.methodName = methodName;
-        }
-
-        static TestMethodId create(Description description) {
-            return new TestMethodId(description.getTestClass(), description.getMethodName());
-        }
-
-        static TestMethodId create(Failure failure) {
-            return create(failure.getDescription());
-        }
-
-        @Override
-        public boolean equals(Object o) {
-            if (this == o) {
-                return true;
+    /**
+     * The state of the test methods of one test class, and the points they have earned.
+     */
+    private static final class ClassScores {
+        final QIndex index;
+        /**
+         * The test ids by the display name of the test's {@link Description}, which, unlike
+         * its method name, JUnit does not parse on every call.
+         */
+        final Map<String, Integer> ids;
+        /**
+         * The {@code Q}s from the index, by test id.
+         */
+        final Q[] qs;
+        /**
+         * The {@code Q}s of the running tests by test id, or {@code null} for a test that is
+         * not running.
+         */
+        final AtomicReferenceArray<Q> running;
+        /**
+         * Whether a running test has failed or been skipped, by test id.
+         */
+        final AtomicIntegerArray failed;
+        /**
+         * Tests that are not in the index, e.g. because their runner names them differently
+         * from their method.
+         */
+        final ConcurrentMap<String, QState> otherTests;
+        /**
+         * The earned points in millionths, by {@link Q.Type#ordinal()}.
+         */
+        final LongAdder[] earnedUnits;
+        /**
+         * Whether a test of a type has finished, by {@link Q.Type#ordinal()}.
+         */
+        final AtomicIntegerArray scored;
+
+        ClassScores(Class<?> testClass, QIndex index) {
+            this.index = index;
+            int numTests = index.getTestMethods().size();
+            this.ids = new HashMap<>(numTests * 2);
+            this.qs = new Q[numTests];
+            for (String method : index.getTestMethods()) {
+                qs[ids.size()] = index.getQ(method);
+                ids.put(Description.createTestDescription(testClass, method).getDisplayName(),
+                        ids.size());
             }
-            if (o == null || getClass() != o.getClass()) {
-                return false;
+            this.running = new AtomicReferenceArray<>(numTests);
+            this.failed = new AtomicIntegerArray(numTests);
+            this.otherTests = new ConcurrentHashMap<>();
+            int numTypes = Q.Type.values().length;
+            this.earnedUnits = new LongAdder[numTypes];
+            for (int i = 0; i < numTypes; i++) {
+                earnedUnits[i] = new LongAdder();
             }
-            TestMethodId that = (TestMethodId) o;
-            return Objects.equals(clazz, that.clazz) && Objects.equals(methodName, that.methodName);
+            this.scored = new AtomicIntegerArray(numTypes);
         }
 
-        @Override
-        public int hashCode() {
-            return Objects.hash(clazz, methodName);
+        void add(Q.Type type, double points) {
+            earnedUnits[type.ordinal()].add(Math.round(points * UNITS_PER_POINT));
+            if (scored.get(type.ordinal()) == 0) {
+                scored.set(type.ordinal(), 1);
+            }
         }
 
-        @Override
-        public String toString() {
-            return "TestMethodId{" +
-                    "clazz=" + clazz +
-                    ", methodName='" + methodName + '\'' +
-                    '}';
+        Map<Q.Type, Double> getPointsEarnedByType() {
+            Map<Q.Type, Double> earned = new EnumMap<>(Q.Type.class);
+            for (Q.Type type : Q.Type.values()) {
+                if (scored.get(type.ordinal()) != 0) {
+                    earned.put(type, (double) earnedUnits[type.ordinal()].sum()
+                            / UNITS_PER_POINT);
+                }
+            }
+            return earned;
         }
     }
 
     private static class QState {
         final Q q;
-        boolean failed;
+        volatile int failed;
 
         QState(Q q) {
             this.q = q;
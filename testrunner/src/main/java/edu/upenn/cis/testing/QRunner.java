@@ -1,19 +1,30 @@
 package edu.upenn.cis.testing;
 
 import org.apache.commons.cli.*;
-import org.junit.runner.JUnitCore;
+import org.junit.runner.Request;
+import org.junit.runner.Runner;
 
 import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.io.PrintWriter;
+import java.net.ServerSocket;
+import java.net.URL;
+import java.net.URLClassLoader;
 import java.nio.file.Files;
+import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.time.Duration;
 import java.time.Instant;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.EnumMap;
 import java.util.List;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Objects;
 import java.util.concurrent.TimeUnit;
+import java.util.function.Supplier;
 import java.util.stream.Collectors;
 
 /**
@@ -23,18 +34,30 @@ public class QRunner {
 
     private static final String DEFAULT_TIMEOUT_OPTION_VALUE = "30";
     private static final TimeUnit DEFAULT_TIMEOUT_TIMEUNIT = TimeUnit.SECONDS;
+    private static final String DEFAULT_QUEUE_CAPACITY_OPTION_VALUE = "64";
+    private static final String DEFAULT_CONCURRENCY_OPTION_VALUE = "1";
+    private static final String DEFAULT_PARALLEL_OPTION_VALUE = "classes";
+    private static final String DEFAULT_OUTPUT_BUFFER_OPTION_VALUE = "4096";
+    private static final String DEFAULT_OUTPUT_OVERFLOW_OPTION_VALUE = "block";
+    private static final String DEFAULT_TEST_OUTPUT_OPTION_VALUE = "failures";
 
-    private static void logError(String msg, Object... format) {
-        System.err.println(">>> [" + Instant.now().toString() + "] "
+    /**
+     * How much longer than the test timeout a worker may take per work item, to cover class
+     * loading and writing the scores, before it is killed or given up on.
+     */
+    private static final long WORKER_GRACE_MILLIS = 10_000;
+
+    static void logError(String msg, Object... format) {
+        OutputCapture.err().println(">>> [" + Instant.now().toString() + "] "
                 + String.format(msg, format));
     }
 
-    private static void logWarning(String msg, Object... format) {
+    static void logWarning(String msg, Object... format) {
         logError(msg, format);
     }
 
-    private static void log(String msg, Object... format) {
-        System.out.println(">>> [" + Instant.now().toString() + "] "
+    static void log(String msg, Object... format) {
+        OutputCapture.out().println(">>> [" + Instant.now().toString() + "] "
                 + String.format(msg, format));
     }
 
@@ -55,6 +78,34 @@ public class QRunner {
                 .desc("The maximum number of seconds for which the runner is allowed to execute")
                 .build();
 
+        Option classTimeoutOption = Option.builder()
+                .longOpt("class-timeout")
+                .hasArg()
+                .type(Number.class)
+                .argName("n")
+                .desc("The maximum number of seconds for which each test class is allowed to "
+                        + "execute. Tests still running when it is exceeded fail, and so do the "
+                        + "remaining tests of the class. Test methods are limited by the "
+                        + "timeoutMillis of their @Q. Defaults to no limit.")
+                .build();
+
+        Option cpuBudgetOption = Option.builder()
+                .longOpt("cpu-budget")
+                .desc("Charges the time limits of test classes and methods in CPU time of the "
+                        + "test and the threads it starts, instead of wall-clock time, and "
+                        + "scales them to the speed of this host, as measured by a short "
+                        + "benchmark at startup. The global --timeout stays in wall-clock time. "
+                        + "Cannot be used with --virtual-threads.")
+                .build();
+        Option cpuScaleOption = Option.builder()
+                .longOpt("cpu-scale")
+                .hasArg()
+                .type(Number.class)
+                .argName("factor")
+                .desc("With --cpu-budget, the factor by which CPU time limits are multiplied on "
+                        + "this host, instead of measuring it.")
+                .build();
+
         Option allFailuresOption = Option.builder()
                 .longOpt("all-failures")
                 .desc("Shows information about all failures.")
@@ -63,6 +114,233 @@ public class QRunner {
                 .longOpt("first-failure")
                 .desc("Shows information about only the first failure.")
                 .build();
+        Option maxTraceFramesOption = Option.builder()
+                .longOpt("max-trace-frames")
+                .hasArg()
+                .type(Number.class)
+                .argName("n")
+                .desc("The number of stack frames shown per exception of a failure, after "
+                        + "repeated cycles of frames are collapsed. Defaults to "
+                        + FailureRenderer.DEFAULT_MAX_FRAMES + ".")
+                .build();
+        Option maxTraceCharsOption = Option.builder()
+                .longOpt("max-trace-chars")
+                .hasArg()
+                .type(Number.class)
+                .argName("n")
+                .desc("The number of characters of failure traces shown per submission, after "
+                        + "which traces are omitted. Defaults to "
+                        + FailureRenderer.DEFAULT_MAX_CHARS + ".")
+                .build();
+        Option batchOption = Option.builder()
+                .longOpt("batch")
+                .hasArg()
+                .argName("manifest")
+                .desc("Grades every submission listed in the manifest in this JVM. Each line of "
+                        + "the manifest is a classpath root followed by a scores file.")
+                .build();
+
+        Option workersOption = Option.builder()
+                .longOpt("workers")
+                .hasArg()
+                .type(Number.class)
+                .argName("n")
+                .desc("With --batch, grades submissions in n pre-started worker JVMs, killing "
+                        + "and replacing any worker that exceeds its time budget.")
+                .build();
+        Option workerOption = Option.builder()
+                .longOpt("worker")
+                .hasArg()
+                .argName("port:id")
+                .desc("Runs as a worker JVM of a --workers supervisor. Not for direct use.")
+                .build();
+
+        Option coordinatorOption = Option.builder()
+                .longOpt("coordinator")
+                .hasArg()
+                .type(Number.class)
+                .argName("port")
+                .desc("With --batch, hands out one work item per submission and test class to "
+                        + "workers that connect to the given TCP port.")
+                .build();
+        Option connectOption = Option.builder()
+                .longOpt("connect")
+                .hasArg()
+                .argName("host:port")
+                .desc("Runs as a worker that pulls work items from a --coordinator.")
+                .build();
+
+        Option shardOption = Option.builder()
+                .longOpt("shard")
+                .hasArg()
+                .argName("i/n")
+                .desc("Runs only shard i of n of the test methods, and writes a points summary "
+                        + "next to each scores file for --merge.")
+                .build();
+        Option durationsOption = Option.builder()
+                .longOpt("durations")
+                .hasArg()
+                .argName("file")
+                .desc("Records test method and class durations in the file, and runs the "
+                        + "longest tests first by the durations already in it, or the "
+                        + "questions with the most points first if the tests are predicted to "
+                        + "exceed the timeout. With --shard, shards are balanced by the "
+                        + "durations already in the file instead of by points.")
+                .build();
+        Option cacheOption = Option.builder()
+                .longOpt("cache")
+                .hasArg()
+                .argName("dir")
+                .desc("Caches the outcome of every test method against every submission in the "
+                        + "directory, and replays it instead of running the test again as long "
+                        + "as none of the classes the test loaded have changed.")
+                .build();
+        Option resumeOption = Option.builder()
+                .longOpt("resume")
+                .desc("Resumes grading that was interrupted: tests whose outcomes are already in "
+                        + "the journal written next to a scores file are not run again. The "
+                        + "scores and summary are the same as those of an uninterrupted run. "
+                        + "The journal is deleted once the scores file is complete.")
+                .build();
+        Option planOption = Option.builder()
+                .longOpt("plan")
+                .desc("Prints the order in which the tests would run with --durations, their "
+                        + "predicted durations and the predicted time to run them all, without "
+                        + "running them.")
+                .build();
+        Option mergeOption = Option.builder()
+                .longOpt("merge")
+                .desc("Merges the scores files and points summaries of all shards into the "
+                        + "first scores file and prints the combined summary.")
+                .build();
+
+        Option watchOption = Option.builder()
+                .longOpt("watch")
+                .hasArg()
+                .argName("dir")
+                .desc("Keeps running and grades every jar or zip file dropped into the "
+                        + "directory.")
+                .build();
+        Option resultsOption = Option.builder()
+                .longOpt("results")
+                .hasArg()
+                .argName("dir")
+                .desc("With --watch, the directory to write scores files to. Defaults to the "
+                        + "results subdirectory of the watched directory.")
+                .build();
+        Option queueCapacityOption = Option.builder()
+                .longOpt("queue-capacity")
+                .hasArg()
+                .type(Number.class)
+                .argName("n")
+                .desc("With --watch, the number of submissions that may wait to be graded "
+                        + "before no more are claimed. Defaults to "
+                        + DEFAULT_QUEUE_CAPACITY_OPTION_VALUE + ".")
+                .build();
+        Option concurrencyOption = Option.builder()
+                .longOpt("concurrency")
+                .hasArg()
+                .type(Number.class)
+                .argName("n")
+                .desc("With --watch, the number of submissions graded at the same time. "
+                        + "Defaults to " + DEFAULT_CONCURRENCY_OPTION_VALUE
+                        + ", or to the number of --workers.")
+                .build();
+        Option compileOption = Option.builder()
+                .longOpt("compile")
+                .desc("Treats each submission as Java sources, a directory or a jar or zip "
+                        + "file of .java files, and compiles them in memory before grading. "
+                        + "Requires a JDK, and --batch, --watch, --worker or --connect.")
+                .build();
+        Option starterOption = Option.builder()
+                .longOpt("starter")
+                .hasArg()
+                .argName("dir|jar")
+                .desc("The compiled starter code handed out to all students. Classes that a "
+                        + "submission contains unchanged are defined once and shared by all "
+                        + "submissions. Requires --batch, --watch, --worker or --connect.")
+                .build();
+        Option preloadOption = Option.builder()
+                .longOpt("preload")
+                .desc("Loads and verifies all classes of a submission in parallel before its "
+                        + "tests start, so that this does not count towards the timeout. "
+                        + "Classes that fail to load are reported and the submission is marked "
+                        + "LOAD_ERROR.")
+                .build();
+        Option parallelOption = Option.builder()
+                .longOpt("parallel")
+                .hasArg()
+                .argName("classes|methods|both")
+                .desc("Whether the test classes, the test methods of each class, or both run in "
+                        + "parallel, on a pool of one thread per processor. Test methods that "
+                        + "share static state must not run in parallel. Defaults to classes.")
+                .build();
+        Option outputBufferOption = Option.builder()
+                .longOpt("output-buffer")
+                .hasArg()
+                .type(Number.class)
+                .argName("writes")
+                .desc("The number of writes of scores and test failures that are buffered while "
+                        + "a single thread prints them, so that tests do not wait for the "
+                        + "output. Defaults to " + DEFAULT_OUTPUT_BUFFER_OPTION_VALUE + ".")
+                .build();
+        Option outputOverflowOption = Option.builder()
+                .longOpt("output-overflow")
+                .hasArg()
+                .argName("block|drop")
+                .desc("Whether tests wait for room when the output buffer is full, or their "
+                        + "failure output is dropped, with a note of how much. Scores and "
+                        + "summaries are never dropped. Defaults to "
+                        + DEFAULT_OUTPUT_OVERFLOW_OPTION_VALUE + ".")
+                .build();
+        Option testOutputOption = Option.builder()
+                .longOpt("test-output")
+                .hasArg()
+                .argName("failures|discard|inherit")
+                .desc("Whether what tests print to the standard streams is captured per test and "
+                        + "printed with the failures of the tests that printed it, captured and "
+                        + "discarded, or printed directly. Defaults to "
+                        + DEFAULT_TEST_OUTPUT_OPTION_VALUE + ".")
+                .build();
+        Option maxTestOutputOption = Option.builder()
+                .longOpt("max-test-output")
+                .hasArg()
+                .type(Number.class)
+                .argName("bytes")
+                .desc("The number of bytes of captured output kept per test; the rest is "
+                        + "truncated. Defaults to " + OutputCapture.DEFAULT_MAX_BYTES + ".")
+                .build();
+        Option virtualThreadsOption = Option.builder()
+                .longOpt("virtual-threads")
+                .desc("Runs every test class or method that runs in parallel on a virtual thread "
+                        + "of its own instead of on a pool of platform threads, so that tests "
+                        + "that block do not each hold an OS thread. Virtual threads that block "
+                        + "while pinned to an OS thread are reported. Requires Java 21 or later; "
+                        + "ignored with a warning on older JVMs. Cannot be used with "
+                        + "--cpu-budget.")
+                .build();
+        Option cdsTrainOption = Option.builder()
+                .longOpt("cds-train")
+                .hasArg()
+                .argName("archive")
+                .desc("Runs the rest of the command line as a representative grading job, "
+                        + "records the classes it loads and dumps them into a class data "
+                        + "sharing archive, then runs the job again with the archive and logs "
+                        + "both times. Workers use the archive of their coordinator, or "
+                        + "<jar>.jsa next to the runner jar. Requires Java 11 or later.")
+                .build();
+        Option slotsOption = Option.builder()
+                .longOpt("slots")
+                .hasArg()
+                .type(Number.class)
+                .argName("n")
+                .desc("With --watch and without --workers, the number of test methods that run "
+                        + "at the same time across all submissions being graded. Interactive "
+                        + "submissions get the next free slot first, and submissions of the "
+                        + "same priority share the slots fairly. Defaults to the number of "
+                        + "processors.")
+                .build();
+
         OptionGroup failureDisplayOptionGroup = new OptionGroup();
         failureDisplayOptionGroup.addOption(firstFailureOption);
         failureDisplayOptionGroup.addOption(allFailuresOption);
@@ -70,6 +348,37 @@ public class QRunner {
 
 //        options.addOption(classpathOption);
         options.addOption(timeoutOption);
+        options.addOption(classTimeoutOption);
+        options.addOption(cpuBudgetOption);
+        options.addOption(cpuScaleOption);
+        options.addOption(maxTraceFramesOption);
+        options.addOption(maxTraceCharsOption);
+        options.addOption(batchOption);
+        options.addOption(workersOption);
+        options.addOption(workerOption);
+        options.addOption(coordinatorOption);
+        options.addOption(connectOption);
+        options.addOption(shardOption);
+        options.addOption(durationsOption);
+        options.addOption(cacheOption);
+        options.addOption(resumeOption);
+        options.addOption(planOption);
+        options.addOption(mergeOption);
+        options.addOption(watchOption);
+        options.addOption(resultsOption);
+        options.addOption(queueCapacityOption);
+        options.addOption(concurrencyOption);
+        options.addOption(slotsOption);
+        options.addOption(compileOption);
+        options.addOption(starterOption);
+        options.addOption(preloadOption);
+        options.addOption(parallelOption);
+        options.addOption(virtualThreadsOption);
+        options.addOption(outputBufferOption);
+        options.addOption(outputOverflowOption);
+        options.addOption(testOutputOption);
+        options.addOption(maxTestOutputOption);
+        options.addOption(cdsTrainOption);
         options.addOptionGroup(failureDisplayOptionGroup);
 
         CommandLineParser parser = new DefaultParser();
@@ -83,14 +392,48 @@ public class QRunner {
         }
 
         List<String> argList = cmd.getArgList();
-        if (argList.size() < 2) {
+        String batchManifest = cmd.getOptionValue(batchOption.getLongOpt());
+        String workerAddress = cmd.getOptionValue(workerOption.getLongOpt());
+        String coordinatorAddress = cmd.getOptionValue(connectOption.getLongOpt());
+        String watchDirectory = cmd.getOptionValue(watchOption.getLongOpt());
+        boolean testsOnly = batchManifest != null || workerAddress != null
+                || watchDirectory != null;
+        if (coordinatorAddress == null
+                && (testsOnly ? argList.isEmpty() : argList.size() < 2)) {
             System.err.printf("Usage: %s [scoresfile] [test1] [tests]...%n",
                     QRunner.class.getCanonicalName());
+            System.err.printf("       %s --batch [manifest] [--workers n | --coordinator port] "
+                    + "[test1] [tests]...%n", QRunner.class.getCanonicalName());
+            System.err.printf("       %s --watch [dir] [--workers n] [test1] [tests]...%n",
+                    QRunner.class.getCanonicalName());
+            System.err.printf("       %s --connect [host:port]%n",
+                    QRunner.class.getCanonicalName());
+            System.err.printf("       %s --merge [scoresfile] [shardscoresfile]...%n",
+                    QRunner.class.getCanonicalName());
             System.exit(1);
+            return;
         }
 
-        String scoresFilename = argList.get(0);
-        List<String> testClassNameList = argList.subList(1, argList.size());
+        if (cmd.hasOption(mergeOption.getLongOpt())) {
+            runMerge(argList);
+            return;
+        }
+
+        String cdsArchive = cmd.getOptionValue(cdsTrainOption.getLongOpt());
+        if (cdsArchive != null) {
+            // as parsed, so that no spelling of the option reaches the training run
+            List<String> jobArgs = toArgs(cmd, cdsTrainOption);
+            try {
+                ClassDataSharing.train(Paths.get(cdsArchive), jobArgs);
+            } catch (IOException | IllegalStateException e) {
+                logError("Cannot create class data sharing archive: " + e.getMessage());
+                System.exit(1);
+            } catch (InterruptedException e) {
+                logError("Interrupted while creating class data sharing archive");
+                System.exit(1);
+            }
+            return;
+        }
 
 //        String[] classpathStrings = classpathOption.getValues();
 //        URL[] classpathUrls;
@@ -109,106 +452,575 @@ public class QRunner {
 //        }
 
         long timeout;
+        long classTimeout;
         try {
-            timeout = Long.parseLong(timeoutOption.getValue(DEFAULT_TIMEOUT_OPTION_VALUE));
+            timeout = Long.parseLong(cmd.getOptionValue(timeoutOption.getLongOpt(),
+                    DEFAULT_TIMEOUT_OPTION_VALUE));
+            classTimeout = Long.parseLong(cmd.getOptionValue(classTimeoutOption.getLongOpt(),
+                    "0"));
         } catch (NumberFormatException e) {
             System.err.println("Invalid timeout: " + e);
             System.exit(1);
             return;
         }
 
-        TestFailureConsumer testFailureConsumer;
+        String maxTraceFramesSpec = cmd.getOptionValue(maxTraceFramesOption.getLongOpt(),
+                String.valueOf(FailureRenderer.DEFAULT_MAX_FRAMES));
+        String maxTraceCharsSpec = cmd.getOptionValue(maxTraceCharsOption.getLongOpt(),
+                String.valueOf(FailureRenderer.DEFAULT_MAX_CHARS));
+        int maxTraceFrames;
+        long maxTraceChars;
+        try {
+            maxTraceFrames = Integer.parseInt(maxTraceFramesSpec);
+            maxTraceChars = Long.parseLong(maxTraceCharsSpec);
+        } catch (NumberFormatException e) {
+            logError("Invalid trace limit: " + e);
+            System.exit(1);
+            return;
+        }
+
+        Supplier<TestFailureConsumer> testFailureConsumerFactory;
         Option selectedFailureOption = options.getOption(failureDisplayOptionGroup.getSelected());
+        // one renderer per submission, which the traces of the submission count towards
         if (selectedFailureOption == firstFailureOption) {
-            testFailureConsumer = new FirstTestFailureConsumer();
+            testFailureConsumerFactory = () -> new FirstTestFailureConsumer(
+                    new FailureRenderer(maxTraceFrames, maxTraceChars));
         } else if (selectedFailureOption == allFailuresOption) {
-            testFailureConsumer = new AllTestFailuresConsumer();
+            testFailureConsumerFactory = () -> new AllTestFailuresConsumer(
+                    new FailureRenderer(maxTraceFrames, maxTraceChars));
         } else {
             logWarning("Unmatched test failure printing strategy; "
                     + "defaulting to printing only the first test failure.");
-            testFailureConsumer = new FirstTestFailureConsumer();
+            testFailureConsumerFactory = () -> new FirstTestFailureConsumer(
+                    new FailureRenderer(maxTraceFrames, maxTraceChars));
         }
 
+        String durationsFile = cmd.getOptionValue(durationsOption.getLongOpt());
+        String shardSpec = cmd.getOptionValue(shardOption.getLongOpt());
+        TestDurations durations = null;
+        Shard shard = null;
+        try {
+            if (durationsFile != null) {
+                durations = TestDurations.read(Paths.get(durationsFile));
+            }
+            if (shardSpec != null) {
+                // balance by a snapshot, so that recording does not change later partitions
+                shard = Shard.parse(shardSpec, durationsFile == null ? new TestDurations()
+                        : TestDurations.read(Paths.get(durationsFile)));
+            }
+        } catch (IOException | IllegalArgumentException e) {
+            logError("Invalid shard or durations: " + e);
+            System.exit(1);
+            return;
+        }
 
-        try (PrintWriter scoresWriter = new PrintWriter(Files.newBufferedWriter(
-                Paths.get(scoresFilename)))) {
-
-            QRunListener qrl = new QRunListener(
-                    new PrintWriter(System.out),
-                    scoresWriter,
-                    new SqlFormatter(),
-                    d -> {
-                        System.err.printf("Missing annotation for %s in class %s%n",
-                                d.getMethodName(), d.getClassName());
-                        System.exit(1);
-                        return null;
-                    },
-                    testFailureConsumer);
+        SubmissionCompiler compiler = null;
+        if (cmd.hasOption(compileOption.getLongOpt())) {
+            if (!testsOnly && coordinatorAddress == null) {
+                // a single submission is on the class path, which has no sources to compile
+                logError("--compile requires --batch, --watch, --worker or --connect");
+                System.exit(1);
+                return;
+            }
+            try {
+                compiler = new SubmissionCompiler();
+            } catch (IllegalStateException e) {
+                logError(e.getMessage());
+                System.exit(1);
+                return;
+            }
+        }
 
-            ArrayList<Class<?>> testClasses = new ArrayList<>();
-            List<String> notFound = new ArrayList<>();
-            for (String testClassName : testClassNameList) {
-                QClassLoader qClassLoader = new QClassLoader(// classpathUrls,
+        String starterBundle = cmd.getOptionValue(starterOption.getLongOpt());
+        StarterCode starterCode = null;
+        if (starterBundle != null) {
+            if (!testsOnly && coordinatorAddress == null) {
+                // a single submission is on the class path, which has no classes to match
+                logError("--starter requires --batch, --watch, --worker or --connect");
+                System.exit(1);
+                return;
+            }
+            try {
+                starterCode = StarterCode.load(Paths.get(starterBundle),
                         Thread.currentThread().getContextClassLoader());
+            } catch (IOException e) {
+                logError("Cannot read starter code %s: %s", starterBundle, e);
+                System.exit(1);
+                return;
+            }
+            log("%d starter class(es) may be shared", starterCode.getNumShareableClasses());
+        }
+
+        ClassPreloader preloader = cmd.hasOption(preloadOption.getLongOpt())
+                ? new ClassPreloader(Runtime.getRuntime().availableProcessors()) : null;
+
+        String cacheSpec = cmd.getOptionValue(cacheOption.getLongOpt());
+        Path cacheDirectory = cacheSpec == null ? null : Paths.get(cacheSpec);
+        boolean resume = cmd.hasOption(resumeOption.getLongOpt());
+
+        String parallelSpec = cmd.getOptionValue(parallelOption.getLongOpt(),
+                DEFAULT_PARALLEL_OPTION_VALUE);
+        GlobalTimeoutParallelComputer.Mode parallelMode;
+        try {
+            parallelMode = GlobalTimeoutParallelComputer.Mode.parse(parallelSpec);
+        } catch (IllegalArgumentException e) {
+            logError("Invalid parallel mode: " + parallelSpec);
+            System.exit(1);
+            return;
+        }
+        boolean virtualThreads = cmd.hasOption(virtualThreadsOption.getLongOpt());
+        if (virtualThreads && (cmd.hasOption(cpuBudgetOption.getLongOpt())
+                || cmd.hasOption(cpuScaleOption.getLongOpt()))) {
+            // the JVM does not measure the CPU time of virtual threads
+            logError("--cpu-budget and --cpu-scale cannot be used with --virtual-threads");
+            System.exit(1);
+            return;
+        }
+        if (virtualThreads && !VirtualThreads.isSupported()) {
+            logWarning("Virtual threads require Java 21 or later, this is %s; using platform "
+                    + "threads", System.getProperty("java.specification.version"));
+            virtualThreads = false;
+        } else if (virtualThreads) {
+            VirtualThreads.reportPinning();
+        }
+
+        double cpuScale = 0;
+        if (cmd.hasOption(cpuBudgetOption.getLongOpt())) {
+            String cpuScaleSpec = cmd.getOptionValue(cpuScaleOption.getLongOpt());
+            if (!CpuClock.isSupported()) {
+                logWarning("This JVM cannot measure thread CPU time; budgeting wall-clock time");
+            } else if (cpuScaleSpec != null) {
                 try {
-                    Class<?> testClass = qClassLoader.loadClass(testClassName);
-                    testClasses.add(testClass);
-                } catch (ClassNotFoundException e) {
-                    e.printStackTrace();
-                    notFound.add(testClassName);
+                    cpuScale = Double.parseDouble(cpuScaleSpec);
+                } catch (NumberFormatException e) {
+                    logError("Invalid CPU scale: " + cpuScaleSpec);
+                    System.exit(1);
+                    return;
                 }
+            } else {
+                cpuScale = CpuClock.calibrate();
+                log("CPU time limits are scaled by %.2f for this host", cpuScale);
             }
+        }
+
+        if (cmd.hasOption(planOption.getLongOpt())) {
+            if (durations == null) {
+                logError("--plan requires --durations");
+                System.exit(1);
+                return;
+            }
+            runPlan(durations, testsOnly ? argList : argList.subList(1, argList.size()),
+                    batchManifest, parallelMode, DEFAULT_TIMEOUT_TIMEUNIT.toMillis(timeout));
+            return;
+        }
 
-            if (!notFound.isEmpty()) {
-                logError("Cannot find tests: %s", notFound.stream()
-                        .collect(Collectors.joining(" ")));
+        String outputBufferSpec = cmd.getOptionValue(outputBufferOption.getLongOpt(),
+                DEFAULT_OUTPUT_BUFFER_OPTION_VALUE);
+        String outputOverflowSpec = cmd.getOptionValue(outputOverflowOption.getLongOpt(),
+                DEFAULT_OUTPUT_OVERFLOW_OPTION_VALUE);
+        OutputPipeline outputPipeline;
+        try {
+            int outputBuffer = Integer.parseInt(outputBufferSpec);
+            if (outputBuffer < 1) {
+                throw new IllegalArgumentException("not positive: " + outputBuffer);
+            }
+            outputPipeline = new OutputPipeline(outputBuffer, OutputPipeline.Overflow.valueOf(
+                    outputOverflowSpec.toUpperCase(Locale.ROOT)));
+        } catch (IllegalArgumentException e) {
+            logError("Invalid output buffer or overflow policy: " + e);
+            System.exit(1);
+            return;
+        }
+        String testOutputSpec = cmd.getOptionValue(testOutputOption.getLongOpt(),
+                DEFAULT_TEST_OUTPUT_OPTION_VALUE);
+        String maxTestOutputSpec = cmd.getOptionValue(maxTestOutputOption.getLongOpt(),
+                String.valueOf(OutputCapture.DEFAULT_MAX_BYTES));
+        OutputCapture.Policy testOutputPolicy;
+        int maxTestOutput;
+        try {
+            testOutputPolicy = OutputCapture.Policy.valueOf(
+                    testOutputSpec.toUpperCase(Locale.ROOT));
+            maxTestOutput = Integer.parseInt(maxTestOutputSpec);
+            if (maxTestOutput < 0) {
+                throw new IllegalArgumentException("negative: " + maxTestOutput);
             }
-            if (testClasses.isEmpty()) {
-                log("No tests to run!");
+        } catch (IllegalArgumentException e) {
+            logError("Invalid test output policy or limit: " + e);
+            System.exit(1);
+            return;
+        }
+        GradingOptions gradingOptions = GradingOptions.builder(timeout, DEFAULT_TIMEOUT_TIMEUNIT,
+                testFailureConsumerFactory)
+                .shard(shard)
+                .durations(durations)
+                .compiler(compiler)
+                .starterCode(starterCode)
+                .preloader(preloader)
+                .parallelMode(parallelMode)
+                .virtualThreads(virtualThreads)
+                .classTimeout(classTimeout)
+                .cpuScale(cpuScale)
+                .cacheDirectory(cacheDirectory)
+                .resume(resume)
+                .outputPipeline(outputPipeline)
+                .testOutputPolicy(testOutputPolicy)
+                .maxTestOutput(maxTestOutput)
+                .build();
+
+        if (workerAddress != null) {
+            // the durations order the tests, but only the pool records them
+            SubmissionGrader grader = new SubmissionGrader(argList, gradingOptions);
+            String[] portAndId = workerAddress.split(":", 2);
+            try {
+                GradingWorker.run(Integer.parseInt(portAndId[0]), portAndId[1], grader);
+            } catch (IOException | RuntimeException e) {
+                logError("Worker %s failed: %s", workerAddress, e);
+                System.exit(1);
+            }
+            outputPipeline.close();
+            return;
+        }
+
+        if (coordinatorAddress != null) {
+            SubmissionGrader grader = new SubmissionGrader(Collections.emptyList(),
+                    gradingOptions);
+            int colon = coordinatorAddress.lastIndexOf(':');
+            try {
+                new DistributedWorker(grader).run(coordinatorAddress.substring(0, colon),
+                        Integer.parseInt(coordinatorAddress.substring(colon + 1)));
+            } catch (IOException | RuntimeException | InterruptedException e) {
+                logError("Lost coordinator %s: %s", coordinatorAddress, e);
+                System.exit(1);
+            }
+            outputPipeline.close();
+            return;
+        }
+
+        // for --workers
+        String numWorkers = cmd.getOptionValue(workersOption.getLongOpt());
+        long budgetMillis = DEFAULT_TIMEOUT_TIMEUNIT.toMillis(timeout) + WORKER_GRACE_MILLIS;
+        List<String> workerArgs = new ArrayList<>();
+        workerArgs.add("--" + timeoutOption.getLongOpt());
+        workerArgs.add(Long.toString(timeout));
+        if (classTimeout > 0) {
+            workerArgs.add("--" + classTimeoutOption.getLongOpt());
+            workerArgs.add(Long.toString(classTimeout));
+        }
+        if (cpuScale > 0) {
+            // workers on this host need not measure it again
+            workerArgs.add("--" + cpuBudgetOption.getLongOpt());
+            workerArgs.add("--" + cpuScaleOption.getLongOpt());
+            workerArgs.add(Double.toString(cpuScale));
+        }
+        if (selectedFailureOption == allFailuresOption) {
+            workerArgs.add("--" + allFailuresOption.getLongOpt());
+        }
+        workerArgs.add("--" + maxTraceFramesOption.getLongOpt());
+        workerArgs.add(maxTraceFramesSpec);
+        workerArgs.add("--" + maxTraceCharsOption.getLongOpt());
+        workerArgs.add(maxTraceCharsSpec);
+        if (shardSpec != null) {
+            workerArgs.add("--" + shardOption.getLongOpt());
+            workerArgs.add(shardSpec);
+        }
+        if (durationsFile != null) {
+            workerArgs.add("--" + durationsOption.getLongOpt());
+            workerArgs.add(Paths.get(durationsFile).toAbsolutePath().toString());
+        }
+        if (compiler != null) {
+            workerArgs.add("--" + compileOption.getLongOpt());
+        }
+        if (starterBundle != null) {
+            workerArgs.add("--" + starterOption.getLongOpt());
+            workerArgs.add(starterBundle);
+        }
+        if (preloader != null) {
+            workerArgs.add("--" + preloadOption.getLongOpt());
+        }
+        if (cacheDirectory != null) {
+            workerArgs.add("--" + cacheOption.getLongOpt());
+            workerArgs.add(cacheDirectory.toAbsolutePath().toString());
+        }
+        if (resume) {
+            workerArgs.add("--" + resumeOption.getLongOpt());
+        }
+        workerArgs.add("--" + outputBufferOption.getLongOpt());
+        workerArgs.add(outputBufferSpec);
+        workerArgs.add("--" + outputOverflowOption.getLongOpt());
+        workerArgs.add(outputOverflowSpec);
+        workerArgs.add("--" + testOutputOption.getLongOpt());
+        workerArgs.add(testOutputSpec);
+        workerArgs.add("--" + maxTestOutputOption.getLongOpt());
+        workerArgs.add(maxTestOutputSpec);
+        workerArgs.add("--" + parallelOption.getLongOpt());
+        workerArgs.add(parallelSpec);
+        if (virtualThreads) {
+            workerArgs.add("--" + virtualThreadsOption.getLongOpt());
+        }
+        workerArgs.addAll(argList);
+
+        if (watchDirectory != null) {
+            Path spool = Paths.get(watchDirectory);
+            Path results = Paths.get(cmd.getOptionValue(resultsOption.getLongOpt(),
+                    spool.resolve("results").toString()));
+            WorkerPool pool = null;
+            try {
+                int queueCapacity = Integer.parseInt(cmd.getOptionValue(
+                        queueCapacityOption.getLongOpt(), DEFAULT_QUEUE_CAPACITY_OPTION_VALUE));
+                int concurrency;
+                SpoolWatcher.Grader grader;
+                if (numWorkers != null) {
+                    pool = new WorkerPool(Integer.parseInt(numWorkers), workerArgs, budgetMillis);
+                    concurrency = Integer.parseInt(numWorkers);
+                    grader = pool::grade;
+                } else {
+                    int slots = Integer.parseInt(cmd.getOptionValue(slotsOption.getLongOpt(),
+                            String.valueOf(Runtime.getRuntime().availableProcessors())));
+                    SubmissionGrader submissionGrader = new SubmissionGrader(argList,
+                            gradingOptions.toBuilder()
+                                    .scheduler(new FairShareScheduler(slots))
+                                    .build());
+                    concurrency = Integer.parseInt(cmd.getOptionValue(
+                            concurrencyOption.getLongOpt(), DEFAULT_CONCURRENCY_OPTION_VALUE));
+                    grader = submission -> {
+                        PrintWriter output = new PrintWriter(System.out);
+                        try {
+                            return submissionGrader.grade(submission, output);
+                        } finally {
+                            output.flush();
+                        }
+                    };
+                }
+                new SpoolWatcher(spool, results, queueCapacity, concurrency, grader).run();
+            } catch (IOException | IllegalArgumentException e) {
+                logError("Cannot watch %s: %s", spool, e);
+                System.exit(1);
+            } catch (InterruptedException e) {
+                logError("Interrupted while watching %s", spool);
+                System.exit(1);
+            } finally {
+                if (pool != null) {
+                    try {
+                        pool.close();
+                    } catch (IOException e) {
+                        logError("Cannot stop worker pool: " + e);
+                    }
+                }
+                outputPipeline.close();
+            }
+            return;
+        }
+
+        if (batchManifest != null) {
+            List<Submission> submissions;
+            try {
+                submissions = Submission.readManifest(Paths.get(batchManifest));
+            } catch (IOException e) {
+                logError("Cannot read batch manifest: " + e);
+                System.exit(1);
+                return;
+            }
+
+            String coordinatorPort = cmd.getOptionValue(coordinatorOption.getLongOpt());
+            Instant batchStart = Instant.now();
+            List<GradeResult> results;
+            if (coordinatorPort != null) {
+                if (shard != null) {
+                    // the remote workers grade with their own options
+                    logError("--shard cannot be used with --coordinator; pass it to the "
+                            + "workers that --connect instead");
+                    System.exit(1);
+                    return;
+                }
+                Coordinator coordinator = new Coordinator(submissions, argList, budgetMillis);
+                try (ServerSocket serverSocket = new ServerSocket(
+                        Integer.parseInt(coordinatorPort))) {
+                    results = coordinator.run(serverSocket);
+                } catch (IOException | NumberFormatException e) {
+                    logError("Cannot run coordinator: " + e);
+                    System.exit(1);
+                    return;
+                } catch (InterruptedException e) {
+                    logError("Interrupted while grading batch");
+                    System.exit(1);
+                    return;
+                }
+            } else if (numWorkers == null) {
+                SubmissionGrader grader = new SubmissionGrader(argList, gradingOptions);
+                results = runBatch(grader, submissions);
             } else {
-                log("Starting tests: %s", testClasses.stream()
-                        .map(Class::getCanonicalName).collect(Collectors.joining(" ")));
-            }
-
-            JUnitCore core = new JUnitCore();
-            core.addListener(qrl);
-            ExecutorService executorService =
-                    Executors.newCachedThreadPool(r -> {
-                        Thread t = new Thread(r);
-                        t.setDaemon(true);
-                        t.setUncaughtExceptionHandler((t1, e) -> e.printStackTrace());
-                        return t;
-                    });
-            GlobalTimeoutParallelComputer computer = GlobalTimeoutParallelComputer.classes(
-                    executorService, timeout, DEFAULT_TIMEOUT_TIMEUNIT);
-            core.run(computer, testClasses.toArray(new Class<?>[testClasses.size()]));
-
-            log("Cleaning up...");
-            executorService.shutdown();
-            if (!executorService.isTerminated()) {  // sanity
-                log("Cleaning up harder...");
-                executorService.shutdownNow();
-            }
-
-            if (computer.hasTimedOut()) {
-                logError("Exceeded timeout of %s %s. Running test(s): %s",
-                        timeout, DEFAULT_TIMEOUT_TIMEUNIT, qrl.getCurrentQs());
-                PrintWriter pw = new PrintWriter(System.out);
-                qrl.printSummary(pw);
-                pw.flush();
-            }
-            log("Executed of %s out of %s total test class files.",
-                    computer.getNumCompletedClasses(),
-                    computer.getNumTotalClasses());
+                try (WorkerPool pool = new WorkerPool(Integer.parseInt(numWorkers), workerArgs,
+                        budgetMillis)) {
+                    results = pool.gradeAll(submissions);
+                } catch (IOException | NumberFormatException e) {
+                    logError("Cannot run worker pool: " + e);
+                    System.exit(1);
+                    return;
+                } catch (InterruptedException e) {
+                    logError("Interrupted while grading batch");
+                    System.exit(1);
+                    return;
+                }
+            }
+            outputPipeline.close();
+            printBatchSummary(results, batchStart);
+            writeDurations(durations, durationsFile);
+            return;
+        }
 
+        String scoresFilename = argList.get(0);
+        List<String> testClassNameList = argList.subList(1, argList.size());
+        SubmissionGrader grader = new SubmissionGrader(testClassNameList, gradingOptions);
+        Submission submission = new Submission(scoresFilename, null, Paths.get(scoresFilename));
+        PrintWriter output = new PrintWriter(System.out);
+        GradeResult result;
+        try {
+            result = grader.grade(submission, output);
         } catch (FileNotFoundException e) {
             logError("Cannot create output file: " + e);
             System.exit(1);
+            return;
         } catch (IOException e) {
             logError(e.toString());
             System.exit(1);
+            return;
+        }
+        output.flush();
+        outputPipeline.close();
+        writeDurations(durations, durationsFile);
+        if (result.getStatus() == GradeResult.Status.MISSING_Q) {
+            System.exit(1);
+        }
+    }
+
+    /**
+     * Grades the submissions one after another in this JVM. A submission that cannot be graded
+     * is recorded as a failure and does not stop the batch.
+     */
+    private static List<GradeResult> runBatch(SubmissionGrader grader,
+                                              List<Submission> submissions) {
+        List<GradeResult> results = new ArrayList<>(submissions.size());
+        for (Submission submission : submissions) {
+            log("Grading submission %s (%d of %d)", submission, results.size() + 1,
+                    submissions.size());
+            Instant start = Instant.now();
+            PrintWriter output = new PrintWriter(System.out);
+            GradeResult result;
+            try {
+                result = grader.grade(submission, output);
+            } catch (IOException e) {
+                logError("Cannot grade submission %s: %s", submission, e);
+                result = GradeResult.failed(submission, GradeResult.Status.ERROR,
+                        Duration.between(start, Instant.now()));
+            }
+            output.flush();
+            log("%s", result);
+            results.add(result);
+        }
+        return results;
+    }
+
+    private static void printBatchSummary(List<GradeResult> results, Instant batchStart) {
+        Map<GradeResult.Status, Long> countsByStatus = results.stream().collect(
+                Collectors.groupingBy(GradeResult::getStatus, () ->
+                        new EnumMap<>(GradeResult.Status.class), Collectors.counting()));
+        log("Graded %d submission(s) in %d ms: %s", results.size(),
+                Duration.between(batchStart, Instant.now()).toMillis(), countsByStatus);
+        results.stream()
+                .filter(r -> r.getStatus() != GradeResult.Status.COMPLETED)
+                .forEach(r -> logError("Submission %s: %s", r.getSubmission(), r.getStatus()));
+    }
+
+    /**
+     * Prints the order in which the test classes would run. The test classes are loaded from the
+     * first submission of the batch manifest, if there is one.
+     */
+    private static void runPlan(TestDurations durations, List<String> testClassNames,
+                                String batchManifest, GlobalTimeoutParallelComputer.Mode mode,
+                                long budgetMillis) {
+        ClassLoader parent = Thread.currentThread().getContextClassLoader();
+        try (URLClassLoader classLoader = new URLClassLoader(batchManifest == null
+                ? new URL[0]
+                : Submission.readManifest(Paths.get(batchManifest)).get(0).getClasspathUrls(),
+                parent)) {
+            List<Class<?>> testClasses = new ArrayList<>();
+            for (String testClassName : testClassNames) {
+                testClasses.add(Class.forName(testClassName, false, classLoader));
+            }
+            Runner runner = Request.classes(
+                    testClasses.toArray(new Class<?>[testClasses.size()])).getRunner();
+            new TestSchedule(durations, mode, Runtime.getRuntime().availableProcessors())
+                    .printPlan(runner, budgetMillis, new PrintWriter(System.out));
+        } catch (IOException | ClassNotFoundException | IndexOutOfBoundsException e) {
+            logError("Cannot plan tests: " + e);
+            System.exit(1);
+        }
+    }
+
+    /**
+     * @return the arguments of a parsed command line, with every option spelled out in full,
+     * except for the given option
+     */
+    private static List<String> toArgs(CommandLine cmd, Option excluded) {
+        List<String> args = new ArrayList<>();
+        for (Option option : cmd.getOptions()) {
+            // parsed options are copies
+            if (Objects.equals(option.getOpt(), excluded.getOpt())
+                    && Objects.equals(option.getLongOpt(), excluded.getLongOpt())) {
+                continue;
+            }
+            args.add(option.getLongOpt() != null ? "--" + option.getLongOpt()
+                    : "-" + option.getOpt());
+            String[] values = option.getValues();
+            if (values != null) {
+                args.addAll(Arrays.asList(values));
+            }
         }
+        args.addAll(cmd.getArgList());
+        return args;
+    }
 
+    private static void writeDurations(TestDurations durations, String durationsFile) {
+        if (durations == null) {
+            return;
+        }
+        try {
+            durations.write(Paths.get(durationsFile));
+        } catch (IOException e) {
+            logError("Cannot write durations: " + e);
+        }
+    }
+
+    /**
+     * Concatenates the scores files of all shards into the first scores file, merges their
+     * points summaries, and prints the summary a single unsharded run would have printed.
+     */
+    private static void runMerge(List<String> argList) {
+        if (argList.size() < 2) {
+            System.err.printf("Usage: %s --merge [scoresfile] [shardscoresfile]...%n",
+                    QRunner.class.getCanonicalName());
+            System.exit(1);
+            return;
+        }
+        Path mergedScoresFile = Paths.get(argList.get(0));
+        List<String> rows = new ArrayList<>();
+        PointsSummary summary = new PointsSummary();
+        try {
+            for (String shardScoresFilename : argList.subList(1, argList.size())) {
+                Path shardScoresFile = Paths.get(shardScoresFilename);
+                rows.addAll(Files.readAllLines(shardScoresFile));
+                summary.merge(PointsSummary.read(PointsSummary.summaryFile(shardScoresFile)));
+            }
+            Files.write(mergedScoresFile, rows);
+            summary.write(PointsSummary.summaryFile(mergedScoresFile));
+        } catch (IOException e) {
+            logError("Cannot merge shards: " + e);
+            System.exit(1);
+            return;
+        }
+        PrintWriter output = new PrintWriter(System.out);
+        summary.print(output);
+        output.flush();
     }
 
 }
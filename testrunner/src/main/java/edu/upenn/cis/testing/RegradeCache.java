@@ -0,0 +1,286 @@
+package edu.upenn.cis.testing;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * A {@code RegradeCache} keeps the outcome of every test method that ran against a submission
+ * in a directory on disk, with the content hashes of the classes that the {@link QClassLoader}
+ * of its test class loaded, or failed to find, while any test of the class ran, and of the
+ * classes that the submission's class loader defined while any test class ran. That is more
+ * than the test itself may depend on, since a class is only loaded once however many tests use
+ * it, but it does not depend on the order that the tests ran in. When the submission is graded
+ * again, a test whose classes all still hash the same, including the test class itself, is not
+ * run; its outcome is replayed instead, with the same failure message and trace, so that it is
+ * scored and reported exactly as before.
+ * <p>
+ * There is one file per submission and test class, in a directory named by the hash of the
+ * submission's key. Only classes are tracked, so tests must not depend on other files of the
+ * submission. Tests that exceed a time limit are not cached.
+ *
+ * @author davix
+ */
+class RegradeCache {
+    private static final String TEST = "test";
+    private static final String DEPENDENCY = "dep";
+    private static final String MESSAGE = "message";
+    private static final String TRACE = "trace";
+    private static final String PASSED = "pass";
+    private static final String FAILED = "fail";
+
+    /**
+     * The hash of a class that does not exist.
+     */
+    static final String ABSENT = "-";
+
+    private final Path directory;
+
+    /**
+     * @param cacheDirectory the directory of the cache of all submissions
+     * @param submissionKey  identifies the submission across runs, e.g. the path of its classes
+     */
+    RegradeCache(Path cacheDirectory, String submissionKey) {
+        this.directory = cacheDirectory.resolve(hash(ByteBuffer.wrap(
+                submissionKey.getBytes(StandardCharsets.UTF_8))));
+    }
+
+    /**
+     * @return the hex SHA-256 of the remaining bytes of a buffer, which are consumed
+     */
+    static String hash(ByteBuffer bytes) {
+        MessageDigest sha256;
+        try {
+            sha256 = MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new AssertionError("SHA-256 is always available", e);
+        }
+        sha256.update(bytes);
+        StringBuilder sb = new StringBuilder();
+        for (byte b : sha256.digest()) {
+            sb.append(String.format("%02x", b));
+        }
+        return sb.toString();
+    }
+
+    private Path file(String testClassName) {
+        return directory.resolve(testClassName + ".cache");
+    }
+
+    /**
+     * @return the cached outcomes of the test methods of a class, by method name
+     * @throws IOException if the cache file exists but cannot be read or is malformed
+     */
+    Map<String, Outcome> load(String testClassName) throws IOException {
+        Path file = file(testClassName);
+        if (!Files.exists(file)) {
+            return Collections.emptyMap();
+        }
+        Map<String, Outcome> outcomes = new HashMap<>();
+        String method = null;
+        boolean passed = false;
+        Map<String, String> dependencies = null;
+        String message = null;
+        String trace = null;
+        for (String line : Files.readAllLines(file, StandardCharsets.UTF_8)) {
+            String[] fields = line.split("\t", -1);
+            try {
+                switch (fields[0]) {
+                    case TEST:
+                        if (method != null) {
+                            outcomes.put(method,
+                                    new Outcome(dependencies, passed, message, trace));
+                        }
+                        method = fields[1];
+                        passed = PASSED.equals(fields[2]);
+                        dependencies = new TreeMap<>();
+                        message = null;
+                        trace = null;
+                        break;
+                    case DEPENDENCY:
+                        dependencies.put(fields[1], fields[2]);
+                        break;
+                    case MESSAGE:
+                        message = unescape(fields[1]);
+                        break;
+                    case TRACE:
+                        trace = unescape(fields[1]);
+                        break;
+                    default:
+                        throw new IOException(file + ": unknown record: " + line);
+                }
+            } catch (ArrayIndexOutOfBoundsException | NullPointerException e) {
+                throw new IOException(file + ": malformed record: " + line, e);
+            }
+        }
+        if (method != null) {
+            outcomes.put(method, new Outcome(dependencies, passed, message, trace));
+        }
+        return outcomes;
+    }
+
+    /**
+     * Replaces the cached outcomes of the test methods of a class.
+     */
+    void store(String testClassName, Map<String, Outcome> outcomes) throws IOException {
+        Files.createDirectories(directory);
+        Path file = file(testClassName);
+        Path temp = Files.createTempFile(directory, testClassName, ".tmp");
+        try (PrintWriter out = new PrintWriter(new BufferedWriter(
+                Files.newBufferedWriter(temp, StandardCharsets.UTF_8)))) {
+            new TreeMap<>(outcomes).forEach((method, outcome) -> {
+                out.printf("%s\t%s\t%s\n", TEST, method, outcome.passed ? PASSED : FAILED);
+                outcome.dependencies.forEach((className, hash) ->
+                        out.printf("%s\t%s\t%s\n", DEPENDENCY, className, hash));
+                if (outcome.message != null) {
+                    out.printf("%s\t%s\n", MESSAGE, escape(outcome.message));
+                }
+                if (outcome.trace != null) {
+                    out.printf("%s\t%s\n", TRACE, escape(outcome.trace));
+                }
+            });
+        }
+        // readers never see a partly written file
+        Files.move(temp, file, StandardCopyOption.REPLACE_EXISTING,
+                StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    static String escape(String s) {
+        return s.replace("\\", "\\\\").replace("\t", "\\t").replace("\n", "\\n")
+                .replace("\r", "\\r");
+    }
+
+    static String unescape(String s) {
+        StringBuilder sb = new StringBuilder(s.length());
+        for (int i = 0; i < s.length(); i++) {
+            char c = s.charAt(i);
+            if (c == '\\' && i + 1 < s.length()) {
+                c = s.charAt(++i);
+                if (c == 't') {
+                    c = '\t';
+                } else if (c == 'n') {
+                    c = '\n';
+                } else if (c == 'r') {
+                    c = '\r';
+                }
+            }
+            sb.append(c);
+        }
+        return sb.toString();
+    }
+
+    /**
+     * The outcome of a test method, with the classes it depended on. This class is immutable.
+     */
+    static final class Outcome {
+        private final Map<String, String> dependencies;
+        private final boolean passed;
+        private final String message;
+        private final String trace;
+
+        /**
+         * @param dependencies the content hashes of the classes, by name, or {@link #ABSENT}
+         * @param failure      the failure of the test, or {@code null} if it passed
+         */
+        Outcome(Map<String, String> dependencies, Throwable failure) {
+            this(dependencies, failure == null, failure == null ? null : failure.getMessage(),
+                    failure == null ? null : trace(failure));
+        }
+
+        /**
+         * @param passed  whether the test passed
+         * @param message the message of the failure, or {@code null}
+         * @param trace   the printed stack trace of the failure, or {@code null}
+         */
+        Outcome(Map<String, String> dependencies, boolean passed, String message,
+                String trace) {
+            this.dependencies = Collections.unmodifiableMap(new TreeMap<>(dependencies));
+            this.passed = passed;
+            this.message = message;
+            this.trace = trace;
+        }
+
+        private static String trace(Throwable t) {
+            StringWriter sw = new StringWriter();
+            t.printStackTrace(new PrintWriter(sw));
+            return sw.toString();
+        }
+
+        /**
+         * @return whether every class the test depended on still hashes the same in the given
+         * class loader
+         */
+        boolean isCurrent(QClassLoader classLoader) throws IOException {
+            for (Map.Entry<String, String> dependency : dependencies.entrySet()) {
+                if (!dependency.getValue().equals(classLoader.contentHash(dependency.getKey()))) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        /**
+         * @return the content hashes of the classes, by name, or {@link #ABSENT}
+         */
+        Map<String, String> getDependencies() {
+            return dependencies;
+        }
+
+        /**
+         * @return this outcome, depending on the given classes instead
+         */
+        Outcome withDependencies(Map<String, String> dependencies) {
+            return new Outcome(dependencies, passed, message, trace);
+        }
+
+        /**
+         * @return the failure to replay, or {@code null} if the test passed
+         */
+        Throwable getFailure() {
+            return passed ? null : new CachedFailure(message, trace);
+        }
+    }
+
+    /**
+     * A failure replayed from the cache, which prints the message and trace of the original.
+     */
+    private static final class CachedFailure extends Throwable {
+        private static final long serialVersionUID = 1L;
+
+        private final String trace;
+
+        CachedFailure(String message, String trace) {
+            super(message, null, false, false);
+            this.trace = trace == null ? "" : trace;
+        }
+
+        @Override
+        public String toString() {
+            String firstLine = trace.split("\\R", 2)[0];
+            return firstLine.isEmpty() ? super.toString() : firstLine;
+        }
+
+        @Override
+        public void printStackTrace(PrintWriter s) {
+            s.print(trace);
+        }
+
+        @Override
+        public void printStackTrace(PrintStream s) {
+            s.print(trace);
+        }
+    }
+}
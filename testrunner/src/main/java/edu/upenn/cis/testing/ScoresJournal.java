@@ -0,0 +1,245 @@
+package edu.upenn.cis.testing;
+
+import org.junit.runner.Description;
+import org.junit.runner.notification.Failure;
+import org.junit.runner.notification.RunListener;
+import org.junit.runners.model.TestTimedOutException;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BooleanSupplier;
+
+import static edu.upenn.cis.testing.QRunner.logWarning;
+
+/**
+ * A {@code ScoresJournal} is an append-only log, kept next to a scores file, of the outcome of
+ * every test method as it finishes. The scores file itself is only complete once grading ends,
+ * so if the grader is killed or the global timeout fires, the journal is what survives: when the
+ * submission is graded again with {@code resume}, the journaled tests are not run, and their
+ * outcomes are replayed instead, so that the scores file and summary come out the same as those
+ * of a run that was never interrupted. Once a run has written its whole scores file, its journal
+ * is {@linkplain #delete() deleted}, so only the journal of an interrupted run is ever resumed.
+ * <p>
+ * Every record is written as soon as its test finishes, so it survives the grader dying, and
+ * forced to disk at most every {@value #FORCE_BATCH} records or {@value #FORCE_INTERVAL_MILLIS}
+ * ms, so it also survives the host crashing without syncing after every test. A record torn by
+ * a crash is dropped when the journal is reopened. Tests that are skipped, that exceed a time
+ * limit, or that finish after the global timeout are not journaled, so they run again.
+ *
+ * @author davix
+ */
+class ScoresJournal implements Closeable {
+    private static final String SUFFIX = ".journal";
+    private static final String PASSED = "pass";
+    private static final String FAILED = "fail";
+    // a null message, which no escaped message can equal
+    private static final String NULL = "\\N";
+    private static final int FORCE_BATCH = 64;
+    private static final long FORCE_INTERVAL_MILLIS = 100;
+    private static final long FORCE_INTERVAL_NANOS =
+            TimeUnit.MILLISECONDS.toNanos(FORCE_INTERVAL_MILLIS);
+
+    private final Path file;
+    private final FileChannel channel;
+    private final Map<String, RegradeCache.Outcome> journaled;
+    private int unforced;  // guarded by this
+    private long lastForceNanos;  // guarded by this
+    private boolean broken;  // guarded by this
+
+    private ScoresJournal(Path file, FileChannel channel,
+                          Map<String, RegradeCache.Outcome> journaled) {
+        this.file = file;
+        this.channel = channel;
+        this.journaled = Collections.unmodifiableMap(journaled);
+        this.lastForceNanos = System.nanoTime();
+    }
+
+    /**
+     * @return the journal file of a scores file
+     */
+    static Path journalFile(Path scoresFile) {
+        return Paths.get(scoresFile + SUFFIX);
+    }
+
+    /**
+     * Opens the journal of a scores file for appending.
+     *
+     * @param resume whether to keep the outcomes already in the journal, or start an empty one
+     * @throws IOException if the journal cannot be read or opened
+     */
+    static ScoresJournal open(Path scoresFile, boolean resume) throws IOException {
+        Path file = journalFile(scoresFile);
+        Map<String, RegradeCache.Outcome> journaled = new HashMap<>();
+        long length = 0;
+        if (resume && Files.exists(file)) {
+            byte[] bytes = Files.readAllBytes(file);
+            int start = 0;
+            for (int i = 0; i < bytes.length; i++) {
+                if (bytes[i] == '\n') {
+                    read(new String(bytes, start, i - start, StandardCharsets.UTF_8), journaled);
+                    start = i + 1;
+                }
+            }
+            // anything after the last newline is a record torn by a crash
+            length = start;
+        }
+        FileChannel channel = FileChannel.open(file, StandardOpenOption.CREATE,
+                StandardOpenOption.WRITE);
+        try {
+            channel.truncate(length);
+            channel.position(length);
+        } catch (IOException e) {
+            channel.close();
+            throw e;
+        }
+        return new ScoresJournal(file, channel, journaled);
+    }
+
+    private static void read(String line, Map<String, RegradeCache.Outcome> journaled)
+            throws IOException {
+        String[] fields = line.split("\t", -1);
+        if (fields.length == 2 && PASSED.equals(fields[0])) {
+            journaled.put(fields[1], new RegradeCache.Outcome(Collections.emptyMap(), true,
+                    null, null));
+        } else if (fields.length == 4 && FAILED.equals(fields[0])) {
+            journaled.put(fields[1], new RegradeCache.Outcome(Collections.emptyMap(), false,
+                    NULL.equals(fields[2]) ? null : RegradeCache.unescape(fields[2]),
+                    RegradeCache.unescape(fields[3])));
+        } else {
+            throw new IOException("Malformed journal record: " + line);
+        }
+    }
+
+    /**
+     * @return the outcomes in the journal when it was opened, by {@code class#method}. They
+     * always replay: a journal belongs to one run, not to one version of the submission.
+     */
+    Map<String, RegradeCache.Outcome> getJournaled() {
+        return journaled;
+    }
+
+    /**
+     * @param stopped whether the global timeout has fired, after which tests are interrupted
+     *                and their outcomes are not journaled
+     * @return a listener that journals the outcome of every test method it sees finish, other
+     * than those already in the journal
+     */
+    RunListener recorder(BooleanSupplier stopped) {
+        return new Recorder(stopped);
+    }
+
+    private synchronized void append(String record) {
+        if (broken) {
+            return;
+        }
+        try {
+            ByteBuffer bytes = ByteBuffer.wrap((record + "\n").getBytes(StandardCharsets.UTF_8));
+            while (bytes.hasRemaining()) {
+                channel.write(bytes);
+            }
+            unforced++;
+            long now = System.nanoTime();
+            if (unforced >= FORCE_BATCH || now - lastForceNanos >= FORCE_INTERVAL_NANOS) {
+                force(now);
+            }
+        } catch (IOException e) {
+            // grading goes on; only resuming is affected
+            logWarning("Cannot write journal %s: %s", file, e);
+            broken = true;
+        }
+    }
+
+    private void force(long now) throws IOException {
+        channel.force(false);
+        unforced = 0;
+        lastForceNanos = now;
+    }
+
+    /**
+     * Deletes the journal file, once the run it belongs to has written its whole scores file and
+     * the journal is closed, so that the next run with {@code resume} runs every test again.
+     *
+     * @throws IOException if the journal file cannot be deleted
+     */
+    void delete() throws IOException {
+        Files.deleteIfExists(file);
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        try {
+            if (!broken && unforced > 0) {
+                force(System.nanoTime());
+            }
+        } finally {
+            channel.close();
+        }
+    }
+
+    @RunListener.ThreadSafe
+    private class Recorder extends RunListener {
+        private final BooleanSupplier stopped;
+        private final Map<String, Failure> failures = new ConcurrentHashMap<>();
+        private final Set<String> skipped = ConcurrentHashMap.newKeySet();
+
+        Recorder(BooleanSupplier stopped) {
+            this.stopped = stopped;
+        }
+
+        @Override
+        public void testFailure(Failure f) {
+            if (f.getDescription().getMethodName() != null) {
+                failures.putIfAbsent(TestDurations.id(f.getDescription()), f);
+            }
+        }
+
+        @Override
+        public void testAssumptionFailure(Failure f) {
+            if (f.getDescription().getMethodName() != null) {
+                skipped.add(TestDurations.id(f.getDescription()));
+            }
+        }
+
+        @Override
+        public void testFinished(Description d) {
+            if (d.getMethodName() == null) {
+                return;
+            }
+            String id = TestDurations.id(d);
+            Failure failure = failures.remove(id);
+            if (skipped.remove(id) || journaled.containsKey(id) || stopped.getAsBoolean()
+                    || failure != null && isTimeLimit(failure.getException())) {
+                return;
+            }
+            if (failure == null) {
+                append(PASSED + "\t" + id);
+            } else {
+                String message = failure.getException().getMessage();
+                append(FAILED + "\t" + id + "\t"
+                        + (message == null ? NULL : RegradeCache.escape(message)) + "\t"
+                        + RegradeCache.escape(failure.getTrace()));
+            }
+        }
+
+        /**
+         * @return whether a test failed with it because it was cut short by a time limit
+         */
+        private boolean isTimeLimit(Throwable t) {
+            return t instanceof TestTimedOutException
+                    || t instanceof GlobalTimeoutParallelComputer.ClassBudgetExceededException;
+        }
+    }
+}
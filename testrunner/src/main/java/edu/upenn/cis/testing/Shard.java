@@ -0,0 +1,138 @@
+package edu.upenn.cis.testing;
+
+import edu.upenn.cis.testing.annotation.Q;
+import edu.upenn.cis.testing.annotation.QIndex;
+import org.junit.runner.Description;
+import org.junit.runner.manipulation.Filter;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * A {@code Shard} selects shard {@code i} of {@code n} of the test methods of a set of test
+ * classes. Every shard expands the same test classes into the same sorted list of test methods
+ * and partitions it with the same longest-first greedy algorithm, so the shards are disjoint,
+ * together cover every test method, and do not depend on which machine computes them. Methods
+ * are weighted by their recorded durations if there are any, and by their {@link Q#points()}
+ * otherwise.
+ *
+ * @author davix
+ */
+public class Shard {
+    private final int index;
+    private final int count;
+    private final TestDurations durations;
+
+    /**
+     * @param index     the 1-based index of this shard
+     * @param count     the total number of shards
+     * @param durations the recorded durations to balance by, or empty to balance by points
+     */
+    public Shard(int index, int count, TestDurations durations) {
+        if (count < 1 || index < 1 || index > count) {
+            throw new IllegalArgumentException("Invalid shard " + index + "/" + count);
+        }
+        this.index = index;
+        this.count = count;
+        this.durations = durations;
+    }
+
+    /**
+     * Parses a shard in the form {@code i/n}.
+     */
+    public static Shard parse(String spec, TestDurations durations) {
+        String[] fields = spec.split("/");
+        if (fields.length != 2) {
+            throw new IllegalArgumentException("Expected a shard of the form i/n: " + spec);
+        }
+        return new Shard(Integer.parseInt(fields[0]), Integer.parseInt(fields[1]), durations);
+    }
+
+    /**
+     * Partitions the test methods of the given classes into all {@code n} shards.
+     *
+     * @return the {@code class#method} ids of every shard, in shard order
+     */
+    List<Set<String>> partition(List<Class<?>> testClasses) {
+        List<WeightedMethod> methods = new ArrayList<>();
+        for (Class<?> testClass : testClasses) {
+            QIndex index = QRunListener.index(testClass);
+            for (String method : index.getTestMethods()) {
+                String id = TestDurations.id(testClass.getName(), method);
+                methods.add(new WeightedMethod(id, weight(id, index.getQ(method))));
+            }
+        }
+        methods.sort(Comparator.comparingDouble((WeightedMethod m) -> m.weight).reversed()
+                .thenComparing(m -> m.id));
+
+        List<Set<String>> shards = new ArrayList<>(count);
+        double[] loads = new double[count];
+        for (int i = 0; i < count; i++) {
+            shards.add(new HashSet<>());
+        }
+        for (WeightedMethod method : methods) {
+            int lightest = 0;
+            for (int i = 1; i < count; i++) {
+                if (loads[i] < loads[lightest] || (loads[i] == loads[lightest]
+                        && shards.get(i).size() < shards.get(lightest).size())) {
+                    lightest = i;
+                }
+            }
+            shards.get(lightest).add(method.id);
+            loads[lightest] += method.weight;
+        }
+        return shards;
+    }
+
+    /**
+     * @return a filter that runs only the test methods of this shard
+     */
+    public Filter filter(List<Class<?>> testClasses) {
+        Set<String> ids = partition(testClasses).get(index - 1);
+        return new Filter() {
+            @Override
+            public boolean shouldRun(Description d) {
+                if (d.isTest()) {
+                    return ids.contains(TestDurations.id(d));
+                }
+                for (Description child : d.getChildren()) {
+                    if (shouldRun(child)) {
+                        return true;
+                    }
+                }
+                return false;
+            }
+
+            @Override
+            public String describe() {
+                return "shard " + Shard.this;
+            }
+        };
+    }
+
+    private double weight(String id, Q q) {
+        if (!durations.isEmpty()) {
+            Long millis = durations.get(id);
+            return millis != null ? millis : durations.mean();
+        }
+        return q == null ? 0 : q.points();
+    }
+
+    @Override
+    public String toString() {
+        return index + "/" + count;
+    }
+
+    private static class WeightedMethod {
+        final String id;
+        final double weight;
+
+        WeightedMethod(String id, double weight) {
+            this.id = id;
+            this.weight = weight;
+        }
+    }
+}
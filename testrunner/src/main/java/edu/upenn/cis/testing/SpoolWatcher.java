@@ -0,0 +1,267 @@
+package edu.upenn.cis.testing;
+
+import java.io.IOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.PriorityBlockingQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static edu.upenn.cis.testing.QRunner.log;
+import static edu.upenn.cis.testing.QRunner.logError;
+
+/**
+ * A {@code SpoolWatcher} grades submissions that are dropped into a spool directory. Every
+ * regular, non-hidden file in the spool directory is a submission (a jar or zip of its
+ * classes); files should be moved into the directory atomically once they are complete.
+ * <p>
+ * A single watcher thread claims a submission by moving it into the {@code .claimed}
+ * subdirectory and puts it on a bounded intake queue, from which a fixed number of threads
+ * grade. When the queue is full the watcher stops claiming files, so submissions wait in the
+ * spool directory, where they remain visible, instead of piling up in memory. The scores of a
+ * submission named {@code name.jar} are written to {@code name.scores} in the results
+ * directory.
+ * <p>
+ * Submissions dropped into the {@code interactive} subdirectory instead are
+ * {@linkplain FairShareScheduler.Priority#INTERACTIVE interactive}: they are claimed and graded
+ * before any waiting bulk submissions, and, when the grader schedules test methods with a
+ * {@link FairShareScheduler}, take precedence over bulk submissions being graded.
+ *
+ * @author davix
+ */
+public class SpoolWatcher {
+    static final String CLAIMED_DIRECTORY = ".claimed";
+    static final String INTERACTIVE_DIRECTORY = "interactive";
+
+    /**
+     * How often the spool directory is rescanned even without any file system events, which
+     * may be lost when the event queue overflows.
+     */
+    private static final long RESCAN_SECONDS = 10;
+
+    private final Path spool;
+    private final Path claimed;
+    private final Path interactive;
+    private final Path results;
+    private final int concurrency;
+    private final Grader grader;
+
+    private final BlockingQueue<PendingSubmission> queue;
+    private final Semaphore queueSlots;
+    private long nextSeq; // confined to the watcher thread
+
+    // statistics
+    private final AtomicLong numGraded;
+    private final AtomicLong totalTimeToResultMillis;
+    private final AtomicLong maxTimeToResultMillis;
+
+    /**
+     * @param spool         the directory to watch
+     * @param results       the directory to write scores files to
+     * @param queueCapacity the maximum number of claimed submissions waiting to be graded
+     * @param concurrency   the number of submissions graded at the same time
+     * @param grader        grades one submission
+     */
+    public SpoolWatcher(Path spool, Path results, int queueCapacity, int concurrency,
+                        Grader grader) {
+        this.spool = spool;
+        this.claimed = spool.resolve(CLAIMED_DIRECTORY);
+        this.interactive = spool.resolve(INTERACTIVE_DIRECTORY);
+        this.results = results;
+        this.concurrency = concurrency;
+        this.grader = grader;
+        // bounded by queueSlots
+        this.queue = new PriorityBlockingQueue<>(queueCapacity);
+        this.queueSlots = new Semaphore(queueCapacity);
+        this.numGraded = new AtomicLong();
+        this.totalTimeToResultMillis = new AtomicLong();
+        this.maxTimeToResultMillis = new AtomicLong();
+    }
+
+    /**
+     * Watches the spool directory and grades submissions until interrupted.
+     */
+    public void run() throws IOException, InterruptedException {
+        Files.createDirectories(claimed);
+        Files.createDirectories(interactive);
+        Files.createDirectories(results);
+
+        ExecutorService graders = Executors.newFixedThreadPool(concurrency, r -> {
+            Thread t = new Thread(r, "spool-grader");
+            t.setDaemon(true);
+            return t;
+        });
+        for (int i = 0; i < concurrency; i++) {
+            graders.submit(this::gradeQueued);
+        }
+
+        try (WatchService watchService = spool.getFileSystem().newWatchService()) {
+            for (Path directory : new Path[]{spool, interactive}) {
+                directory.register(watchService, StandardWatchEventKinds.ENTRY_CREATE,
+                        StandardWatchEventKinds.ENTRY_MODIFY);
+            }
+            log("Watching %s for submissions (queue capacity %d, %d at a time)", spool,
+                    queueSlots.availablePermits(), concurrency);
+            while (true) {
+                claimAvailable();
+                WatchKey key = watchService.poll(RESCAN_SECONDS, TimeUnit.SECONDS);
+                if (key != null) {
+                    // the events themselves do not matter; the directory is rescanned
+                    key.pollEvents();
+                    key.reset();
+                }
+            }
+        } finally {
+            graders.shutdownNow();
+        }
+    }
+
+    private void claimAvailable() throws IOException, InterruptedException {
+        scanning:
+        while (true) {
+            List<Path> files = new ArrayList<>();
+            list(interactive, files);
+            int numInteractive = files.size();
+            list(spool, files);
+            // stat every file once, so that the order cannot change while sorting
+            Map<Path, Instant> arrivals = new HashMap<>();
+            files.forEach(file -> arrivals.put(file, arrivalTime(file)));
+            Comparator<Path> arrivalOrder = Comparator.comparing((Path file) -> arrivals.get(file))
+                    .thenComparing(Path::getFileName);
+            files.subList(0, numInteractive).sort(arrivalOrder);
+            files.subList(numInteractive, files.size()).sort(arrivalOrder);
+
+            for (int i = 0; i < files.size(); i++) {
+                if (!queueSlots.tryAcquire()) {
+                    log("Intake queue is full (%d waiting); not claiming more submissions",
+                            queue.size());
+                    // an interactive submission may have arrived while waiting
+                    queueSlots.acquire();
+                    queueSlots.release();
+                    continue scanning;
+                }
+                Path file = files.get(i);
+                Instant arrived = arrivals.get(file);
+                Path claimedFile = claimed.resolve(file.getFileName());
+                try {
+                    Files.move(file, claimedFile, StandardCopyOption.ATOMIC_MOVE);
+                } catch (NoSuchFileException e) {
+                    // removed or claimed by someone else in the meantime
+                    queueSlots.release();
+                    continue;
+                }
+
+                String name = file.getFileName().toString();
+                int dot = name.lastIndexOf('.');
+                String baseName = dot > 0 ? name.substring(0, dot) : name;
+                Submission submission = new Submission(name, claimedFile,
+                        results.resolve(baseName + ".scores"), i < numInteractive
+                        ? FairShareScheduler.Priority.INTERACTIVE
+                        : FairShareScheduler.Priority.BULK);
+                queue.add(new PendingSubmission(submission, arrived, Instant.now(),
+                        nextSeq++));
+                log("Claimed submission %s (%s, queue depth %d)", submission,
+                        submission.getPriority(), queue.size());
+            }
+            return;
+        }
+    }
+
+    private static void list(Path directory, List<Path> files) throws IOException {
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(directory)) {
+            for (Path file : stream) {
+                if (Files.isRegularFile(file) && !file.getFileName().toString().startsWith(".")) {
+                    files.add(file);
+                }
+            }
+        }
+    }
+
+    private void gradeQueued() {
+        while (!Thread.currentThread().isInterrupted()) {
+            PendingSubmission pending;
+            try {
+                pending = queue.take();
+            } catch (InterruptedException e) {
+                return;
+            }
+            queueSlots.release();
+
+            Instant start = Instant.now();
+            GradeResult result;
+            try {
+                result = grader.grade(pending.submission);
+            } catch (InterruptedException e) {
+                return;
+            } catch (Exception e) {
+                logError("Cannot grade submission %s: %s", pending.submission, e);
+                result = GradeResult.failed(pending.submission, GradeResult.Status.ERROR,
+                        Duration.between(start, Instant.now()));
+            }
+
+            Instant finished = Instant.now();
+            long timeToResultMillis = Duration.between(pending.arrived, finished).toMillis();
+            long n = numGraded.incrementAndGet();
+            long total = totalTimeToResultMillis.addAndGet(timeToResultMillis);
+            long max = maxTimeToResultMillis.accumulateAndGet(timeToResultMillis, Math::max);
+            log("%s; time to result %d ms (queued %d ms), queue depth %d", result,
+                    timeToResultMillis, Duration.between(pending.claimed, start).toMillis(),
+                    queue.size());
+            log("Graded %d submission(s) so far; time to result: mean %d ms, max %d ms", n,
+                    total / n, max);
+        }
+    }
+
+    private static Instant arrivalTime(Path file) {
+        try {
+            return Files.getLastModifiedTime(file).toInstant();
+        } catch (IOException e) {
+            return Instant.now();
+        }
+    }
+
+    /**
+     * Grades one claimed submission.
+     */
+    @FunctionalInterface
+    public interface Grader {
+        GradeResult grade(Submission submission) throws Exception;
+    }
+
+    private static class PendingSubmission implements Comparable<PendingSubmission> {
+        final Submission submission;
+        final Instant arrived;
+        final Instant claimed;
+        final long seq;
+
+        PendingSubmission(Submission submission, Instant arrived, Instant claimed, long seq) {
+            this.submission = submission;
+            this.arrived = arrived;
+            this.claimed = claimed;
+            this.seq = seq;
+        }
+
+        @Override
+        public int compareTo(PendingSubmission o) {
+            int c = submission.getPriority().compareTo(o.submission.getPriority());
+            return c != 0 ? c : Long.compare(seq, o.seq);
+        }
+    }
+}
@@ -15,12 +15,15 @@ public class SqlFormatter implements QLogFormatter {
                 points = q.points();
                 break;
             case FAIL:
+            case SKIP:
                 points = q.incorrect();
                 break;
             default:
                 throw new IllegalStateException("Missing enum case");
         }
-        return String.format("%f|%d|%s%n",
-                points, q.type() == Q.Type.EXTRA_CREDIT ? 1 : 0, q.desc());
+        // skipped questions are marked in a fourth field
+        return String.format("%f|%d|%s%s%n",
+                points, q.type() == Q.Type.EXTRA_CREDIT ? 1 : 0, q.desc(),
+                status == QRunListener.TestStatus.SKIP ? "|skipped" : "");
     }
 }
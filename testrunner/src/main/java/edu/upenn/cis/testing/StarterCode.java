@@ -0,0 +1,380 @@
+package edu.upenn.cis.testing;
+
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+
+/**
+ * {@code StarterCode} is the bundle of classes that is handed out to every student, such as
+ * interfaces and helper data structures. A class of a submission whose bytes are identical to
+ * the bundle's resolves to a single definition in a shared class loader, instead of being
+ * defined again by every {@link QClassLoader}, which saves metaspace and lets the JIT warm up
+ * once for all submissions.
+ * <p>
+ * Sharing must not be observable by the tests. A class is therefore only shared if every class
+ * of the {@code edu.upenn.cis121.hw*} packages that it mentions, directly or indirectly, is in
+ * the bundle and identical in the submission, so that a shared class never links against a
+ * submission's own version of a class; if none of those classes has static state that may
+ * change, i.e. a static field that is not final, or that is final but not of a primitive type or
+ * {@link String}, unless the class is an enum; and if all of those classes, and all of their
+ * fields, methods and constructors, are public or private. A shared class is in a different
+ * runtime package from the test and submission classes of its package, so these could not use
+ * anything of it that is package-private or protected. This class is thread-safe.
+ *
+ * @author davix
+ */
+public class StarterCode {
+    private static final String PREFIX = "edu.upenn.cis121.hw";
+    private static final Pattern CLASS_REFERENCE =
+            Pattern.compile(PREFIX.replace('.', '/') + "[A-Za-z0-9_$/]*");
+
+    private final Map<String, byte[]> digests;
+    /**
+     * The bundle classes that may be shared, with the classes that they mention, directly or
+     * indirectly.
+     */
+    private final Map<String, Set<String>> shareable;
+    private final ClassLoader sharedClassLoader;
+
+    private StarterCode(Map<String, byte[]> digests, Map<String, Set<String>> shareable,
+                        ClassLoader sharedClassLoader) {
+        this.digests = digests;
+        this.shareable = shareable;
+        this.sharedClassLoader = sharedClassLoader;
+    }
+
+    /**
+     * Reads a bundle of starter code.
+     *
+     * @param bundle the directory, jar or zip file containing the compiled starter classes
+     * @param parent the parent of the shared class loader, usually the runner's class loader
+     * @throws IOException if the bundle cannot be read
+     */
+    public static StarterCode load(Path bundle, ClassLoader parent) throws IOException {
+        Map<String, byte[]> digests = new HashMap<>();
+        Map<String, Set<String>> references = new HashMap<>();
+        Set<String> unshareable = new HashSet<>();
+        // the shared loader keeps the root open for the lifetime of the JVM
+        ClassPathRoot root = ClassPathRoot.open(bundle);
+        for (String className : listClasses(bundle)) {
+            ByteBuffer bytes = root.findClass(className);
+            if (bytes == null) {
+                continue;
+            }
+            digests.put(className, digest(bytes.duplicate()));
+            ClassFile classFile = ClassFile.parse(bytes.duplicate());
+            references.put(className, classFile.references);
+            if (classFile.hasMutableStatics || classFile.hasPackageAccess) {
+                unshareable.add(className);
+            }
+        }
+
+        Map<String, Set<String>> shareable = new HashMap<>();
+        for (String className : digests.keySet()) {
+            Set<String> closure = closure(className, references);
+            if (digests.keySet().containsAll(closure)
+                    && closure.stream().noneMatch(unshareable::contains)) {
+                shareable.put(className, Collections.unmodifiableSet(closure));
+            }
+        }
+        return new StarterCode(digests, shareable, new SharedClassLoader(parent, root,
+                shareable.keySet()));
+    }
+
+    /**
+     * @return the number of classes in the bundle that may be shared
+     */
+    public int getNumShareableClasses() {
+        return shareable.size();
+    }
+
+    /**
+     * Creates the view of this bundle for one submission.
+     *
+     * @param classBytes looks up the bytes of the submission's classes
+     */
+    SubmissionMatcher matcher(ClassBytes classBytes) {
+        return new SubmissionMatcher(classBytes);
+    }
+
+    private static Set<String> closure(String className, Map<String, Set<String>> references) {
+        Set<String> closure = new HashSet<>();
+        Deque<String> pending = new ArrayDeque<>();
+        pending.add(className);
+        while (!pending.isEmpty()) {
+            String name = pending.remove();
+            if (closure.add(name)) {
+                pending.addAll(references.getOrDefault(name, Collections.emptySet()));
+            }
+        }
+        return closure;
+    }
+
+    private static Set<String> listClasses(Path bundle) throws IOException {
+        if (Files.isDirectory(bundle)) {
+            try (Stream<Path> files = Files.walk(bundle)) {
+                return toClassNames(files.map(f -> bundle.relativize(f).toString()));
+            }
+        }
+        try (ZipFile zip = new ZipFile(bundle.toFile())) {
+            return toClassNames(zip.stream().map(ZipEntry::getName));
+        }
+    }
+
+    private static Set<String> toClassNames(Stream<String> fileNames) {
+        return fileNames
+                .map(f -> f.replace('\\', '/'))
+                .filter(f -> f.endsWith(".class"))
+                .map(f -> f.substring(0, f.length() - ".class".length()).replace('/', '.'))
+                .filter(c -> c.startsWith(PREFIX))
+                .collect(Collectors.toSet());
+    }
+
+    private static byte[] digest(ByteBuffer bytes) {
+        try {
+            MessageDigest sha256 = MessageDigest.getInstance("SHA-256");
+            sha256.update(bytes);
+            return sha256.digest();
+        } catch (NoSuchAlgorithmException e) {
+            throw new AssertionError("SHA-256 is always available", e);
+        }
+    }
+
+    /**
+     * Looks up the bytes of a submission's class file.
+     */
+    @FunctionalInterface
+    interface ClassBytes {
+        /**
+         * @return the class file, or {@code null} if the submission does not contain it
+         */
+        ByteBuffer find(String className) throws IOException;
+    }
+
+    /**
+     * Decides which classes of one submission resolve to the shared definitions. Every class
+     * is hashed at most once per submission.
+     */
+    class SubmissionMatcher {
+        private final ClassBytes classBytes;
+        private final Map<String, Boolean> identical;
+        private final AtomicInteger numShared;
+
+        private SubmissionMatcher(ClassBytes classBytes) {
+            this.classBytes = classBytes;
+            this.identical = new ConcurrentHashMap<>();
+            this.numShared = new AtomicInteger();
+        }
+
+        /**
+         * @return the shared definition of a class, or {@code null} if the submission's class
+         * must be defined by its own loader
+         */
+        Class<?> sharedClass(String className) throws IOException, ClassNotFoundException {
+            Set<String> closure = shareable.get(className);
+            if (closure == null) {
+                return null;
+            }
+            for (String name : closure) {
+                if (!isIdentical(name)) {
+                    return null;
+                }
+            }
+            numShared.incrementAndGet();
+            return sharedClassLoader.loadClass(className);
+        }
+
+        /**
+         * @return how many times a shared definition was used for this submission
+         */
+        int getNumShared() {
+            return numShared.get();
+        }
+
+        private boolean isIdentical(String className) throws IOException {
+            Boolean result = identical.get(className);
+            if (result == null) {
+                ByteBuffer bytes = classBytes.find(className);
+                result = bytes != null
+                        && Arrays.equals(digests.get(className), digest(bytes.duplicate()));
+                identical.put(className, result);
+            }
+            return result;
+        }
+    }
+
+    /**
+     * Defines the shareable starter classes from the bundle and delegates everything else.
+     */
+    private static class SharedClassLoader extends ClassLoader {
+        static {
+            registerAsParallelCapable();
+        }
+
+        private final ClassPathRoot root;
+        private final Set<String> shareable;
+
+        SharedClassLoader(ClassLoader parent, ClassPathRoot root, Set<String> shareable) {
+            super(parent);
+            this.root = root;
+            this.shareable = shareable;
+        }
+
+        @Override
+        protected Class<?> loadClass(String name, boolean resolve) throws ClassNotFoundException {
+            if (!shareable.contains(name)) {
+                return super.loadClass(name, resolve);
+            }
+            synchronized (getClassLoadingLock(name)) {
+                Class<?> c = findLoadedClass(name);
+                if (c != null) {
+                    return c;
+                }
+                try {
+                    return defineClass(name, root.findClass(name), null);
+                } catch (IOException e) {
+                    throw new LoadClassError(name, e);
+                }
+            }
+        }
+    }
+
+    /**
+     * The little that sharing needs to know about a class file.
+     */
+    private static class ClassFile {
+        private static final int ACC_PUBLIC = 0x0001;
+        private static final int ACC_PRIVATE = 0x0002;
+        private static final int ACC_STATIC = 0x0008;
+        private static final int ACC_FINAL = 0x0010;
+        private static final int ACC_ENUM = 0x4000;
+
+        final Set<String> references = new HashSet<>();
+        boolean hasMutableStatics;
+        // whether the class, or any of its fields or methods, is package-private or protected
+        boolean hasPackageAccess;
+
+        static ClassFile parse(ByteBuffer bytes) throws IOException {
+            byte[] array = new byte[bytes.remaining()];
+            bytes.get(array);
+            DataInputStream in = new DataInputStream(new ByteArrayInputStream(array));
+            if (in.readInt() != 0xCAFEBABE) {
+                throw new IOException("Not a class file");
+            }
+            in.readUnsignedShort();  // minor version
+            in.readUnsignedShort();  // major version
+
+            ClassFile classFile = new ClassFile();
+            int numConstants = in.readUnsignedShort();
+            String[] utf8 = new String[numConstants];
+            for (int i = 1; i < numConstants; i++) {
+                int tag = in.readUnsignedByte();
+                switch (tag) {
+                    case 1:  // Utf8
+                        utf8[i] = in.readUTF();
+                        Matcher m = CLASS_REFERENCE.matcher(utf8[i]);
+                        while (m.find()) {
+                            classFile.references.add(m.group().replace('/', '.'));
+                        }
+                        break;
+                    case 7:  // Class
+                    case 8:  // String
+                    case 16:  // MethodType
+                    case 19:  // Module
+                    case 20:  // Package
+                        in.skipBytes(2);
+                        break;
+                    case 15:  // MethodHandle
+                        in.skipBytes(3);
+                        break;
+                    case 3:  // Integer
+                    case 4:  // Float
+                    case 9:  // Fieldref
+                    case 10:  // Methodref
+                    case 11:  // InterfaceMethodref
+                    case 12:  // NameAndType
+                    case 17:  // Dynamic
+                    case 18:  // InvokeDynamic
+                        in.skipBytes(4);
+                        break;
+                    case 5:  // Long
+                    case 6:  // Double
+                        in.skipBytes(8);
+                        i++;  // takes two entries
+                        break;
+                    default:
+                        throw new IOException("Unknown constant pool tag " + tag);
+                }
+            }
+
+            int accessFlags = in.readUnsignedShort();
+            classFile.hasPackageAccess = (accessFlags & ACC_PUBLIC) == 0;
+            in.skipBytes(4);  // this and super class
+            in.skipBytes(2 * in.readUnsignedShort());  // interfaces
+            int numFields = in.readUnsignedShort();
+            for (int i = 0; i < numFields; i++) {
+                int fieldFlags = in.readUnsignedShort();
+                in.readUnsignedShort();  // name
+                String descriptor = utf8[in.readUnsignedShort()];
+                if ((fieldFlags & ACC_STATIC) != 0 && ((fieldFlags & ACC_FINAL) == 0
+                        || !isImmutable(descriptor) && (accessFlags & ACC_ENUM) == 0)) {
+                    classFile.hasMutableStatics = true;
+                }
+                if (hasPackageAccess(fieldFlags)) {
+                    classFile.hasPackageAccess = true;
+                }
+                skipAttributes(in);
+            }
+            int numMethods = in.readUnsignedShort();
+            for (int i = 0; i < numMethods; i++) {
+                int methodFlags = in.readUnsignedShort();
+                String name = utf8[in.readUnsignedShort()];
+                in.readUnsignedShort();  // descriptor
+                // the static initializer is only ever called by the JVM
+                if (hasPackageAccess(methodFlags) && !"<clinit>".equals(name)) {
+                    classFile.hasPackageAccess = true;
+                }
+                skipAttributes(in);
+            }
+            return classFile;
+        }
+
+        private static boolean hasPackageAccess(int flags) {
+            return (flags & (ACC_PUBLIC | ACC_PRIVATE)) == 0;
+        }
+
+        private static void skipAttributes(DataInputStream in) throws IOException {
+            int numAttributes = in.readUnsignedShort();
+            for (int i = 0; i < numAttributes; i++) {
+                in.readUnsignedShort();  // name
+                in.skipBytes(in.readInt());
+            }
+        }
+
+        private static boolean isImmutable(String descriptor) {
+            return descriptor != null && (descriptor.length() == 1
+                    || descriptor.equals("Ljava/lang/String;"));
+        }
+    }
+}
@@ -0,0 +1,111 @@
+package edu.upenn.cis.testing;
+
+import java.io.IOException;
+import java.net.MalformedURLException;
+import java.net.URL;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * A {@code Submission} is a single student's work to be graded: an optional classpath root that
+ * contains the student's classes, the scores file that the results are written to, and the
+ * priority with which it is scheduled against other submissions.
+ *
+ * @author davix
+ */
+public class Submission {
+    private final String name;
+    private final Path classpathRoot;
+    private final Path scoresFile;
+    private final FairShareScheduler.Priority priority;
+
+    /**
+     * @param name          a human-readable name, used only for logging
+     * @param classpathRoot the directory or archive containing the submission's classes, or
+     *                      {@code null} if the classes are already on the runner's classpath
+     * @param scoresFile    the file that the scores are written to
+     */
+    public Submission(String name, Path classpathRoot, Path scoresFile) {
+        this(name, classpathRoot, scoresFile, FairShareScheduler.Priority.BULK);
+    }
+
+    public Submission(String name, Path classpathRoot, Path scoresFile,
+                      FairShareScheduler.Priority priority) {
+        this.name = name;
+        this.classpathRoot = classpathRoot;
+        this.scoresFile = scoresFile;
+        this.priority = priority;
+    }
+
+    /**
+     * Reads a batch manifest. Each non-blank line that does not start with {@code #} names a
+     * submission as a classpath root followed by a scores file and, optionally, a
+     * {@link FairShareScheduler.Priority} such as {@code interactive}, separated by whitespace.
+     *
+     * @param manifest the manifest file
+     * @return the submissions, in manifest order
+     * @throws IOException if the manifest cannot be read or a line is malformed
+     */
+    public static List<Submission> readManifest(Path manifest) throws IOException {
+        List<Submission> submissions = new ArrayList<>();
+        int lineNumber = 0;
+        for (String line : Files.readAllLines(manifest)) {
+            lineNumber++;
+            line = line.trim();
+            if (line.isEmpty() || line.startsWith("#")) {
+                continue;
+            }
+            String[] fields = line.split("\\s+");
+            if (fields.length != 2 && fields.length != 3) {
+                throw new IOException(String.format(
+                        "%s:%d: expected a classpath root and a scores file, but got: %s",
+                        manifest, lineNumber, line));
+            }
+            FairShareScheduler.Priority priority = FairShareScheduler.Priority.BULK;
+            if (fields.length == 3) {
+                try {
+                    priority = FairShareScheduler.Priority.valueOf(
+                            fields[2].toUpperCase(Locale.ROOT));
+                } catch (IllegalArgumentException e) {
+                    throw new IOException(String.format("%s:%d: unknown priority: %s",
+                            manifest, lineNumber, fields[2]));
+                }
+            }
+            submissions.add(new Submission(fields[0], Paths.get(fields[0]),
+                    Paths.get(fields[1]), priority));
+        }
+        return submissions;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public Path getClasspathRoot() {
+        return classpathRoot;
+    }
+
+    public Path getScoresFile() {
+        return scoresFile;
+    }
+
+    public FairShareScheduler.Priority getPriority() {
+        return priority;
+    }
+
+    URL[] getClasspathUrls() throws MalformedURLException {
+        if (classpathRoot == null) {
+            return new URL[0];
+        }
+        return new URL[]{classpathRoot.toUri().toURL()};
+    }
+
+    @Override
+    public String toString() {
+        return name;
+    }
+}
@@ -0,0 +1,46 @@
+package edu.upenn.cis.testing;
+
+import java.net.URL;
+import java.net.URLClassLoader;
+import java.util.Collections;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * A {@code SubmissionClassLoader} loads the classes of a submission's class path on top of the
+ * grader's class loader, its parent. {@link QClassLoader}s that have it as their parent tell the
+ * grader's classes, which the submission must not replace, from the submission's by it, and
+ * track the classes it defines as their dependencies.
+ *
+ * @author davix
+ */
+class SubmissionClassLoader extends URLClassLoader {
+    static {
+        registerAsParallelCapable();
+    }
+
+    private final Set<String> definedClasses;
+
+    /**
+     * @param parent the grader's class loader
+     */
+    SubmissionClassLoader(URL[] urls, ClassLoader parent) {
+        super(urls, parent);
+        this.definedClasses = ConcurrentHashMap.newKeySet();
+    }
+
+    @Override
+    protected Class<?> findClass(String name) throws ClassNotFoundException {
+        Class<?> c = super.findClass(name);
+        definedClasses.add(name);
+        return c;
+    }
+
+    /**
+     * @return the names of the classes this loader has defined from the submission's class path
+     * so far
+     */
+    Set<String> getDefinedClasses() {
+        return Collections.unmodifiableSet(definedClasses);
+    }
+}
@@ -0,0 +1,216 @@
+package edu.upenn.cis.testing;
+
+import javax.tools.Diagnostic;
+import javax.tools.DiagnosticCollector;
+import javax.tools.FileObject;
+import javax.tools.ForwardingJavaFileManager;
+import javax.tools.JavaCompiler;
+import javax.tools.JavaFileManager;
+import javax.tools.JavaFileObject;
+import javax.tools.SimpleJavaFileObject;
+import javax.tools.StandardJavaFileManager;
+import javax.tools.ToolProvider;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.URI;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.FileSystem;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+/**
+ * A {@code SubmissionCompiler} compiles the Java sources of a submission in memory, without
+ * spawning {@code javac} or writing class files to disk. The sources are read from a directory
+ * or from a jar or zip file, and the compiled classes are handed to {@link QClassLoader}s as
+ * bytes. A single compiler is reused for all submissions. This class is thread-safe.
+ *
+ * @author davix
+ */
+public class SubmissionCompiler {
+    private static final String SOURCE_SUFFIX = JavaFileObject.Kind.SOURCE.extension;
+
+    private final JavaCompiler compiler;
+    private final List<String> options;
+
+    /**
+     * Standard file managers are expensive to create, because they index the platform classes,
+     * but are not thread-safe, so idle ones are kept for reuse.
+     */
+    private final Queue<StandardJavaFileManager> idleFileManagers;
+
+    /**
+     * Creates a compiler that compiles against the classpath of this JVM, which contains the
+     * test classes and JUnit.
+     *
+     * @throws IllegalStateException if this JVM does not provide a Java compiler, e.g. because
+     *                               it is a JRE rather than a JDK
+     */
+    public SubmissionCompiler() {
+        this.compiler = ToolProvider.getSystemJavaCompiler();
+        if (compiler == null) {
+            throw new IllegalStateException("No Java compiler is available; run on a JDK");
+        }
+        this.options = Collections.unmodifiableList(Arrays.asList(
+                "-classpath", System.getProperty("java.class.path"),
+                "-g", "-proc:none", "-nowarn", "-encoding", "UTF-8"));
+        this.idleFileManagers = new ConcurrentLinkedQueue<>();
+    }
+
+    /**
+     * Compiles all {@code .java} files under a directory or in a jar or zip file.
+     *
+     * @param sourceRoot the directory or archive containing the sources
+     * @return the compiled classes and any compile errors
+     * @throws IOException if the sources cannot be read
+     */
+    public Result compile(Path sourceRoot) throws IOException {
+        List<JavaFileObject> sources;
+        if (Files.isDirectory(sourceRoot)) {
+            sources = readSources(sourceRoot);
+        } else {
+            try (FileSystem archive = FileSystems.newFileSystem(sourceRoot, (ClassLoader) null)) {
+                List<JavaFileObject> all = new ArrayList<>();
+                for (Path root : archive.getRootDirectories()) {
+                    all.addAll(readSources(root));
+                }
+                sources = all;
+            }
+        }
+
+        Map<String, ClassOutput> outputs = new HashMap<>();
+        List<String> errors = new ArrayList<>();
+        if (!sources.isEmpty()) {
+            StandardJavaFileManager standardFileManager = idleFileManagers.poll();
+            if (standardFileManager == null) {
+                standardFileManager = compiler.getStandardFileManager(null, Locale.ROOT,
+                        StandardCharsets.UTF_8);
+            }
+            DiagnosticCollector<JavaFileObject> diagnostics = new DiagnosticCollector<>();
+            try {
+                JavaFileManager fileManager =
+                        new ForwardingJavaFileManager<JavaFileManager>(standardFileManager) {
+                            @Override
+                            public JavaFileObject getJavaFileForOutput(
+                                    Location location, String className,
+                                    JavaFileObject.Kind kind, FileObject sibling) {
+                                ClassOutput output = new ClassOutput(className, kind);
+                                outputs.put(className, output);
+                                return output;
+                            }
+                        };
+                compiler.getTask(null, fileManager, diagnostics, options, null, sources).call();
+            } finally {
+                standardFileManager.flush();
+                idleFileManagers.add(standardFileManager);
+            }
+            for (Diagnostic<? extends JavaFileObject> d : diagnostics.getDiagnostics()) {
+                if (d.getKind() == Diagnostic.Kind.ERROR) {
+                    errors.add(String.format("%s:%d: error: %s",
+                            d.getSource() == null ? "<unknown>" : d.getSource().getName(),
+                            d.getLineNumber(), d.getMessage(Locale.ROOT)));
+                }
+            }
+        }
+
+        Map<String, byte[]> classes = new HashMap<>();
+        outputs.forEach((className, output) -> classes.put(className, output.toByteArray()));
+        return new Result(classes, errors);
+    }
+
+    private static List<JavaFileObject> readSources(Path root) throws IOException {
+        List<JavaFileObject> sources = new ArrayList<>();
+        try (Stream<Path> files = Files.walk(root)) {
+            for (Path file : files.filter(f -> f.toString().endsWith(SOURCE_SUFFIX)
+                    && Files.isRegularFile(f)).collect(Collectors.toList())) {
+                String relative = root.relativize(file).toString().replace('\\', '/');
+                sources.add(new Source(relative, new String(Files.readAllBytes(file),
+                        StandardCharsets.UTF_8)));
+            }
+        }
+        return sources;
+    }
+
+    /**
+     * The outcome of compiling a submission.
+     */
+    public static class Result {
+        private final Map<String, byte[]> classes;
+        private final List<String> errors;
+
+        Result(Map<String, byte[]> classes, List<String> errors) {
+            this.classes = Collections.unmodifiableMap(classes);
+            this.errors = Collections.unmodifiableList(errors);
+        }
+
+        /**
+         * @return the bytes of the compiled classes by binary name. When there are compile
+         * errors, this may be empty or contain only some classes.
+         */
+        public Map<String, byte[]> getClasses() {
+            return classes;
+        }
+
+        /**
+         * @return the compile errors, formatted like {@code javac} does
+         */
+        public List<String> getErrors() {
+            return errors;
+        }
+
+        public boolean isSuccessful() {
+            return errors.isEmpty();
+        }
+    }
+
+    private static class Source extends SimpleJavaFileObject {
+        private final String name;
+        private final String content;
+
+        Source(String name, String content) {
+            super(URI.create("string:///" + name), Kind.SOURCE);
+            this.name = name;
+            this.content = content;
+        }
+
+        @Override
+        public String getName() {
+            return name;
+        }
+
+        @Override
+        public CharSequence getCharContent(boolean ignoreEncodingErrors) {
+            return content;
+        }
+    }
+
+    private static class ClassOutput extends SimpleJavaFileObject {
+        private final ByteArrayOutputStream bytes;
+
+        ClassOutput(String className, Kind kind) {
+            super(URI.create("mem:///" + className.replace('.', '/') + kind.extension), kind);
+            this.bytes = new ByteArrayOutputStream();
+        }
+
+        @Override
+        public OutputStream openOutputStream() {
+            return bytes;
+        }
+
+        byte[] toByteArray() {
+            return bytes.toByteArray();
+        }
+    }
+}
@@ -0,0 +1,383 @@
+package edu.upenn.cis.testing;
+
+import org.junit.runner.JUnitCore;
+import org.junit.runner.Request;
+import org.junit.runner.Runner;
+import org.junit.runner.manipulation.NoTestsRemainException;
+
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinWorkerThread;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Supplier;
+import java.util.stream.Collectors;
+
+import static edu.upenn.cis.testing.QRunner.log;
+import static edu.upenn.cis.testing.QRunner.logError;
+import static edu.upenn.cis.testing.QRunner.logWarning;
+
+/**
+ * Grades {@link Submission}s against a fixed list of test classes. Every call to
+ * {@link #grade(Submission, PrintWriter)} uses fresh {@link QClassLoader}s, a fresh
+ * {@link QRunListener} and a fresh {@link GlobalTimeoutParallelComputer}, so a single grader can
+ * be reused for many submissions in one long-lived JVM. This class is thread-safe.
+ *
+ * @author davix
+ */
+public class SubmissionGrader {
+    private final List<String> testClassNames;
+    private final long timeout;
+    private final TimeUnit timeUnit;
+    private final Supplier<TestFailureConsumer> testFailureConsumerFactory;
+    private final Shard shard;
+    private final TestDurations durations;
+    private final FairShareScheduler scheduler;
+    private final SubmissionCompiler compiler;
+    private final StarterCode starterCode;
+    private final ClassPreloader preloader;
+    private final GlobalTimeoutParallelComputer.Mode parallelMode;
+    private final boolean virtualThreads;
+    private final long classTimeout;
+    private final double cpuScale;
+    private final Path cacheDirectory;
+    private final boolean resume;
+    private final OutputPipeline outputPipeline;
+    private final OutputCapture.Policy testOutputPolicy;
+    private final int maxTestOutput;
+
+    public SubmissionGrader(List<String> testClassNames, long timeout, TimeUnit timeUnit,
+                            Supplier<TestFailureConsumer> testFailureConsumerFactory) {
+        this(testClassNames, GradingOptions.builder(timeout, timeUnit,
+                testFailureConsumerFactory).build());
+    }
+
+    /**
+     * @param testClassNames the tests to run against every submission
+     * @param options        the settings that every submission is graded with
+     */
+    public SubmissionGrader(List<String> testClassNames, GradingOptions options) {
+        this.testClassNames = new ArrayList<>(testClassNames);
+        this.timeout = options.getTimeout();
+        this.timeUnit = options.getTimeUnit();
+        this.testFailureConsumerFactory = options.getTestFailureConsumerFactory();
+        this.shard = options.getShard();
+        this.durations = options.getDurations();
+        this.scheduler = options.getScheduler();
+        this.compiler = options.getCompiler();
+        this.starterCode = options.getStarterCode();
+        this.preloader = options.getPreloader();
+        this.parallelMode = options.getParallelMode();
+        this.virtualThreads = options.isVirtualThreads();
+        this.classTimeout = options.getClassTimeout();
+        this.cpuScale = options.getCpuScale();
+        this.cacheDirectory = options.getCacheDirectory();
+        this.resume = options.isResume();
+        this.outputPipeline = options.getOutputPipeline();
+        this.testOutputPolicy = options.getTestOutputPolicy();
+        this.maxTestOutput = options.getMaxTestOutput();
+    }
+
+    /**
+     * Runs all tests, or all tests of this grader's shard, against a submission and writes its
+     * scores file.
+     *
+     * @param submission the submission to grade
+     * @param output     where test failures and the points summary are printed
+     * @return the outcome of grading
+     * @throws IOException if the scores file cannot be written
+     */
+    public GradeResult grade(Submission submission, PrintWriter output) throws IOException {
+        try (PrintWriter scoresWriter = new PrintWriter(Files.newBufferedWriter(
+                submission.getScoresFile()))) {
+            return grade(submission, testClassNames, scoresWriter, output);
+        }
+    }
+
+    /**
+     * Runs some tests against a submission, writing its scores to the given writer instead of
+     * the submission's scores file.
+     *
+     * @param submission     the submission to grade
+     * @param testClassNames the tests to run
+     * @param scoresWriter   where the formatted scores are written
+     * @param output         where test failures and the points summary are printed
+     * @return the outcome of grading
+     * @throws IOException if the submission's sources or classes cannot be read or its class
+     *                     loader cannot be closed
+     */
+    GradeResult grade(Submission submission, List<String> testClassNames,
+                      PrintWriter scoresWriter, PrintWriter output) throws IOException {
+        Instant start = Instant.now();
+        Map<String, byte[]> compiledClasses = Collections.emptyMap();
+        boolean compileFailed = false;
+        if (compiler != null && submission.getClasspathRoot() != null) {
+            SubmissionCompiler.Result compiled = compiler.compile(submission.getClasspathRoot());
+            log("Compiled %d class(es) of %s in %d ms", compiled.getClasses().size(),
+                    submission, Duration.between(start, Instant.now()).toMillis());
+            if (!compiled.isSuccessful()) {
+                logError("Cannot compile %s", submission);
+                output.println("Compile errors:");
+                compiled.getErrors().forEach(output::println);
+                compileFailed = true;
+            }
+            compiledClasses = new HashMap<>(compiled.getClasses());
+            // only the submission's own packages; they must not replace classes of the grader
+            List<String> ignored = compiledClasses.keySet().stream()
+                    .filter(name -> !name.startsWith(QClassLoader.PREFIX))
+                    .sorted().collect(Collectors.toList());
+            if (!ignored.isEmpty()) {
+                logWarning("Ignoring %d compiled class(es) of %s outside of %s*: %s",
+                        ignored.size(), submission, QClassLoader.PREFIX,
+                        String.join(" ", ignored));
+                compiledClasses.keySet().removeAll(ignored);
+            }
+        }
+        ClassLoader parent = Thread.currentThread().getContextClassLoader();
+        try (SubmissionClassLoader submissionClassLoader = new SubmissionClassLoader(
+                submission.getClasspathUrls(), parent);
+             // compiled submissions have no class files in their root
+             ClassPathRoot root = compiler == null && submission.getClasspathRoot() != null
+                     ? ClassPathRoot.open(submission.getClasspathRoot()) : null) {
+
+            Queue<String> missingQs = new ConcurrentLinkedQueue<>();
+            PrintWriter testOutput = outputPipeline == null ? output
+                    : new PrintWriter(outputPipeline.writer(output));
+            // the summary is never dropped
+            PrintWriter testSummary = outputPipeline == null ? output
+                    : new PrintWriter(outputPipeline.writer(output,
+                    OutputPipeline.Overflow.BLOCK));
+            PrintWriter testScores = outputPipeline == null ? scoresWriter
+                    : new PrintWriter(outputPipeline.writer(scoresWriter,
+                    OutputPipeline.Overflow.BLOCK));
+            OutputCapture outputCapture = testOutputPolicy == OutputCapture.Policy.INHERIT
+                    ? null : new OutputCapture(testOutputPolicy, maxTestOutput);
+            QRunListener qrl = new QRunListener(
+                    testOutput,
+                    testSummary,
+                    testScores,
+                    new SqlFormatter(),
+                    d -> {
+                        logError("Missing annotation for %s in class %s",
+                                d.getMethodName(), d.getClassName());
+                        missingQs.add(d.getClassName() + "#" + d.getMethodName());
+                        return null;
+                    },
+                    testFailureConsumerFactory.get(),
+                    outputCapture);
+
+            Map<String, byte[]> compiled = compiledClasses;
+            StarterCode.SubmissionMatcher starterCodeMatcher = starterCode == null ? null
+                    : starterCode.matcher(name -> QClassLoader.findClassBytes(name, compiled,
+                    root, submissionClassLoader));
+
+            List<Class<?>> testClasses = new ArrayList<>();
+            List<String> notFound = new ArrayList<>();
+            List<QClassLoader> qClassLoaders = new ArrayList<>();
+            for (String testClassName : testClassNames) {
+                QClassLoader qClassLoader = new QClassLoader(submissionClassLoader,
+                        compiledClasses, root, starterCodeMatcher, cacheDirectory != null);
+                qClassLoaders.add(qClassLoader);
+                try {
+                    Class<?> testClass = qClassLoader.loadClass(testClassName);
+                    testClasses.add(testClass);
+                } catch (ClassNotFoundException e) {
+                    e.printStackTrace();
+                    notFound.add(testClassName);
+                }
+            }
+
+            if (!notFound.isEmpty()) {
+                logError("Cannot find tests: %s", notFound.stream()
+                        .collect(Collectors.joining(" ")));
+            }
+            if (testClasses.isEmpty()) {
+                log("No tests to run!");
+            } else {
+                log("Starting tests: %s", testClasses.stream()
+                        .map(Class::getCanonicalName).collect(Collectors.joining(" ")));
+            }
+
+            List<String> loadErrors = Collections.emptyList();
+            Duration preloadElapsed = Duration.ZERO;
+            List<String> submissionClassNames = root != null ? root.listClasses()
+                    : new ArrayList<>(compiledClasses.keySet());
+            if (preloader != null && !testClasses.isEmpty() && !submissionClassNames.isEmpty()) {
+                // before the computer starts its timer, so loading is not charged to the tests
+                Instant preloadStart = Instant.now();
+                loadErrors = preloader.preload(qClassLoaders, submissionClassNames);
+                preloadElapsed = Duration.between(preloadStart, Instant.now());
+                log("Preloaded %d class(es) of %s in %d ms", submissionClassNames.size(),
+                        submission, preloadElapsed.toMillis());
+                if (!loadErrors.isEmpty()) {
+                    logError("Cannot load %d class(es) of %s", loadErrors.size(), submission);
+                    output.println("Class loading errors:");
+                    loadErrors.forEach(output::println);
+                }
+            } else if (preloader != null && !testClasses.isEmpty() && root == null
+                    && compiledClasses.isEmpty()) {
+                // e.g. a submission on the grader's own class path, which cannot be listed
+                logWarning("Not preloading %s, which has no class path root or compiled classes; "
+                        + "its classes are loaded as the tests use them", submission);
+            }
+
+            JUnitCore core = new JUnitCore();
+            core.addListener(qrl);
+            if (outputCapture != null) {
+                core.addListener(outputCapture);
+            }
+            if (durations != null) {
+                core.addListener(durations.recorder());
+            }
+            ExecutorService executor = newExecutor(submission);
+            FairShareScheduler.Ticket ticket = scheduler == null ? null
+                    : scheduler.register(submission.getName(), submission.getPriority());
+            RegradeCache cache = cacheDirectory == null ? null
+                    : new RegradeCache(cacheDirectory, submission.getClasspathRoot() != null
+                    ? submission.getClasspathRoot().toAbsolutePath().normalize().toString()
+                    : submission.getName());
+            ScoresJournal journal = null;
+            if (submission.getScoresFile() != null) {
+                try {
+                    journal = ScoresJournal.open(submission.getScoresFile(), resume);
+                } catch (IOException e) {
+                    logWarning("Cannot open journal of %s: %s", submission, e);
+                }
+            }
+            GlobalTimeoutParallelComputer computer = GlobalTimeoutParallelComputer.builder(
+                    parallelMode, executor, timeout, timeUnit)
+                    .classTimeout(classTimeout)
+                    .ticket(ticket)
+                    .cpuScale(cpuScale)
+                    .cache(cache)
+                    .journaled(journal == null ? Collections.emptyMap() : journal.getJournaled())
+                    .build();
+            if (journal != null) {
+                core.addListener(journal.recorder(computer::hasTimedOut));
+            }
+            Runner runner = Request.classes(computer,
+                    testClasses.toArray(new Class<?>[testClasses.size()])).getRunner();
+            if (shard != null) {
+                try {
+                    shard.filter(testClasses).apply(runner);
+                } catch (NoTestsRemainException e) {
+                    log("No tests in shard %s", shard);
+                    runner = Request.classes(computer).getRunner();
+                }
+            }
+            if (durations != null && !durations.isEmpty()) {
+                int parallelism = Runtime.getRuntime().availableProcessors();
+                new TestSchedule(durations, parallelMode, parallelism)
+                        .sorter(runner.getDescription(), timeUnit.toMillis(timeout)).apply(runner);
+            }
+            if (outputCapture != null) {
+                OutputCapture.install();
+            }
+            try {
+                core.run(runner);
+            } finally {
+                if (outputCapture != null) {
+                    OutputCapture.uninstall();
+                }
+                // waits until the pipeline has written everything
+                testScores.flush();
+                testOutput.flush();
+                testSummary.flush();
+                if (journal != null) {
+                    try {
+                        journal.close();
+                    } catch (IOException e) {
+                        logWarning("Cannot close journal of %s: %s", submission, e);
+                    }
+                }
+            }
+            if (journal != null && !computer.hasTimedOut() && !scoresWriter.checkError()) {
+                // the scores are complete, so a later resume must not replay this run
+                try {
+                    journal.delete();
+                } catch (IOException e) {
+                    logWarning("Cannot delete journal of %s: %s", submission, e);
+                }
+            }
+
+            log("Cleaning up...");
+            if (ticket != null) {
+                // test threads that are still running must not keep other submissions waiting
+                ticket.close();
+            }
+            executor.shutdown();
+            if (!executor.isTerminated()) {  // sanity
+                log("Cleaning up harder...");
+                executor.shutdownNow();
+            }
+
+            if (computer.hasTimedOut()) {
+                logError("Exceeded timeout of %s %s. Running test(s): %s",
+                        timeout, timeUnit, qrl.getCurrentQs());
+                qrl.printSummary(output);
+                output.flush();
+            }
+            log("Executed of %s out of %s total test class files.",
+                    computer.getNumCompletedClasses(),
+                    computer.getNumTotalClasses());
+            if (computer.getNumCachedTests() > 0) {
+                log("Replayed %d cached test outcome(s)", computer.getNumCachedTests());
+            }
+            if (computer.getNumResumedTests() > 0) {
+                log("Resumed %d journaled test outcome(s)", computer.getNumResumedTests());
+            }
+            if (starterCodeMatcher != null) {
+                log("Used shared starter classes %d time(s)", starterCodeMatcher.getNumShared());
+            }
+            if (shard != null && submission.getScoresFile() != null) {
+                qrl.getPointsSummary().write(
+                        PointsSummary.summaryFile(submission.getScoresFile()));
+            }
+
+            GradeResult.Status status;
+            if (!missingQs.isEmpty()) {
+                status = GradeResult.Status.MISSING_Q;
+            } else if (compileFailed) {
+                status = GradeResult.Status.COMPILE_ERROR;
+            } else if (!loadErrors.isEmpty()) {
+                status = GradeResult.Status.LOAD_ERROR;
+            } else if (computer.hasTimedOut()) {
+                status = GradeResult.Status.TIMED_OUT;
+            } else {
+                status = GradeResult.Status.COMPLETED;
+            }
+            return new GradeResult(submission, status, notFound, new ArrayList<>(missingQs),
+                    loadErrors, computer.getNumCompletedClasses(), computer.getNumTotalClasses(),
+                    qrl.getTotalPointsEarnedByType(),
+                    Duration.between(start, Instant.now()), preloadElapsed);
+        } finally {
+            scoresWriter.flush();
+        }
+    }
+
+    private ExecutorService newExecutor(Submission submission) {
+        if (virtualThreads) {
+            return VirtualThreads.newExecutor(submission.getName() + "-test-");
+        }
+        ClassLoader contextClassLoader = Thread.currentThread().getContextClassLoader();
+        return new ForkJoinPool(Runtime.getRuntime().availableProcessors(), pool -> {
+            ForkJoinWorkerThread t =
+                    ForkJoinPool.defaultForkJoinWorkerThreadFactory.newThread(pool);
+            // as a thread started by this one would
+            t.setContextClassLoader(contextClassLoader);
+            return t;
+        }, (t, e) -> e.printStackTrace(), false);
+    }
+}
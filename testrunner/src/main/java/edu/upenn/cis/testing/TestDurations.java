@@ -0,0 +1,136 @@
+package edu.upenn.cis.testing;
+
+import org.junit.runner.Description;
+import org.junit.runner.notification.RunListener;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Recorded wall-clock durations of test methods, keyed by {@code class#method}, and of test
+ * classes, keyed by the class name. This class is thread-safe.
+ *
+ * @author davix
+ */
+public class TestDurations {
+    private static final String SEPARATOR = "\t";
+
+    private final ConcurrentMap<String, Long> durationMillis;
+
+    public TestDurations() {
+        durationMillis = new ConcurrentHashMap<>();
+    }
+
+    /**
+     * Reads durations written by {@link #write(Path)}, or returns no durations if the file
+     * does not exist.
+     */
+    public static TestDurations read(Path path) throws IOException {
+        TestDurations durations = new TestDurations();
+        if (!Files.exists(path)) {
+            return durations;
+        }
+        for (String line : Files.readAllLines(path)) {
+            String[] fields = line.split(SEPARATOR);
+            if (fields.length != 2) {
+                throw new IOException(path + ": malformed duration line: " + line);
+            }
+            try {
+                durations.durationMillis.put(fields[0], Long.parseLong(fields[1]));
+            } catch (NumberFormatException e) {
+                throw new IOException(path + ": malformed duration line: " + line, e);
+            }
+        }
+        return durations;
+    }
+
+    static String id(Description d) {
+        return id(d.getClassName(), d.getMethodName());
+    }
+
+    static String id(String className, String methodName) {
+        return className + "#" + methodName;
+    }
+
+    public void write(Path path) throws IOException {
+        List<String> lines = new ArrayList<>();
+        new TreeMap<>(durationMillis).forEach((id, millis) -> lines.add(id + SEPARATOR + millis));
+        Files.write(path, lines);
+    }
+
+    public boolean isEmpty() {
+        return durationMillis.isEmpty();
+    }
+
+    /**
+     * @return the recorded duration in milliseconds, or {@code null} if there is none
+     */
+    public Long get(String id) {
+        return durationMillis.get(id);
+    }
+
+    /**
+     * @return the mean of the recorded durations of test methods, or 0 if there are none
+     */
+    public long mean() {
+        return (long) durationMillis.entrySet().stream()
+                .filter(e -> e.getKey().contains("#"))
+                .mapToLong(Map.Entry::getValue)
+                .average().orElse(0);
+    }
+
+    /**
+     * @return a listener that records the duration of every test method and test class it sees
+     * finish, replacing any earlier duration of the same method or class
+     */
+    public RunListener recorder() {
+        return new Recorder();
+    }
+
+    @RunListener.ThreadSafe
+    private class Recorder extends RunListener {
+        private final Map<String, Long> startNanos = new ConcurrentHashMap<>();
+
+        @Override
+        public void testStarted(Description d) {
+            startNanos.putIfAbsent(id(d), System.nanoTime());
+        }
+
+        @Override
+        public void testFinished(Description d) {
+            Long start = startNanos.remove(id(d));
+            if (start != null) {
+                durationMillis.put(id(d), (System.nanoTime() - start) / 1_000_000);
+            }
+        }
+
+        @Override
+        public void testSuiteStarted(Description d) {
+            if (isTestClass(d)) {
+                startNanos.putIfAbsent(d.getClassName(), System.nanoTime());
+            }
+        }
+
+        @Override
+        public void testSuiteFinished(Description d) {
+            if (isTestClass(d)) {
+                Long start = startNanos.remove(d.getClassName());
+                if (start != null) {
+                    durationMillis.put(d.getClassName(),
+                            (System.nanoTime() - start) / 1_000_000);
+                }
+            }
+        }
+
+        private boolean isTestClass(Description d) {
+            return d.getMethodName() == null && d.getTestClass() != null;
+        }
+    }
+}
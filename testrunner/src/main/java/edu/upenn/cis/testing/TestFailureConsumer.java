@@ -12,4 +12,24 @@ import java.io.PrintWriter;
  */
 public interface TestFailureConsumer {
     void accept(Q q, Failure failure, PrintWriter out);
+
+    /**
+     * @param testOutput what the test printed, or an empty string
+     */
+    default void accept(Q q, Failure failure, String testOutput, PrintWriter out) {
+        accept(q, failure, out);
+    }
+
+    /**
+     * @return the trace to print for a failure that is not related to a test method
+     */
+    default String trace(Failure failure) {
+        return failure.getTrace();
+    }
+
+    /**
+     * Prints what remains to be said about the failures once all tests have run.
+     */
+    default void printSummary(PrintWriter out) {
+    }
 }
@@ -0,0 +1,184 @@
+package edu.upenn.cis.testing;
+
+import edu.upenn.cis.testing.annotation.Q;
+import edu.upenn.cis.testing.annotation.QIndex;
+import org.junit.runner.Description;
+import org.junit.runner.Runner;
+import org.junit.runner.manipulation.Sorter;
+
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.PriorityQueue;
+
+import static edu.upenn.cis.testing.QRunner.log;
+
+/**
+ * A {@code TestSchedule} orders test classes and test methods by the durations recorded in
+ * earlier runs, longest first, so that a long class or method does not start last and keep the
+ * others waiting for it. Tests without a recorded duration are predicted to take the mean
+ * duration of the recorded methods, and a class without one the sum of its methods.
+ * <p>
+ * If the tests are predicted to take longer than the global timeout, not all of them will run,
+ * so the questions worth the most points run first instead, and the shortest of those worth the
+ * same points, so that as many points as possible are scored before the timeout.
+ *
+ * @author davix
+ */
+class TestSchedule {
+    private final TestDurations history;
+    private final GlobalTimeoutParallelComputer.Mode mode;
+    private final int parallelism;
+    private final long meanMillis;
+    private final Map<Class<?>, QIndex> indexes;
+
+    /**
+     * @param history     the durations recorded in earlier runs
+     * @param mode        what runs in parallel
+     * @param parallelism the number of tests that can run at the same time
+     */
+    TestSchedule(TestDurations history, GlobalTimeoutParallelComputer.Mode mode,
+                 int parallelism) {
+        this.history = history;
+        this.mode = mode;
+        this.parallelism = Math.max(1, parallelism);
+        this.meanMillis = history.mean();
+        this.indexes = new HashMap<>();
+    }
+
+    /**
+     * @param suite        the description of the suite of test classes to run
+     * @param budgetMillis the global timeout, or 0 if there is none
+     * @return a sorter that orders the test classes and methods of the suite
+     */
+    Sorter sorter(Description suite, long budgetMillis) {
+        if (isOverBudget(suite, budgetMillis)) {
+            log("Tests are predicted to take %d ms, longer than the timeout of %d ms; running "
+                    + "the questions with the most points first", predictMakespanMillis(suite),
+                    budgetMillis);
+            return new Sorter(mostPointsFirst());
+        }
+        return new Sorter(longestFirst());
+    }
+
+    private boolean isOverBudget(Description suite, long budgetMillis) {
+        return budgetMillis > 0 && predictMakespanMillis(suite) > budgetMillis;
+    }
+
+    private Comparator<Description> longestFirst() {
+        return Comparator.comparingLong(this::predictMillis).reversed();
+    }
+
+    private Comparator<Description> mostPointsFirst() {
+        return Comparator.comparingDouble(this::points).reversed()
+                .thenComparingLong(this::predictMillis);
+    }
+
+    /**
+     * @return the predicted duration of a test method, or of all test methods of a test class
+     * run one after another
+     */
+    long predictMillis(Description d) {
+        if (d.getMethodName() != null) {
+            Long millis = history.get(TestDurations.id(d));
+            return millis != null ? millis : meanMillis;
+        }
+        Long millis = history.get(d.getClassName());
+        if (millis != null) {
+            return millis;
+        }
+        long sum = 0;
+        for (Description child : d.getChildren()) {
+            sum += predictMillis(child);
+        }
+        return sum;
+    }
+
+    /**
+     * Predicts the time to run a suite of test classes by assigning its tests, in suite order,
+     * each to the thread that becomes free first.
+     */
+    long predictMakespanMillis(Description suite) {
+        switch (mode) {
+            case CLASSES:
+                return makespanMillis(suite.getChildren());
+            case METHODS:
+                long sum = 0;
+                for (Description testClass : suite.getChildren()) {
+                    sum += makespanMillis(testClass.getChildren());
+                }
+                return sum;
+            default:
+                List<Description> methods = new ArrayList<>();
+                for (Description testClass : suite.getChildren()) {
+                    methods.addAll(testClass.getChildren());
+                }
+                return makespanMillis(methods);
+        }
+    }
+
+    private long makespanMillis(List<Description> tests) {
+        PriorityQueue<Long> threads = new PriorityQueue<>();
+        for (int i = 0; i < parallelism; i++) {
+            threads.add(0L);
+        }
+        long makespan = 0;
+        for (Description test : tests) {
+            long end = threads.remove() + predictMillis(test);
+            threads.add(end);
+            makespan = Math.max(makespan, end);
+        }
+        return makespan;
+    }
+
+    /**
+     * @return the points of a question, or of all questions of a test class
+     */
+    private double points(Description d) {
+        if (d.getMethodName() == null) {
+            double sum = 0;
+            for (Description child : d.getChildren()) {
+                sum += points(child);
+            }
+            return sum;
+        }
+        Class<?> testClass = d.getTestClass();
+        if (testClass == null) {
+            return 0;
+        }
+        Q q = indexes.computeIfAbsent(testClass, QRunListener::index).getQ(d.getMethodName());
+        return q != null ? q.points() : 0;
+    }
+
+    /**
+     * Orders a suite of test classes and prints the order, the predicted duration of every
+     * test class and method, and the predicted time to run them all.
+     */
+    void printPlan(Runner suiteRunner, long budgetMillis, PrintWriter out) {
+        Description suite = suiteRunner.getDescription();
+        boolean overBudget = isOverBudget(suite, budgetMillis);
+        sorter(suite, budgetMillis).apply(suiteRunner);
+        suite = suiteRunner.getDescription();
+        out.printf("Running %s in parallel on %d thread(s), %s first:%n",
+                mode.name().toLowerCase(Locale.ROOT), parallelism,
+                overBudget ? "most points" : "longest");
+        for (Description testClass : suite.getChildren()) {
+            out.printf("%8d ms  %s%n", predictMillis(testClass), testClass.getClassName());
+            for (Description method : testClass.getChildren()) {
+                out.printf("%8d ms    %s (%s points)%n", predictMillis(method),
+                        method.getMethodName(), points(method));
+            }
+        }
+        out.printf("Predicted makespan: %d ms", predictMakespanMillis(suite));
+        if (budgetMillis > 0) {
+            out.printf(" of a %d ms timeout%s", budgetMillis,
+                    overBudget ? "; not all tests will run" : "");
+        }
+        out.println();
+        out.flush();
+    }
+}
@@ -0,0 +1,155 @@
+package edu.upenn.cis.testing;
+
+import java.util.ArrayDeque;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * A {@code TimerWheel} runs tasks after a delay on a single daemon thread, no matter how many are
+ * scheduled. Timers are hashed by their deadline into a ring of buckets, one tick apart, and the
+ * thread expires one bucket per tick, so scheduling and cancelling take constant time and a
+ * timer fires at most one tick late. The thread parks while no timer is scheduled. Tasks run on
+ * the timer thread and must be short. This class is thread-safe.
+ *
+ * @author davix
+ */
+class TimerWheel {
+    private final long tickNanos;
+    private final Queue<Timer>[] buckets;
+    private final int mask;
+    private final Queue<Timer> pending;
+    private final AtomicBoolean started;
+    private volatile Thread thread;
+
+    /**
+     * @param tick       the resolution of the timers
+     * @param unit       the unit of {@code tick}
+     * @param numBuckets the number of buckets, rounded up to a power of 2. Timers that are
+     *                   further away than a whole round of the wheel are passed over once per
+     *                   round.
+     */
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    TimerWheel(long tick, TimeUnit unit, int numBuckets) {
+        this.tickNanos = unit.toNanos(tick);
+        int size = Integer.highestOneBit(Math.max(1, numBuckets - 1)) << 1;
+        this.buckets = new Queue[size];
+        for (int i = 0; i < size; i++) {
+            buckets[i] = new ArrayDeque<>();
+        }
+        this.mask = size - 1;
+        this.pending = new ConcurrentLinkedQueue<>();
+        this.started = new AtomicBoolean();
+    }
+
+    /**
+     * @return the timer, which can be cancelled until the task starts
+     */
+    Timer schedule(Runnable task, long delay, TimeUnit unit) {
+        Timer timer = new Timer(task, System.nanoTime() + unit.toNanos(delay));
+        pending.add(timer);
+        if (started.compareAndSet(false, true)) {
+            Thread t = new Thread(this::run, "timer-wheel");
+            t.setDaemon(true);
+            thread = t;
+            t.start();
+        } else {
+            LockSupport.unpark(thread);
+        }
+        return timer;
+    }
+
+    private void run() {
+        // this thread may have been started by a test, whose output the timers' is not
+        OutputCapture.detach();
+        long start = System.nanoTime();
+        long tick = 0;
+        int numTimers = 0;
+        while (true) {
+            if (numTimers == 0 && pending.isEmpty()) {
+                LockSupport.park(this);
+                // the buckets are empty, so the ticks while parked need not be expired
+                tick = Math.max(tick, (System.nanoTime() - start) / tickNanos);
+            }
+            long deadline = start + (tick + 1) * tickNanos;
+            long now;
+            while ((now = System.nanoTime()) < deadline) {
+                LockSupport.parkNanos(this, deadline - now);
+            }
+
+            Timer timer;
+            while ((timer = pending.poll()) != null) {
+                if (timer.isCancelled()) {
+                    continue;
+                }
+                // at least the current tick, so that a past deadline expires now
+                long timerTick = Math.max(tick, (timer.deadline - start) / tickNanos);
+                timer.rounds = (timerTick - tick) / buckets.length;
+                buckets[(int) (timerTick & mask)].add(timer);
+                numTimers++;
+            }
+
+            for (Iterator<Timer> it = buckets[(int) (tick & mask)].iterator(); it.hasNext(); ) {
+                timer = it.next();
+                if (timer.isCancelled()) {
+                    it.remove();
+                    numTimers--;
+                } else if (timer.rounds <= 0) {
+                    it.remove();
+                    numTimers--;
+                    timer.expire();
+                } else {
+                    timer.rounds--;
+                }
+            }
+            tick++;
+        }
+    }
+
+    /**
+     * A scheduled task.
+     */
+    static class Timer {
+        private static final int PENDING = 0;
+        private static final int CANCELLED = 1;
+        private static final int EXPIRED = 2;
+
+        private final Runnable task;
+        private final long deadline;
+        private final AtomicInteger state;
+        // only accessed by the timer thread
+        private long rounds;
+
+        private Timer(Runnable task, long deadline) {
+            this.task = task;
+            this.deadline = deadline;
+            this.state = new AtomicInteger(PENDING);
+        }
+
+        /**
+         * @return {@code true} if the task will not run, {@code false} if it already has started
+         */
+        boolean cancel() {
+            return state.compareAndSet(PENDING, CANCELLED) || state.get() == CANCELLED;
+        }
+
+        private boolean isCancelled() {
+            return state.get() == CANCELLED;
+        }
+
+        private void expire() {
+            if (!state.compareAndSet(PENDING, EXPIRED)) {
+                return;
+            }
+            try {
+                task.run();
+            } catch (RuntimeException | Error e) {
+                e.printStackTrace();
+            }
+        }
+    }
+}
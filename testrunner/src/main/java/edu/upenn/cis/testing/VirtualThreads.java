@@ -0,0 +1,132 @@
+package edu.upenn.cis.testing;
+
+import java.lang.management.ManagementFactory;
+import java.time.Duration;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+
+import static edu.upenn.cis.testing.QRunner.log;
+import static edu.upenn.cis.testing.QRunner.logWarning;
+
+/**
+ * {@code VirtualThreads} creates executors that run every task on a new virtual thread, so that
+ * tests that block in sleeps, I/O or joins do not each hold an OS thread, and reports virtual
+ * threads that block while pinned to their carrier thread, e.g. in a {@code synchronized} block,
+ * since those do hold one. Virtual threads require Java 21 or later and are used by reflection,
+ * so that the runner still builds and runs on Java 8; on older JVMs, nothing is supported.
+ *
+ * @author davix
+ */
+class VirtualThreads {
+    private static final String PINNED_EVENT = "jdk.VirtualThreadPinned";
+    private static final Duration PINNED_THRESHOLD = Duration.ofMillis(20);
+
+    private static final AtomicLong numPinned = new AtomicLong();
+
+    private VirtualThreads() {
+    }
+
+    static boolean isSupported() {
+        try {
+            Thread.class.getMethod("ofVirtual");
+            return true;
+        } catch (NoSuchMethodException e) {
+            return false;
+        }
+    }
+
+    /**
+     * @param namePrefix the prefix of the names of the threads, which are numbered
+     * @return an executor that starts a virtual thread for every task. The threads inherit the
+     * context class loader of the thread that submits the task.
+     * @throws IllegalStateException if virtual threads are not supported
+     */
+    static ExecutorService newExecutor(String namePrefix) {
+        try {
+            Class<?> builder = Class.forName("java.lang.Thread$Builder");
+            Object ofVirtual = Thread.class.getMethod("ofVirtual").invoke(null);
+            Object named = builder.getMethod("name", String.class, long.class)
+                    .invoke(ofVirtual, namePrefix, 0L);
+            ThreadFactory factory = (ThreadFactory) builder.getMethod("factory").invoke(named);
+            return (ExecutorService) Executors.class
+                    .getMethod("newThreadPerTaskExecutor", ThreadFactory.class)
+                    .invoke(null, factory);
+        } catch (ReflectiveOperationException e) {
+            throw new IllegalStateException("Virtual threads require Java 21 or later, this is "
+                    + System.getProperty("java.specification.version"), e);
+        }
+    }
+
+    /**
+     * Starts logging, in the background, every virtual thread that blocks for longer than 20 ms
+     * while pinned, with the frame of the test or submission code where it blocked, and logs the
+     * number of such events and the peak number of platform threads when the JVM exits. Does
+     * nothing if Java Flight Recorder cannot be streamed from.
+     */
+    static void reportPinning() {
+        try {
+            Class<?> streamClass = Class.forName("jdk.jfr.consumer.RecordingStream");
+            Object stream = streamClass.getConstructor().newInstance();
+            Object settings = streamClass.getMethod("enable", String.class)
+                    .invoke(stream, PINNED_EVENT);
+            Class.forName("jdk.jfr.EventSettings").getMethod("withThreshold", Duration.class)
+                    .invoke(settings, PINNED_THRESHOLD);
+            Consumer<Object> onPinned = VirtualThreads::logPinned;
+            streamClass.getMethod("onEvent", String.class, Consumer.class)
+                    .invoke(stream, PINNED_EVENT, onPinned);
+            streamClass.getMethod("startAsync").invoke(stream);
+        } catch (ReflectiveOperationException | RuntimeException e) {
+            logWarning("Cannot report pinned virtual threads: %s", e);
+            return;
+        }
+        Runtime.getRuntime().addShutdownHook(new Thread(() -> log(
+                "%d pinned virtual thread event(s), peak of %d platform threads",
+                numPinned.get(), ManagementFactory.getThreadMXBean().getPeakThreadCount())));
+    }
+
+    private static void logPinned(Object event) {
+        numPinned.incrementAndGet();
+        try {
+            Duration duration = (Duration) invoke(event, "getDuration");
+            Object thread = invoke(event, "getThread");
+            String threadName = thread == null ? "?" : (String) invoke(thread, "getJavaName");
+            logWarning("Virtual thread %s blocked for %d ms while pinned at %s", threadName,
+                    duration.toMillis(), pinnedAt(invoke(event, "getStackTrace")));
+        } catch (ReflectiveOperationException | RuntimeException e) {
+            logWarning("Virtual thread blocked while pinned: %s", e);
+        }
+    }
+
+    /**
+     * @return the topmost frame outside the JDK, where the code blocked, or the topmost frame
+     */
+    private static String pinnedAt(Object stackTrace) throws ReflectiveOperationException {
+        if (stackTrace == null) {
+            return "?";
+        }
+        String top = "?";
+        for (Object frame : (List<?>) invoke(stackTrace, "getFrames")) {
+            Object method = invoke(frame, "getMethod");
+            String className = (String) invoke(invoke(method, "getType"), "getName");
+            String location = className + "." + invoke(method, "getName") + ":"
+                    + invoke(frame, "getLineNumber");
+            if ("?".equals(top)) {
+                top = location;
+            }
+            if (!className.startsWith("java.") && !className.startsWith("jdk.")
+                    && !className.startsWith("sun.")) {
+                return location;
+            }
+        }
+        return top;
+    }
+
+    private static Object invoke(Object target, String methodName)
+            throws ReflectiveOperationException {
+        return target.getClass().getMethod(methodName).invoke(target);
+    }
+}
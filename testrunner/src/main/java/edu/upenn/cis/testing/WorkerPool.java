@@ -0,0 +1,274 @@
+package edu.upenn.cis.testing;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static edu.upenn.cis.testing.QRunner.log;
+import static edu.upenn.cis.testing.QRunner.logError;
+
+/**
+ * A {@code WorkerPool} supervises a fixed number of pre-started worker JVMs (see
+ * {@link GradingWorker}) and hands each one submission at a time. A worker that does not answer
+ * within the per-submission budget is killed, because threads running student code cannot be
+ * stopped from inside the JVM, and a fresh worker is started in its place. Workers are started
+ * and warmed up before the first submission is handed out.
+ *
+ * @author davix
+ */
+public class WorkerPool implements AutoCloseable {
+    private static final long WORKER_START_TIMEOUT_MILLIS = 60_000;
+
+    private final int numWorkers;
+    private final List<String> workerArgs;
+    private final long budgetMillis;
+
+    private final ServerSocket serverSocket;
+    private final Map<String, CompletableFuture<Socket>> pendingConnections;
+    private final AtomicInteger nextWorkerId;
+    private final BlockingQueue<Worker> idleWorkers;
+    private final Thread acceptor;
+
+    /**
+     * Starts the workers.
+     *
+     * @param numWorkers   the number of workers to keep running
+     * @param workerArgs   the {@link QRunner} arguments, after {@code --worker}, of every worker
+     * @param budgetMillis how long a worker may take to grade one submission before it is killed
+     */
+    public WorkerPool(int numWorkers, List<String> workerArgs, long budgetMillis)
+            throws IOException {
+        this.numWorkers = numWorkers;
+        this.workerArgs = new ArrayList<>(workerArgs);
+        this.budgetMillis = budgetMillis;
+        this.serverSocket = new ServerSocket(0, numWorkers, InetAddress.getLoopbackAddress());
+        this.pendingConnections = new ConcurrentHashMap<>();
+        this.nextWorkerId = new AtomicInteger();
+        this.idleWorkers = new LinkedBlockingQueue<>();
+
+        acceptor = new Thread(this::acceptConnections, "worker-pool-acceptor");
+        acceptor.setDaemon(true);
+        acceptor.start();
+
+        List<Future<Worker>> starting = new ArrayList<>(numWorkers);
+        ExecutorService starter = Executors.newFixedThreadPool(numWorkers);
+        try {
+            for (int i = 0; i < numWorkers; i++) {
+                starting.add(starter.submit(this::startWorker));
+            }
+            for (Future<Worker> worker : starting) {
+                idleWorkers.add(worker.get());
+            }
+        } catch (InterruptedException | ExecutionException e) {
+            close();
+            throw new IOException("Cannot start workers", e);
+        } finally {
+            starter.shutdown();
+        }
+    }
+
+    /**
+     * Grades the submissions on the workers, at most one submission per worker at a time.
+     *
+     * @return the results, in the same order as the submissions
+     */
+    public List<GradeResult> gradeAll(List<Submission> submissions) throws InterruptedException {
+        ExecutorService dispatcher = Executors.newFixedThreadPool(numWorkers);
+        try {
+            List<Future<GradeResult>> futures = new ArrayList<>(submissions.size());
+            for (Submission submission : submissions) {
+                futures.add(dispatcher.submit(() -> grade(submission)));
+            }
+            List<GradeResult> results = new ArrayList<>(submissions.size());
+            for (Future<GradeResult> future : futures) {
+                try {
+                    results.add(future.get());
+                } catch (ExecutionException e) {
+                    throw new IllegalStateException(e.getCause());
+                }
+            }
+            return results;
+        } finally {
+            dispatcher.shutdown();
+        }
+    }
+
+    /**
+     * Grades one submission on the next idle worker, blocking until one is available.
+     */
+    public GradeResult grade(Submission submission) throws InterruptedException {
+        Worker worker = idleWorkers.take();
+        Instant start = Instant.now();
+        try {
+            GradeResult result = worker.grade(submission);
+            if (result.getStatus() == GradeResult.Status.TIMED_OUT) {
+                // the timed-out tests are still running on abandoned threads in the worker
+                log("Recycling worker %s after a timeout on %s", worker.id, submission);
+                return replace(worker, result);
+            }
+            idleWorkers.add(worker);
+            return result;
+        } catch (SocketTimeoutException e) {
+            logError("Worker %s exceeded its budget of %d ms on %s; killing it",
+                    worker.id, budgetMillis, submission);
+            return replace(worker, GradeResult.failed(submission, GradeResult.Status.KILLED,
+                    Duration.between(start, Instant.now())));
+        } catch (IOException e) {
+            logError("Worker %s failed on %s: %s", worker.id, submission, e);
+            return replace(worker, GradeResult.failed(submission, GradeResult.Status.ERROR,
+                    Duration.between(start, Instant.now())));
+        }
+    }
+
+    private GradeResult replace(Worker worker, GradeResult result) throws InterruptedException {
+        worker.kill();
+        while (true) {
+            try {
+                idleWorkers.add(startWorker());
+                return result;
+            } catch (IOException e) {
+                logError("Cannot start replacement worker: %s", e);
+                Thread.sleep(1000);
+            }
+        }
+    }
+
+    private Worker startWorker() throws IOException, InterruptedException {
+        String id = Integer.toString(nextWorkerId.getAndIncrement());
+        CompletableFuture<Socket> connection = new CompletableFuture<>();
+        pendingConnections.put(id, connection);
+
+        List<String> command = ClassDataSharing.java(ClassDataSharing.jvmOptions());
+        command.add(QRunner.class.getName());
+        command.add("--worker");
+        command.add(serverSocket.getLocalPort() + ":" + id);
+        command.addAll(workerArgs);
+        Process process = new ProcessBuilder(command).inheritIO().start();
+
+        try {
+            Socket socket = connection.get(WORKER_START_TIMEOUT_MILLIS, TimeUnit.MILLISECONDS);
+            Worker worker = new Worker(id, process, socket);
+            String ready = worker.in.readUTF();
+            if (!GradingWorker.READY.equals(ready)) {
+                worker.kill();
+                throw new IOException("Unexpected greeting from worker " + id + ": " + ready);
+            }
+            log("Worker %s is ready", id);
+            return worker;
+        } catch (ExecutionException | TimeoutException e) {
+            process.destroyForcibly();
+            throw new IOException("Worker " + id + " did not connect", e);
+        } finally {
+            pendingConnections.remove(id);
+        }
+    }
+
+    private void acceptConnections() {
+        while (!serverSocket.isClosed()) {
+            Socket socket;
+            try {
+                socket = serverSocket.accept();
+            } catch (IOException e) {
+                return;
+            }
+            try {
+                socket.setSoTimeout((int) WORKER_START_TIMEOUT_MILLIS);
+                String id = new DataInputStream(socket.getInputStream()).readUTF();
+                CompletableFuture<Socket> connection = pendingConnections.get(id);
+                if (connection == null) {
+                    logError("Rejecting connection from unknown worker %s", id);
+                    socket.close();
+                } else {
+                    connection.complete(socket);
+                }
+            } catch (IOException e) {
+                logError("Rejecting worker connection: %s", e);
+                try {
+                    socket.close();
+                } catch (IOException ignored) {
+                }
+            }
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        serverSocket.close();
+        List<Worker> workers = new ArrayList<>();
+        idleWorkers.drainTo(workers);
+        for (Worker worker : workers) {
+            worker.shutdown();
+        }
+    }
+
+    private class Worker {
+        final String id;
+        final Process process;
+        final Socket socket;
+        final DataInputStream in;
+        final DataOutputStream out;
+
+        Worker(String id, Process process, Socket socket) throws IOException {
+            this.id = id;
+            this.process = process;
+            this.socket = socket;
+            this.in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+            this.out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+        }
+
+        GradeResult grade(Submission submission) throws IOException {
+            out.writeUTF(submission.getClasspathRoot().toAbsolutePath().toString());
+            out.writeUTF(submission.getScoresFile().toAbsolutePath().toString());
+            out.flush();
+            socket.setSoTimeout((int) budgetMillis);
+            return GradeResult.readFrom(in, submission);
+        }
+
+        /**
+         * Asks the worker to exit by closing its connection, killing it if it does not.
+         */
+        void shutdown() {
+            try {
+                socket.close();
+                if (!process.waitFor(5, TimeUnit.SECONDS)) {
+                    process.destroyForcibly();
+                }
+            } catch (IOException e) {
+                process.destroyForcibly();
+            } catch (InterruptedException e) {
+                process.destroyForcibly();
+                Thread.currentThread().interrupt();
+            }
+        }
+
+        void kill() {
+            process.destroyForcibly();
+            try {
+                socket.close();
+            } catch (IOException ignored) {
+            }
+        }
+    }
+}
@@ -0,0 +1,97 @@
+package edu.upenn.cis.testing;
+
+import edu.upenn.cis.testing.annotation.Q;
+import org.junit.Test;
+import org.junit.runner.Description;
+import org.junit.runner.notification.Failure;
+
+import java.io.PrintWriter;
+import java.io.StringWriter;
+
+import static org.junit.Assert.*;
+
+/**
+ * @author davix
+ */
+public class FailureRendererTest {
+
+    @Test
+    public void testCollapsesRecursion() throws Exception {
+        FailureRenderer renderer = new FailureRenderer();
+        Failure failure = failure("a", catchThrowable(() -> recurse(0)));
+        assertTrue(failure.getTrace().split("\\R").length > 100);
+
+        String rendered = renderer.render(q("a"), failure);
+        assertTrue(rendered, rendered.contains("more repetition(s) of the 1 frame(s) above"));
+        assertTrue(rendered, rendered.split("\\R").length < 40);
+    }
+
+    @Test
+    public void testCapsFrames() throws Exception {
+        Throwable t = new IllegalStateException("deep");
+        StackTraceElement[] frames = new StackTraceElement[200];
+        for (int i = 0; i < frames.length; i++) {
+            frames[i] = new StackTraceElement("Deep", "m" + i, "Deep.java", i);
+        }
+        t.setStackTrace(frames);
+
+        String rendered = new FailureRenderer(10, 1 << 20).render(q("a"), failure("a", t));
+        assertEquals(12, rendered.split("\\R").length);
+        assertTrue(rendered, rendered.endsWith("\t... 190 more frame(s)" + System.lineSeparator()));
+    }
+
+    @Test
+    public void testDeduplicatesAndLimitsChars() throws Exception {
+        FailureRenderer renderer = new FailureRenderer(64, 1 << 20);
+        Throwable first = catchThrowable(FailureRendererTest::dereference);
+        Throwable second = catchThrowable(FailureRendererTest::dereference);
+        assertTrue(renderer.render(q("a"), failure("a", first)).contains("dereference"));
+        assertEquals("Same failure as \"a\"; trace omitted" + System.lineSeparator(),
+                renderer.render(q("b"), failure("b", second)));
+
+        StringWriter repeated = new StringWriter();
+        renderer.printRepeated(new PrintWriter(repeated, true));
+        assertTrue(repeated.toString(), repeated.toString().startsWith("Repeated failures:"));
+        assertTrue(repeated.toString(), repeated.toString().contains("NullPointerException"));
+        assertTrue(repeated.toString(), repeated.toString().trim().endsWith(": 2 tests"));
+
+        FailureRenderer small = new FailureRenderer(64, 10);
+        assertTrue(small.render(q("a"), failure("a", first)).contains("later traces are omitted"));
+        assertEquals("", small.render(q("c"), failure("c", new IllegalStateException())));
+    }
+
+    private static int recurse(int depth) {
+        return recurse(depth + 1) + 1;
+    }
+
+    private static void dereference() {
+        Object nothing = null;
+        nothing.hashCode();
+    }
+
+    private static Throwable catchThrowable(Runnable runnable) {
+        try {
+            runnable.run();
+        } catch (Throwable t) {
+            return t;
+        }
+        throw new AssertionError("nothing thrown");
+    }
+
+    private static Failure failure(String method, Throwable t) {
+        return new Failure(Description.createTestDescription(FailureRendererTest.class, method),
+                t);
+    }
+
+    private static Q q(String desc) throws NoSuchMethodException {
+        return Questions.class.getMethod(desc).getAnnotation(Q.class);
+    }
+
+    public static class Questions {
+        // @formatter:off
+        @Q(desc = "a", points = 1) public void a() {}
+        @Q(desc = "b", points = 1) public void b() {}
+        @Q(desc = "c", points = 1) public void c() {}
+        // @formatter:on
+    }
+}
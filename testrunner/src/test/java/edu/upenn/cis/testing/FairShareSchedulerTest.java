@@ -0,0 +1,95 @@
+package edu.upenn.cis.testing;
+
+import org.junit.Test;
+
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+
+import static edu.upenn.cis.testing.FairShareScheduler.Priority.BULK;
+import static edu.upenn.cis.testing.FairShareScheduler.Priority.INTERACTIVE;
+import static org.junit.Assert.*;
+
+/**
+ * @author davix
+ */
+public class FairShareSchedulerTest {
+
+    @Test(timeout = 10_000)
+    public void testInteractiveGoesFirst() throws Exception {
+        FairShareScheduler scheduler = new FairShareScheduler(1);
+        FairShareScheduler.Ticket holder = scheduler.register("holder", BULK);
+        holder.acquire();
+
+        List<String> order = new CopyOnWriteArrayList<>();
+        Thread bulk = startWaiter(scheduler.register("bulk", BULK), order);
+        awaitWaiting(bulk);
+        Thread interactive = startWaiter(scheduler.register("interactive", INTERACTIVE), order);
+        awaitWaiting(interactive);
+
+        holder.release();
+        bulk.join();
+        interactive.join();
+        assertEquals("[interactive (INTERACTIVE), bulk (BULK)]", order.toString());
+    }
+
+    @Test(timeout = 10_000)
+    public void testLeastServedSubmissionGoesFirst() throws Exception {
+        FairShareScheduler scheduler = new FairShareScheduler(1);
+        FairShareScheduler.Ticket busy = scheduler.register("busy", BULK);
+        FairShareScheduler.Ticket idle = scheduler.register("idle", BULK);
+        busy.acquire();
+        TimeUnit.MILLISECONDS.sleep(20);
+        busy.release();
+
+        FairShareScheduler.Ticket holder = scheduler.register("holder", BULK);
+        holder.acquire();
+        List<String> order = new CopyOnWriteArrayList<>();
+        Thread busyWaiter = startWaiter(busy, order);
+        awaitWaiting(busyWaiter);
+        Thread idleWaiter = startWaiter(idle, order);
+        awaitWaiting(idleWaiter);
+
+        holder.release();
+        busyWaiter.join();
+        idleWaiter.join();
+        assertEquals("[idle (BULK), busy (BULK)]", order.toString());
+    }
+
+    @Test(timeout = 10_000)
+    public void testStarvedTimeIsCounted() throws Exception {
+        FairShareScheduler scheduler = new FairShareScheduler(1);
+        FairShareScheduler.Ticket holder = scheduler.register("holder", BULK);
+        FairShareScheduler.Ticket starved = scheduler.register("starved", BULK);
+        holder.acquire();
+
+        Thread waiter = startWaiter(starved, new CopyOnWriteArrayList<>());
+        awaitWaiting(waiter);
+        TimeUnit.MILLISECONDS.sleep(50);
+        holder.release();
+        waiter.join();
+
+        assertTrue(starved.getStarvedNanos() >= TimeUnit.MILLISECONDS.toNanos(50));
+        assertEquals(0, holder.getStarvedNanos());
+    }
+
+    private static Thread startWaiter(FairShareScheduler.Ticket ticket, List<String> order) {
+        Thread t = new Thread(() -> {
+            try {
+                ticket.acquire();
+            } catch (InterruptedException e) {
+                return;
+            }
+            order.add(ticket.toString());
+            ticket.release();
+        });
+        t.start();
+        return t;
+    }
+
+    private static void awaitWaiting(Thread t) throws InterruptedException {
+        while (t.getState() != Thread.State.WAITING) {
+            TimeUnit.MILLISECONDS.sleep(1);
+        }
+    }
+}
@@ -0,0 +1,394 @@
+package edu.upenn.cis.testing;
+
+import edu.upenn.cis.testing.annotation.Q;
+import org.junit.Test;
+import org.junit.runner.JUnitCore;
+import org.junit.runner.Request;
+import org.junit.runner.Result;
+import org.junit.runner.notification.Failure;
+import org.junit.runners.model.TestTimedOutException;
+
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.CyclicBarrier;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import static edu.upenn.cis.testing.GlobalTimeoutParallelComputer.Mode.BOTH;
+import static edu.upenn.cis.testing.GlobalTimeoutParallelComputer.Mode.METHODS;
+import static org.junit.Assert.*;
+import static org.junit.Assume.assumeTrue;
+
+/**
+ * @author davix
+ */
+public class GlobalTimeoutParallelComputerTest {
+    private static volatile CyclicBarrier barrier;
+    private static volatile CountDownLatch interrupted;
+    private static volatile AtomicBoolean ranDependent;
+    private static volatile boolean spinning;
+
+    @Test(timeout = 10_000)
+    public void testBothOnOneThreadDoesNotDeadlock() throws Exception {
+        ForkJoinPool pool = new ForkJoinPool(1);
+        GlobalTimeoutParallelComputer computer =
+                GlobalTimeoutParallelComputer.builder(BOTH, pool, 5, TimeUnit.SECONDS).build();
+        Result result = run(computer, Quick.class, Quick.class);
+        pool.shutdownNow();
+
+        assertFalse(computer.hasTimedOut());
+        assertEquals(8, result.getRunCount());
+        assertTrue(result.wasSuccessful());
+        assertEquals(2, computer.getNumCompletedClasses());
+        assertEquals(2, computer.getNumTotalClasses());
+    }
+
+    @Test(timeout = 10_000)
+    public void testBothOnCachedThreadPool() throws Exception {
+        // not a ForkJoinPool, so waiting for the children of a class blocks a thread
+        ExecutorService executor = Executors.newCachedThreadPool();
+        assertBothRunAll(executor);
+    }
+
+    @Test(timeout = 10_000)
+    public void testBothOnVirtualThreads() throws Exception {
+        assumeTrue(VirtualThreads.isSupported());
+        assertBothRunAll(VirtualThreads.newExecutor("test-"));
+    }
+
+    private static void assertBothRunAll(ExecutorService executor) {
+        barrier = new CyclicBarrier(2);
+        GlobalTimeoutParallelComputer computer =
+                GlobalTimeoutParallelComputer.builder(BOTH, executor, 5, TimeUnit.SECONDS).build();
+        Result result = run(computer, Quick.class, Meeting.class);
+        executor.shutdownNow();
+
+        assertTrue(result.getFailures().toString(), result.wasSuccessful());
+        assertEquals(6, result.getRunCount());
+        assertEquals(2, computer.getNumCompletedClasses());
+    }
+
+    @Test(timeout = 10_000)
+    public void testMethodsRunConcurrently() throws Exception {
+        barrier = new CyclicBarrier(2);
+        ForkJoinPool pool = new ForkJoinPool(2);
+        GlobalTimeoutParallelComputer computer =
+                GlobalTimeoutParallelComputer.builder(METHODS, pool, 5, TimeUnit.SECONDS).build();
+        Result result = run(computer, Meeting.class);
+        pool.shutdownNow();
+
+        // each method waits for the other, so they only pass if they run at the same time
+        assertTrue(result.getFailures().toString(), result.wasSuccessful());
+        assertEquals(1, computer.getNumCompletedClasses());
+    }
+
+    @Test(timeout = 10_000)
+    public void testTimeoutInterruptsRunningTests() throws Exception {
+        interrupted = new CountDownLatch(2);
+        ForkJoinPool pool = new ForkJoinPool(2);
+        GlobalTimeoutParallelComputer computer = GlobalTimeoutParallelComputer.builder(METHODS,
+                pool, 200, TimeUnit.MILLISECONDS).build();
+        run(computer, Sleeping.class);
+
+        assertTrue(computer.hasTimedOut());
+        assertEquals(0, computer.getNumCompletedClasses());
+        assertTrue(interrupted.await(5, TimeUnit.SECONDS));
+        pool.shutdownNow();
+    }
+
+    @Test(timeout = 10_000)
+    public void testQTimeoutFailsOnlyThatTest() throws Exception {
+        ForkJoinPool pool = new ForkJoinPool(1);
+        GlobalTimeoutParallelComputer computer = GlobalTimeoutParallelComputer.builder(
+                GlobalTimeoutParallelComputer.Mode.CLASSES, pool, 5, TimeUnit.SECONDS).build();
+        Result result = run(computer, Limited.class);
+        pool.shutdownNow();
+
+        assertFalse(computer.hasTimedOut());
+        assertEquals(2, result.getRunCount());
+        assertEquals(1, result.getFailureCount());
+        assertEquals("slow", result.getFailures().get(0).getDescription().getMethodName());
+        assertTrue(result.getFailures().get(0).getException()
+                instanceof TestTimedOutException);
+        assertEquals(1, computer.getNumCompletedClasses());
+    }
+
+    @Test(timeout = 10_000)
+    public void testClassBudgetFailsRemainingTests() throws Exception {
+        interrupted = new CountDownLatch(2);
+        ForkJoinPool pool = new ForkJoinPool(1);
+        GlobalTimeoutParallelComputer computer = GlobalTimeoutParallelComputer.builder(
+                GlobalTimeoutParallelComputer.Mode.CLASSES, pool, 5000, TimeUnit.MILLISECONDS)
+                .classTimeout(200)
+                .build();
+        Result result = run(computer, Sleeping.class);
+        pool.shutdownNow();
+
+        assertFalse(computer.hasTimedOut());
+        // the first test is interrupted, and the second fails without running
+        assertEquals(2, result.getFailureCount());
+        assertEquals(1, interrupted.getCount());
+    }
+
+    @Test(timeout = 10_000)
+    public void testLimitFailsTestsThatIgnoreInterrupts() throws Exception {
+        ForkJoinPool pool = new ForkJoinPool(1);
+        GlobalTimeoutParallelComputer computer = GlobalTimeoutParallelComputer.builder(
+                GlobalTimeoutParallelComputer.Mode.CLASSES, pool, 5, TimeUnit.SECONDS).build();
+        spinning = true;
+        Result result;
+        try {
+            result = run(computer, Stuck.class);
+        } finally {
+            spinning = false;
+            pool.shutdownNow();
+        }
+
+        assertFalse(computer.hasTimedOut());
+        assertEquals(3, result.getRunCount());
+        List<String> failed = new ArrayList<>();
+        for (Failure failure : result.getFailures()) {
+            assertTrue(failure.getException() instanceof TestTimedOutException);
+            failed.add(failure.getDescription().getMethodName());
+        }
+        Collections.sort(failed);
+        assertEquals(Arrays.asList("qTimeout", "testTimeout"), failed);
+        assertEquals(1, computer.getNumCompletedClasses());
+    }
+
+    @Test(timeout = 10_000)
+    public void testClassBudgetFailsTestsThatIgnoreInterrupts() throws Exception {
+        ForkJoinPool pool = new ForkJoinPool(1);
+        GlobalTimeoutParallelComputer computer = GlobalTimeoutParallelComputer.builder(
+                GlobalTimeoutParallelComputer.Mode.CLASSES, pool, 5000, TimeUnit.MILLISECONDS)
+                .classTimeout(200)
+                .build();
+        spinning = true;
+        Result result;
+        try {
+            result = run(computer, StuckUnlimited.class);
+        } finally {
+            spinning = false;
+            pool.shutdownNow();
+        }
+
+        assertFalse(computer.hasTimedOut());
+        // the first test is abandoned, and the second fails without running
+        assertEquals(2, result.getFailureCount());
+        for (Failure failure : result.getFailures()) {
+            assertTrue(failure.getException()
+                    instanceof GlobalTimeoutParallelComputer.ClassBudgetExceededException);
+        }
+        assertEquals(1, computer.getNumCompletedClasses());
+    }
+
+    @Test(timeout = 10_000)
+    public void testCpuBudgetChargesCpuTimeOnly() throws Exception {
+        assumeTrue(CpuClock.isSupported());
+        ForkJoinPool pool = new ForkJoinPool(1);
+        GlobalTimeoutParallelComputer computer = GlobalTimeoutParallelComputer.builder(
+                GlobalTimeoutParallelComputer.Mode.CLASSES, pool, 5000, TimeUnit.MILLISECONDS)
+                .cpuScale(1)
+                .build();
+        Result result = run(computer, Spending.class);
+        pool.shutdownNow();
+
+        // sleeping costs no CPU time, but spinning does, also on a thread the test started
+        assertEquals(3, result.getRunCount());
+        List<String> failed = new ArrayList<>();
+        for (Failure failure : result.getFailures()) {
+            assertTrue(failure.getException() instanceof TestTimedOutException);
+            failed.add(failure.getDescription().getMethodName());
+        }
+        Collections.sort(failed);
+        assertEquals(Arrays.asList("spin", "spinInThread"), failed);
+    }
+
+    @Test(timeout = 10_000)
+    public void testFailedPrerequisiteSkipsDependents() throws Exception {
+        ranDependent = new AtomicBoolean();
+        ForkJoinPool pool = new ForkJoinPool(2);
+        GlobalTimeoutParallelComputer computer =
+                GlobalTimeoutParallelComputer.builder(BOTH, pool, 5, TimeUnit.SECONDS).build();
+        StringWriter scores = new StringWriter();
+        JUnitCore core = new JUnitCore();
+        core.addListener(new QRunListener(new PrintWriter(new StringWriter()),
+                new PrintWriter(scores, true), new SqlFormatter(), null,
+                new FirstTestFailureConsumer()));
+        Result result = core.run(Request.classes(computer, Prerequisites.class));
+        pool.shutdownNow();
+
+        assertFalse(ranDependent.get());
+        assertEquals(1, result.getFailureCount());
+        assertEquals("insert", result.getFailures().get(0).getDescription().getMethodName());
+        // find is skipped because insert failed, and balance because find was skipped
+        assertEquals(2, result.getAssumptionFailureCount());
+        List<String> rows = new ArrayList<>(Arrays.asList(scores.toString().split("\\R")));
+        Collections.sort(rows);
+        assertEquals(Arrays.asList("-1.000000|0|balance|skipped", "-1.000000|0|find|skipped",
+                "0.000000|0|insert", "1.000000|0|size"), rows);
+    }
+
+    private static Result run(GlobalTimeoutParallelComputer computer, Class<?>... classes) {
+        return new JUnitCore().run(Request.classes(computer, classes));
+    }
+
+    public static class Quick {
+        // @formatter:off
+        @Test public void a() {}
+        @Test public void b() {}
+        @Test public void c() {}
+        @Test public void d() {}
+        // @formatter:on
+    }
+
+    public static class Meeting {
+        @Test
+        public void a() throws Exception {
+            barrier.await(5, TimeUnit.SECONDS);
+        }
+
+        @Test
+        public void b() throws Exception {
+            barrier.await(5, TimeUnit.SECONDS);
+        }
+    }
+
+    public static class Limited {
+        @Test
+        @Q(desc = "slow", points = 1, timeoutMillis = 100)
+        public void slow() throws Exception {
+            TimeUnit.MINUTES.sleep(1);
+        }
+
+        @Test
+        @Q(desc = "fast", points = 1, timeoutMillis = 100)
+        public void fast() {
+        }
+    }
+
+    public static class Stuck {
+        @Test(timeout = 300)
+        public void testTimeout() {
+            spin();
+        }
+
+        @Test
+        @Q(desc = "qTimeout", points = 1, timeoutMillis = 300)
+        public void qTimeout() {
+            spin();
+        }
+
+        @Test
+        @Q(desc = "passing", points = 1)
+        public void passing() {
+        }
+    }
+
+    public static class StuckUnlimited {
+        @Test
+        public void a() {
+            spin();
+        }
+
+        @Test
+        public void b() {
+            spin();
+        }
+    }
+
+    /**
+     * Spins, ignoring interrupts, until the test that ran the class is over.
+     */
+    private static void spin() {
+        while (spinning) {
+            Thread.yield();
+        }
+    }
+
+    public static class Spending {
+        @Test
+        @Q(desc = "sleep", points = 1, timeoutMillis = 100)
+        public void sleep() throws Exception {
+            TimeUnit.MILLISECONDS.sleep(300);
+        }
+
+        @Test
+        @Q(desc = "spin", points = 1, timeoutMillis = 100)
+        public void spin() {
+            while (!Thread.currentThread().isInterrupted()) {
+                Thread.yield();
+            }
+        }
+
+        @Test
+        @Q(desc = "spinInThread", points = 1, timeoutMillis = 100)
+        public void spinInThread() throws Exception {
+            AtomicBoolean stop = new AtomicBoolean();
+            Thread spinner = new Thread(() -> {
+                while (!stop.get()) {
+                    Thread.yield();
+                }
+            });
+            spinner.start();
+            try {
+                spinner.join();
+            } finally {
+                stop.set(true);
+            }
+        }
+    }
+
+    public static class Prerequisites {
+        @Test
+        @Q(desc = "insert", points = 1)
+        public void insert() {
+            fail();
+        }
+
+        @Test
+        @Q(desc = "find", points = 1, incorrect = -1, requires = "insert")
+        public void find() {
+            ranDependent.set(true);
+        }
+
+        @Test
+        @Q(desc = "balance", points = 1, incorrect = -1, requires = {"find", "size"})
+        public void balance() {
+            ranDependent.set(true);
+        }
+
+        @Test
+        @Q(desc = "size", points = 1)
+        public void size() {
+        }
+    }
+
+    public static class Sleeping {
+        @Test
+        public void a() {
+            sleep();
+        }
+
+        @Test
+        public void b() {
+            sleep();
+        }
+
+        private static void sleep() {
+            try {
+                TimeUnit.MINUTES.sleep(1);
+            } catch (InterruptedException e) {
+                interrupted.countDown();
+            }
+        }
+    }
+}
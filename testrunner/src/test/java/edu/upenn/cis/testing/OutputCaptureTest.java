@@ -0,0 +1,122 @@
+package edu.upenn.cis.testing;
+
+import edu.upenn.cis.testing.annotation.Q;
+import org.junit.Test;
+import org.junit.runner.Description;
+import org.junit.runner.JUnitCore;
+import org.junit.runner.Request;
+
+import java.io.ByteArrayOutputStream;
+import java.io.PrintStream;
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.TimeUnit;
+
+import static edu.upenn.cis.testing.GlobalTimeoutParallelComputer.Mode.METHODS;
+import static org.junit.Assert.*;
+
+/**
+ * @author davix
+ */
+public class OutputCaptureTest {
+
+    @Test(timeout = 10_000)
+    public void testOutputIsAttributedAndBounded() throws Exception {
+        PrintStream out = System.out;
+        StringWriter output = new StringWriter();
+        OutputCapture capture = new OutputCapture(OutputCapture.Policy.FAILURES, 64);
+        JUnitCore core = new JUnitCore();
+        core.addListener(new QRunListener(new PrintWriter(output, true),
+                new PrintWriter(new StringWriter(), true), new SqlFormatter(), null,
+                new AllTestFailuresConsumer(), capture));
+        core.addListener(capture);
+        ForkJoinPool pool = new ForkJoinPool(3);
+        OutputCapture.install();
+        try {
+            core.run(Request.classes(GlobalTimeoutParallelComputer.builder(METHODS, pool, 5,
+                    TimeUnit.SECONDS).build(),
+                    Printing.class));
+        } finally {
+            OutputCapture.uninstall();
+            pool.shutdownNow();
+        }
+        assertSame(out, System.out);
+
+        String printed = output.toString();
+        String a = section(printed, "): a");
+        assertTrue(printed, a.contains("Output:" + System.lineSeparator() + "from a"));
+        assertTrue(printed, a.contains("from a thread of a"));
+        assertTrue(printed, a.contains("on stderr"));
+        assertFalse(printed, a.contains("from b"));
+        long numPrinted = 10_000L * ("from b".length() + System.lineSeparator().length());
+        assertTrue(printed, section(printed, "): b").contains(
+                "[" + (numPrinted - 64) + " more byte(s) of output truncated]"));
+        // passed, so its output is discarded
+        assertFalse(printed, printed.contains("from c"));
+    }
+
+    @Test(timeout = 10_000)
+    public void testOutputAfterTestFinishedGoesToOriginalStream() throws Exception {
+        PrintStream out = System.out;
+        ByteArrayOutputStream original = new ByteArrayOutputStream();
+        System.setOut(new PrintStream(original, true));
+        OutputCapture capture = new OutputCapture(OutputCapture.Policy.FAILURES, 64);
+        Description d = Description.createTestDescription(Printing.class, "c");
+        ExecutorService executor = null;
+        OutputCapture.install();
+        try {
+            capture.testStarted(d);
+            // its thread is started by the test, so it inherits the test's buffer
+            executor = Executors.newSingleThreadExecutor();
+            executor.submit(() -> System.out.println("during")).get();
+            assertEquals("during" + System.lineSeparator(), capture.getOutput(d));
+            capture.testFinished(d);
+            executor.submit(() -> System.out.println("after")).get();
+        } finally {
+            OutputCapture.uninstall();
+            System.setOut(out);
+            if (executor != null) {
+                executor.shutdownNow();
+            }
+        }
+        assertEquals("after" + System.lineSeparator(), original.toString());
+    }
+
+    private static String section(String printed, String header) {
+        int start = printed.indexOf(header);
+        assertTrue(printed, start >= 0);
+        int end = printed.indexOf("Failure (", start);
+        return printed.substring(start, end < 0 ? printed.length() : end);
+    }
+
+    public static class Printing {
+        @Test
+        @Q(desc = "a", points = 1)
+        public void a() throws InterruptedException {
+            System.out.println("from a");
+            Thread thread = new Thread(() -> System.out.println("from a thread of a"));
+            thread.start();
+            thread.join();
+            System.err.println("on stderr");
+            fail();
+        }
+
+        @Test
+        @Q(desc = "b", points = 1)
+        public void b() {
+            for (int i = 0; i < 10_000; i++) {
+                System.out.println("from b");
+            }
+            fail();
+        }
+
+        @Test
+        @Q(desc = "c", points = 1)
+        public void c() {
+            System.out.println("from c");
+        }
+    }
+}
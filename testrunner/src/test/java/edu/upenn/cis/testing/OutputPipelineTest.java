@@ -0,0 +1,103 @@
+package edu.upenn.cis.testing;
+
+import org.junit.Test;
+
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+/**
+ * @author davix
+ */
+public class OutputPipelineTest {
+
+    @Test(timeout = 10_000)
+    public void testConcurrentWritesArriveWhole() throws Exception {
+        OutputPipeline pipeline = new OutputPipeline(4, OutputPipeline.Overflow.BLOCK);
+        StringWriter out = new StringWriter();
+        PrintWriter writer = new PrintWriter(pipeline.writer(out));
+        ExecutorService executor = Executors.newFixedThreadPool(4);
+        List<Future<?>> futures = new ArrayList<>();
+        List<String> expected = new ArrayList<>();
+        for (int t = 0; t < 4; t++) {
+            int thread = t;
+            for (int i = 0; i < 500; i++) {
+                expected.add(String.format("%d|%d|row", thread, i));
+            }
+            futures.add(executor.submit(() -> {
+                for (int i = 0; i < 500; i++) {
+                    writer.printf("%d|%d|row%n", thread, i);
+                }
+            }));
+        }
+        for (Future<?> future : futures) {
+            future.get();
+        }
+        executor.shutdown();
+        writer.flush();
+
+        List<String> lines = new ArrayList<>(Arrays.asList(out.toString().split("\\R")));
+        Collections.sort(lines);
+        Collections.sort(expected);
+        assertEquals(expected, lines);
+        pipeline.close();
+    }
+
+    @Test(timeout = 10_000)
+    public void testDropWhileFull() throws Exception {
+        CountDownLatch stalled = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+        StringWriter out = new StringWriter();
+        Writer slow = new Writer() {
+            @Override
+            public void write(char[] cbuf, int off, int len) throws IOException {
+                stalled.countDown();
+                try {
+                    release.await();
+                } catch (InterruptedException e) {
+                    throw new IOException(e);
+                }
+                out.write(cbuf, off, len);
+            }
+
+            @Override
+            public void flush() {
+            }
+
+            @Override
+            public void close() {
+            }
+        };
+        OutputPipeline pipeline = new OutputPipeline(2, OutputPipeline.Overflow.DROP);
+        Writer writer = pipeline.writer(slow);
+        writer.write("first");
+        assertTrue(stalled.await(5, TimeUnit.SECONDS));
+        // the writer thread is stuck in the first write, so the buffer fills up
+        for (int i = 0; i < 5; i++) {
+            writer.write("12345");
+        }
+        release.countDown();
+        writer.flush();
+        pipeline.close();
+
+        String printed = out.toString();
+        assertTrue(printed, printed.startsWith("first1234512345"));
+        assertTrue(printed, printed.contains("[15 character(s) of output dropped]"));
+
+        // once closed, writes go straight through
+        writer.write("after");
+        assertTrue(out.toString().endsWith("after"));
+    }
+}
@@ -3,6 +3,26 @@ package edu.upenn.cis.testing;
 import org.junit.Rule;
 import org.junit.Test;
 import org.junit.rules.ExpectedException;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.ByteArrayOutputStream;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.URL;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.zip.CRC32;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
 
 import static org.junit.Assert.*;
 
@@ -14,6 +34,9 @@ public class QClassLoaderTest {
     @Rule
     public ExpectedException thrown = ExpectedException.none();
 
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
     @Test
     public void testLoadClassQSame() throws Exception {
         QClassLoader qClassLoader1 = new QClassLoader(getClass().getClassLoader());
@@ -49,4 +72,165 @@ public class QClassLoaderTest {
 
         qClassLoader1.loadClass("edu.upenn.cis.testing.NonExistentClass");
     }
-}
\ No newline at end of file
+
+    @Test
+    public void testLoadClassFromStoredJarEntry() throws Exception {
+        assertLoadsFakeClassFromJar(ZipEntry.STORED);
+    }
+
+    @Test
+    public void testLoadClassFromDeflatedJarEntry() throws Exception {
+        assertLoadsFakeClassFromJar(ZipEntry.DEFLATED);
+    }
+
+    @Test
+    public void testLoadClassFromDirectory() throws Exception {
+        Path dir = folder.newFolder().toPath();
+        Path classFile = dir.resolve("edu/upenn/cis121/hw0/FakeClass.class");
+        Files.createDirectories(classFile.getParent());
+        Files.write(classFile, fakeClassBytes());
+
+        try (ClassPathRoot root = ClassPathRoot.open(dir)) {
+            QClassLoader qClassLoader = new QClassLoader(getClass().getClassLoader().getParent(),
+                    Collections.emptyMap(), root);
+            assertEquals(qClassLoader, qClassLoader.loadClass("edu.upenn.cis121.hw0.FakeClass")
+                    .getClassLoader());
+        }
+    }
+
+    @Test
+    public void testSubmissionDoesNotReplaceGraderClasses() throws Exception {
+        Path dir = folder.newFolder().toPath();
+        Path classFile = dir.resolve("edu/upenn/cis121/hw0/FakeClass.class");
+        Files.createDirectories(classFile.getParent());
+        Files.write(classFile, new byte[]{0});
+
+        try (ClassPathRoot root = ClassPathRoot.open(dir);
+             SubmissionClassLoader submission = new SubmissionClassLoader(
+                     new URL[]{dir.toUri().toURL()}, getClass().getClassLoader())) {
+            QClassLoader qClassLoader = new QClassLoader(submission, Collections.emptyMap(),
+                    root);
+            // the submission's class file is not even a class
+            Class<?> c = qClassLoader.loadClass("edu.upenn.cis121.hw0.FakeClass");
+            assertEquals(qClassLoader, c.getClassLoader());
+            assertEquals(RegradeCache.hash(ByteBuffer.wrap(fakeClassBytes())),
+                    qClassLoader.contentHash("edu.upenn.cis121.hw0.FakeClass"));
+        }
+    }
+
+    @Test
+    public void testDependenciesIncludeClassesDefinedBySubmission() throws Exception {
+        Path dir = folder.newFolder().toPath();
+        Path classFile = dir.resolve("edu/upenn/cis121/hw0/FakeClass.class");
+        Files.createDirectories(classFile.getParent());
+        Files.write(classFile, fakeClassBytes());
+
+        // with no grader classes, the submission's class loader defines the class itself
+        try (SubmissionClassLoader submission = new SubmissionClassLoader(
+                new URL[]{dir.toUri().toURL()}, null)) {
+            QClassLoader qClassLoader = new QClassLoader(submission, Collections.emptyMap(),
+                    null, null, true);
+            assertTrue(qClassLoader.getDependencies().isEmpty());
+            assertEquals(submission, submission.loadClass("edu.upenn.cis121.hw0.FakeClass")
+                    .getClassLoader());
+            assertEquals(Collections.singletonMap("edu.upenn.cis121.hw0.FakeClass",
+                    RegradeCache.hash(ByteBuffer.wrap(fakeClassBytes()))),
+                    qClassLoader.getDependencies());
+        }
+    }
+
+    @Test
+    public void testLoadClassConcurrently() throws Exception {
+        QClassLoader qClassLoader = new QClassLoader(getClass().getClassLoader());
+        ExecutorService executor = Executors.newFixedThreadPool(8);
+        try {
+            List<Future<Class<?>>> futures = new ArrayList<>();
+            for (int i = 0; i < 64; i++) {
+                futures.add(executor.submit(() ->
+                        qClassLoader.loadClass("edu.upenn.cis121.hw0.FakeClass")));
+            }
+            Class<?> first = futures.get(0).get();
+            assertEquals(qClassLoader, first.getClassLoader());
+            for (Future<Class<?>> future : futures) {
+                assertSame(first, future.get());
+            }
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    @Test
+    public void testLoadMissingClassTwice() throws Exception {
+        QClassLoader qClassLoader = new QClassLoader(getClass().getClassLoader());
+        for (int i = 0; i < 2; i++) {
+            try {
+                qClassLoader.loadClass("edu.upenn.cis121.hw0.NonExistentClass");
+                fail();
+            } catch (ClassNotFoundException e) {
+                assertEquals("edu.upenn.cis121.hw0.NonExistentClass", e.getMessage());
+            }
+        }
+    }
+
+    @Test
+    public void testCompiledClassesDoNotReplaceParentClasses() throws Exception {
+        Map<String, byte[]> compiled = new HashMap<>();
+        compiled.put("edu.upenn.cis121.hw0.FakeClass", new byte[]{0});
+        compiled.put("org.junit.Test", new byte[]{0});
+        compiled.put("edu.upenn.cis121.hw0.Compiled", fakeClassBytes());
+        QClassLoader qClassLoader = new QClassLoader(getClass().getClassLoader(), compiled);
+
+        Class<?> c = qClassLoader.loadClass("edu.upenn.cis121.hw0.FakeClass");
+        assertEquals(qClassLoader, c.getClassLoader());
+        assertSame(Test.class, qClassLoader.loadClass("org.junit.Test"));
+        try {
+            // only names the parent does not have come from the compiled classes
+            qClassLoader.loadClass("edu.upenn.cis121.hw0.Compiled");
+            fail();
+        } catch (NoClassDefFoundError e) {
+            assertTrue(e.getMessage(), e.getMessage().contains("wrong name"));
+        }
+    }
+
+    private void assertLoadsFakeClassFromJar(int method) throws Exception {
+        byte[] bytes = fakeClassBytes();
+        Path jar = folder.newFile("fake.jar").toPath();
+        try (ZipOutputStream out = new ZipOutputStream(Files.newOutputStream(jar))) {
+            out.putNextEntry(new ZipEntry("edu/upenn/cis121/hw0/"));
+            ZipEntry entry = new ZipEntry("edu/upenn/cis121/hw0/FakeClass.class");
+            entry.setMethod(method);
+            if (method == ZipEntry.STORED) {
+                CRC32 crc = new CRC32();
+                crc.update(bytes);
+                entry.setSize(bytes.length);
+                entry.setCrc(crc.getValue());
+            }
+            out.putNextEntry(entry);
+            out.write(bytes);
+            out.setComment("a comment before which the central directory must be found");
+        }
+
+        try (ClassPathRoot root = ClassPathRoot.open(jar)) {
+            // the parent cannot see the test classes, so the class must come from the jar
+            QClassLoader qClassLoader = new QClassLoader(getClass().getClassLoader().getParent(),
+                    Collections.emptyMap(), root);
+            Class<?> c = qClassLoader.loadClass("edu.upenn.cis121.hw0.FakeClass");
+            assertEquals(qClassLoader, c.getClassLoader());
+            assertNotEquals(edu.upenn.cis121.hw0.FakeClass.class, c);
+        }
+    }
+
+    private static byte[] fakeClassBytes() throws Exception {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try (InputStream in = QClassLoaderTest.class.getResourceAsStream(
+                "/edu/upenn/cis121/hw0/FakeClass.class");
+             OutputStream out = bytes) {
+            byte[] buffer = new byte[4096];
+            int n;
+            while ((n = in.read(buffer)) != -1) {
+                out.write(buffer, 0, n);
+            }
+        }
+        return bytes.toByteArray();
+    }
+}
@@ -0,0 +1,180 @@
+package edu.upenn.cis.testing;
+
+import edu.upenn.cis.testing.annotation.Q;
+import org.junit.Test;
+import org.junit.runner.Description;
+import org.junit.runner.notification.Failure;
+
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+import static org.junit.Assume.assumeTrue;
+
+/**
+ * @author davix
+ */
+public class QRunListenerTest {
+    private static final int NUM_TESTS = 32;
+    private static final int ROUNDS = 20_000;
+    private static final AssertionError FAILURE = new AssertionError("tiny");
+
+    @Test
+    public void testScoresAreExact() throws Exception {
+        QRunListener listener = newListener();
+        for (int i = 0; i < 10; i++) {
+            run(listener, "t00", false);
+        }
+        // ten times 0.1 is exactly 1 in fixed point, but not in floating point
+        assertEquals(Double.valueOf(1.0),
+                listener.getTotalPointsEarnedByType().get(Q.Type.REGULAR));
+    }
+
+    @Test
+    public void testFailedTestEarnsIncorrect() throws Exception {
+        QRunListener listener = newListener();
+        run(listener, "t00", true);
+        run(listener, "t01", false);
+        assertEquals(Double.valueOf(0.0),
+                listener.getTotalPointsEarnedByType().get(Q.Type.REGULAR));
+        assertTrue(listener.getCurrentQs().isEmpty());
+    }
+
+    @Test(timeout = 120_000)
+    public void testConcurrentTinyTests() throws Exception {
+        int maxThreads = Math.min(8, Runtime.getRuntime().availableProcessors());
+        // warms up, and checks the scores under contention
+        stress(maxThreads);
+        assumeTrue("too few processors to measure scaling", maxThreads >= 4);
+
+        double single = stress(1);
+        double parallel = stress(maxThreads);
+        // a global lock would make this slower than a single thread
+        assertTrue(String.format("%.0f events/s with 1 thread, %.0f events/s with %d threads",
+                single, parallel, maxThreads), parallel > single);
+    }
+
+    /**
+     * Runs {@link #ROUNDS} rounds of all test methods, split among threads, and checks the
+     * score.
+     *
+     * @return the throughput in events per second
+     */
+    private static double stress(int numThreads) throws Exception {
+        QRunListener listener = newListener();
+        CountDownLatch start = new CountDownLatch(1);
+        List<Thread> threads = new ArrayList<>();
+        for (int t = 0; t < numThreads; t++) {
+            // descriptions are created up front, so that only the listener is measured
+            List<Description> tests = new ArrayList<>();
+            for (int i = t; i < NUM_TESTS; i += numThreads) {
+                tests.add(Description.createTestDescription(Tiny.class,
+                        String.format("t%02d", i)));
+            }
+            Thread thread = new Thread(() -> {
+                try {
+                    start.await();
+                } catch (InterruptedException e) {
+                    return;
+                }
+                for (int round = 0; round < ROUNDS; round++) {
+                    for (Description d : tests) {
+                        run(listener, d, round % 4 == 0);
+                    }
+                }
+            });
+            thread.start();
+            threads.add(thread);
+        }
+        long startNanos = System.nanoTime();
+        start.countDown();
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        long elapsedNanos = System.nanoTime() - startNanos;
+
+        // every test passes 3 rounds out of 4, for 0.1 points, and fails 1, for -0.1 points
+        long expectedTenths = (long) NUM_TESTS * (ROUNDS / 4) * 2;
+        Map<Q.Type, Double> earned = listener.getTotalPointsEarnedByType();
+        assertEquals(Double.valueOf(expectedTenths / 10.0), earned.get(Q.Type.REGULAR));
+        assertTrue(listener.getCurrentQs().isEmpty());
+
+        // started and finished, plus a failure every 4th round
+        long events = (long) NUM_TESTS * ROUNDS * 2 + (long) NUM_TESTS * (ROUNDS / 4);
+        return events / (elapsedNanos / (double) TimeUnit.SECONDS.toNanos(1));
+    }
+
+    private static void run(QRunListener listener, String method, boolean fail) {
+        run(listener, Description.createTestDescription(Tiny.class, method), fail);
+    }
+
+    private static void run(QRunListener listener, Description d, boolean fail) {
+        listener.testStarted(d);
+        if (fail) {
+            listener.testFailure(new Failure(d, FAILURE));
+        }
+        listener.testFinished(d);
+    }
+
+    private static QRunListener newListener() {
+        PrintWriter nowhere = new PrintWriter(new Writer() {
+            @Override
+            public void write(char[] cbuf, int off, int len) {
+            }
+
+            @Override
+            public void flush() {
+            }
+
+            @Override
+            public void close() {
+            }
+        });
+        return new QRunListener(new PrintWriter(new StringWriter()), nowhere,
+                (q, status) -> "", d -> null, (q, f, out) -> {
+        });
+    }
+
+    public static class Tiny {
+        // @formatter:off
+        @Test @Q(desc = "t00", points = 0.1, incorrect = -0.1) public void t00() {}
+        @Test @Q(desc = "t01", points = 0.1, incorrect = -0.1) public void t01() {}
+        @Test @Q(desc = "t02", points = 0.1, incorrect = -0.1) public void t02() {}
+        @Test @Q(desc = "t03", points = 0.1, incorrect = -0.1) public void t03() {}
+        @Test @Q(desc = "t04", points = 0.1, incorrect = -0.1) public void t04() {}
+        @Test @Q(desc = "t05", points = 0.1, incorrect = -0.1) public void t05() {}
+        @Test @Q(desc = "t06", points = 0.1, incorrect = -0.1) public void t06() {}
+        @Test @Q(desc = "t07", points = 0.1, incorrect = -0.1) public void t07() {}
+        @Test @Q(desc = "t08", points = 0.1, incorrect = -0.1) public void t08() {}
+        @Test @Q(desc = "t09", points = 0.1, incorrect = -0.1) public void t09() {}
+        @Test @Q(desc = "t10", points = 0.1, incorrect = -0.1) public void t10() {}
+        @Test @Q(desc = "t11", points = 0.1, incorrect = -0.1) public void t11() {}
+        @Test @Q(desc = "t12", points = 0.1, incorrect = -0.1) public void t12() {}
+        @Test @Q(desc = "t13", points = 0.1, incorrect = -0.1) public void t13() {}
+        @Test @Q(desc = "t14", points = 0.1, incorrect = -0.1) public void t14() {}
+        @Test @Q(desc = "t15", points = 0.1, incorrect = -0.1) public void t15() {}
+        @Test @Q(desc = "t16", points = 0.1, incorrect = -0.1) public void t16() {}
+        @Test @Q(desc = "t17", points = 0.1, incorrect = -0.1) public void t17() {}
+        @Test @Q(desc = "t18", points = 0.1, incorrect = -0.1) public void t18() {}
+        @Test @Q(desc = "t19", points = 0.1, incorrect = -0.1) public void t19() {}
+        @Test @Q(desc = "t20", points = 0.1, incorrect = -0.1) public void t20() {}
+        @Test @Q(desc = "t21", points = 0.1, incorrect = -0.1) public void t21() {}
+        @Test @Q(desc = "t22", points = 0.1, incorrect = -0.1) public void t22() {}
+        @Test @Q(desc = "t23", points = 0.1, incorrect = -0.1) public void t23() {}
+        @Test @Q(desc = "t24", points = 0.1, incorrect = -0.1) public void t24() {}
+        @Test @Q(desc = "t25", points = 0.1, incorrect = -0.1) public void t25() {}
+        @Test @Q(desc = "t26", points = 0.1, incorrect = -0.1) public void t26() {}
+        @Test @Q(desc = "t27", points = 0.1, incorrect = -0.1) public void t27() {}
+        @Test @Q(desc = "t28", points = 0.1, incorrect = -0.1) public void t28() {}
+        @Test @Q(desc = "t29", points = 0.1, incorrect = -0.1) public void t29() {}
+        @Test @Q(desc = "t30", points = 0.1, incorrect = -0.1) public void t30() {}
+        @Test @Q(desc = "t31", points = 0.1, incorrect = -0.1) public void t31() {}
+        // @formatter:on
+    }
+}
@@ -0,0 +1,108 @@
+package edu.upenn.cis.testing;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.junit.runner.JUnitCore;
+import org.junit.runner.Request;
+import org.junit.runner.Result;
+
+import java.nio.file.Path;
+import java.util.Collections;
+import java.util.Map;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static edu.upenn.cis.testing.GlobalTimeoutParallelComputer.Mode.CLASSES;
+import static org.junit.Assert.*;
+
+/**
+ * @author davix
+ */
+public class RegradeCacheTest {
+    private static final String TEST_CLASS = "edu.upenn.cis121.hw0.FakeGradedClass";
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test(timeout = 10_000)
+    public void testReplaysUnchangedOutcomes() throws Exception {
+        Path directory = folder.getRoot().toPath();
+
+        Grading first = grade(new RegradeCache(directory, "submission"));
+        assertEquals(2, first.runs);
+        assertEquals(0, first.computer.getNumCachedTests());
+
+        Grading second = grade(new RegradeCache(directory, "submission"));
+        assertEquals(0, second.runs);
+        assertEquals(2, second.computer.getNumCachedTests());
+        assertEquals(2, second.result.getRunCount());
+        assertEquals(1, second.result.getFailureCount());
+        assertEquals("fail", second.result.getFailures().get(0).getDescription().getMethodName());
+        assertEquals(first.result.getFailures().get(0).getTrace(),
+                second.result.getFailures().get(0).getTrace());
+
+        // another submission has a cache of its own
+        assertEquals(2, grade(new RegradeCache(directory, "other")).runs);
+    }
+
+    @Test(timeout = 10_000)
+    public void testOutcomesOfClassShareDependencies() throws Exception {
+        RegradeCache cache = new RegradeCache(folder.getRoot().toPath(), "submission");
+        grade(cache);
+
+        // only pass uses FakeClass, but which test loads it first depends on the order
+        Map<String, RegradeCache.Outcome> outcomes = cache.load(TEST_CLASS);
+        assertEquals(2, outcomes.size());
+        assertTrue(outcomes.get("pass").getDependencies()
+                .containsKey("edu.upenn.cis121.hw0.FakeClass"));
+        assertEquals(outcomes.get("pass").getDependencies(),
+                outcomes.get("fail").getDependencies());
+    }
+
+    @Test
+    public void testChangedDependencyIsNotCurrent() throws Exception {
+        RegradeCache cache = new RegradeCache(folder.getRoot().toPath(), "submission");
+        QClassLoader classLoader = newClassLoader();
+        String fakeClass = "edu.upenn.cis121.hw0.FakeClass";
+        cache.store(TEST_CLASS, Collections.singletonMap("pass", new RegradeCache.Outcome(
+                Collections.singletonMap(fakeClass, classLoader.contentHash(fakeClass)), null)));
+        cache.store("edu.upenn.cis121.hw0.Other", Collections.singletonMap("pass",
+                new RegradeCache.Outcome(Collections.singletonMap(fakeClass, "0123"), null)));
+
+        Map<String, RegradeCache.Outcome> current = cache.load(TEST_CLASS);
+        assertTrue(current.get("pass").isCurrent(classLoader));
+        assertNull(current.get("pass").getFailure());
+        assertFalse(cache.load("edu.upenn.cis121.hw0.Other").get("pass").isCurrent(classLoader));
+        assertTrue(cache.load("edu.upenn.cis121.hw0.Missing").isEmpty());
+    }
+
+    private QClassLoader newClassLoader() {
+        return new QClassLoader(getClass().getClassLoader(), Collections.emptyMap(), null, null,
+                true);
+    }
+
+    private Grading grade(RegradeCache cache) throws Exception {
+        Class<?> testClass = newClassLoader().loadClass(TEST_CLASS);
+        ForkJoinPool pool = new ForkJoinPool(1);
+        GlobalTimeoutParallelComputer computer = GlobalTimeoutParallelComputer.builder(CLASSES,
+                pool, 5, TimeUnit.SECONDS).cache(cache).build();
+        Result result = new JUnitCore().run(Request.classes(computer, testClass));
+        pool.shutdownNow();
+        return new Grading(computer, result,
+                ((AtomicInteger) testClass.getField("RUNS").get(null)).get());
+    }
+
+    private static final class Grading {
+        final GlobalTimeoutParallelComputer computer;
+        final Result result;
+        final int runs;
+
+        Grading(GlobalTimeoutParallelComputer computer, Result result, int runs) {
+            this.computer = computer;
+            this.result = result;
+            this.runs = runs;
+        }
+    }
+}
@@ -0,0 +1,156 @@
+package edu.upenn.cis.testing;
+
+import edu.upenn.cis.testing.annotation.Q;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.junit.runner.JUnitCore;
+import org.junit.runner.Request;
+
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.Collectors;
+
+import static edu.upenn.cis.testing.GlobalTimeoutParallelComputer.Mode.CLASSES;
+import static org.junit.Assert.*;
+
+/**
+ * @author davix
+ */
+public class ScoresJournalTest {
+    private static final AtomicInteger runs = new AtomicInteger();
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test(timeout = 10_000)
+    public void testResumeMatchesUninterruptedRun() throws Exception {
+        Path scoresFile = folder.getRoot().toPath().resolve("scores");
+        Path journalFile = ScoresJournal.journalFile(scoresFile);
+        runs.set(0);
+        String[] uninterrupted = grade(scoresFile, false);
+        assertEquals(3, runs.get());
+        assertEquals(3, Files.readAllLines(journalFile).size());
+
+        // killed after journaling the failure, in the middle of writing the next record
+        List<String> journaled = Files.readAllLines(journalFile).stream()
+                .filter(record -> record.startsWith("fail\t")).collect(Collectors.toList());
+        Files.write(journalFile, journaled);
+        Files.write(journalFile, "pass\tTorn".getBytes(StandardCharsets.UTF_8),
+                StandardOpenOption.APPEND);
+
+        runs.set(0);
+        String[] resumed = grade(scoresFile, true);
+        assertEquals(2, runs.get());
+        assertArrayEquals(uninterrupted, resumed);
+        assertEquals(3, Files.readAllLines(journalFile).size());
+    }
+
+    @Test(timeout = 10_000)
+    public void testResumeAfterFinishedRunRunsAllTests() throws Exception {
+        Path scoresFile = folder.getRoot().toPath().resolve("scores");
+        SubmissionGrader grader = new SubmissionGrader(
+                Collections.singletonList(Graded.class.getName()),
+                GradingOptions.builder(5, TimeUnit.SECONDS, AllTestFailuresConsumer::new)
+                        .resume(true)
+                        .build());
+        Submission submission = new Submission("submission", null, scoresFile);
+        runs.set(0);
+        grader.grade(submission, new PrintWriter(new StringWriter()));
+        assertEquals(3, runs.get());
+        assertFalse(Files.exists(ScoresJournal.journalFile(scoresFile)));
+        List<String> scores = Files.readAllLines(scoresFile);
+
+        runs.set(0);
+        grader.grade(submission, new PrintWriter(new StringWriter()));
+        assertEquals(3, runs.get());
+        assertEquals(scores, Files.readAllLines(scoresFile));
+    }
+
+    @Test(timeout = 10_000)
+    public void testClassBudgetExpiryIsNotJournaled() throws Exception {
+        Path scoresFile = folder.getRoot().toPath().resolve("scores");
+        JUnitCore core = new JUnitCore();
+        ForkJoinPool pool = new ForkJoinPool(1);
+        try (ScoresJournal journal = ScoresJournal.open(scoresFile, false)) {
+            GlobalTimeoutParallelComputer computer = GlobalTimeoutParallelComputer.builder(CLASSES,
+                    pool, 5_000, TimeUnit.MILLISECONDS)
+                    .classTimeout(200)
+                    .journaled(journal.getJournaled())
+                    .build();
+            core.addListener(journal.recorder(computer::hasTimedOut));
+            assertEquals(2, core.run(Request.classes(computer, OverBudget.class))
+                    .getFailureCount());
+        } finally {
+            pool.shutdownNow();
+        }
+        assertEquals(Collections.emptyList(),
+                Files.readAllLines(ScoresJournal.journalFile(scoresFile)));
+    }
+
+    /**
+     * @return the scores and the output
+     */
+    private static String[] grade(Path scoresFile, boolean resume) throws Exception {
+        StringWriter scores = new StringWriter();
+        StringWriter output = new StringWriter();
+        JUnitCore core = new JUnitCore();
+        core.addListener(new QRunListener(new PrintWriter(output, true),
+                new PrintWriter(scores, true), new SqlFormatter(), null,
+                new AllTestFailuresConsumer()));
+        ForkJoinPool pool = new ForkJoinPool(1);
+        try (ScoresJournal journal = ScoresJournal.open(scoresFile, resume)) {
+            GlobalTimeoutParallelComputer computer = GlobalTimeoutParallelComputer.builder(CLASSES,
+                    pool, 5, TimeUnit.SECONDS).journaled(journal.getJournaled()).build();
+            core.addListener(journal.recorder(computer::hasTimedOut));
+            core.run(Request.classes(computer, Graded.class));
+        } finally {
+            pool.shutdownNow();
+        }
+        return new String[]{scores.toString(), output.toString()};
+    }
+
+    public static class Graded {
+        @Test
+        @Q(desc = "a", points = 1)
+        public void a() {
+            runs.incrementAndGet();
+        }
+
+        @Test
+        @Q(desc = "b", points = 2)
+        public void b() {
+            runs.incrementAndGet();
+            fail("tab\tand\nnewline");
+        }
+
+        @Test
+        @Q(desc = "c", points = 3)
+        public void c() {
+            runs.incrementAndGet();
+        }
+    }
+
+    public static class OverBudget {
+        @Test
+        @Q(desc = "a", points = 1)
+        public void a() throws InterruptedException {
+            Thread.sleep(10_000);
+        }
+
+        @Test
+        @Q(desc = "b", points = 1)
+        public void b() throws InterruptedException {
+            Thread.sleep(10_000);
+        }
+    }
+}
@@ -0,0 +1,90 @@
+package edu.upenn.cis.testing;
+
+import edu.upenn.cis.testing.annotation.Q;
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import static org.junit.Assert.*;
+
+/**
+ * @author davix
+ */
+public class ShardTest {
+
+    private static final List<Class<?>> TEST_CLASSES = Arrays.asList(Big.class, Small.class);
+
+    @Test
+    public void testPartitionCoversEveryMethodOnce() throws Exception {
+        List<Set<String>> shards = new Shard(1, 3, new TestDurations()).partition(TEST_CLASSES);
+
+        Set<String> all = new HashSet<>();
+        int total = 0;
+        for (Set<String> shard : shards) {
+            all.addAll(shard);
+            total += shard.size();
+        }
+        assertEquals(6, total);
+        assertEquals(6, all.size());
+    }
+
+    @Test
+    public void testPartitionIsBalancedByPoints() throws Exception {
+        List<Set<String>> shards = new Shard(1, 2, new TestDurations()).partition(TEST_CLASSES);
+
+        // a (10) + e (1) against b (8) + c (1) + d (1) + f (0)
+        assertEquals(new HashSet<>(Arrays.asList(
+                Big.class.getName() + "#a", Small.class.getName() + "#e")), shards.get(0));
+        assertEquals(new HashSet<>(Arrays.asList(
+                Big.class.getName() + "#b", Small.class.getName() + "#c",
+                Small.class.getName() + "#d", Small.class.getName() + "#f")), shards.get(1));
+    }
+
+    @Test
+    public void testPartitionIsDeterministic() throws Exception {
+        assertEquals(new Shard(2, 3, new TestDurations()).partition(TEST_CLASSES),
+                new Shard(3, 3, new TestDurations()).partition(TEST_CLASSES));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testParseOutOfRange() throws Exception {
+        Shard.parse("4/3", new TestDurations());
+    }
+
+    public static class Big {
+        @Test
+        @Q(desc = "a", points = 10)
+        public void a() {
+        }
+
+        @Test
+        @Q(desc = "b", points = 8)
+        public void b() {
+        }
+    }
+
+    public static class Small {
+        @Test
+        @Q(desc = "c", points = 1)
+        public void c() {
+        }
+
+        @Test
+        @Q(desc = "d", points = 1)
+        public void d() {
+        }
+
+        @Test
+        @Q(desc = "e", points = 1)
+        public void e() {
+        }
+
+        @Test
+        @Q(desc = "f", points = 0)
+        public void f() {
+        }
+    }
+}
@@ -0,0 +1,87 @@
+package edu.upenn.cis.testing;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Collections;
+
+import static org.junit.Assert.*;
+
+/**
+ * @author davix
+ */
+public class StarterCodeTest {
+    private static final String FAKE_CLASS = "edu.upenn.cis121.hw0.FakeClass";
+    private static final String FAKE_STATEFUL_CLASS = "edu.upenn.cis121.hw0.FakeStatefulClass";
+    private static final String FAKE_PACKAGE_PRIVATE_CLASS =
+            "edu.upenn.cis121.hw0.FakePackagePrivateClass";
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void testIdenticalClassIsShared() throws Exception {
+        StarterCode starterCode = loadBundle();
+        StarterCode.SubmissionMatcher s1 = starterCode.matcher(StarterCodeTest::classBytes);
+        StarterCode.SubmissionMatcher s2 = starterCode.matcher(StarterCodeTest::classBytes);
+
+        Class<?> shared = s1.sharedClass(FAKE_CLASS);
+        assertNotNull(shared);
+        assertSame(shared, s2.sharedClass(FAKE_CLASS));
+        assertNotEquals(edu.upenn.cis121.hw0.FakeClass.class, shared);
+    }
+
+    @Test
+    public void testChangedClassIsNotShared() throws Exception {
+        StarterCode.SubmissionMatcher matcher = loadBundle().matcher(name -> {
+            ByteBuffer bytes = classBytes(name);
+            // change the last byte, which is part of the attributes
+            bytes.put(bytes.limit() - 1, (byte) (bytes.get(bytes.limit() - 1) + 1));
+            return bytes;
+        });
+        assertNull(matcher.sharedClass(FAKE_CLASS));
+    }
+
+    @Test
+    public void testStatefulClassIsNotShared() throws Exception {
+        StarterCode starterCode = loadBundle();
+        assertEquals(1, starterCode.getNumShareableClasses());
+        assertNull(starterCode.matcher(StarterCodeTest::classBytes)
+                .sharedClass(FAKE_STATEFUL_CLASS));
+    }
+
+    @Test
+    public void testClassWithPackageAccessIsNotShared() throws Exception {
+        StarterCode.SubmissionMatcher matcher =
+                loadBundle().matcher(StarterCodeTest::classBytes);
+        assertNull(matcher.sharedClass(FAKE_PACKAGE_PRIVATE_CLASS));
+
+        // a class of the submission that uses its package-private member
+        QClassLoader qClassLoader = new QClassLoader(getClass().getClassLoader(),
+                Collections.emptyMap(), null, matcher);
+        Class<?> user = qClassLoader.loadClass("edu.upenn.cis121.hw0.FakePackagePrivateUser");
+        assertEquals(42, user.getMethod("use").invoke(user.getConstructor().newInstance()));
+    }
+
+    private StarterCode loadBundle() throws Exception {
+        Path bundle = folder.newFolder().toPath();
+        for (String name : new String[]{FAKE_CLASS, FAKE_STATEFUL_CLASS,
+                FAKE_PACKAGE_PRIVATE_CLASS}) {
+            Path classFile = bundle.resolve(ClassPathRoot.classFileName(name));
+            Files.createDirectories(classFile.getParent());
+            ByteBuffer bytes = classBytes(name);
+            Files.write(classFile, bytes.array());
+        }
+        return StarterCode.load(bundle, getClass().getClassLoader().getParent());
+    }
+
+    private static ByteBuffer classBytes(String name) throws IOException {
+        return QClassLoader.findClassBytes(name, Collections.emptyMap(), null,
+                StarterCodeTest.class.getClassLoader());
+    }
+}
@@ -0,0 +1,85 @@
+package edu.upenn.cis.testing;
+
+import edu.upenn.cis.testing.annotation.Q;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.junit.runner.Description;
+import org.junit.runner.Request;
+import org.junit.runner.Runner;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static edu.upenn.cis.testing.GlobalTimeoutParallelComputer.Mode.BOTH;
+import static edu.upenn.cis.testing.GlobalTimeoutParallelComputer.Mode.CLASSES;
+import static org.junit.Assert.*;
+
+/**
+ * @author davix
+ */
+public class TestScheduleTest {
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void testLongestFirst() throws Exception {
+        TestSchedule schedule = new TestSchedule(history(), CLASSES, 2);
+        Runner runner = Request.classes(Fast.class, Slow.class).getRunner();
+        schedule.sorter(runner.getDescription(), 0).apply(runner);
+
+        assertEquals(Arrays.asList("Slow#b", "Slow#a", "Fast#c"), order(runner));
+        // Slow on one thread, Fast on the other
+        assertEquals(700, schedule.predictMakespanMillis(runner.getDescription()));
+    }
+
+    @Test
+    public void testMostPointsFirstWhenOverBudget() throws Exception {
+        TestSchedule schedule = new TestSchedule(history(), BOTH, 1);
+        Runner runner = Request.classes(Fast.class, Slow.class).getRunner();
+        schedule.sorter(runner.getDescription(), 500).apply(runner);
+
+        assertEquals(Arrays.asList("Fast#c", "Slow#a", "Slow#b"), order(runner));
+    }
+
+    private TestDurations history() throws Exception {
+        Path file = folder.newFile().toPath();
+        Files.write(file, Arrays.asList(
+                Slow.class.getName() + "#a\t200",
+                Slow.class.getName() + "#b\t500",
+                Fast.class.getName() + "#c\t100"));
+        return TestDurations.read(file);
+    }
+
+    private static List<String> order(Runner runner) {
+        List<String> order = new ArrayList<>();
+        for (Description testClass : runner.getDescription().getChildren()) {
+            for (Description method : testClass.getChildren()) {
+                order.add(method.getTestClass().getSimpleName() + "#" + method.getMethodName());
+            }
+        }
+        return order;
+    }
+
+    public static class Slow {
+        @Test
+        @Q(desc = "a", points = 2)
+        public void a() {
+        }
+
+        @Test
+        @Q(desc = "b", points = 1)
+        public void b() {
+        }
+    }
+
+    public static class Fast {
+        @Test
+        @Q(desc = "c", points = 5)
+        public void c() {
+        }
+    }
+}
@@ -0,0 +1,27 @@
+package edu.upenn.cis121.hw0;
+
+import edu.upenn.cis.testing.annotation.Q;
+import org.junit.Test;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * @author davix
+ */
+public class FakeGradedClass {
+    public static final AtomicInteger RUNS = new AtomicInteger();
+
+    @Test
+    @Q(desc = "pass", points = 1)
+    public void pass() {
+        RUNS.incrementAndGet();
+        new FakeClass();
+    }
+
+    @Test
+    @Q(desc = "fail", points = 1)
+    public void fail() {
+        RUNS.incrementAndGet();
+        org.junit.Assert.fail("expected failure");
+    }
+}
@@ -0,0 +1,10 @@
+package edu.upenn.cis121.hw0;
+
+/**
+ * @author davix
+ */
+public class FakePackagePrivateClass {
+    int value() {
+        return 42;
+    }
+}
@@ -0,0 +1,8 @@
+package edu.upenn.cis121.hw0;
+
+/**
+ * @author davix
+ */
+public class FakeStatefulClass {
+    public static int count;
+}